@@ -1018,6 +1018,30 @@ public final class JSONArray
         return o;
     }
 
+    /**
+     * Remove all values that are in the given collection, in one pass.
+     *
+     * @param values The values to remove.
+     *
+     * @return true if any value was removed.
+     */
+    public boolean removeAll( Collection values )
+    {
+        return this.myArrayList.removeAll( values );
+    }
+
+    /**
+     * Remove all values that are not in the given collection, in one pass.
+     *
+     * @param values The values to keep.
+     *
+     * @return true if any value was removed.
+     */
+    public boolean retainAll( Collection values )
+    {
+        return this.myArrayList.retainAll( values );
+    }
+
     /**
      * Produce a JSONObject by combining a JSONArray of names with the values
      * of this JSONArray.
@@ -1169,19 +1193,7 @@ public final class JSONArray
                 {
                     writer.write( ',' );
                 }
-                Object v = this.myArrayList.get( i );
-                if( v instanceof JSONObject )
-                {
-                    ( (JSONObject) v ).write( writer );
-                }
-                else if( v instanceof JSONArray )
-                {
-                    ( (JSONArray) v ).write( writer );
-                }
-                else
-                {
-                    writer.write( JSONObject.valueToString( v ) );
-                }
+                JSONObject.writeValue( this.myArrayList.get( i ), writer );
                 b = true;
             }
             writer.write( ']' );
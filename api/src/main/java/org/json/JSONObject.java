@@ -1342,62 +1342,97 @@ public final class JSONObject
             return "\"\"";
         }
 
+        StringBuilder sb = new StringBuilder( string.length() + 4 );
+        try
+        {
+            quote( string, sb );
+        }
+        catch( IOException e )
+        {
+            // Can not happen for a StringBuilder
+            throw new IllegalStateException( e );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write a string in double quotes with backslash sequences, in the same way as {@link #quote(String)},
+     * but directly to the output. Runs of characters that do not have to be escaped are appended as
+     * a whole.
+     *
+     * @param string A String
+     * @param out    The output to write to
+     *
+     * @throws IOException if the output could not be written to
+     */
+    public static void quote( String string, Appendable out )
+        throws IOException
+    {
+        if( string == null || string.length() == 0 )
+        {
+            out.append( "\"\"" );
+            return;
+        }
+
         char b;
         char c = 0;
-        int i;
         int len = string.length();
-        StringBuffer sb = new StringBuffer( len + 4 );
-        String t;
+        int run = 0;
 
-        sb.append( '"' );
-        for( i = 0; i < len; i += 1 )
+        out.append( '"' );
+        for( int i = 0; i < len; i += 1 )
         {
             b = c;
             c = string.charAt( i );
+            String escape;
             switch( c )
             {
             case '\\':
+                escape = "\\\\";
+                break;
             case '"':
-                sb.append( '\\' );
-                sb.append( c );
+                escape = "\\\"";
                 break;
             case '/':
-                if( b == '<' )
-                {
-                    sb.append( '\\' );
-                }
-                sb.append( c );
+                escape = b == '<' ? "\\/" : null;
                 break;
             case '\b':
-                sb.append( "\\b" );
+                escape = "\\b";
                 break;
             case '\t':
-                sb.append( "\\t" );
+                escape = "\\t";
                 break;
             case '\n':
-                sb.append( "\\n" );
+                escape = "\\n";
                 break;
             case '\f':
-                sb.append( "\\f" );
+                escape = "\\f";
                 break;
             case '\r':
-                sb.append( "\\r" );
+                escape = "\\r";
                 break;
             default:
                 if( c < ' ' || ( c >= '\u0080' && c < '\u00a0' ) ||
                     ( c >= '\u2000' && c < '\u2100' ) )
                 {
-                    t = "000" + Integer.toHexString( c );
-                    sb.append( "\\u" + t.substring( t.length() - 4 ) );
+                    String t = "000" + Integer.toHexString( c );
+                    escape = "\\u" + t.substring( t.length() - 4 );
                 }
                 else
                 {
-                    sb.append( c );
+                    escape = null;
                 }
             }
+
+            if( escape != null )
+            {
+                out.append( string, run, i );
+                out.append( escape );
+                run = i + 1;
+            }
         }
-        sb.append( '"' );
-        return sb.toString();
+        out.append( string, run, len );
+        out.append( '"' );
     }
 
     /**
@@ -1873,21 +1908,9 @@ public final class JSONObject
                     writer.write( ',' );
                 }
                 Object k = keys.next();
-                writer.write( quote( k.toString() ) );
+                quote( k.toString(), writer );
                 writer.write( ':' );
-                Object v = this.map.get( k );
-                if( v instanceof JSONObject )
-                {
-                    ( (JSONObject) v ).write( writer );
-                }
-                else if( v instanceof JSONArray )
-                {
-                    ( (JSONArray) v ).write( writer );
-                }
-                else
-                {
-                    writer.write( valueToString( v ) );
-                }
+                writeValue( this.map.get( k ), writer );
                 b = true;
             }
             writer.write( '}' );
@@ -1898,4 +1921,28 @@ public final class JSONObject
             throw new JSONException( e );
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Write a value as JSON text without first turning it into a String.
+     */
+    static void writeValue( Object value, Writer writer )
+        throws JSONException, IOException
+    {
+        if( value instanceof JSONObject )
+        {
+            ( (JSONObject) value ).write( writer );
+        }
+        else if( value instanceof JSONArray )
+        {
+            ( (JSONArray) value ).write( writer );
+        }
+        else if( value instanceof String )
+        {
+            quote( (String) value, writer );
+        }
+        else
+        {
+            writer.write( valueToString( value ) );
+        }
+    }
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Streaming pull parser for JSON text. Instead of building a JSONObject tree, the caller asks for one
+ * token at a time with {@link #next()}, and reads the key or scalar value of the current token. Values
+ * that are not needed can be skipped, and subtrees can still be read as JSONObject or JSONArray with
+ * {@link #value()} where that is more convenient.
+ * <p/>
+ * The parser reads through its own buffer, so the Reader does not have to be buffered. Strings may be
+ * quoted with either double or single quotes.
+ */
+public final class JSONPullParser
+{
+    public enum Token
+    {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, STRING, NUMBER, TRUE, FALSE, NULL, END
+    }
+
+    private static final byte OBJECT = 0;
+    private static final byte ARRAY = 1;
+
+    private static final byte START = 0;
+    private static final byte EXPECT_VALUE = 1;
+    private static final byte AFTER_VALUE = 2;
+
+    private final Reader reader;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+    private long offset;
+    private long tokenStart;
+
+    private byte[] containers = new byte[ 16 ];
+    private byte[] states = new byte[ 16 ];
+    private int depth;
+    private boolean done;
+
+    private Token token;
+    private final StringBuilder text = new StringBuilder();
+
+    public JSONPullParser( Reader reader )
+    {
+        this.reader = reader;
+        this.buffer = new char[ 4096 ];
+    }
+
+    /**
+     * Parse JSON text in a char array, without copying it. Character positions are indexes in the array.
+     *
+     * @param chars  the array with the text
+     * @param start  index of the first character of the text
+     * @param length number of characters of the text
+     */
+    public JSONPullParser( char[] chars, int start, int length )
+    {
+        this.reader = null;
+        this.buffer = chars;
+        this.position = start;
+        this.limit = start + length;
+    }
+
+    public JSONPullParser( String s )
+    {
+        this( new StringReader( s ) );
+    }
+
+    /**
+     * Move to the next token.
+     *
+     * @return the new current token, which is END when the top-level value has been read
+     *
+     * @throws JSONException if the text is not valid JSON
+     */
+    public Token next()
+        throws JSONException
+    {
+        int c = nextClean();
+        tokenStart = offset + position - 1;
+        if( depth == 0 )
+        {
+            if( done )
+            {
+                if( c != -1 )
+                {
+                    throw syntaxError( "Unexpected text after JSON value" );
+                }
+                return token = Token.END;
+            }
+
+            token = value( c );
+            if( depth == 0 )
+            {
+                done = true;
+            }
+            return token;
+        }
+
+        int level = depth - 1;
+        if( containers[ level ] == OBJECT )
+        {
+            switch( states[ level ] )
+            {
+            case AFTER_VALUE:
+                if( c == '}' )
+                {
+                    return token = pop( Token.END_OBJECT );
+                }
+                if( c != ',' )
+                {
+                    throw syntaxError( "Expected ',' or '}'" );
+                }
+                return token = key( nextClean() );
+            case START:
+                if( c == '}' )
+                {
+                    return token = pop( Token.END_OBJECT );
+                }
+                return token = key( c );
+            default:
+                states[ level ] = AFTER_VALUE;
+                return token = value( c );
+            }
+        } else
+        {
+            if( states[ level ] == AFTER_VALUE )
+            {
+                if( c == ']' )
+                {
+                    return token = pop( Token.END_ARRAY );
+                }
+                if( c != ',' )
+                {
+                    throw syntaxError( "Expected ',' or ']'" );
+                }
+                c = nextClean();
+            } else if( c == ']' )
+            {
+                return token = pop( Token.END_ARRAY );
+            }
+            states[ level ] = AFTER_VALUE;
+            return token = value( c );
+        }
+    }
+
+    public Token token()
+    {
+        return token;
+    }
+
+    /**
+     * @return character position of the first character of the current token, such as a quote or a '{'
+     */
+    public long tokenStart()
+    {
+        return tokenStart;
+    }
+
+    /**
+     * @return character position right after the last character that has been read, which after
+     *         {@link #skipValue()} is the end of the skipped value
+     */
+    public long position()
+    {
+        return offset + position;
+    }
+
+    /**
+     * @return the text of the current KEY, STRING or NUMBER token
+     */
+    public String stringValue()
+    {
+        return text.toString();
+    }
+
+    /**
+     * Check the current KEY or STRING token without creating a String.
+     *
+     * @param name the expected text
+     *
+     * @return true if the text of the current token is the given name
+     */
+    public boolean is( String name )
+    {
+        if( name.length() != text.length() )
+        {
+            return false;
+        }
+        for( int i = 0; i < name.length(); i++ )
+        {
+            if( name.charAt( i ) != text.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the current NUMBER token as an Integer, Long or Double, in the same way as JSONObject does it
+     */
+    public Object numberValue()
+    {
+        return JSONObject.stringToValue( text.toString() );
+    }
+
+    /**
+     * Get the current NUMBER token as a long, without creating objects for integral numbers.
+     *
+     * @return the number
+     *
+     * @throws JSONException if the current token is not a number
+     */
+    public long longValue()
+        throws JSONException
+    {
+        if( token != Token.NUMBER )
+        {
+            throw syntaxError( "Not a number" );
+        }
+
+        int length = text.length();
+        boolean negative = text.charAt( 0 ) == '-';
+        int i = negative || text.charAt( 0 ) == '+' ? 1 : 0;
+        if( i < length && length - i < 19 )
+        {
+            long result = 0;
+            for( ; i < length; i++ )
+            {
+                char c = text.charAt( i );
+                if( c < '0' || c > '9' )
+                {
+                    break;
+                }
+                result = result * 10 + ( c - '0' );
+            }
+            if( i == length )
+            {
+                return negative ? -result : result;
+            }
+        }
+
+        Object number = numberValue();
+        if( number instanceof Number )
+        {
+            return ( (Number) number ).longValue();
+        }
+        throw syntaxError( "Not a number:" + text );
+    }
+
+    /**
+     * Get the value at the current token. For START_OBJECT and START_ARRAY the whole object or array is
+     * read, and the parser is then at the matching END_OBJECT or END_ARRAY token.
+     *
+     * @return String, Boolean, Number, JSONObject.NULL, JSONObject or JSONArray
+     *
+     * @throws JSONException if the current token is not the start of a value, or the text is not valid JSON
+     */
+    public Object value()
+        throws JSONException
+    {
+        switch( token )
+        {
+        case STRING:
+            return text.toString();
+        case NUMBER:
+            return numberValue();
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case NULL:
+            return JSONObject.NULL;
+        case START_OBJECT:
+        {
+            JSONObject object = new JSONObject();
+            while( next() != Token.END_OBJECT )
+            {
+                String key = text.toString();
+                next();
+                object.put( key, value() );
+            }
+            return object;
+        }
+        case START_ARRAY:
+        {
+            JSONArray array = new JSONArray();
+            while( next() != Token.END_ARRAY )
+            {
+                array.put( value() );
+            }
+            return array;
+        }
+        default:
+            throw syntaxError( "Expected a value but was " + token );
+        }
+    }
+
+    /**
+     * Skip the value at the current token. For START_OBJECT and START_ARRAY the parser is then at the
+     * matching END_OBJECT or END_ARRAY token.
+     *
+     * @throws JSONException if the text is not valid JSON
+     */
+    public void skipValue()
+        throws JSONException
+    {
+        if( token == Token.START_OBJECT || token == Token.START_ARRAY )
+        {
+            int level = depth;
+            while( depth >= level )
+            {
+                next();
+            }
+        }
+    }
+
+    public JSONException syntaxError( String message )
+    {
+        return new JSONException( message + " at character " + ( offset + position ) );
+    }
+
+    private Token key( int c )
+        throws JSONException
+    {
+        if( c != '"' && c != '\'' )
+        {
+            throw syntaxError( "Expected a key" );
+        }
+        readString( (char) c );
+        if( nextClean() != ':' )
+        {
+            throw syntaxError( "Expected ':' after a key" );
+        }
+        states[ depth - 1 ] = EXPECT_VALUE;
+        return Token.KEY;
+    }
+
+    private Token value( int c )
+        throws JSONException
+    {
+        switch( c )
+        {
+        case '{':
+            push( OBJECT );
+            return Token.START_OBJECT;
+        case '[':
+            push( ARRAY );
+            return Token.START_ARRAY;
+        case '"':
+        case '\'':
+            readString( (char) c );
+            return Token.STRING;
+        case 't':
+            expect( "rue" );
+            return Token.TRUE;
+        case 'f':
+            expect( "alse" );
+            return Token.FALSE;
+        case 'n':
+            expect( "ull" );
+            return Token.NULL;
+        case -1:
+            throw syntaxError( "Unexpected end of JSON text" );
+        default:
+            if( ( c >= '0' && c <= '9' ) || c == '-' || c == '+' || c == '.' )
+            {
+                readNumber( (char) c );
+                return Token.NUMBER;
+            }
+            throw syntaxError( "Unexpected character '" + (char) c + "'" );
+        }
+    }
+
+    private void push( byte container )
+    {
+        if( depth == containers.length )
+        {
+            byte[] newContainers = new byte[ depth * 2 ];
+            System.arraycopy( containers, 0, newContainers, 0, depth );
+            containers = newContainers;
+            byte[] newStates = new byte[ depth * 2 ];
+            System.arraycopy( states, 0, newStates, 0, depth );
+            states = newStates;
+        }
+        containers[ depth ] = container;
+        states[ depth ] = START;
+        depth++;
+    }
+
+    private Token pop( Token end )
+    {
+        depth--;
+        if( depth == 0 )
+        {
+            done = true;
+        }
+        return end;
+    }
+
+    private void expect( String rest )
+        throws JSONException
+    {
+        for( int i = 0; i < rest.length(); i++ )
+        {
+            if( read() != rest.charAt( i ) )
+            {
+                throw syntaxError( "Unexpected literal" );
+            }
+        }
+    }
+
+    private void readString( char quote )
+        throws JSONException
+    {
+        text.setLength( 0 );
+        while( true )
+        {
+            // Copy runs of plain characters directly from the buffer
+            int start = position;
+            while( position < limit )
+            {
+                char c = buffer[ position ];
+                if( c == quote || c == '\\' || c == '\n' || c == '\r' )
+                {
+                    break;
+                }
+                position++;
+            }
+            text.append( buffer, start, position - start );
+
+            int c = read();
+            if( c == quote )
+            {
+                return;
+            }
+
+            switch( c )
+            {
+            case -1:
+                throw syntaxError( "Unterminated string" );
+            case '\n':
+            case '\r':
+                throw syntaxError( "Unterminated string" );
+            case '\\':
+                c = read();
+                switch( c )
+                {
+                case 'b':
+                    text.append( '\b' );
+                    break;
+                case 't':
+                    text.append( '\t' );
+                    break;
+                case 'n':
+                    text.append( '\n' );
+                    break;
+                case 'f':
+                    text.append( '\f' );
+                    break;
+                case 'r':
+                    text.append( '\r' );
+                    break;
+                case 'u':
+                    int value = 0;
+                    for( int i = 0; i < 4; i++ )
+                    {
+                        int digit = JSONTokener.dehexchar( (char) read() );
+                        if( digit == -1 )
+                        {
+                            throw syntaxError( "Illegal escape." );
+                        }
+                        value = ( value << 4 ) + digit;
+                    }
+                    text.append( (char) value );
+                    break;
+                case '"':
+                case '\'':
+                case '\\':
+                case '/':
+                    text.append( (char) c );
+                    break;
+                default:
+                    throw syntaxError( "Illegal escape." );
+                }
+                break;
+            default:
+                // Buffer was refilled by read()
+                text.append( (char) c );
+            }
+        }
+    }
+
+    private void readNumber( char first )
+        throws JSONException
+    {
+        text.setLength( 0 );
+        text.append( first );
+        while( true )
+        {
+            if( position == limit && !fill() )
+            {
+                return;
+            }
+            char c = buffer[ position ];
+            if( ( c >= '0' && c <= '9' ) || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E' )
+            {
+                text.append( c );
+                position++;
+            } else
+            {
+                return;
+            }
+        }
+    }
+
+    private int nextClean()
+        throws JSONException
+    {
+        while( true )
+        {
+            int c = read();
+            if( c == -1 || c > ' ' )
+            {
+                return c;
+            }
+        }
+    }
+
+    private int read()
+        throws JSONException
+    {
+        if( position == limit && !fill() )
+        {
+            return -1;
+        }
+        return buffer[ position++ ];
+    }
+
+    private boolean fill()
+        throws JSONException
+    {
+        if( reader == null )
+        {
+            return false;
+        }
+
+        try
+        {
+            offset += limit;
+            position = 0;
+            limit = 0;
+            int count = reader.read( buffer, 0, buffer.length );
+            if( count <= 0 )
+            {
+                return false;
+            }
+            limit = count;
+            return true;
+        } catch( IOException e )
+        {
+            throw new JSONException( e );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return token + " at character " + ( offset + position );
+    }
+}
@@ -131,6 +131,15 @@ public class JSONWriter
         {
             throw new JSONException( "Null pointer" );
         }
+        return append( s, true );
+    }
+
+    /**
+     * Append a value, either as JSON text or as a value that is turned into JSON text while it is written.
+     */
+    private JSONWriter append( Object value, boolean text )
+        throws JSONException
+    {
         if( this.mode == 'o' || this.mode == 'a' )
         {
             try
@@ -139,7 +148,14 @@ public class JSONWriter
                 {
                     this.writer.write( ',' );
                 }
-                this.writer.write( s );
+                if( text )
+                {
+                    this.writer.write( (String) value );
+                }
+                else
+                {
+                    JSONObject.writeValue( value, this.writer );
+                }
             }
             catch( IOException e )
             {
@@ -265,7 +281,7 @@ public class JSONWriter
                 {
                     this.writer.write( ',' );
                 }
-                this.writer.write( JSONObject.quote( s ) );
+                JSONObject.quote( s, this.writer );
                 this.writer.write( ':' );
                 this.comma = false;
                 this.mode = 'o';
@@ -409,7 +425,8 @@ public class JSONWriter
     public JSONWriter value( Object o )
         throws JSONException
     {
-        return this.append( JSONObject.valueToString( o ) );
+        // Strings, JSONObjects and JSONArrays are written as they are converted
+        return this.append( o, false );
     }
 
     /**
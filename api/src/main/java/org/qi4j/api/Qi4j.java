@@ -36,7 +36,6 @@ import org.qi4j.api.value.ValueDescriptor;
 import org.qi4j.functional.Function;
 import org.qi4j.functional.Visitor;
 
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 
 /**
@@ -109,21 +108,7 @@ public interface Qi4j
         @Override
         public CompositeDescriptor map( Composite composite )
         {
-            if (composite instanceof Proxy)
-            {
-                InvocationHandler invocationHandler = Proxy.getInvocationHandler( composite );
-                return ((CompositeInstance) invocationHandler).descriptor();
-            } else
-            {
-                try
-                {
-                    CompositeInstance instance = (CompositeInstance) composite.getClass().getField( "_instance" ).get( composite );
-                    return instance.descriptor();
-                } catch( Exception e )
-                {
-                    throw (InvalidCompositeException) new InvalidCompositeException( "Could not get _instance field" ).initCause( e );
-                }
-            }
+            return INSTANCE_FUNCTION.map( composite ).descriptor();
         }
     };
 
@@ -132,20 +117,21 @@ public interface Qi4j
         @Override
         public CompositeInstance map( Composite composite )
         {
-            if (composite instanceof Proxy)
+            CompositeInstance instance = null;
+            if( composite instanceof CompositeInstanceProxy )
             {
-                return ((CompositeInstance) Proxy.getInvocationHandler( composite ));
-            } else
+                instance = ( (CompositeInstanceProxy) composite )._compositeInstance();
+            }
+            else if( composite instanceof Proxy && Proxy.getInvocationHandler( composite ) instanceof CompositeInstance )
+            {
+                instance = (CompositeInstance) Proxy.getInvocationHandler( composite );
+            }
+
+            if( instance == null )
             {
-                try
-                {
-                    CompositeInstance instance = (CompositeInstance) composite.getClass().getField( "_instance" ).get( composite );
-                    return instance;
-                } catch( Exception e )
-                {
-                    throw (InvalidCompositeException) new InvalidCompositeException( "Could not get _instance field" ).initCause( e );
-                }
+                throw new InvalidCompositeException( "Not a composite: " + composite.getClass().getName() );
             }
+            return instance;
         }
     };
 }
@@ -33,6 +33,27 @@ public interface ManyAssociation<T>
 
     boolean remove( T entity );
 
+    /**
+     * Add the entities that are not in the association yet, last. The entity is only marked as changed once.
+     *
+     * @return true if any entity was added
+     */
+    boolean addAll( Iterable<? extends T> entities );
+
+    /**
+     * Remove the given entities. The entity is only marked as changed once.
+     *
+     * @return true if any entity was removed
+     */
+    boolean removeAll( Iterable<? extends T> entities );
+
+    /**
+     * Remove the entities that are not among the given ones. The entity is only marked as changed once.
+     *
+     * @return true if any entity was removed
+     */
+    boolean retainAll( Iterable<? extends T> entities );
+
     T get( int i );
 
     List<T> toList();
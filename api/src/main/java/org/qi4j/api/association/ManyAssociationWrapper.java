@@ -56,6 +56,24 @@ public class ManyAssociationWrapper
         return next.remove( entity );
     }
 
+    @Override
+    public boolean addAll( Iterable<?> entities )
+    {
+        return next.addAll( entities );
+    }
+
+    @Override
+    public boolean removeAll( Iterable<?> entities )
+    {
+        return next.removeAll( entities );
+    }
+
+    @Override
+    public boolean retainAll( Iterable<?> entities )
+    {
+        return next.retainAll( entities );
+    }
+
     @Override
     public Object get( int i )
     {
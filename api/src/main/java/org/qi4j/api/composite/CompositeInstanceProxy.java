@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.api.composite;
+
+/**
+ * Implemented by the classes that the runtime generates for composites, so that the CompositeInstance
+ * of a composite can be found without reflection. The name starts with an underscore so that it does not
+ * clash with the methods of the composite types.
+ */
+public interface CompositeInstanceProxy
+{
+    /**
+     * @return the instance of this composite, or null if this is a proxy of something else, such as a service reference
+     */
+    CompositeInstance _compositeInstance();
+}
@@ -88,7 +88,14 @@ public class DecoratorMixin
         {
             builder.append( "    " );
             Class argClass = arg.getClass();
-            if( Proxy.isProxyClass( argClass ) )
+            CompositeInstance instance = arg instanceof CompositeInstanceProxy
+                                         ? ( (CompositeInstanceProxy) arg )._compositeInstance()
+                                         : null;
+            if( instance != null )
+            {
+                builder.append( instance.getClass().getName() );
+            }
+            else if( Proxy.isProxyClass( argClass ) )
             {
                 builder.append( Proxy.getInvocationHandler( arg ).getClass().getName() );
             }
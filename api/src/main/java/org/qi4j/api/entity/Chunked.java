@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.api.entity;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a ManyAssociation as stored separately from the state of the entity, in chunks of at most
+ * the given number of references. Chunks are loaded when they are used, and only changed chunks are
+ * written. Use this for ManyAssociations that grow very large.
+ * <p/>
+ * EntityStores that do not support this store the ManyAssociation with the rest of the state.
+ */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( { ElementType.METHOD } )
+@Documented
+public @interface Chunked
+{
+    int size() default 1000;
+}
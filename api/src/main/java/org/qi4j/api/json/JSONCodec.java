@@ -0,0 +1,938 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.api.json;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONPullParser;
+import org.qi4j.api.Qi4j;
+import org.qi4j.api.association.AssociationDescriptor;
+import org.qi4j.api.association.AssociationStateHolder;
+import org.qi4j.api.association.ManyAssociation;
+import org.qi4j.api.common.QualifiedName;
+import org.qi4j.api.composite.Composite;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.entity.Identity;
+import org.qi4j.api.property.DefaultValues;
+import org.qi4j.api.property.PropertyDescriptor;
+import org.qi4j.api.structure.Module;
+import org.qi4j.api.type.CollectionType;
+import org.qi4j.api.type.EnumType;
+import org.qi4j.api.type.MapType;
+import org.qi4j.api.type.ValueCompositeType;
+import org.qi4j.api.type.ValueType;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.value.ValueBuilder;
+import org.qi4j.api.value.ValueComposite;
+import org.qi4j.api.value.ValueDescriptor;
+import org.qi4j.functional.Function;
+import org.qi4j.functional.Iterables;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.AccessibleObject;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JSON encoder and decoder for one ValueType. A codec is compiled once per type, with the type functions,
+ * property names and codecs of nested types resolved up front, and is then kept in the ValueType.
+ * This way {@link JSONSerializer} and {@link JSONDeserializer} do not have to look up how to handle a type
+ * every time a value is converted.
+ * <p/>
+ * Registering a new serializer or deserializer function makes all compiled codecs stale, and they are
+ * compiled again when next used.
+ */
+public abstract class JSONCodec
+{
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private static final ValueType MANY_ASSOCIATION_TYPE = new CollectionType( List.class, new ValueType( String.class ) );
+
+    /**
+     * Get the codec for the given type, compiling it if needed.
+     *
+     * @param valueType the type
+     *
+     * @return the codec of the type
+     */
+    public static JSONCodec codecFor( ValueType valueType )
+    {
+        CodecHolder holder = (CodecHolder) valueType.codecHolder();
+        JSONCodec codec = holder.codec;
+        if( codec == null || codec.compiledGeneration != generation.get() )
+        {
+            // Threads that compile the codec at the same time get equivalent codecs, so either can be kept
+            codec = compile( valueType );
+            holder.codec = codec;
+        }
+        return codec;
+    }
+
+    /**
+     * Create the holder in which a ValueType keeps its compiled codec. Only JSONCodec can read and set it.
+     *
+     * @return an opaque holder
+     */
+    public static Object newCodecHolder()
+    {
+        return new CodecHolder();
+    }
+
+    /**
+     * @return the codec that is cached for the type, or null if there is none
+     */
+    static JSONCodec cachedCodec( ValueType valueType )
+    {
+        return ( (CodecHolder) valueType.codecHolder() ).codec;
+    }
+
+    static void typeFunctionsChanged()
+    {
+        generation.incrementAndGet();
+    }
+
+    private static JSONCodec compile( ValueType valueType )
+    {
+        JSONCodec codec;
+        if( valueType instanceof ValueCompositeType )
+        {
+            codec = new ValueCompositeCodec( (ValueCompositeType) valueType );
+        } else if( valueType instanceof CollectionType )
+        {
+            codec = new CollectionCodec( (CollectionType) valueType );
+        } else if( valueType instanceof MapType )
+        {
+            codec = new MapCodec( (MapType) valueType );
+        } else if( valueType instanceof EnumType )
+        {
+            codec = new EnumCodec( valueType );
+        } else
+        {
+            codec = new SerializableCodec( valueType );
+        }
+
+        // Registered type functions are used before the codec for the kind of type
+        Function<Object, Object> serializerFunction = JSONSerializer.typeFunctions.get( valueType.type() );
+        Function<Object, Object> deserializerFunction = JSONDeserializer.typeFunctions.get( valueType.type() );
+        if( serializerFunction != null || deserializerFunction != null )
+        {
+            codec = new TypeFunctionCodec( serializerFunction, deserializerFunction, codec );
+        }
+
+        return codec;
+    }
+
+    private final int compiledGeneration = generation.get();
+
+    private static final class CodecHolder
+    {
+        private volatile JSONCodec codec;
+    }
+
+    abstract void encode( Object value, JSONSerializer serializer )
+        throws JSONException;
+
+    abstract Object decode( Object json, JSONDeserializer deserializer )
+        throws JSONException;
+
+    /**
+     * Decode the value at the current token of the parser. Codecs that can decode directly from the
+     * tokens override this, and the others decode the JSONObject, JSONArray or scalar of the value.
+     */
+    Object decode( JSONPullParser parser, JSONDeserializer deserializer )
+        throws JSONException
+    {
+        return decode( parser.value(), deserializer );
+    }
+
+    static void encodeNullable( Object value, JSONCodec codec, JSONSerializer serializer )
+        throws JSONException
+    {
+        if( value == null )
+        {
+            serializer.value( null );
+        } else
+        {
+            codec.encode( value, serializer );
+        }
+    }
+
+    static Object decodeNullable( Object json, JSONCodec codec, JSONDeserializer deserializer )
+        throws JSONException
+    {
+        if( json == JSONObject.NULL )
+        {
+            return null;
+        }
+        return codec.decode( json, deserializer );
+    }
+
+    static Object decodeNullable( JSONPullParser parser, JSONCodec codec, JSONDeserializer deserializer )
+        throws JSONException
+    {
+        if( parser.token() == JSONPullParser.Token.NULL )
+        {
+            return null;
+        }
+        return codec.decode( parser, deserializer );
+    }
+
+    private static final class TypeFunctionCodec
+        extends JSONCodec
+    {
+        private final Function<Object, Object> serializerFunction;
+        private final Function<Object, Object> deserializerFunction;
+        private final JSONCodec codec;
+
+        private TypeFunctionCodec( Function<Object, Object> serializerFunction,
+                                   Function<Object, Object> deserializerFunction,
+                                   JSONCodec codec
+        )
+        {
+            this.serializerFunction = serializerFunction;
+            this.deserializerFunction = deserializerFunction;
+            this.codec = codec;
+        }
+
+        @Override
+        void encode( Object value, JSONSerializer serializer )
+            throws JSONException
+        {
+            if( serializerFunction != null )
+            {
+                serializer.value( serializerFunction.map( value ) );
+            } else
+            {
+                codec.encode( value, serializer );
+            }
+        }
+
+        @Override
+        Object decode( Object json, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( deserializerFunction != null )
+            {
+                return deserializerFunction.map( json );
+            }
+            return codec.decode( json, deserializer );
+        }
+
+        @Override
+        Object decode( JSONPullParser parser, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( deserializerFunction != null )
+            {
+                return deserializerFunction.map( parser.value() );
+            }
+            return codec.decode( parser, deserializer );
+        }
+    }
+
+    private static final class CollectionCodec
+        extends JSONCodec
+    {
+        private final boolean set;
+        private final JSONCodec collectedCodec;
+
+        private CollectionCodec( CollectionType collectionType )
+        {
+            set = collectionType.type().equals( Set.class );
+            collectedCodec = codecFor( collectionType.collectedType() );
+        }
+
+        @Override
+        void encode( Object value, JSONSerializer serializer )
+            throws JSONException
+        {
+            serializer.arrayStart();
+            for( Object collectionValue : (Collection<?>) value )
+            {
+                encodeNullable( collectionValue, collectedCodec, serializer );
+            }
+            serializer.arrayEnd();
+        }
+
+        @Override
+        Object decode( Object json, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            JSONArray array = (JSONArray) json;
+            Collection<Object> coll = set ? new LinkedHashSet<Object>() : new ArrayList<Object>( array.length() );
+            for( int i = 0; i < array.length(); i++ )
+            {
+                coll.add( decodeNullable( array.get( i ), collectedCodec, deserializer ) );
+            }
+            return coll;
+        }
+
+        @Override
+        Object decode( JSONPullParser parser, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( parser.token() != JSONPullParser.Token.START_ARRAY )
+            {
+                return decode( parser.value(), deserializer );
+            }
+
+            Collection<Object> coll = set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+            while( parser.next() != JSONPullParser.Token.END_ARRAY )
+            {
+                coll.add( decodeNullable( parser, collectedCodec, deserializer ) );
+            }
+            return coll;
+        }
+    }
+
+    private static final class MapCodec
+        extends JSONCodec
+    {
+        private final JSONCodec keyCodec;
+        private final JSONCodec valueCodec;
+
+        private MapCodec( MapType mapType )
+        {
+            keyCodec = codecFor( mapType.getKeyType() );
+            valueCodec = codecFor( mapType.getValueType() );
+        }
+
+        @Override
+        void encode( Object value, JSONSerializer serializer )
+            throws JSONException
+        {
+            serializer.arrayStart();
+            for( Map.Entry<?, ?> entry : ( (Map<?, ?>) value ).entrySet() )
+            {
+                serializer.objectStart();
+                serializer.key( "key" );
+                encodeNullable( entry.getKey(), keyCodec, serializer );
+                serializer.key( "value" );
+                encodeNullable( entry.getValue(), valueCodec, serializer );
+                serializer.objectEnd();
+            }
+            serializer.arrayEnd();
+        }
+
+        @Override
+        Object decode( Object json, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( json instanceof String )
+            {
+                // Legacy handling of serialized maps
+                return deserializeObject( (String) json );
+            }
+
+            // New array-based handling
+            JSONArray array = (JSONArray) json;
+            Map<Object, Object> map = (Map<Object, Object>) DefaultValues.getDefaultValue( Map.class );
+            for( int i = 0; i < array.length(); i++ )
+            {
+                JSONObject entry = array.getJSONObject( i );
+                Object key = decodeNullable( entry.get( "key" ), keyCodec, deserializer );
+                Object value = decodeNullable( entry.get( "value" ), valueCodec, deserializer );
+                map.put( key, value );
+            }
+            return map;
+        }
+
+        @Override
+        Object decode( JSONPullParser parser, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( parser.token() != JSONPullParser.Token.START_ARRAY )
+            {
+                return decode( parser.value(), deserializer );
+            }
+
+            Map<Object, Object> map = (Map<Object, Object>) DefaultValues.getDefaultValue( Map.class );
+            while( parser.next() != JSONPullParser.Token.END_ARRAY )
+            {
+                if( parser.token() != JSONPullParser.Token.START_OBJECT )
+                {
+                    throw parser.syntaxError( "Expected a map entry" );
+                }
+
+                Object key = null;
+                Object value = null;
+                while( parser.next() != JSONPullParser.Token.END_OBJECT )
+                {
+                    if( parser.is( "key" ) )
+                    {
+                        parser.next();
+                        key = decodeNullable( parser, keyCodec, deserializer );
+                    } else if( parser.is( "value" ) )
+                    {
+                        parser.next();
+                        value = decodeNullable( parser, valueCodec, deserializer );
+                    } else
+                    {
+                        parser.next();
+                        parser.skipValue();
+                    }
+                }
+                map.put( key, value );
+            }
+            return map;
+        }
+    }
+
+    private static final class EnumCodec
+        extends JSONCodec
+    {
+        private final Class enumType;
+
+        private EnumCodec( ValueType valueType )
+        {
+            enumType = valueType.type();
+        }
+
+        @Override
+        void encode( Object value, JSONSerializer serializer )
+            throws JSONException
+        {
+            serializer.value( value.toString() );
+        }
+
+        @Override
+        Object decode( Object json, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            try
+            {
+                return Enum.valueOf( enumType, (String) json );
+            } catch( Exception e )
+            {
+                throw new IllegalArgumentException( e );
+            }
+        }
+    }
+
+    private static final class ValueCompositeCodec
+        extends JSONCodec
+    {
+        private final ValueCompositeType valueType;
+
+        // Compiled on first use, since values may contain values of their own type
+        private volatile State state;
+
+        private ValueCompositeCodec( ValueCompositeType valueType )
+        {
+            this.valueType = valueType;
+        }
+
+        @Override
+        void encode( Object value, JSONSerializer serializer )
+            throws JSONException
+        {
+            serializer.objectStart();
+            ValueComposite valueComposite = (ValueComposite) value;
+
+            ValueCompositeCodec codec = this;
+            ValueDescriptor descriptor = (ValueDescriptor) Qi4j.DESCRIPTOR_FUNCTION.map( valueComposite );
+            if( !valueType.type().equals( descriptor.type() ) )
+            {
+                // Actual value is a subtype - use it instead
+                codec = compositeCodecFor( descriptor.valueType() );
+
+                if( serializer.includeTypeInformation() )
+                {
+                    serializer.key( "_type" ).value( descriptor.valueType().type().getName() );
+                }
+            }
+
+            codec.state().encode( valueComposite, serializer );
+            serializer.objectEnd();
+        }
+
+        @Override
+        Object decode( Object json, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            JSONObject jsonObject = (JSONObject) json;
+
+            ValueCompositeCodec codec = this;
+            String actualType = jsonObject.optString( "_type" );
+            if( !actualType.equals( "" ) )
+            {
+                Module module = deserializer.module();
+                ValueDescriptor descriptor = module.valueDescriptor( actualType );
+
+                if( descriptor == null )
+                {
+                    throw new IllegalArgumentException( "Could not find any value of type '" + actualType + "' in module" + module );
+                }
+
+                codec = compositeCodecFor( descriptor.valueType() );
+            }
+
+            return codec.state().decode( jsonObject, deserializer );
+        }
+
+        @Override
+        Object decode( JSONPullParser parser, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( parser.token() != JSONPullParser.Token.START_OBJECT )
+            {
+                return decode( parser.value(), deserializer );
+            }
+
+            State state = state();
+            Object[] values = new Object[ state.properties.length ];
+            String[] associations = state.newAssociationIds();
+            while( parser.next() != JSONPullParser.Token.END_OBJECT )
+            {
+                if( parser.is( "_type" ) )
+                {
+                    parser.next();
+                    String actualType = parser.value().toString();
+                    if( actualType.equals( "" ) )
+                    {
+                        continue;
+                    }
+
+                    Module module = deserializer.module();
+                    ValueDescriptor descriptor = module.valueDescriptor( actualType );
+                    if( descriptor == null )
+                    {
+                        throw new IllegalArgumentException( "Could not find any value of type '" + actualType + "' in module" + module );
+                    }
+
+                    // Move what has been read so far to the state of the actual type
+                    State actualState = compositeCodecFor( descriptor.valueType() ).state();
+                    if( actualState != state )
+                    {
+                        values = actualState.copyPropertiesFrom( state, values );
+                        associations = actualState.copyAssociationsFrom( state, associations );
+                        state = actualState;
+                    }
+                    continue;
+                }
+
+                Integer slot = state.propertyNameSlots.get( parser.stringValue() );
+                if( slot != null )
+                {
+                    parser.next();
+                    values[ slot ] = state.decodeProperty( slot, parser, deserializer );
+                    continue;
+                }
+
+                slot = state.associationIdSlots.get( parser.stringValue() );
+                parser.next();
+                if( slot != null )
+                {
+                    associations[ slot ] = parser.value().toString();
+                } else
+                {
+                    parser.skipValue();
+                }
+            }
+
+            return state.newValue( values, associations, deserializer );
+        }
+
+        private State state()
+        {
+            State current = state;
+            if( current == null )
+            {
+                current = new State( valueType );
+                state = current;
+            }
+            return current;
+        }
+
+        private static ValueCompositeCodec compositeCodecFor( ValueCompositeType valueType )
+        {
+            JSONCodec codec = codecFor( valueType );
+            if( codec instanceof TypeFunctionCodec )
+            {
+                codec = ( (TypeFunctionCodec) codec ).codec;
+            }
+            return (ValueCompositeCodec) codec;
+        }
+    }
+
+    /**
+     * Resolved names, accessors and codecs of the state of a value type.
+     */
+    private static final class State
+    {
+        private final Class<?> type;
+
+        private final PropertyDescriptor[] properties;
+        private final String[] propertyNames;
+        private final AccessibleObject[] propertyAccessors;
+        private final JSONCodec[] propertyCodecs;
+        private final Map<Object, Integer> propertySlots = new IdentityHashMap<Object, Integer>();
+        private final Map<QualifiedName, Integer> propertyQualifiedNameSlots = new HashMap<QualifiedName, Integer>();
+
+        private final Map<String, Integer> propertyNameSlots = new HashMap<String, Integer>();
+
+        private final String[] associationNames;
+        private final AccessibleObject[] associationAccessors;
+        private final Map<QualifiedName, Integer> associationSlots = new HashMap<QualifiedName, Integer>();
+        private final Map<String, Integer> associationIdSlots = new HashMap<String, Integer>();
+
+        private final String[] manyAssociationNames;
+        private final AccessibleObject[] manyAssociationAccessors;
+        private final JSONCodec manyAssociationCodec = codecFor( MANY_ASSOCIATION_TYPE );
+
+        private State( ValueCompositeType valueType )
+        {
+            type = valueType.type();
+
+            List<PropertyDescriptor> propertyList = new ArrayList<PropertyDescriptor>();
+            for( PropertyDescriptor property : valueType.properties() )
+            {
+                propertyList.add( property );
+            }
+            properties = propertyList.toArray( new PropertyDescriptor[ propertyList.size() ] );
+            propertyNames = new String[ properties.length ];
+            propertyAccessors = new AccessibleObject[ properties.length ];
+            propertyCodecs = new JSONCodec[ properties.length ];
+            for( int i = 0; i < properties.length; i++ )
+            {
+                propertyNames[ i ] = properties[ i ].qualifiedName().name();
+                propertyAccessors[ i ] = properties[ i ].accessor();
+                propertyCodecs[ i ] = codecFor( properties[ i ].valueType() );
+                propertySlots.put( properties[ i ], i );
+                propertyQualifiedNameSlots.put( properties[ i ].qualifiedName(), i );
+                propertyNameSlots.put( propertyNames[ i ], i );
+            }
+
+            List<AssociationDescriptor> associationList = new ArrayList<AssociationDescriptor>();
+            for( AssociationDescriptor association : valueType.associations() )
+            {
+                associationList.add( association );
+            }
+            associationNames = new String[ associationList.size() ];
+            associationAccessors = new AccessibleObject[ associationList.size() ];
+            for( int i = 0; i < associationNames.length; i++ )
+            {
+                associationNames[ i ] = associationList.get( i ).qualifiedName().name();
+                associationAccessors[ i ] = associationList.get( i ).accessor();
+                associationSlots.put( associationList.get( i ).qualifiedName(), i );
+                associationIdSlots.put( associationNames[ i ], i );
+            }
+
+            List<AssociationDescriptor> manyAssociationList = new ArrayList<AssociationDescriptor>();
+            for( AssociationDescriptor manyAssociation : valueType.manyAssociations() )
+            {
+                manyAssociationList.add( manyAssociation );
+            }
+            manyAssociationNames = new String[ manyAssociationList.size() ];
+            manyAssociationAccessors = new AccessibleObject[ manyAssociationList.size() ];
+            for( int i = 0; i < manyAssociationNames.length; i++ )
+            {
+                manyAssociationNames[ i ] = manyAssociationList.get( i ).qualifiedName().name();
+                manyAssociationAccessors[ i ] = manyAssociationList.get( i ).accessor();
+            }
+        }
+
+        private void encode( ValueComposite valueComposite, JSONSerializer serializer )
+            throws JSONException
+        {
+            AssociationStateHolder state = (AssociationStateHolder) Qi4j.INSTANCE_FUNCTION.map( valueComposite ).state();
+            for( int i = 0; i < propertyNames.length; i++ )
+            {
+                serializer.key( propertyNames[ i ] );
+                encodeNullable( state.propertyFor( propertyAccessors[ i ] ).get(), propertyCodecs[ i ], serializer );
+            }
+            for( int i = 0; i < associationNames.length; i++ )
+            {
+                Object instance = state.associationFor( associationAccessors[ i ] ).get();
+                if( instance != null )
+                {
+                    serializer.key( associationNames[ i ] ).value( ( (Identity) instance ).identity().get() );
+                }
+            }
+            for( int i = 0; i < manyAssociationNames.length; i++ )
+            {
+                ManyAssociation<?> manyAssociation = state.manyAssociationFor( manyAssociationAccessors[ i ] );
+                serializer.key( manyAssociationNames[ i ] );
+                manyAssociationCodec.encode( manyAssociation.toList(), serializer );
+            }
+        }
+
+        private Object decode( JSONObject jsonObject, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            Object[] values = new Object[ properties.length ];
+            for( int i = 0; i < properties.length; i++ )
+            {
+                try
+                {
+                    Object valueJson = jsonObject.opt( propertyNames[ i ] );
+
+                    Object value = null;
+                    if( valueJson != null && !valueJson.equals( JSONObject.NULL ) )
+                    {
+                        value = immutable( i, propertyCodecs[ i ].decode( valueJson, deserializer ) );
+                    }
+
+                    values[ i ] = value;
+                } catch( JSONException e )
+                {
+                    // Not found in JSON or wrong format - try defaulting it
+                    try
+                    {
+                        values[ i ] = DefaultValues.getDefaultValue( properties[ i ].valueType().type() );
+                    } catch( RuntimeException e1 )
+                    {
+                        // Didn't work, throw the exception
+                        throw e;
+                    }
+                }
+            }
+
+            String[] associations = new String[ associationNames.length ];
+            for( int i = 0; i < associationNames.length; i++ )
+            {
+                associations[ i ] = jsonObject.optString( associationNames[ i ] );
+            }
+
+            return newValue( values, associations, deserializer );
+        }
+
+        private Object decodeProperty( int slot, JSONPullParser parser, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( parser.token() == JSONPullParser.Token.NULL )
+            {
+                return null;
+            }
+            return immutable( slot, propertyCodecs[ slot ].decode( parser, deserializer ) );
+        }
+
+        private Object immutable( int slot, Object value )
+        {
+            if( properties[ slot ].isImmutable() )
+            {
+                if( value instanceof Set )
+                {
+                    value = Collections.unmodifiableSet( (Set<? extends Object>) value );
+                } else if( value instanceof List )
+                {
+                    value = Collections.unmodifiableList( (List<? extends Object>) value );
+                } else if( value instanceof Map )
+                {
+                    value = Collections.unmodifiableMap( (Map<? extends Object, ? extends Object>) value );
+                }
+            }
+            return value;
+        }
+
+        private String[] newAssociationIds()
+        {
+            // Associations that are not in the JSON get an empty id, like JSONObject.optString gives
+            String[] ids = new String[ associationNames.length ];
+            Arrays.fill( ids, "" );
+            return ids;
+        }
+
+        private Object[] copyPropertiesFrom( State state, Object[] values )
+        {
+            Object[] copy = new Object[ properties.length ];
+            for( int i = 0; i < state.propertyNames.length; i++ )
+            {
+                Integer slot = propertyNameSlots.get( state.propertyNames[ i ] );
+                if( slot != null )
+                {
+                    copy[ slot ] = values[ i ];
+                }
+            }
+            return copy;
+        }
+
+        private String[] copyAssociationsFrom( State state, String[] ids )
+        {
+            String[] copy = newAssociationIds();
+            for( int i = 0; i < state.associationNames.length; i++ )
+            {
+                Integer slot = associationIdSlots.get( state.associationNames[ i ] );
+                if( slot != null )
+                {
+                    copy[ slot ] = ids[ i ];
+                }
+            }
+            return copy;
+        }
+
+        private Object newValue( final Object[] values, String[] associationIds, JSONDeserializer deserializer )
+        {
+            final EntityReference[] associations = new EntityReference[ associationIds.length ];
+            for( int i = 0; i < associationIds.length; i++ )
+            {
+                associations[ i ] = EntityReference.parseEntityReference( associationIds[ i ] );
+            }
+
+            ValueBuilder<?> valueBuilder = deserializer.module()
+                .newValueBuilderWithState( type, new Function<PropertyDescriptor, Object>()
+                {
+                    @Override
+                    public Object map( PropertyDescriptor descriptor )
+                    {
+                        Integer slot = propertySlots.get( descriptor );
+                        if( slot == null )
+                        {
+                            slot = propertyQualifiedNameSlots.get( descriptor.qualifiedName() );
+                        }
+                        return slot == null ? null : values[ slot ];
+                    }
+                }, new Function<AssociationDescriptor, EntityReference>()
+                {
+                    @Override
+                    public EntityReference map( AssociationDescriptor associationDescriptor )
+                    {
+                        Integer slot = associationSlots.get( associationDescriptor.qualifiedName() );
+                        return slot == null ? null : associations[ slot ];
+                    }
+                }, new Function<AssociationDescriptor, Iterable<EntityReference>>()
+                {
+                    @Override
+                    public Iterable<EntityReference> map( AssociationDescriptor associationDescriptor )
+                    {
+                        return Iterables.empty();
+                    }
+                } );
+
+            return valueBuilder.newInstance();
+        }
+    }
+
+    /**
+     * Codec for all other types, which are Java serialized. Entities are stored as references.
+     */
+    private static final class SerializableCodec
+        extends JSONCodec
+    {
+        private final ValueType valueType;
+
+        private SerializableCodec( ValueType valueType )
+        {
+            this.valueType = valueType;
+        }
+
+        @Override
+        void encode( Object value, JSONSerializer serializer )
+            throws JSONException
+        {
+            // Check if we are serializing an Entity
+            if( value instanceof EntityComposite )
+            {
+                // Store reference instead
+                value = EntityReference.getEntityReference( value );
+            } else if( value instanceof ValueComposite )
+            {
+                // Serialize ValueComposite JSON instead
+                try
+                {
+                    JSONObjectSerializer objectSerializer = new JSONObjectSerializer();
+                    objectSerializer.serialize( (ValueComposite) value );
+
+                    JSONObject object = (JSONObject) objectSerializer.getRoot();
+
+                    ValueDescriptor descriptor = (ValueDescriptor) Qi4j.DESCRIPTOR_FUNCTION.map( (Composite) value );
+
+                    if( serializer.includeTypeInformation() )
+                    {
+                        object.put( "_type", descriptor.type().getName() );
+                    }
+                    serializer.value( object );
+                    return;
+                } catch( JSONException e )
+                {
+                    throw new IllegalStateException( "Could not JSON serialize value", e );
+                }
+            }
+
+            // Serialize value
+            try
+            {
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream( bout );
+                out.writeUnshared( value );
+                out.close();
+                byte[] bytes = Base64Encoder.encode( bout.toByteArray(), true );
+                String stringValue = new String( bytes, "UTF-8" );
+                serializer.value( stringValue );
+            } catch( IOException e )
+            {
+                throw new IllegalArgumentException( "Could not serialize value", e );
+            }
+        }
+
+        @Override
+        Object decode( Object json, JSONDeserializer deserializer )
+            throws JSONException
+        {
+            if( json instanceof JSONObject )
+            {
+                // ValueComposite deserialization
+                JSONObject jsonObject = (JSONObject) json;
+                String type = jsonObject.getString( "_type" );
+
+                ValueDescriptor valueDescriptor = deserializer.module().valueDescriptor( type );
+                return deserializer.deserialize( json, valueDescriptor.valueType() );
+            }
+
+            Object result = deserializeObject( (String) json );
+            if( result instanceof EntityReference )
+            {
+                EntityReference ref = (EntityReference) result;
+                if( !valueType.type().equals( EntityReference.class ) )
+                {
+                    Class mixinType = valueType.type();
+                    Module module = deserializer.module();
+                    if( module.isUnitOfWorkActive() )
+                    {
+                        UnitOfWork unitOfWork = module.currentUnitOfWork();
+                        result = unitOfWork.get( mixinType, ref.identity() );
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static Object deserializeObject( String serializedString )
+    {
+        try
+        {
+            byte[] bytes = serializedString.getBytes( "UTF-8" );
+            bytes = Base64Encoder.decode( bytes );
+            ByteArrayInputStream bin = new ByteArrayInputStream( bytes );
+            ObjectInputStream oin = new ObjectInputStream( bin );
+            Object result = oin.readObject();
+            oin.close();
+            return result;
+        } catch( IOException e )
+        {
+            throw new IllegalStateException( "Could not deserialize value", e );
+        } catch( ClassNotFoundException e )
+        {
+            throw new IllegalStateException( "Could not find class for serialized value", e );
+        }
+    }
+}
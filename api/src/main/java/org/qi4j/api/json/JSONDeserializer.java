@@ -4,26 +4,15 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.joda.time.LocalDateTime;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.qi4j.api.association.AssociationDescriptor;
-import org.qi4j.api.common.QualifiedName;
+import org.json.JSONPullParser;
 import org.qi4j.api.entity.EntityReference;
-import org.qi4j.api.property.DefaultValues;
-import org.qi4j.api.property.PropertyDescriptor;
 import org.qi4j.api.structure.Module;
 import org.qi4j.api.type.*;
-import org.qi4j.api.unitofwork.UnitOfWork;
 import org.qi4j.api.util.Dates;
-import org.qi4j.api.value.ValueBuilder;
-import org.qi4j.api.value.ValueDescriptor;
 import org.qi4j.functional.Function;
-import org.qi4j.functional.Iterables;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.Reader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
@@ -50,11 +39,12 @@ public class JSONDeserializer
             return !nonStringClasses.contains( valueType.type()  );
     }
 
-    private static Map<Class<?>, Function<Object, Object>> typeFunctions = new HashMap<Class<?>, Function<Object, Object>>(  );
+    static Map<Class<?>, Function<Object, Object>> typeFunctions = new HashMap<Class<?>, Function<Object, Object>>(  );
 
     public static <T> void registerDeserializer( Class<T> type, Function<Object, T> typeFunction )
     {
         typeFunctions.put( type, (Function<Object, Object>) typeFunction );
+        JSONCodec.typeFunctionsChanged();
     }
 
     private static <T> Function<Object, T> identity()
@@ -207,7 +197,7 @@ public class JSONDeserializer
         } );
     }
 
-    private Module module;
+    private final Module module;
 
     public JSONDeserializer( Module module )
     {
@@ -217,256 +207,39 @@ public class JSONDeserializer
     public Object deserialize( Object json, ValueType valueType )
             throws JSONException
     {
-        if (json == JSONObject.NULL)
-            return null;
-
-        Function<Object, ? extends Object> typeFunction = typeFunctions.get( valueType.type() );
-
-        if (typeFunction != null)
-            return typeFunction.map( json );
-
-        if( valueType instanceof CollectionType )
-        {
-            CollectionType collectionType = (CollectionType) valueType;
-
-            JSONArray array = (JSONArray) json;
-
-            Collection<Object> coll;
-            if( valueType.type().equals( Set.class ) )
-            {
-                coll = new LinkedHashSet<Object>();
-
-                for( int i = 0; i < array.length(); i++ )
-                {
-                    Object value = array.get( i );
-                    coll.add( deserialize( value, collectionType.collectedType() ));
-                }
-            } else
-            {
-                coll = new ArrayList<Object>();
-
-                for( int i = 0; i < array.length(); i++ )
-                {
-                    Object value = array.get( i );
-                    coll.add( deserialize( value, collectionType.collectedType() ));
-                }
-            }
-
-            return coll;
-        } else if( valueType instanceof EnumType )
-        {
-            try
-            {
-                Class enumType = valueType.type();
-
-                // Get enum value
-                return Enum.valueOf( enumType, (String) json );
-            } catch( Exception e )
-            {
-                throw new IllegalArgumentException( e );
-            }
-        } else if( valueType instanceof MapType )
-        {
-            if( json instanceof String )
-            {
-                try
-                {
-                    // Legacy handling of serialized maps
-                    String serializedString = (String) json;
-                    byte[] bytes = serializedString.getBytes( "UTF-8" );
-                    bytes = Base64Encoder.decode( bytes );
-                    ByteArrayInputStream bin = new ByteArrayInputStream( bytes );
-                    ObjectInputStream oin = new ObjectInputStream( bin );
-                    Object result = oin.readObject();
-                    oin.close();
-
-                    return result;
-                } catch( IOException e )
-                {
-                    throw new IllegalStateException( "Could not deserialize value", e );
-                } catch( ClassNotFoundException e )
-                {
-                    throw new IllegalStateException( "Could not find class for serialized value", e );
-                }
-            } else
-            {
-                MapType mapType = (MapType) valueType;
-
-                // New array-based handling
-                JSONArray array = (JSONArray) json;
-
-                Map<Object, Object> map = (Map<Object, Object>) DefaultValues.getDefaultValue( Map.class );
-
-                for( int i = 0; i < array.length(); i++ )
-                {
-                    JSONObject entry = array.getJSONObject( i );
-                    Object key = deserialize( entry.get( "key" ), mapType.getKeyType() );
-                    Object value = deserialize(entry.get( "value" ), mapType.getValueType());
-                    map.put( key, value );
-                }
-
-                return map;
-            }
-        } else if( valueType instanceof ValueCompositeType )
-        {
-            JSONObject jsonObject = (JSONObject) json;
-
-            ValueCompositeType actualValueType = (ValueCompositeType) valueType;
-            String actualType = jsonObject.optString( "_type" );
-            if( !actualType.equals( "" ) )
-            {
-                ValueDescriptor descriptor = module.valueDescriptor( actualType );
-
-                if( descriptor == null )
-                {
-                    throw new IllegalArgumentException( "Could not find any value of type '" + actualType + "' in module" + module );
-                }
-
-                actualValueType = descriptor.valueType();
-            }
-
-            final Map<QualifiedName, Object> values = new HashMap<QualifiedName, Object>();
-            for( PropertyDescriptor persistentProperty : actualValueType.properties() )
-            {
-                Object valueJson = null;
-                try
-                {
-                    valueJson = jsonObject.opt( persistentProperty.qualifiedName().name() );
-
-                    Object value = null;
-                    if( valueJson != null && !valueJson.equals( JSONObject.NULL ) )
-                    {
-                        value = deserialize( valueJson, persistentProperty.valueType() );
-
-                        if (persistentProperty.isImmutable())
-                        {
-                            if (value instanceof Set)
-                            {
-                                value = Collections.unmodifiableSet( (Set<? extends Object>) value);
-                            } else if (value instanceof List)
-                            {
-                                value = Collections.unmodifiableList( (List<? extends Object>) value);
-                            } else if (value instanceof Map)
-                            {
-                                value = Collections.unmodifiableMap( (Map<? extends Object, ? extends Object>) value);
-                            }
-                        }
-                    }
-
-                    values.put( persistentProperty.qualifiedName(), value );
-                } catch( JSONException e )
-                {
-                    // Not found in JSON or wrong format - try defaulting it
-                    try
-                    {
-                        Object defaultValue = DefaultValues.getDefaultValue( persistentProperty.valueType().type() );
-                        values.put( persistentProperty.qualifiedName(), defaultValue );
-                    } catch( RuntimeException e1 )
-                    {
-                        // Didn't work, throw the exception
-                        throw e;
-                    }
-                }
-            }
-
-            for( AssociationDescriptor associationDescriptor : actualValueType.associations() )
-            {
-                Object valueJson = jsonObject.optString( associationDescriptor.qualifiedName().name() );
-                if (valueJson != null)
-                    values.put( associationDescriptor.qualifiedName(), EntityReference.parseEntityReference( valueJson.toString() ) );
-            }
-
-            for( AssociationDescriptor associationDescriptor : actualValueType.manyAssociations() )
-            {
-                JSONArray jsonArray = jsonObject.optJSONArray( associationDescriptor.qualifiedName().name() );
-                if (jsonArray != null)
-                {
-                    List<EntityReference> refs = new ArrayList<EntityReference>();
-                    for (int i = 0; i < jsonArray.length(); i++)
-                    {
-                        refs.add( EntityReference.parseEntityReference( jsonArray.getString( i ) ) );
-                    }
-                }
-            }
-
-            ValueBuilder valueBuilder = module
-                    .newValueBuilderWithState( actualValueType.type(), new Function<PropertyDescriptor, Object>()
-                    {
-                        @Override
-                        public Object map( PropertyDescriptor descriptor )
-                        {
-                            return values.get( descriptor.qualifiedName() );
-                        }
-                    },new Function<AssociationDescriptor, EntityReference>()
-                    {
-                        @Override
-                        public EntityReference map( AssociationDescriptor associationDescriptor )
-                        {
-                            Object ref = values.get( associationDescriptor.qualifiedName() );
-                            if (ref == null)
-                                return null;
-                            else
-                                return (EntityReference) ref;
-                        }
-                    },new Function<AssociationDescriptor, Iterable<EntityReference>>()
-                    {
-                        @Override
-                        public Iterable<EntityReference> map( AssociationDescriptor associationDescriptor )
-                        {
-                            Object ref = values.get( associationDescriptor.qualifiedName() );
-                            if (ref == null)
-                                return Iterables.empty();
-                            else
-                                return (Iterable<EntityReference>) ref;
-                        }
-                    });
-
-            return valueBuilder.newInstance();
-        } else
-        {
-            try
-            {
-                if( json instanceof JSONObject )
-                {
-                    // ValueComposite deserialization
-                    JSONObject jsonObject = (JSONObject) json;
-                    String type = jsonObject.getString( "_type" );
+        return JSONCodec.decodeNullable( json, JSONCodec.codecFor( valueType ), this );
+    }
 
-                    ValueDescriptor valueDescriptor = module.valueDescriptor( type );
-                    return deserialize( json, valueDescriptor.valueType() );
-                } else
-                {
-                    String serializedString = (String) json;
-                    byte[] bytes = serializedString.getBytes( "UTF-8" );
-                    bytes = Base64Encoder.decode( bytes );
-                    ByteArrayInputStream bin = new ByteArrayInputStream( bytes );
-                    ObjectInputStream oin = new ObjectInputStream( bin );
-                    Object result = oin.readObject();
-                    oin.close();
+    /**
+     * Deserialize the value at the current token of the parser, without building a JSONObject tree
+     * for it. When done the parser is at the last token of the value.
+     *
+     * @param parser    parser that is at the first token of the value
+     * @param valueType the type of the value
+     *
+     * @return the value
+     *
+     * @throws JSONException if the JSON is not valid, or does not match the type
+     */
+    public Object deserialize( JSONPullParser parser, ValueType valueType )
+            throws JSONException
+    {
+        return JSONCodec.decodeNullable( parser, JSONCodec.codecFor( valueType ), this );
+    }
 
-                    if( result instanceof EntityReference )
-                    {
-                        EntityReference ref = (EntityReference) result;
-                        if( !valueType.type().equals( EntityReference.class ) )
-                        {
-                            Class mixinType = valueType.type();
-                            if (module.isUnitOfWorkActive())
-                            {
-                                UnitOfWork unitOfWork = module.currentUnitOfWork();
-                                result = unitOfWork.get( mixinType, ref.identity() );
-                            }
-                        }
-                    }
+    /**
+     * Deserialize a value directly from JSON text.
+     */
+    public Object deserialize( Reader json, ValueType valueType )
+            throws JSONException
+    {
+        JSONPullParser parser = new JSONPullParser( json );
+        parser.next();
+        return deserialize( parser, valueType );
+    }
 
-                    return result;
-                }
-            } catch( IOException e )
-            {
-                throw new IllegalStateException( "Could not deserialize value", e );
-            } catch( ClassNotFoundException e )
-            {
-                throw new IllegalStateException( "Could not find class for serialized value", e );
-            }
-        }
+    Module module()
+    {
+        return module;
     }
 }
@@ -1,5 +1,6 @@
 package org.qi4j.api.query.grammar;
 
+import org.qi4j.api.Qi4j;
 import org.qi4j.api.association.GenericAssociationInfo;
 import org.qi4j.api.association.ManyAssociation;
 import org.qi4j.api.composite.Composite;
@@ -12,7 +13,6 @@ import org.qi4j.functional.Function;
 
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Member;
-import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 
 /**
@@ -78,7 +78,7 @@ public class AssociationFunction<T>
             if (target == null)
                 return null;
 
-            CompositeInstance handler = (CompositeInstance) Proxy.getInvocationHandler( target );
+            CompositeInstance handler = Qi4j.INSTANCE_FUNCTION.map( (Composite) target );
             return ((AssociationStateHolder)handler.state()).associationFor( accessor );
         } catch( IllegalArgumentException e )
         {
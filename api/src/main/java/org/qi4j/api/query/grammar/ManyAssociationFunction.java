@@ -1,5 +1,6 @@
 package org.qi4j.api.query.grammar;
 
+import org.qi4j.api.Qi4j;
 import org.qi4j.api.composite.Composite;
 import org.qi4j.api.composite.CompositeInstance;
 import org.qi4j.api.association.AssociationStateHolder;
@@ -8,7 +9,6 @@ import org.qi4j.functional.Function;
 
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Member;
-import java.lang.reflect.Proxy;
 
 /**
 * TODO
@@ -53,7 +53,7 @@ public class ManyAssociationFunction<T>
             if (traversedManyAssociation != null)
                 throw new IllegalArgumentException( "Cannot traverse ManyAssociations" );
 
-            CompositeInstance handler = (CompositeInstance) Proxy.getInvocationHandler( target );
+            CompositeInstance handler = Qi4j.INSTANCE_FUNCTION.map( (Composite) target );
             return ((AssociationStateHolder)handler.state()).manyAssociationFor( accessor );
         } catch( IllegalArgumentException e )
         {
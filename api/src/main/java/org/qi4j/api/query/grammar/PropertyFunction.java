@@ -1,5 +1,6 @@
 package org.qi4j.api.query.grammar;
 
+import org.qi4j.api.Qi4j;
 import org.qi4j.api.association.Association;
 import org.qi4j.api.composite.Composite;
 import org.qi4j.api.composite.CompositeInstance;
@@ -99,7 +100,7 @@ public class PropertyFunction<T>
             if (target == null)
                 return null;
 
-            CompositeInstance handler = (CompositeInstance) Proxy.getInvocationHandler( target );
+            CompositeInstance handler = Qi4j.INSTANCE_FUNCTION.map( (Composite) target );
             return handler.state().propertyFor( accessor );
         } catch( IllegalArgumentException e )
         {
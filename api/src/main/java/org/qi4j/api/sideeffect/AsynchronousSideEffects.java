@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.api.sideeffect;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set this as meta-info on a composite in the assembly to run some or all of its side-effects
+ * asynchronously, after the method has returned to the caller. Side-effects are written the same way
+ * as before, and get the same method result, but run on a bounded executor instead of the caller thread.
+ * <p/>
+ * If no side-effect classes are given then all side-effects of the composite are asynchronous.
+ * When the executor queue is full the {@link OverflowPolicy} decides what to do with the side-effect.
+ * Note that asynchronous side-effects do not run within the UnitOfWork of the caller.
+ * <p/>
+ * The executor is shut down when a module using it is passivated, after the queued side-effects have run.
+ * It is started again when the next side-effect is executed.
+ * <p/>
+ * Example:
+ * <pre>
+ * module.transients( OrderComposite.class )
+ *     .setMetaInfo( new AsynchronousSideEffects( AuditSideEffect.class ) );
+ * </pre>
+ * To use threads other than the default daemon threads, such as virtual threads, give a ThreadFactory.
+ */
+public final class AsynchronousSideEffects
+{
+    public enum OverflowPolicy
+    {
+        /**
+         * Wait until there is room in the queue. If the executor is shut down while waiting the side-effect is dropped.
+         * A side-effect that is executed from one of the executor threads is run inline instead, as waiting there
+         * could deadlock the executor
+         */
+        block,
+
+        /**
+         * Skip the side-effect
+         */
+        drop,
+
+        /**
+         * Run the side-effect on the caller thread
+         */
+        inline
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    // How often a blocked caller checks if the executor has been shut down
+    private static final long BLOCK_CHECK_MILLIS = 100;
+
+    private final Class<?>[] sideEffects;
+    private final int threads;
+    private final int queueSize;
+    private final OverflowPolicy overflowPolicy;
+    private final ThreadFactory threadFactory;
+
+    private volatile ThreadPoolExecutor executor;
+
+    // Set while a side-effect of this instance runs on an executor thread
+    private final ThreadLocal<Boolean> running = new ThreadLocal<Boolean>();
+
+    // Metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong inlined = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public AsynchronousSideEffects( Class<?>... sideEffects )
+    {
+        this( 1, 1000, OverflowPolicy.inline, sideEffects );
+    }
+
+    public AsynchronousSideEffects( int threads, int queueSize, OverflowPolicy overflowPolicy, Class<?>... sideEffects )
+    {
+        this( null, threads, queueSize, overflowPolicy, sideEffects );
+    }
+
+    public AsynchronousSideEffects( ThreadFactory threadFactory,
+                                    int threads,
+                                    int queueSize,
+                                    OverflowPolicy overflowPolicy,
+                                    Class<?>... sideEffects
+    )
+    {
+        if( threads < 1 || queueSize < 1 )
+        {
+            throw new IllegalArgumentException( "Threads and queue size must be at least 1" );
+        }
+
+        this.threadFactory = threadFactory == null ? new SideEffectThreadFactory() : threadFactory;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        this.sideEffects = sideEffects;
+    }
+
+    public boolean appliesTo( Class<?> sideEffectClass )
+    {
+        if( sideEffects.length == 0 )
+        {
+            return true;
+        }
+
+        for( Class<?> sideEffect : sideEffects )
+        {
+            if( sideEffect.isAssignableFrom( sideEffectClass ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public OverflowPolicy overflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    public int threads()
+    {
+        return threads;
+    }
+
+    public int queueSize()
+    {
+        return queueSize;
+    }
+
+    /**
+     * Run the given side-effect invocation on the executor, or handle it according to the overflow policy
+     * if the queue is full. If the invocation throws an exception it is counted as failed, and the exception
+     * is not propagated.
+     *
+     * @param sideEffect the side-effect invocation
+     */
+    public void execute( Runnable sideEffect )
+    {
+        submitted.incrementAndGet();
+        Task task = new Task( sideEffect );
+        ThreadPoolExecutor executor = executor();
+        try
+        {
+            executor.execute( task );
+        }
+        catch( RejectedExecutionException e )
+        {
+            if( executor.isShutdown() )
+            {
+                dropped.incrementAndGet();
+            }
+            else if( overflowPolicy == OverflowPolicy.block && running.get() == null )
+            {
+                block( executor, task );
+            }
+            else if( overflowPolicy != OverflowPolicy.drop )
+            {
+                inlined.incrementAndGet();
+                task.run();
+            }
+            else
+            {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait for room in the queue of the executor. The queue is offered the task with a timeout so that
+     * the executor can be checked for shutdown while waiting. A task that is queued after the executor
+     * has been shut down might never run, so it is taken back and dropped.
+     */
+    private void block( ThreadPoolExecutor executor, Task task )
+    {
+        try
+        {
+            while( !executor.isShutdown() )
+            {
+                if( executor.getQueue().offer( task, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS ) )
+                {
+                    if( executor.isShutdown() && executor.remove( task ) )
+                    {
+                        dropped.incrementAndGet();
+                    }
+                    return;
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Stop the executor, and wait up to 10 seconds for the side-effects that are already queued to run.
+     *
+     * @return true if all queued side-effects were run
+     */
+    public boolean shutdown()
+    {
+        return shutdown( 10, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Stop the executor, and wait for the side-effects that are already queued to run. Side-effects that
+     * have not been run when the timeout expires are dropped. New side-effects start a new executor.
+     *
+     * @param timeout max time to wait for queued side-effects
+     * @param unit    unit of the timeout
+     *
+     * @return true if all queued side-effects were run
+     */
+    public boolean shutdown( long timeout, TimeUnit unit )
+    {
+        ThreadPoolExecutor current;
+        synchronized( this )
+        {
+            current = executor;
+            executor = null;
+        }
+        if( current == null )
+        {
+            return true;
+        }
+
+        current.shutdown();
+        try
+        {
+            if( current.awaitTermination( timeout, unit ) )
+            {
+                return true;
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        dropped.addAndGet( current.shutdownNow().size() );
+        return false;
+    }
+
+    // Metrics
+    public long submitted()
+    {
+        return submitted.get();
+    }
+
+    public long completed()
+    {
+        return completed.get();
+    }
+
+    public long failed()
+    {
+        return failed.get();
+    }
+
+    public long dropped()
+    {
+        return dropped.get();
+    }
+
+    public long inlined()
+    {
+        return inlined.get();
+    }
+
+    public int queueDepth()
+    {
+        ThreadPoolExecutor current = executor;
+        return current == null ? 0 : current.getQueue().size();
+    }
+
+    /**
+     * @return average time in nanoseconds from submission until a side-effect has finished
+     */
+    public long averageLatency()
+    {
+        long count = completed.get() + failed.get();
+        return count == 0 ? 0 : totalLatency.get() / count;
+    }
+
+    /**
+     * @return max time in nanoseconds from submission until a side-effect has finished
+     */
+    public long maxLatency()
+    {
+        return maxLatency.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "submitted=" + submitted + ", completed=" + completed + ", failed=" + failed + ", dropped=" + dropped +
+               ", inlined=" + inlined + ", queue=" + queueDepth() + ", avgLatency=" + averageLatency() + "ns";
+    }
+
+    private ThreadPoolExecutor executor()
+    {
+        ThreadPoolExecutor current = executor;
+        if( current == null )
+        {
+            synchronized( this )
+            {
+                current = executor;
+                if( current == null )
+                {
+                    current = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.SECONDS,
+                                                      new ArrayBlockingQueue<Runnable>( queueSize ), threadFactory,
+                                                      new ThreadPoolExecutor.AbortPolicy() );
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private void record( long start, boolean success )
+    {
+        long latency = System.nanoTime() - start;
+        totalLatency.addAndGet( latency );
+        long max;
+        while( latency > ( max = maxLatency.get() ) && !maxLatency.compareAndSet( max, latency ) )
+        {
+        }
+
+        if( success )
+        {
+            completed.incrementAndGet();
+        }
+        else
+        {
+            failed.incrementAndGet();
+        }
+    }
+
+    private final class Task
+        implements Runnable
+    {
+        private final Runnable sideEffect;
+        private final long start = System.nanoTime();
+
+        private Task( Runnable sideEffect )
+        {
+            this.sideEffect = sideEffect;
+        }
+
+        public void run()
+        {
+            boolean success = false;
+            Boolean outer = running.get();
+            running.set( Boolean.TRUE );
+            try
+            {
+                sideEffect.run();
+                success = true;
+            }
+            catch( Throwable e )
+            {
+                // Counted as failed. The runtime logs failures of side-effects
+            }
+            finally
+            {
+                if( outer == null )
+                {
+                    running.remove();
+                }
+                record( start, success );
+            }
+        }
+    }
+
+    private static class SideEffectThreadFactory
+        implements ThreadFactory
+    {
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, "qi4j-sideeffect-" + threadCount.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+}
@@ -14,6 +14,8 @@
 
 package org.qi4j.api.type;
 
+import org.qi4j.api.json.JSONCodec;
+
 /**
  * Base class for types of values in ValueComposites and Properties.
  */
@@ -21,6 +23,9 @@ public class ValueType
 {
     protected final Class<?> type;
 
+    // Holds the JSON codec compiled for this type, which only JSONCodec can read and set
+    private final Object codecHolder = JSONCodec.newCodecHolder();
+
     public ValueType( Class<?> type )
     {
         this.type = type;
@@ -31,6 +36,14 @@ public class ValueType
         return type;
     }
 
+    /**
+     * @return the holder of the JSON codec of this type, which is opaque to all but {@link JSONCodec}
+     */
+    public Object codecHolder()
+    {
+        return codecHolder;
+    }
+
     @Override
     public String toString()
     {
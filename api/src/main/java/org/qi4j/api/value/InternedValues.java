@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.api.value;
+
+/**
+ * Set this as meta-info on a value type in the assembly to intern its values. When a value is
+ * created and an equal value of the same type already exists, then the existing value is returned
+ * instead, so that equal values share one instance and can mostly be compared by reference.
+ * <p/>
+ * Interned values are only weakly held, and at most maxSize of them are kept. This is useful for
+ * small values that are created very often with the same state, such as currency codes or status values.
+ * <p/>
+ * Example:
+ * <pre>
+ * module.values( Currency.class ).setMetaInfo( new InternedValues() );
+ * </pre>
+ */
+public final class InternedValues
+{
+    private final int maxSize;
+
+    public InternedValues()
+    {
+        this( 10000 );
+    }
+
+    public InternedValues( int maxSize )
+    {
+        if( maxSize < 1 )
+        {
+            throw new IllegalArgumentException( "Max size must be at least 1" );
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    public int maxSize()
+    {
+        return maxSize;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.api.json;
+
+import org.json.JSONPullParser;
+import org.junit.Test;
+import org.qi4j.api.Qi4j;
+import org.qi4j.api.common.Optional;
+import org.qi4j.api.common.UseDefaults;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.type.ValueCompositeType;
+import org.qi4j.api.type.ValueType;
+import org.qi4j.api.value.ValueBuilder;
+import org.qi4j.api.value.ValueComposite;
+import org.qi4j.api.value.ValueDescriptor;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.functional.Function;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of compiled JSON codecs
+ */
+public class JSONCodecTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.values( Order.class, OrderLine.class );
+    }
+
+    @Test
+    public void givenNestedValuesWhenConvertingToAndFromJSONThenRoundTrip()
+    {
+        ValueBuilder<OrderLine> lineBuilder = module.newValueBuilder( OrderLine.class );
+        lineBuilder.prototype().product().set( "Book" );
+        lineBuilder.prototype().quantity().set( 2 );
+        OrderLine line = lineBuilder.newInstance();
+
+        ValueBuilder<Order> builder = module.newValueBuilder( Order.class );
+        builder.prototype().lines().get().add( line );
+        builder.prototype().parent().set( null );
+        Order order = builder.newInstance();
+
+        Order copy = module.newValueFromJSON( Order.class, order.toString() );
+
+        assertEquals( order, copy );
+        assertEquals( "Book", copy.lines().get().get( 0 ).product().get() );
+        assertNull( copy.parent().get() );
+    }
+
+    @Test
+    public void givenValueTypeWhenSerializingThenCompileCodecOnce()
+    {
+        Order order = module.newValue( Order.class );
+        ValueCompositeType valueType = ( (ValueDescriptor) Qi4j.DESCRIPTOR_FUNCTION.map( order ) ).valueType();
+
+        order.toString();
+        JSONCodec codec = JSONCodec.cachedCodec( valueType );
+        assertNotNull( codec );
+
+        order.toString();
+        assertSame( codec, JSONCodec.cachedCodec( valueType ) );
+    }
+
+    @Test
+    public void givenEqualTypesWhenCompilingCodecsThenKeepCodecInEachType()
+    {
+        ValueType first = new ValueType( String.class );
+        ValueType second = new ValueType( String.class );
+        JSONCodec codec = JSONCodec.codecFor( first );
+
+        assertSame( codec, JSONCodec.cachedCodec( first ) );
+        assertNull( JSONCodec.cachedCodec( second ) );
+        assertNotSame( codec, JSONCodec.codecFor( second ) );
+        assertSame( codec, JSONCodec.codecFor( first ) );
+    }
+
+    @Test
+    public void givenCompiledCodecWhenRegisteringSerializerThenCompileAgain()
+    {
+        Order order = module.newValue( Order.class );
+        ValueCompositeType valueType = ( (ValueDescriptor) Qi4j.DESCRIPTOR_FUNCTION.map( order ) ).valueType();
+        JSONCodec codec = JSONCodec.codecFor( valueType );
+
+        JSONSerializer.registerSerializer( Marker.class, new Function<Marker, Object>()
+        {
+            @Override
+            public Object map( Marker marker )
+            {
+                return "marker";
+            }
+        } );
+
+        assertNotSame( codec, JSONCodec.codecFor( valueType ) );
+    }
+
+    @Test
+    public void givenJSONTextWhenDeserializingWithPullParserThenSameAsTree()
+        throws Exception
+    {
+        ValueBuilder<OrderLine> lineBuilder = module.newValueBuilder( OrderLine.class );
+        lineBuilder.prototype().product().set( "Book \"1\"" );
+        lineBuilder.prototype().quantity().set( 3 );
+        OrderLine line = lineBuilder.newInstance();
+
+        ValueBuilder<Order> builder = module.newValueBuilder( Order.class );
+        builder.prototype().lines().get().add( line );
+        Order order = builder.newInstance();
+        ValueCompositeType valueType = ( (ValueDescriptor) Qi4j.DESCRIPTOR_FUNCTION.map( order ) ).valueType();
+
+        JSONDeserializer deserializer = new JSONDeserializer( module );
+        Object copy = deserializer.deserialize( new StringReader( order.toString() ), valueType );
+        assertEquals( order, copy );
+    }
+
+    @Test
+    public void givenUnknownKeysWhenPullParsingThenSkipThem()
+        throws Exception
+    {
+        JSONPullParser parser = new JSONPullParser( "{\"a\":[1,{\"b\":null}],\"c\":-12,\"d\":'x'}" );
+        assertEquals( JSONPullParser.Token.START_OBJECT, parser.next() );
+        assertEquals( JSONPullParser.Token.KEY, parser.next() );
+        assertTrue( parser.is( "a" ) );
+        parser.next();
+        parser.skipValue();
+        assertEquals( JSONPullParser.Token.KEY, parser.next() );
+        assertEquals( "c", parser.stringValue() );
+        assertEquals( JSONPullParser.Token.NUMBER, parser.next() );
+        assertEquals( -12L, parser.longValue() );
+        parser.next();
+        assertEquals( JSONPullParser.Token.STRING, parser.next() );
+        assertEquals( "x", parser.value() );
+        assertEquals( JSONPullParser.Token.END_OBJECT, parser.next() );
+        assertEquals( JSONPullParser.Token.END, parser.next() );
+    }
+
+    public interface Order
+        extends ValueComposite
+    {
+        @UseDefaults
+        Property<List<OrderLine>> lines();
+
+        @Optional
+        Property<Order> parent();
+    }
+
+    public interface OrderLine
+        extends ValueComposite
+    {
+        Property<String> product();
+
+        Property<Integer> quantity();
+    }
+
+    public static class Marker
+    {
+    }
+}
@@ -57,7 +57,7 @@ import org.qi4j.runtime.value.ValueInstance;
 import org.qi4j.spi.Qi4jSPI;
 import org.qi4j.spi.entity.EntityState;
 
-import static java.lang.reflect.Proxy.getInvocationHandler;
+import static org.qi4j.runtime.composite.CompositeProxy.getInvocationHandler;
 import static org.qi4j.runtime.composite.TransientInstance.getCompositeInstance;
 
 /**
@@ -148,7 +148,7 @@ public final class Qi4jRuntimeImpl
         }
         else if( composite instanceof ServiceComposite )
         {
-            InvocationHandler handler = Proxy.getInvocationHandler( composite );
+            InvocationHandler handler = getInvocationHandler( composite );
             if( handler instanceof ServiceInstance )
             {
                 return ( (ServiceInstance) handler ).module();
@@ -4,6 +4,7 @@ import org.qi4j.api.entity.EntityComposite;
 import org.qi4j.api.entity.EntityReference;
 import org.qi4j.api.association.AbstractAssociation;
 import org.qi4j.functional.Function2;
+import org.qi4j.runtime.composite.CompositeProxy;
 import org.qi4j.runtime.composite.ProxyReferenceInvocationHandler;
 import org.qi4j.runtime.entity.EntityInstance;
 
@@ -38,6 +39,11 @@ public abstract class AbstractAssociationInstance<T>
         this.associationInfo = newInfo;
     }
 
+    public Function2<EntityReference, Type, Object> getEntityFunction()
+    {
+        return entityFunction;
+    }
+
     protected T getEntity( EntityReference entityId )
     {
         if( entityId == null )
@@ -55,10 +61,10 @@ public abstract class AbstractAssociationInstance<T>
             return null;
         }
 
-        InvocationHandler handler = Proxy.getInvocationHandler( composite );
+        InvocationHandler handler = CompositeProxy.getInvocationHandler( composite );
         if( handler instanceof ProxyReferenceInvocationHandler )
         {
-            handler = Proxy.getInvocationHandler( ( (ProxyReferenceInvocationHandler) handler ).proxy() );
+            handler = CompositeProxy.getInvocationHandler( ( (ProxyReferenceInvocationHandler) handler ).proxy() );
         }
         EntityInstance instance = (EntityInstance) handler;
         return instance.identity();
@@ -70,9 +76,9 @@ public abstract class AbstractAssociationInstance<T>
         {
             if( !( instance instanceof EntityComposite ) )
             {
-                if( instance instanceof Proxy )
+                if( CompositeProxy.isProxyClass( instance.getClass() ) )
                 {
-                    if( Proxy.getInvocationHandler( instance ) instanceof EntityInstance )
+                    if( CompositeProxy.getInvocationHandler( instance ) instanceof EntityInstance )
                     {
                         return; // It's fine
                     }
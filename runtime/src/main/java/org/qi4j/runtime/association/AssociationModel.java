@@ -52,6 +52,7 @@ public final class AssociationModel
     private boolean immutable;
     private boolean aggregated;
     private AssociationInfo builderInfo;
+    private int slot = -1; // Index in the state arrays, assigned when the composite is assembled
 
     public AssociationModel( AccessibleObject accessor,
                              ValueConstraintsInstance valueConstraintsInstance,
@@ -107,6 +108,19 @@ public final class AssociationModel
         return accessor;
     }
 
+    /**
+     * @return the index of this association in the state arrays of the composite, or -1 if not assigned
+     */
+    public int slot()
+    {
+        return slot;
+    }
+
+    public void setSlot( int slot )
+    {
+        this.slot = slot;
+    }
+
     @Override
     public boolean queryable()
     {
@@ -58,6 +58,31 @@ public class ManyAssociationInstance<T>
         return manyAssociationState.remove( getEntityReference( entity ) );
     }
 
+    public boolean addAll( Iterable<? extends T> entities )
+    {
+        checkImmutable();
+        List<EntityReference> references = new ArrayList<EntityReference>();
+        for( T entity : entities )
+        {
+            checkType( entity );
+            ((ConstraintsCheck) associationInfo).checkConstraints( entity );
+            references.add( getEntityReference( entity ) );
+        }
+        return manyAssociationState.addAll( references );
+    }
+
+    public boolean removeAll( Iterable<? extends T> entities )
+    {
+        checkImmutable();
+        return manyAssociationState.removeAll( references( entities ) );
+    }
+
+    public boolean retainAll( Iterable<? extends T> entities )
+    {
+        checkImmutable();
+        return manyAssociationState.retainAll( references( entities ) );
+    }
+
     public T get( int i )
     {
         return getEntity( manyAssociationState.get( i ) );
@@ -122,6 +147,17 @@ public class ManyAssociationInstance<T>
         return result;
     }
 
+    private List<EntityReference> references( Iterable<? extends T> entities )
+    {
+        List<EntityReference> references = new ArrayList<EntityReference>();
+        for( T entity : entities )
+        {
+            checkType( entity );
+            references.add( getEntityReference( entity ) );
+        }
+        return references;
+    }
+
     public ManyAssociationState getManyAssociationState()
     {
         return manyAssociationState;
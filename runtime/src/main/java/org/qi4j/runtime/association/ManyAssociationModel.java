@@ -56,6 +56,7 @@ public final class ManyAssociationModel
     private boolean immutable;
     private boolean aggregated;
     private AssociationInfo builderInfo;
+    private int slot = -1; // Index in the state arrays, assigned when the composite is assembled
 
     public ManyAssociationModel( AccessibleObject accessor,
                                  ValueConstraintsInstance valueConstraintsInstance,
@@ -111,6 +112,19 @@ public final class ManyAssociationModel
         return accessor;
     }
 
+    /**
+     * @return the index of this many-association in the state arrays of the composite, or -1 if not assigned
+     */
+    public int slot()
+    {
+        return slot;
+    }
+
+    public void setSlot( int slot )
+    {
+        this.slot = slot;
+    }
+
     @Override
     public boolean queryable()
     {
@@ -107,7 +107,7 @@ public final class ManyAssociationsModel
     {
         for( ManyAssociationModel manyAssociationModel : mapAccessorAssociationModel.values() )
         {
-            manyAssociationModel.checkAssociationConstraints( state.manyAssociationFor( manyAssociationModel.accessor() ) );
+            manyAssociationModel.checkAssociationConstraints( state.manyAssociationAt( manyAssociationModel.slot() ) );
         }
     }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ import org.qi4j.api.property.GenericPropertyInfo;
 import org.qi4j.api.property.Immutable;
 import org.qi4j.api.property.Property;
 import org.qi4j.api.service.Activatable;
+import org.qi4j.api.sideeffect.AsynchronousSideEffects;
 import org.qi4j.api.sideeffect.SideEffects;
 import org.qi4j.api.util.Annotations;
 import org.qi4j.api.util.Classes;
@@ -45,6 +46,7 @@ import static org.qi4j.functional.Specifications.*;
 public abstract class CompositeAssemblyImpl
 {
     protected boolean immutable;
+    protected AsynchronousSideEffects asynchronousSideEffects;
     protected Class<?> compositeType;
     protected PropertiesModel propertiesModel;
     protected StateModel stateModel;
@@ -442,7 +444,7 @@ public abstract class CompositeAssemblyImpl
         if( sideEffectsFor.isEmpty() )
             return SideEffectsModel.EMPTY_SIDEEFFECTS;
         else
-            return new SideEffectsModel( sideEffectsFor );
+            return new SideEffectsModel( sideEffectsFor, asynchronousSideEffects );
     }
 
     protected Iterable<Class<? extends Constraint<?, ?>>> constraintDeclarations( Class<?> type )
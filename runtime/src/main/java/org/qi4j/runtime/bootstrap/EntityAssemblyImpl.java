@@ -23,6 +23,7 @@ import org.qi4j.api.entity.EntityComposite;
 import org.qi4j.api.property.GenericPropertyInfo;
 import org.qi4j.api.property.Immutable;
 import org.qi4j.api.property.Property;
+import org.qi4j.api.sideeffect.AsynchronousSideEffects;
 import org.qi4j.api.util.Annotations;
 import org.qi4j.api.util.Classes;
 import org.qi4j.bootstrap.AssociationDeclarations;
@@ -98,6 +99,7 @@ public final class EntityAssemblyImpl
             addAnnotationsMetaInfo( compositeType, metaInfo );
 
             immutable = metaInfo.get( Immutable.class ) != null;
+            asynchronousSideEffects = metaInfo.get( AsynchronousSideEffects.class );
             propertiesModel = new PropertiesModel();
             stateModel = new StateModel( propertiesModel );
             mixinsModel = new MixinsModel();
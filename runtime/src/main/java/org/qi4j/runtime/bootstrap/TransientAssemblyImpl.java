@@ -20,6 +20,7 @@ import org.qi4j.api.common.Visibility;
 import org.qi4j.api.composite.TransientComposite;
 import org.qi4j.api.constraint.Constraint;
 import org.qi4j.api.property.Immutable;
+import org.qi4j.api.sideeffect.AsynchronousSideEffects;
 import org.qi4j.bootstrap.StateDeclarations;
 import org.qi4j.bootstrap.TransientAssembly;
 import org.qi4j.functional.Iterables;
@@ -68,6 +69,7 @@ public final class TransientAssemblyImpl
             addAnnotationsMetaInfo( compositeType, metaInfo );
 
             immutable = metaInfo.get( Immutable.class ) != null;
+            asynchronousSideEffects = metaInfo.get( AsynchronousSideEffects.class );
             propertiesModel = new PropertiesModel();
             stateModel = new StateModel( propertiesModel );
             mixinsModel = new MixinsModel();
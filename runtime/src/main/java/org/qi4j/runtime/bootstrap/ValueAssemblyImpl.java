@@ -22,6 +22,7 @@ import org.qi4j.api.association.Association;
 import org.qi4j.api.property.GenericPropertyInfo;
 import org.qi4j.api.property.Immutable;
 import org.qi4j.api.property.Property;
+import org.qi4j.api.sideeffect.AsynchronousSideEffects;
 import org.qi4j.api.util.Annotations;
 import org.qi4j.api.util.Classes;
 import org.qi4j.api.value.ValueComposite;
@@ -92,6 +93,7 @@ public final class ValueAssemblyImpl
             addAnnotationsMetaInfo( compositeType, metaInfo );
 
             immutable = metaInfo.get( Immutable.class ) != null;
+            asynchronousSideEffects = metaInfo.get( AsynchronousSideEffects.class );
             propertiesModel = new PropertiesModel();
             associationsModel = new AssociationsModel( );
             manyAssociationsModel = new ManyAssociationsModel();
@@ -14,6 +14,7 @@
 
 package org.qi4j.runtime.composite;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -26,6 +27,21 @@ public final class AtomicInstancePool
 {
     private final AtomicReference<CompositeMethodInstance> first = new AtomicReference<CompositeMethodInstance>();
 
+    // Null unless metrics are enabled, so that invocations do not write shared counters otherwise
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public AtomicInstancePool()
+    {
+        this( false );
+    }
+
+    public AtomicInstancePool( boolean counted )
+    {
+        hits = counted ? new AtomicLong() : null;
+        misses = counted ? new AtomicLong() : null;
+    }
+
     public CompositeMethodInstance getInstance()
     {
         CompositeMethodInstance firstInstance;
@@ -34,6 +50,17 @@ public final class AtomicInstancePool
             firstInstance = first.get();
         } while(firstInstance != null && !first.compareAndSet( firstInstance, firstInstance.getNext() ));
 
+        if( hits != null )
+        {
+            if( firstInstance == null )
+            {
+                misses.incrementAndGet();
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+        }
         return firstInstance;
     }
 
@@ -46,4 +73,14 @@ public final class AtomicInstancePool
             compositeMethodInstance.setNext( firstInstance );
         } while(!first.compareAndSet( firstInstance, compositeMethodInstance ));
     }
+
+    public long hits()
+    {
+        return hits == null ? 0 : hits.get();
+    }
+
+    public long misses()
+    {
+        return misses == null ? 0 : misses.get();
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.qi4j.functional.HierarchicalVisitor;
+import org.qi4j.runtime.structure.ModuleInstance;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invocation metrics of a composite method. These are only collected if the system property
+ * {@link CompositeMethodModel#METRICS} is set to true when the method is assembled, and are then
+ * registered as MXBeans when the module is activated.
+ */
+public final class CompositeMethodMetrics
+    implements CompositeMethodMetricsMXBean
+{
+    private final CompositeMethodModel methodModel;
+
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong mixinTime = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    public CompositeMethodMetrics( CompositeMethodModel methodModel )
+    {
+        this.methodModel = methodModel;
+    }
+
+    void invoked( long time, boolean error )
+    {
+        invocations.incrementAndGet();
+        if( error )
+        {
+            errors.incrementAndGet();
+        }
+        totalTime.addAndGet( time );
+        latencies.record( time );
+
+        long max;
+        while( time > ( max = maxLatency.get() ) && !maxLatency.compareAndSet( max, time ) )
+        {
+        }
+    }
+
+    void mixinInvoked( long time )
+    {
+        mixinTime.addAndGet( time );
+    }
+
+    public String getMethod()
+    {
+        return methodModel.toString();
+    }
+
+    public long getInvocations()
+    {
+        return invocations.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public long getTotalTime()
+    {
+        return totalTime.get();
+    }
+
+    public long getMixinTime()
+    {
+        if( methodModel.hasInvocationChain() )
+        {
+            return mixinTime.get();
+        }
+        else
+        {
+            return totalTime.get();
+        }
+    }
+
+    public long getChainTime()
+    {
+        return Math.max( 0, getTotalTime() - getMixinTime() );
+    }
+
+    public long getMeanLatency()
+    {
+        long count = invocations.get();
+        return count == 0 ? 0 : totalTime.get() / count;
+    }
+
+    public long getMaxLatency()
+    {
+        return maxLatency.get();
+    }
+
+    public long getLatency50th()
+    {
+        return latencies.percentile( 50 );
+    }
+
+    public long getLatency90th()
+    {
+        return latencies.percentile( 90 );
+    }
+
+    public long getLatency99th()
+    {
+        return latencies.percentile( 99 );
+    }
+
+    public long getLatency999th()
+    {
+        return latencies.percentile( 99.9 );
+    }
+
+    public long getPoolHits()
+    {
+        return methodModel.instancePool().hits();
+    }
+
+    public long getPoolMisses()
+    {
+        return methodModel.instancePool().misses();
+    }
+
+    public double getPoolHitRate()
+    {
+        long hits = getPoolHits();
+        long misses = getPoolMisses();
+        return hits + misses == 0 ? 0.0 : (double) hits / ( hits + misses );
+    }
+
+    public void reset()
+    {
+        invocations.set( 0 );
+        errors.set( 0 );
+        totalTime.set( 0 );
+        mixinTime.set( 0 );
+        maxLatency.set( 0 );
+        latencies.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getMethod() + ": invocations=" + getInvocations() + ", errors=" + getErrors() + ", mean=" + getMeanLatency() + "ns";
+    }
+
+    /**
+     * Register the metrics of all composite methods in the module with the platform MBeanServer.
+     *
+     * @param module the module whose composites should be registered
+     *
+     * @return the names of the registered MXBeans
+     */
+    public static List<ObjectName> register( ModuleInstance module )
+    {
+        final List<ObjectName> names = new ArrayList<ObjectName>();
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final String prefix = "org.qi4j:type=CompositeMethod" +
+                              ",application=" + ObjectName.quote( module.layerInstance().applicationInstance().name() ) +
+                              ",layer=" + ObjectName.quote( module.layerInstance().name() ) +
+                              ",module=" + ObjectName.quote( module.name() );
+
+        module.model().accept( new HierarchicalVisitor<Object, Object, RuntimeException>()
+        {
+            private CompositeModel composite;
+
+            @Override
+            public boolean visitEnter( Object visited )
+                throws RuntimeException
+            {
+                if( visited instanceof CompositeModel )
+                {
+                    composite = (CompositeModel) visited;
+                }
+                else if( visited instanceof CompositeMethodModel )
+                {
+                    CompositeMethodModel methodModel = (CompositeMethodModel) visited;
+                    if( methodModel.metrics() != null )
+                    {
+                        try
+                        {
+                            ObjectName name = new ObjectName( prefix +
+                                                              ",composite=" + ObjectName.quote( composite.type().getName() ) +
+                                                              ",method=" + ObjectName.quote( methodModel.toString() ) );
+                            if( !server.isRegistered( name ) )
+                            {
+                                server.registerMBean( methodModel.metrics(), name );
+                                names.add( name );
+                            }
+                        }
+                        catch( JMException e )
+                        {
+                            throw new IllegalStateException( "Could not register metrics for " + methodModel, e );
+                        }
+                    }
+                    return false;
+                }
+                return true;
+            }
+        } );
+
+        return names;
+    }
+
+    public static void unregister( List<ObjectName> names )
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for( ObjectName name : names )
+        {
+            try
+            {
+                server.unregisterMBean( name );
+            }
+            catch( JMException e )
+            {
+                // Already unregistered
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+/**
+ * JMX view of the invocation metrics of a composite method. All times are in nanoseconds.
+ * Chain time is the time spent in constraints, concerns and side-effects, i.e. the total time minus the mixin time.
+ */
+public interface CompositeMethodMetricsMXBean
+{
+    String getMethod();
+
+    long getInvocations();
+
+    long getErrors();
+
+    long getTotalTime();
+
+    long getMixinTime();
+
+    long getChainTime();
+
+    long getMeanLatency();
+
+    long getMaxLatency();
+
+    long getLatency50th();
+
+    long getLatency90th();
+
+    long getLatency99th();
+
+    long getLatency999th();
+
+    long getPoolHits();
+
+    long getPoolMisses();
+
+    double getPoolHitRate();
+
+    void reset();
+}
@@ -38,6 +38,60 @@ import static org.qi4j.functional.Specifications.notNull;
 public final class CompositeMethodModel
     implements MethodDescriptor, Dependencies, VisitableHierarchy<Object, Object>
 {
+    /**
+     * Instance pool implementation, one of "atomic" (default), "striped" or "synchronized".
+     */
+    public static final String INSTANCE_POOL = "qi4j.instancepool";
+
+    /**
+     * Max number of idle instances in each stripe of the striped pool. Default is 16.
+     */
+    public static final String INSTANCE_POOL_SIZE = "qi4j.instancepool.size";
+
+    /**
+     * Interval in ms after which idle instances in the striped pool are trimmed. Default is 60000.
+     */
+    public static final String INSTANCE_POOL_TRIM = "qi4j.instancepool.trim";
+
+    /**
+     * Set to true to collect invocation metrics for all composite methods, which are then published as MXBeans.
+     * The property is read when the composite methods are assembled.
+     */
+    public static final String METRICS = "qi4j.metrics";
+
+    private static final String instancePoolType;
+    private static final int instancePoolSize;
+    private static final long instancePoolTrim;
+
+    static
+    {
+        instancePoolType = System.getProperty( INSTANCE_POOL, "atomic" );
+        instancePoolSize = Integer.getInteger( INSTANCE_POOL_SIZE, 16 );
+        instancePoolTrim = Long.getLong( INSTANCE_POOL_TRIM, 60000L );
+    }
+
+    public static boolean isMetricsEnabled()
+    {
+        return Boolean.getBoolean( METRICS );
+    }
+
+    static InstancePool<CompositeMethodInstance> newInstancePool( boolean counted )
+    {
+        if( instancePoolType.equals( "striped" ) )
+        {
+            return new StripedCompositeMethodInstancePool( Runtime.getRuntime().availableProcessors(),
+                                                           instancePoolSize, instancePoolTrim );
+        }
+        else if( instancePoolType.equals( "synchronized" ) )
+        {
+            return new SynchronizedCompositeMethodInstancePool( counted );
+        }
+        else
+        {
+            return new AtomicInstancePool( counted );
+        }
+    }
+
     // Model
     private Method method;
     private Method invocationMethod; // This will be the _ prefixed method on typed mixins
@@ -46,10 +100,11 @@ public final class CompositeMethodModel
     private SideEffectsModel sideEffects;
     private MixinsModel mixins;
     private AnnotatedElement annotations;
+    private int index = -1; // Dense index of this method in the CompositeMethodsModel
 
     // Context
-//    private final SynchronizedCompositeMethodInstancePool instancePool = new SynchronizedCompositeMethodInstancePool();
-    private final AtomicInstancePool instancePool = new AtomicInstancePool();
+    private final CompositeMethodMetrics metrics = isMetricsEnabled() ? new CompositeMethodMetrics( this ) : null;
+    private final InstancePool<CompositeMethodInstance> instancePool = newInstancePool( metrics != null );
     private ConstraintsInstance constraintsInstance;
 
     public CompositeMethodModel( Method method,
@@ -72,7 +127,7 @@ public final class CompositeMethodModel
     {
         annotations = new CompositeMethodAnnotatedElement();
         this.method.setAccessible( true );
-//        instancePool = new SynchronizedCompositeMethodInstancePool();
+//        instancePool = new SynchronizedCompositeMethodInstancePool( counted );
     }
 
     // Model
@@ -82,6 +137,37 @@ public final class CompositeMethodModel
         return method;
     }
 
+    public int index()
+    {
+        return index;
+    }
+
+    void setIndex( int index )
+    {
+        this.index = index;
+    }
+
+    public InstancePool<CompositeMethodInstance> instancePool()
+    {
+        return instancePool;
+    }
+
+    /**
+     * @return the invocation metrics of this method, or null if metrics are not enabled
+     */
+    public CompositeMethodMetrics metrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return true if invocations go through concerns or side-effects before reaching the mixin
+     */
+    public boolean hasInvocationChain()
+    {
+        return concerns != ConcernsModel.EMPTY_CONCERNS || sideEffects != SideEffectsModel.EMPTY_SIDEEFFECTS;
+    }
+
     public MixinModel mixin()
     {
         return mixins.mixinFor( method );
@@ -97,6 +183,11 @@ public final class CompositeMethodModel
     public Object invoke( Object composite, Object[] params, MixinsInstance mixins, ModuleInstance moduleInstance )
         throws Throwable
     {
+        if( metrics != null )
+        {
+            return invokeMeasured( composite, params, mixins, moduleInstance );
+        }
+
         constraintsInstance.checkValid( composite, method,  params );
 
         CompositeMethodInstance methodInstance = getInstance( moduleInstance );
@@ -110,6 +201,33 @@ public final class CompositeMethodModel
         }
     }
 
+    private Object invokeMeasured( Object composite, Object[] params, MixinsInstance mixins, ModuleInstance moduleInstance )
+        throws Throwable
+    {
+        long start = System.nanoTime();
+        boolean error = true;
+        try
+        {
+            constraintsInstance.checkValid( composite, method,  params );
+
+            CompositeMethodInstance methodInstance = getInstance( moduleInstance );
+            try
+            {
+                Object result = mixins.invoke( composite, params, methodInstance );
+                error = false;
+                return result;
+            }
+            finally
+            {
+                instancePool.returnInstance( methodInstance );
+            }
+        }
+        finally
+        {
+            metrics.invoked( System.nanoTime() - start, error );
+        }
+    }
+
     private CompositeMethodInstance getInstance( ModuleInstance moduleInstance )
     {
         CompositeMethodInstance methodInstance = instancePool.getInstance();
@@ -125,6 +243,10 @@ public final class CompositeMethodModel
         throws ConstructionException
     {
         FragmentInvocationHandler mixinInvocationHandler = mixins.newInvocationHandler( method );
+        if( metrics != null && hasInvocationChain() )
+        {
+            mixinInvocationHandler = new MeasuredFragmentInvocationHandler( mixinInvocationHandler, metrics );
+        }
         InvocationHandler invoker = mixinInvocationHandler;
         if( concerns != ConcernsModel.EMPTY_CONCERNS )
         {
@@ -23,7 +23,9 @@ import org.qi4j.runtime.injection.DependencyModel;
 import org.qi4j.runtime.structure.ModuleInstance;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 import static org.qi4j.functional.Iterables.*;
 import static org.qi4j.functional.Specifications.in;
@@ -35,8 +37,13 @@ public final class CompositeMethodsModel
         implements VisitableHierarchy<Object, Object>
 {
     private HashMap<Method, CompositeMethodModel> methods;
+    private CompositeMethodModel[] methodModels = new CompositeMethodModel[0];
     private final MixinsModel mixinsModel;
 
+    // Methods of class based composites that have been resolved to a composite method. Copy-on-write.
+    // Keyed by equality, so there is at most one entry per method of the composite class.
+    private volatile Map<Method, CompositeMethodModel> classMethods = new HashMap<Method, CompositeMethodModel>();
+
     public CompositeMethodsModel(MixinsModel mixinsModel
     )
     {
@@ -70,27 +77,71 @@ public final class CompositeMethodsModel
 
             if( !method.getDeclaringClass().isInterface() )
             {
-                Iterable<Class<?>> types = mixinsModel.mixinTypes();
-                for( Class<?> aClass : types )
+                compositeMethod = classMethod( method );
+            }
+
+            if( compositeMethod == null )
+            {
+                throw new MissingMethodException( "Method '" + method + "' is not implemented" );
+            }
+        }
+
+        return compositeMethod.invoke( proxy, args, mixins, moduleInstance );
+    }
+
+    /**
+     * Invoke a composite method by the index it was given when it was added. This is what generated
+     * proxies call, so the dispatch is an array lookup instead of a Method lookup.
+     */
+    public Object invoke( MixinsInstance mixins,
+                          Object proxy,
+                          int methodIndex,
+                          Object[] args,
+                          ModuleInstance moduleInstance
+    )
+            throws Throwable
+    {
+        return methodModels[ methodIndex ].invoke( proxy, args, mixins, moduleInstance );
+    }
+
+    private CompositeMethodModel classMethod( Method method )
+    {
+        CompositeMethodModel compositeMethod = classMethods.get( method );
+        if( compositeMethod != null )
+        {
+            return compositeMethod;
+        }
+
+        // Method of a class based composite, use the method with the same signature in the mixin types
+        Iterable<Class<?>> types = mixinsModel.mixinTypes();
+        for( Class<?> aClass : types )
+        {
+            try
+            {
+                Method realMethod = aClass.getMethod( method.getName(), method.getParameterTypes() );
+                compositeMethod = methods.get( realMethod );
+                if( compositeMethod != null )
                 {
-                    try
-                    {
-                        Method realMethod = aClass.getMethod( method.getName(), method.getParameterTypes() );
-                        compositeMethod = methods.get( realMethod );
-                        break;
-                    } catch( NoSuchMethodException e )
-                    {
-                    } catch( SecurityException e )
-                    {
-                    }
+                    break;
                 }
+            } catch( NoSuchMethodException e )
+            {
+            } catch( SecurityException e )
+            {
             }
-//            return mixins.invokeObject( proxy, args, method );
-            throw new MissingMethodException( "Method '" + method + "' is not implemented" );
-        } else
+        }
+
+        if( compositeMethod != null )
         {
-            return compositeMethod.invoke( proxy, args, mixins, moduleInstance );
+            synchronized( this )
+            {
+                Map<Method, CompositeMethodModel> resolved = new HashMap<Method, CompositeMethodModel>( classMethods );
+                resolved.put( method, compositeMethod );
+                classMethods = resolved;
+            }
         }
+
+        return compositeMethod;
     }
 
     /*
@@ -172,9 +223,30 @@ public final class CompositeMethodsModel
 
     public void addMethod(CompositeMethodModel methodModel)
     {
+        methodModel.setIndex( methodModels.length );
+        methodModels = Arrays.copyOf( methodModels, methodModels.length + 1 );
+        methodModels[ methodModel.index() ] = methodModel;
         methods.put( methodModel.method(), methodModel );
     }
 
+    public CompositeMethodModel compositeMethodFor( Method method )
+    {
+        return methods.get( method );
+    }
+
+    /**
+     * Get the index of the CompositeMethodModel for a method of the composite.
+     *
+     * @param method a method of the composite
+     *
+     * @return the index of the method, or -1 if it is not implemented by this composite
+     */
+    public int indexOf( Method method )
+    {
+        CompositeMethodModel compositeMethod = methods.get( method );
+        return compositeMethod == null ? -1 : compositeMethod.index();
+    }
+
     public boolean isImplemented(Method method)
     {
         return methods.containsKey( method );
@@ -72,11 +72,10 @@ public abstract class CompositeModel
         this.stateModel = stateModel;
 
         this.mixinsModel = mixinsModel;
+        this.compositeMethodsModel = compositeMethodsModel;
 
         // Create proxy class
         createProxyClass( types );
-
-        this.compositeMethodsModel = compositeMethodsModel;
     }
 
     // Model
@@ -148,7 +147,14 @@ public abstract class CompositeModel
             ClassLoader proxyClassloader = Iterables.first( types ).getClassLoader();
 
             Class<?>[] interfaces = Iterables.toArray( Class.class, Iterables.<Class, Class<?>>cast( types) );
-            proxyClass = (Class<? extends Composite>) Proxy.getProxyClass( proxyClassloader, interfaces );
+            if( CompositeProxyClassLoader.canGenerate( interfaces ) )
+            {
+                // Generated class that dispatches directly to the composite method models
+                proxyClass = (Class<? extends Composite>) new CompositeProxyClassLoader( proxyClassloader ).defineProxyClass( interfaces, compositeMethodsModel );
+            } else
+            {
+                proxyClass = (Class<? extends Composite>) Proxy.getProxyClass( proxyClassloader, interfaces );
+            }
 
             try
             {
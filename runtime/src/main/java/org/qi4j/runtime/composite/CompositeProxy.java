@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.qi4j.api.composite.CompositeInstance;
+import org.qi4j.api.composite.CompositeInstanceProxy;
+import org.qi4j.runtime.structure.ModuleInstance;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Base class of the proxy classes generated by {@link CompositeProxyClassLoader}.
+ * <p/>
+ * Each generated method calls {@link #_invoke} with the CompositeMethodsModel and Method that were
+ * put in its static slots when the class was created, and the index of its CompositeMethodModel, so
+ * a call is an array lookup in the model without going through java.lang.reflect.Proxy and a
+ * Method lookup. Handlers that are not
+ * composite instances, such as the one used for service references, get the same
+ * InvocationHandler callback that a JDK proxy would give them.
+ */
+public abstract class CompositeProxy
+    implements CompositeInstanceProxy
+{
+    private static final Method EQUALS;
+    private static final Method HASHCODE;
+    private static final Method TOSTRING;
+
+    static
+    {
+        try
+        {
+            EQUALS = Object.class.getMethod( "equals", Object.class );
+            HASHCODE = Object.class.getMethod( "hashCode" );
+            TOSTRING = Object.class.getMethod( "toString" );
+        }
+        catch( NoSuchMethodException e )
+        {
+            throw new NoSuchMethodError( e.getMessage() );
+        }
+    }
+
+    /**
+     * Get the InvocationHandler of either a generated composite proxy or a JDK proxy.
+     *
+     * @param proxy the proxy
+     *
+     * @return the handler of the proxy
+     *
+     * @throws IllegalArgumentException if the object is not a proxy
+     */
+    public static InvocationHandler getInvocationHandler( Object proxy )
+        throws IllegalArgumentException
+    {
+        if( proxy instanceof CompositeProxy )
+        {
+            return ( (CompositeProxy) proxy )._instance;
+        }
+
+        return Proxy.getInvocationHandler( proxy );
+    }
+
+    public static boolean isProxyClass( Class<?> proxyClass )
+    {
+        return CompositeProxy.class.isAssignableFrom( proxyClass ) || Proxy.isProxyClass( proxyClass );
+    }
+
+    public final InvocationHandler _instance;
+    private final MixinsInstance mixins;
+    private final ModuleInstance module;
+
+    protected CompositeProxy( InvocationHandler handler )
+    {
+        _instance = handler;
+        if( handler instanceof MixinsInstance && handler instanceof CompositeInstance )
+        {
+            mixins = (MixinsInstance) handler;
+            module = (ModuleInstance) ( (CompositeInstance) handler ).module();
+        }
+        else
+        {
+            mixins = null;
+            module = null;
+        }
+    }
+
+    public final CompositeInstance _compositeInstance()
+    {
+        return _instance instanceof CompositeInstance ? (CompositeInstance) _instance : null;
+    }
+
+    protected final Object _invoke( CompositeMethodsModel methodsModel, int methodIndex, Method method, Object[] args )
+        throws Throwable
+    {
+        try
+        {
+            if( methodIndex >= 0 && mixins != null )
+            {
+                return methodsModel.invoke( mixins, this, methodIndex, args, module );
+            }
+            else
+            {
+                return _instance.invoke( this, method, args );
+            }
+        }
+        catch( RuntimeException e )
+        {
+            throw e;
+        }
+        catch( Error e )
+        {
+            throw e;
+        }
+        catch( Throwable e )
+        {
+            for( Class<?> exceptionType : method.getExceptionTypes() )
+            {
+                if( exceptionType.isInstance( e ) )
+                {
+                    throw e;
+                }
+            }
+            throw new UndeclaredThrowableException( e );
+        }
+    }
+
+    @Override
+    public final boolean equals( Object o )
+    {
+        if( mixins != null )
+        {
+            return _instance.equals( o );
+        }
+
+        return (Boolean) invokeObject( EQUALS, new Object[]{ o } );
+    }
+
+    @Override
+    public final int hashCode()
+    {
+        if( mixins != null )
+        {
+            return _instance.hashCode();
+        }
+
+        return (Integer) invokeObject( HASHCODE, null );
+    }
+
+    @Override
+    public final String toString()
+    {
+        if( mixins != null )
+        {
+            return _instance.toString();
+        }
+
+        return (String) invokeObject( TOSTRING, null );
+    }
+
+    private Object invokeObject( Method method, Object[] args )
+    {
+        try
+        {
+            return _instance.invoke( this, method, args );
+        }
+        catch( RuntimeException e )
+        {
+            throw e;
+        }
+        catch( Error e )
+        {
+            throw e;
+        }
+        catch( Throwable e )
+        {
+            throw new UndeclaredThrowableException( e );
+        }
+    }
+}
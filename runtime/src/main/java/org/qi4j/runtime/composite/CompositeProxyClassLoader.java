@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+import static org.objectweb.asm.Type.getInternalName;
+
+/**
+ * Generate proxy classes for composites that are declared as interfaces. The generated class
+ * extends {@link CompositeProxy} and implements all the composite types. The static slot "methods"
+ * holds the CompositeMethodsModel, and method number idx has the static slot "m"+idx with its
+ * Method. The slots are set by {@link #defineProxyClass} once the class has been defined. Each
+ * method passes the index of its CompositeMethodModel as a constant, or -1 if it is not implemented.
+ */
+public class CompositeProxyClassLoader
+    extends ClassLoader
+{
+    private static int jdkVersion = Opcodes.V1_5;
+    public static final String GENERATED_POSTFIX = "_CompositeProxy";
+
+    static
+    {
+        String jdkString = System.getProperty( "java.specification.version" );
+
+        if( jdkString.equals( "1.6" ) )
+        {
+            jdkVersion = Opcodes.V1_6;
+        }
+        else if( jdkString.equals( "1.7" ) )
+        {
+            jdkVersion = Opcodes.V1_7;
+        }
+    }
+
+    public CompositeProxyClassLoader( ClassLoader parent )
+    {
+        super( parent );
+    }
+
+    protected Class findClass( String name )
+        throws ClassNotFoundException
+    {
+        // Try the classloader of this classloader -> get classes in Qi4j such as CompositeProxy
+        return getClass().getClassLoader().loadClass( name );
+    }
+
+    /**
+     * Check if a proxy class can be generated for the given types. All types must be
+     * public interfaces, as the generated class lives in a classloader of its own.
+     *
+     * @param interfaces the composite types
+     *
+     * @return true if defineProxyClass can be used for these types
+     */
+    public static boolean canGenerate( Class<?>[] interfaces )
+    {
+        for( Class<?> anInterface : interfaces )
+        {
+            if( !anInterface.isInterface() || !Modifier.isPublic( anInterface.getModifiers() ) ||
+                anInterface.getName().startsWith( "java." ) )
+            {
+                return false;
+            }
+
+            for( Method method : anInterface.getMethods() )
+            {
+                if( !isPublic( method.getReturnType() ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the methods that the proxy class for the given types will implement, in the order
+     * that the static slots are numbered. For methods with the same name and descriptor the first
+     * one found is used, which is the one a JDK proxy would pass to its InvocationHandler.
+     *
+     * @param interfaces the composite types
+     *
+     * @return the implemented methods
+     */
+    public static List<Method> proxyMethods( Class<?>[] interfaces )
+    {
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for( Class<?> anInterface : interfaces )
+        {
+            for( Method method : anInterface.getMethods() )
+            {
+                if( Modifier.isStatic( method.getModifiers() ) || isObjectMethod( method ) )
+                {
+                    continue;
+                }
+
+                String key = method.getName() + org.objectweb.asm.commons.Method.getMethod( method ).getDescriptor();
+                if( !methods.containsKey( key ) )
+                {
+                    methods.put( key, method );
+                }
+            }
+        }
+
+        return new ArrayList<Method>( methods.values() );
+    }
+
+    public Class<?> defineProxyClass( Class<?>[] interfaces, CompositeMethodsModel compositeMethodsModel )
+    {
+        String name = interfaces[ 0 ].getName().replace( '$', '_' ) + GENERATED_POSTFIX;
+        List<Method> methods = proxyMethods( interfaces );
+
+        int[] methodIndexes = new int[methods.size()];
+        for( int i = 0; i < methodIndexes.length; i++ )
+        {
+            methodIndexes[ i ] = compositeMethodsModel.indexOf( methods.get( i ) );
+        }
+
+        byte[] b = generateClass( name, interfaces, methods, methodIndexes );
+        Class<?> proxyClass = defineClass( name, b, 0, b.length, interfaces[ 0 ].getProtectionDomain() );
+
+        // Fill in static slots
+        try
+        {
+            java.lang.reflect.Field modelField = proxyClass.getDeclaredField( "methods" );
+            modelField.setAccessible( true );
+            modelField.set( null, compositeMethodsModel );
+
+            int idx = 0;
+            for( Method method : methods )
+            {
+                idx++;
+                java.lang.reflect.Field methodField = proxyClass.getDeclaredField( "m" + idx );
+                methodField.setAccessible( true );
+                methodField.set( null, method );
+            }
+        }
+        catch( Exception e )
+        {
+            throw (IllegalStateException) new IllegalStateException( "Could not initialize proxy class " + name ).initCause( e );
+        }
+
+        return proxyClass;
+    }
+
+    public static byte[] generateClass( String name, Class<?>[] interfaces, List<Method> methods, int[] methodIndexes )
+    {
+        String classSlash = name.replace( '.', '/' );
+        String baseClassSlash = getInternalName( CompositeProxy.class );
+        String modelDesc = "Lorg/qi4j/runtime/composite/CompositeMethodsModel;";
+
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
+        FieldVisitor fv;
+        MethodVisitor mv;
+
+        String[] interfaceNames = new String[interfaces.length];
+        for( int i = 0; i < interfaces.length; i++ )
+        {
+            interfaceNames[ i ] = getInternalName( interfaces[ i ] );
+        }
+
+        // Class definition start
+        cw.visit( jdkVersion, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, classSlash, null, baseClassSlash, interfaceNames );
+
+        // Static slots
+        fv = cw.visitField( ACC_PRIVATE + ACC_STATIC, "methods", modelDesc, null, null );
+        fv.visitEnd();
+        for( int idx = 1; idx <= methods.size(); idx++ )
+        {
+            fv = cw.visitField( ACC_PRIVATE + ACC_STATIC, "m" + idx, "Ljava/lang/reflect/Method;", null, null );
+            fv.visitEnd();
+        }
+
+        // Constructor
+        {
+            mv = cw.visitMethod( ACC_PUBLIC, "<init>", "(Ljava/lang/reflect/InvocationHandler;)V", null, null );
+            mv.visitCode();
+            mv.visitVarInsn( ALOAD, 0 );
+            mv.visitVarInsn( ALOAD, 1 );
+            mv.visitMethodInsn( INVOKESPECIAL, baseClassSlash, "<init>", "(Ljava/lang/reflect/InvocationHandler;)V" );
+            mv.visitInsn( RETURN );
+            mv.visitMaxs( 2, 2 );
+            mv.visitEnd();
+        }
+
+        // Composite methods
+        int idx = 0;
+        for( Method method : methods )
+        {
+            idx++;
+            String desc = org.objectweb.asm.commons.Method.getMethod( method ).getDescriptor();
+
+            String[] exceptions = null;
+            if( method.getExceptionTypes().length > 0 )
+            {
+                exceptions = new String[method.getExceptionTypes().length];
+                for( int i = 0; i < method.getExceptionTypes().length; i++ )
+                {
+                    exceptions[ i ] = getInternalName( method.getExceptionTypes()[ i ] );
+                }
+            }
+
+            mv = cw.visitMethod( ACC_PUBLIC + ACC_FINAL, method.getName(), desc, null, exceptions );
+            mv.visitCode();
+            mv.visitVarInsn( ALOAD, 0 );
+            mv.visitFieldInsn( GETSTATIC, classSlash, "methods", modelDesc );
+            insn( mv, methodIndexes[ idx - 1 ] );
+            mv.visitFieldInsn( GETSTATIC, classSlash, "m" + idx, "Ljava/lang/reflect/Method;" );
+
+            int paramCount = method.getParameterTypes().length;
+            if( paramCount == 0 )
+            {
+                // Send in null as parameter
+                mv.visitInsn( ACONST_NULL );
+            }
+            else
+            {
+                insn( mv, paramCount );
+                mv.visitTypeInsn( ANEWARRAY, "java/lang/Object" );
+                int pidx = 0;
+                int stackIdx = 0;
+                for( Class<?> aClass : method.getParameterTypes() )
+                {
+                    mv.visitInsn( DUP );
+                    insn( mv, pidx++ );
+                    stackIdx = wrapParameter( mv, aClass, stackIdx + 1 );
+                    mv.visitInsn( AASTORE );
+                }
+            }
+
+            // Call method model
+            mv.visitMethodInsn( INVOKEVIRTUAL, classSlash, "_invoke",
+                                "(" + modelDesc + "ILjava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;" );
+
+            // Return value
+            if( !method.getReturnType().equals( Void.TYPE ) )
+            {
+                unwrapResult( mv, method.getReturnType() );
+            }
+            else
+            {
+                mv.visitInsn( POP );
+                mv.visitInsn( RETURN );
+            }
+
+            mv.visitMaxs( 0, 0 );
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
+    public static boolean isGenerated( Class clazz )
+    {
+        return clazz.getName().endsWith( GENERATED_POSTFIX );
+    }
+
+    private static boolean isObjectMethod( Method method )
+    {
+        String name = method.getName();
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if( name.equals( "equals" ) )
+        {
+            return parameterTypes.length == 1 && parameterTypes[ 0 ].equals( Object.class );
+        }
+        return parameterTypes.length == 0 && ( name.equals( "hashCode" ) || name.equals( "toString" ) );
+    }
+
+    private static boolean isPublic( Class<?> type )
+    {
+        while( type.isArray() )
+        {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || Modifier.isPublic( type.getModifiers() );
+    }
+
+    private static int wrapParameter( MethodVisitor mv, Class<?> aClass, int idx )
+    {
+        if( aClass.equals( Integer.TYPE ) )
+        {
+            mv.visitVarInsn( ILOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;" );
+        }
+        else if( aClass.equals( Long.TYPE ) )
+        {
+            mv.visitVarInsn( LLOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;" );
+            idx++; // Extra jump
+        }
+        else if( aClass.equals( Short.TYPE ) )
+        {
+            mv.visitVarInsn( ILOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Short", "valueOf", "(S)Ljava/lang/Short;" );
+        }
+        else if( aClass.equals( Byte.TYPE ) )
+        {
+            mv.visitVarInsn( ILOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Byte", "valueOf", "(B)Ljava/lang/Byte;" );
+        }
+        else if( aClass.equals( Double.TYPE ) )
+        {
+            mv.visitVarInsn( DLOAD, idx );
+            idx++; // Extra jump
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;" );
+        }
+        else if( aClass.equals( Float.TYPE ) )
+        {
+            mv.visitVarInsn( FLOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;" );
+        }
+        else if( aClass.equals( Boolean.TYPE ) )
+        {
+            mv.visitVarInsn( ILOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;" );
+        }
+        else if( aClass.equals( Character.TYPE ) )
+        {
+            mv.visitVarInsn( ILOAD, idx );
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;" );
+        }
+        else
+        {
+            mv.visitVarInsn( ALOAD, idx );
+        }
+
+        return idx;
+    }
+
+    private static void unwrapResult( MethodVisitor mv, Class<?> aClass )
+    {
+        if( aClass.equals( Integer.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Integer" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I" );
+            mv.visitInsn( IRETURN );
+        }
+        else if( aClass.equals( Long.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Long" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Long", "longValue", "()J" );
+            mv.visitInsn( LRETURN );
+        }
+        else if( aClass.equals( Short.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Short" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Short", "shortValue", "()S" );
+            mv.visitInsn( IRETURN );
+        }
+        else if( aClass.equals( Byte.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Byte" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Byte", "byteValue", "()B" );
+            mv.visitInsn( IRETURN );
+        }
+        else if( aClass.equals( Double.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Double" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D" );
+            mv.visitInsn( DRETURN );
+        }
+        else if( aClass.equals( Float.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Float" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Float", "floatValue", "()F" );
+            mv.visitInsn( FRETURN );
+        }
+        else if( aClass.equals( Boolean.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Boolean" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z" );
+            mv.visitInsn( IRETURN );
+        }
+        else if( aClass.equals( Character.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Character" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C" );
+            mv.visitInsn( IRETURN );
+        }
+        else
+        {
+            mv.visitTypeInsn( CHECKCAST, getInternalName( aClass ) );
+            mv.visitInsn( ARETURN );
+        }
+    }
+
+    private static void insn( MethodVisitor mv, int length )
+    {
+        switch( length )
+        {
+            case -1:
+                mv.visitInsn( ICONST_M1 );
+                return;
+            case 0:
+                mv.visitInsn( ICONST_0 );
+                return;
+            case 1:
+                mv.visitInsn( ICONST_1 );
+                return;
+            case 2:
+                mv.visitInsn( ICONST_2 );
+                return;
+            case 3:
+                mv.visitInsn( ICONST_3 );
+                return;
+            case 4:
+                mv.visitInsn( ICONST_4 );
+                return;
+            case 5:
+                mv.visitInsn( ICONST_5 );
+                return;
+            default:
+                if( length <= Byte.MAX_VALUE )
+                {
+                    mv.visitIntInsn( BIPUSH, length );
+                }
+                else if( length <= Short.MAX_VALUE )
+                {
+                    mv.visitIntInsn( SIPUSH, length );
+                }
+                else
+                {
+                    mv.visitLdcInsn( length );
+                }
+        }
+    }
+}
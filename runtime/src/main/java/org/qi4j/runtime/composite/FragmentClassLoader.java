@@ -15,6 +15,8 @@
 package org.qi4j.runtime.composite;
 
 import org.objectweb.asm.*;
+import org.qi4j.api.composite.CompositeInstance;
+import org.qi4j.api.composite.CompositeInvoker;
 import org.qi4j.api.entity.Lifecycle;
 import org.qi4j.api.mixin.Initializable;
 import org.qi4j.api.service.Activatable;
@@ -40,6 +42,7 @@ public class FragmentClassLoader
 {
     private static int jdkVersion = Opcodes.V1_5;
     public static final String GENERATED_POSTFIX = "_Stub";
+    private static final String STUB_METHODS = "_stubMethods";
 
     static
     {
@@ -116,8 +119,19 @@ public class FragmentClassLoader
         MethodVisitor mv;
         AnnotationVisitor av0;
 
+        // Methods that get a _ prefixed method which can be called through _invokeStub
+        List<Method> stubMethods = new ArrayList<Method>();
+        for( Method method : baseClass.getMethods() )
+        {
+            if( isOverloaded( method, baseClass ) && !Modifier.isAbstract( method.getModifiers() ) )
+            {
+                stubMethods.add( method );
+            }
+        }
+
         // Class definition start
-        cw.visit( jdkVersion, ACC_PUBLIC + ACC_SUPER, classSlash, null, baseClassSlash, null );
+        String[] interfaces = stubMethods.isEmpty() ? null : new String[]{ getInternalName( FragmentStub.class ) };
+        cw.visit( jdkVersion, ACC_PUBLIC + ACC_SUPER, classSlash, null, baseClassSlash, interfaces );
 
         // Composite reference
         {
@@ -141,6 +155,13 @@ public class FragmentClassLoader
             }
         }
 
+        // Names and descriptors of the _ prefixed methods, in _invokeStub index order
+        if( !stubMethods.isEmpty() )
+        {
+            fv = cw.visitField( ACC_PUBLIC + ACC_STATIC + ACC_FINAL, STUB_METHODS, "[Ljava/lang/String;", null, null );
+            fv.visitEnd();
+        }
+
         // Constructors
         for( Constructor constructor : baseClass.getDeclaredConstructors() )
         {
@@ -217,6 +238,47 @@ public class FragmentClassLoader
                             mv.visitTryCatchBlock( l0, l1, lerror, "java/lang/Throwable" );
 
                             mv.visitLabel( l0 );
+
+                            // Call the method directly on the composite proxy, if the proxy implements its type
+                            Class<?> compositeType = compositeMethodType( method, baseClass );
+                            if( compositeType != null )
+                            {
+                                String compositeTypeSlash = getInternalName( compositeType );
+                                Label lreflection = new Label();
+                                mv.visitVarInsn( ALOAD, 0 );
+                                mv.visitFieldInsn( GETFIELD, classSlash, "_instance",
+                                                   "Lorg/qi4j/api/composite/CompositeInvoker;" );
+                                mv.visitMethodInsn( INVOKESTATIC, "org/qi4j/runtime/composite/FragmentClassLoader",
+                                                    "compositeProxy",
+                                                    "(Lorg/qi4j/api/composite/CompositeInvoker;)Ljava/lang/Object;" );
+                                mv.visitInsn( DUP );
+                                mv.visitTypeInsn( INSTANCEOF, compositeTypeSlash );
+                                mv.visitJumpInsn( IFEQ, lreflection );
+                                mv.visitTypeInsn( CHECKCAST, compositeTypeSlash );
+
+                                int pidx = 1;
+                                for( Class<?> aClass : method.getParameterTypes() )
+                                {
+                                    pidx = loadParameter( mv, aClass, pidx ) + 1;
+                                }
+
+                                mv.visitMethodInsn( INVOKEINTERFACE, compositeTypeSlash, methodName, desc );
+
+                                if( !method.getReturnType().equals( Void.TYPE ) )
+                                {
+                                    returnResult( mv, method.getReturnType() );
+                                }
+                                else
+                                {
+                                    mv.visitInsn( RETURN );
+                                }
+
+                                // Private mixin types are not implemented by the proxy, so use invokeComposite
+                                mv.visitLabel( lreflection );
+                                mv.visitFrame( Opcodes.F_SAME1, 0, null, 1, new Object[]{ "java/lang/Object" } );
+                                mv.visitInsn( POP );
+                            }
+
                             mv.visitVarInsn( ALOAD, 0 );
                             mv.visitFieldInsn( GETFIELD, classSlash, "_instance",
                                                "Lorg/qi4j/api/composite/CompositeInvoker;" );
@@ -335,10 +397,32 @@ public class FragmentClassLoader
                 }
             }
 
+            // Direct invocation of _ prefixed methods
+            if( !stubMethods.isEmpty() )
+            {
+                generateInvokeStub( cw, classSlash, stubMethods );
+            }
+
             // Class initializer
             {
                 mv = cw.visitMethod( ACC_STATIC, "<clinit>", "()V", null, null );
                 mv.visitCode();
+
+                if( !stubMethods.isEmpty() )
+                {
+                    insn( mv, stubMethods.size() );
+                    mv.visitTypeInsn( ANEWARRAY, "java/lang/String" );
+                    int sidx = 0;
+                    for( Method stubMethod : stubMethods )
+                    {
+                        mv.visitInsn( DUP );
+                        insn( mv, sidx++ );
+                        mv.visitLdcInsn( stubMethodKey( "_" + stubMethod.getName(), stubMethod ) );
+                        mv.visitInsn( AASTORE );
+                    }
+                    mv.visitFieldInsn( PUTSTATIC, classSlash, STUB_METHODS, "[Ljava/lang/String;" );
+                }
+
                 Label l0 = new Label();
                 Label l1 = new Label();
                 Label l2 = new Label();
@@ -413,6 +497,152 @@ public class FragmentClassLoader
         return cw.toByteArray();
     }
 
+    /**
+     * Generate the FragmentStub method, which switches on the method index and calls the
+     * _ prefixed method directly, with unwrapped arguments and a wrapped result.
+     */
+    private static void generateInvokeStub( ClassWriter cw, String classSlash, List<Method> stubMethods )
+    {
+        MethodVisitor mv = cw.visitMethod( ACC_PUBLIC, "_invokeStub", "(I[Ljava/lang/Object;)Ljava/lang/Object;",
+                                           null, new String[]{ "java/lang/Throwable" } );
+        mv.visitCode();
+
+        Label defaultLabel = new Label();
+        Label[] labels = new Label[ stubMethods.size() ];
+        for( int i = 0; i < labels.length; i++ )
+        {
+            labels[ i ] = new Label();
+        }
+
+        mv.visitVarInsn( ILOAD, 1 );
+        mv.visitTableSwitchInsn( 0, labels.length - 1, defaultLabel, labels );
+
+        int idx = 0;
+        for( Method method : stubMethods )
+        {
+            mv.visitLabel( labels[ idx++ ] );
+            mv.visitFrame( Opcodes.F_SAME, 0, null, 0, null );
+            mv.visitVarInsn( ALOAD, 0 );
+
+            int pidx = 0;
+            for( Class<?> aClass : method.getParameterTypes() )
+            {
+                mv.visitVarInsn( ALOAD, 2 );
+                insn( mv, pidx++ );
+                mv.visitInsn( AALOAD );
+                unwrapParameter( mv, aClass );
+            }
+
+            String desc = org.objectweb.asm.commons.Method.getMethod( method ).getDescriptor();
+            mv.visitMethodInsn( INVOKEVIRTUAL, classSlash, "_" + method.getName(), desc );
+
+            wrapResult( mv, method.getReturnType() );
+            mv.visitInsn( ARETURN );
+        }
+
+        mv.visitLabel( defaultLabel );
+        mv.visitFrame( Opcodes.F_SAME, 0, null, 0, null );
+        mv.visitTypeInsn( NEW, "java/lang/IllegalArgumentException" );
+        mv.visitInsn( DUP );
+        mv.visitMethodInsn( INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V" );
+        mv.visitInsn( ATHROW );
+
+        mv.visitMaxs( 0, 0 );
+        mv.visitEnd();
+    }
+
+    /**
+     * Get the index to use with {@link FragmentStub#_invokeStub(int, Object[])} for a _ prefixed
+     * method of a generated class.
+     *
+     * @param method the _ prefixed method
+     *
+     * @return the index of the method, or -1 if it cannot be invoked through the stub
+     */
+    public static int stubIndex( Method method )
+    {
+        Class<?> stubClass = method.getDeclaringClass();
+        if( !isGenerated( stubClass ) || !FragmentStub.class.isAssignableFrom( stubClass ) )
+        {
+            return -1;
+        }
+
+        try
+        {
+            String[] stubMethods = (String[]) stubClass.getField( STUB_METHODS ).get( null );
+            String key = stubMethodKey( method.getName(), method );
+            for( int i = 0; i < stubMethods.length; i++ )
+            {
+                if( stubMethods[ i ].equals( key ) )
+                {
+                    return i;
+                }
+            }
+        }
+        catch( Exception e )
+        {
+            // Fall back to reflection
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the composite proxy that the _instance of a generated class invokes methods on.
+     *
+     * @param invoker the _instance of a generated class
+     *
+     * @return the composite proxy, or null if the invoker has none
+     */
+    public static Object compositeProxy( CompositeInvoker invoker )
+    {
+        if( invoker instanceof CompositeInstance )
+        {
+            return ( (CompositeInstance) invoker ).proxy();
+        }
+        else if( invoker instanceof ProxyReferenceInvocationHandler )
+        {
+            return ( (ProxyReferenceInvocationHandler) invoker ).proxy();
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Get the public interface which declares the given method, so that it can be called directly
+     * on the composite proxy.
+     *
+     * @return the interface, or null if the method must be called through invokeComposite
+     */
+    private static Class<?> compositeMethodType( Method method, Class baseClass )
+    {
+        Class<?> type;
+        if( method.getDeclaringClass().isInterface() )
+        {
+            type = method.getDeclaringClass();
+        }
+        else
+        {
+            try
+            {
+                type = getInterfaceMethodDeclaration( method, baseClass );
+            }
+            catch( NoSuchMethodException e )
+            {
+                return null;
+            }
+        }
+
+        return Modifier.isPublic( type.getModifiers() ) ? type : null;
+    }
+
+    private static String stubMethodKey( String name, Method method )
+    {
+        return name + org.objectweb.asm.commons.Method.getMethod( method ).getDescriptor();
+    }
+
     private static boolean isOverloaded( Method method, Class baseClass )
     {
         if( Modifier.isAbstract( method.getModifiers() ) )
@@ -663,6 +893,94 @@ public class FragmentClassLoader
         }
     }
 
+    private static void unwrapParameter( MethodVisitor mv, Class<?> aClass )
+    {
+        if( aClass.equals( Integer.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Integer" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I" );
+        }
+        else if( aClass.equals( Long.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Long" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Long", "longValue", "()J" );
+        }
+        else if( aClass.equals( Short.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Short" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Short", "shortValue", "()S" );
+        }
+        else if( aClass.equals( Byte.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Byte" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Byte", "byteValue", "()B" );
+        }
+        else if( aClass.equals( Double.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Double" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D" );
+        }
+        else if( aClass.equals( Float.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Float" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Float", "floatValue", "()F" );
+        }
+        else if( aClass.equals( Boolean.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Boolean" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z" );
+        }
+        else if( aClass.equals( Character.TYPE ) )
+        {
+            mv.visitTypeInsn( CHECKCAST, "java/lang/Character" );
+            mv.visitMethodInsn( INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C" );
+        }
+        else
+        {
+            mv.visitTypeInsn( CHECKCAST, getInternalName( aClass ) );
+        }
+    }
+
+    private static void wrapResult( MethodVisitor mv, Class<?> aClass )
+    {
+        if( aClass.equals( Void.TYPE ) )
+        {
+            mv.visitInsn( ACONST_NULL );
+        }
+        else if( aClass.equals( Integer.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;" );
+        }
+        else if( aClass.equals( Long.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;" );
+        }
+        else if( aClass.equals( Short.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Short", "valueOf", "(S)Ljava/lang/Short;" );
+        }
+        else if( aClass.equals( Byte.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Byte", "valueOf", "(B)Ljava/lang/Byte;" );
+        }
+        else if( aClass.equals( Double.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;" );
+        }
+        else if( aClass.equals( Float.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;" );
+        }
+        else if( aClass.equals( Boolean.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;" );
+        }
+        else if( aClass.equals( Character.TYPE ) )
+        {
+            mv.visitMethodInsn( INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;" );
+        }
+    }
+
     private static int loadParameter( MethodVisitor mv, Class<?> aClass, int idx )
     {
         if( aClass.equals( Integer.TYPE ) )
@@ -68,7 +68,8 @@ abstract class FragmentInvocationHandler
             }
             else
             {
-                boolean classOrigin = stackTraceElement.getClassName().equals( proxy.getClass().getSimpleName() );
+                boolean classOrigin = stackTraceElement.getClassName().equals( proxy.getClass().getSimpleName() ) ||
+                                      stackTraceElement.getClassName().equals( proxy.getClass().getName() );
                 boolean methodOrigin = stackTraceElement.getMethodName().equals( method.getName() );
                 if( classOrigin && methodOrigin && compactLevel == CompactLevel.proxy )
                 {
@@ -116,6 +117,7 @@ abstract class FragmentInvocationHandler
     private boolean isJdkInternals( String className )
     {
         return className.startsWith( "java.lang.reflect" ) ||
-               className.startsWith( "sun.reflect" );
+               className.startsWith( "sun.reflect" ) ||
+               className.startsWith( "jdk.internal.reflect" );
     }
 }
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+/**
+ * Implemented by the fragment subclasses generated by {@link FragmentClassLoader}, so that the
+ * _ prefixed methods can be called without going through Method.invoke.
+ * Use {@link FragmentClassLoader#stubIndex(java.lang.reflect.Method)} to get the index of a method.
+ */
+public interface FragmentStub
+{
+    Object _invokeStub( int methodIndex, Object[] args )
+        throws Throwable;
+}
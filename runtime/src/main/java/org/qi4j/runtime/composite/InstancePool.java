@@ -8,4 +8,14 @@ public interface InstancePool<T>
     public T getInstance();
 
     public void returnInstance( T instance );
+
+    /**
+     * @return number of calls to {@link #getInstance()} that returned a pooled instance, or 0 if the pool does not count them
+     */
+    public long hits();
+
+    /**
+     * @return number of calls to {@link #getInstance()} that found the pool empty, or 0 if the pool does not count them
+     */
+    public long misses();
 }
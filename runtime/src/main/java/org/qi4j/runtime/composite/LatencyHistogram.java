@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, with a fixed amount of memory and lock-free recording.
+ * <p/>
+ * Values are put in buckets by their highest bit, and each such range is split into 8 linear
+ * sub-buckets, so recorded values keep 3 significant bits (at most 12.5% error) over the whole range.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+
+    public void record( long value )
+    {
+        counts.incrementAndGet( bucketFor( value < 0 ? 0 : value ) );
+    }
+
+    public long count()
+    {
+        long count = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            count += counts.get( i );
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     *
+     * @return the highest value that is equivalent to the value at the given percentile, or 0 if nothing was recorded
+     */
+    public long percentile( double percentile )
+    {
+        long count = count();
+        if( count == 0 )
+        {
+            return 0;
+        }
+
+        long target = Math.max( 1, (long) Math.ceil( count * Math.min( percentile, 100.0 ) / 100.0 ) );
+        long total = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            total += counts.get( i );
+            if( total >= target )
+            {
+                return highestValueIn( i );
+            }
+        }
+        return highestValueIn( BUCKETS - 1 );
+    }
+
+    public void reset()
+    {
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            counts.set( i, 0 );
+        }
+    }
+
+    static int bucketFor( long value )
+    {
+        if( value < SUB_BUCKETS )
+        {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueIn( int bucket )
+    {
+        if( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) ( SUB_BUCKETS + bucket % SUB_BUCKETS ) << shift;
+        return lowest + ( 1L << shift ) - 1;
+    }
+}
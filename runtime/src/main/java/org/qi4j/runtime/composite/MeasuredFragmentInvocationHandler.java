@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures the time spent in the mixin, so that it can be told apart from the time spent in concerns
+ * and side-effects. Only used when metrics are enabled.
+ */
+final class MeasuredFragmentInvocationHandler
+    extends FragmentInvocationHandler
+{
+    private final FragmentInvocationHandler handler;
+    private final CompositeMethodMetrics metrics;
+
+    MeasuredFragmentInvocationHandler( FragmentInvocationHandler handler, CompositeMethodMetrics metrics )
+    {
+        this.handler = handler;
+        this.metrics = metrics;
+    }
+
+    @Override
+    void setFragment( Object fragment )
+    {
+        handler.setFragment( fragment );
+    }
+
+    @Override
+    public void setMethod( Method method )
+    {
+        handler.setMethod( method );
+    }
+
+    public Object invoke( Object proxy, Method method, Object[] args )
+        throws Throwable
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return handler.invoke( proxy, method, args );
+        }
+        finally
+        {
+            metrics.mixinInvoked( System.nanoTime() - start );
+        }
+    }
+}
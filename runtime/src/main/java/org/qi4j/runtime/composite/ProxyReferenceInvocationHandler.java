@@ -45,7 +45,7 @@ public final class ProxyReferenceInvocationHandler
     {
         try
         {
-            InvocationHandler invocationHandler = Proxy.getInvocationHandler( this.proxy );
+            InvocationHandler invocationHandler = CompositeProxy.getInvocationHandler( this.proxy );
             return invocationHandler.invoke( this.proxy, method, args );
         }
         catch( InvocationTargetException e )
@@ -63,7 +63,7 @@ public final class ProxyReferenceInvocationHandler
     {
         try
         {
-            InvocationHandler invocationHandler = Proxy.getInvocationHandler( this.proxy );
+            InvocationHandler invocationHandler = CompositeProxy.getInvocationHandler( this.proxy );
             return invocationHandler.invoke( this.proxy, method, args );
         }
         catch( InvocationTargetException e )
@@ -14,6 +14,10 @@
 
 package org.qi4j.runtime.composite;
 
+import org.qi4j.runtime.structure.ModuleInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.util.List;
@@ -24,21 +28,29 @@ import java.util.List;
 public final class SideEffectsInstance
     implements InvocationHandler
 {
+    private static final Logger logger = LoggerFactory.getLogger( SideEffectsInstance.class );
+
     private final List<InvocationHandler> sideEffects;
     private final SideEffectInvocationHandlerResult resultInvocationHandler;
     private final ProxyReferenceInvocationHandler proxyHandler;
     private InvocationHandler invoker;
+    private final SideEffectsModel model;
+    private final ModuleInstance moduleInstance;
 
     public SideEffectsInstance( List<InvocationHandler> sideEffects,
                                 SideEffectInvocationHandlerResult resultInvocationHandler,
                                 ProxyReferenceInvocationHandler proxyHandler,
-                                InvocationHandler invoker
+                                InvocationHandler invoker,
+                                SideEffectsModel model,
+                                ModuleInstance moduleInstance
     )
     {
         this.sideEffects = sideEffects;
         this.resultInvocationHandler = resultInvocationHandler;
         this.proxyHandler = proxyHandler;
         this.invoker = invoker;
+        this.model = model;
+        this.moduleInstance = moduleInstance;
     }
 
     public Object invoke( Object proxy, Method method, Object[] args )
@@ -48,23 +60,36 @@ public final class SideEffectsInstance
         {
             Object result = invoker.invoke( proxy, method, args );
             invokeSideEffects( proxy, method, args, result, null );
+            if( model.isAsynchronous() )
+            {
+                model.invokeAsynchronously( proxy, method, args, result, null, moduleInstance );
+            }
             return result;
         }
         catch( Throwable throwable )
         {
             invokeSideEffects( proxy, method, args, null, throwable );
+            if( model.isAsynchronous() )
+            {
+                model.invokeAsynchronously( proxy, method, args, null, throwable, moduleInstance );
+            }
             throw throwable;
         }
     }
 
-    private void invokeSideEffects( Object proxy, Method method, Object[] params, Object result, Throwable originalThrowable )
-        throws Throwable
+    /**
+     * Invoke all side-effects. A side-effect that fails is logged, and does not stop the others.
+     *
+     * @return the first failure of a side-effect, or null if they all succeeded
+     */
+    Throwable invokeSideEffects( Object proxy, Method method, Object[] params, Object result, Throwable originalThrowable )
     {
         proxyHandler.setProxy( proxy );
         resultInvocationHandler.setResult( result, originalThrowable );
 
         try
         {
+            Throwable failure = null;
             for( InvocationHandler sideEffect : sideEffects )
             {
                 try
@@ -75,10 +100,15 @@ public final class SideEffectsInstance
                 {
                     if( throwable != originalThrowable )
                     {
-                        throwable.printStackTrace();
+                        logger.warn( "Side-effect of " + method + " failed", throwable );
+                        if( failure == null )
+                        {
+                            failure = throwable;
+                        }
                     }
                 }
             }
+            return failure;
         }
         finally
         {
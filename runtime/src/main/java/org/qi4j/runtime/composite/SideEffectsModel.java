@@ -14,6 +14,7 @@
 
 package org.qi4j.runtime.composite;
 
+import org.qi4j.api.sideeffect.AsynchronousSideEffects;
 import org.qi4j.api.sideeffect.SideEffectsDescriptor;
 import org.qi4j.functional.HierarchicalVisitor;
 import org.qi4j.functional.Iterables;
@@ -21,12 +22,19 @@ import org.qi4j.functional.VisitableHierarchy;
 import org.qi4j.runtime.injection.Dependencies;
 import org.qi4j.runtime.injection.DependencyModel;
 import org.qi4j.runtime.structure.ModuleInstance;
+import org.qi4j.runtime.structure.ModuleModel;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * JAVADOC
@@ -36,11 +44,39 @@ public final class SideEffectsModel
 {
     public static final SideEffectsModel EMPTY_SIDEEFFECTS = new SideEffectsModel( Collections.<SideEffectModel>emptyList() );
 
+    private static final int MAX_IDLE_ASYNCHRONOUS = 16;
+
     private List<SideEffectModel> sideEffectModels = null;
+    private List<SideEffectModel> synchronousModels;
+    private List<SideEffectModel> asynchronousModels;
+    private AsynchronousSideEffects asynchronous;
+
+    // Side-effect instances for asynchronous invocations, which can not use the ones of the method instance
+    private final Queue<SideEffectsInstance> idleAsynchronous = new ConcurrentLinkedQueue<SideEffectsInstance>();
+    private final AtomicInteger idleAsynchronousCount = new AtomicInteger();
 
     public SideEffectsModel( List<SideEffectModel> sideEffectModels )
+    {
+        this( sideEffectModels, null );
+    }
+
+    public SideEffectsModel( List<SideEffectModel> sideEffectModels, AsynchronousSideEffects asynchronous )
     {
         this.sideEffectModels = sideEffectModels;
+        this.synchronousModels = new ArrayList<SideEffectModel>();
+        this.asynchronousModels = new ArrayList<SideEffectModel>();
+        for( SideEffectModel sideEffectModel : sideEffectModels )
+        {
+            if( asynchronous != null && asynchronous.appliesTo( sideEffectModel.modifierClass() ) )
+            {
+                asynchronousModels.add( sideEffectModel );
+            }
+            else
+            {
+                synchronousModels.add( sideEffectModel );
+            }
+        }
+        this.asynchronous = asynchronousModels.isEmpty() ? null : asynchronous;
     }
 
     public Iterable<DependencyModel> dependencies()
@@ -50,16 +86,110 @@ public final class SideEffectsModel
 
     // Context
     public SideEffectsInstance newInstance(Method method, ModuleInstance moduleInstance, InvocationHandler invoker )
+    {
+        return newInstance( synchronousModels, method, moduleInstance, invoker );
+    }
+
+    private SideEffectsInstance newInstance( List<SideEffectModel> models, Method method, ModuleInstance moduleInstance, InvocationHandler invoker )
     {
         ProxyReferenceInvocationHandler proxyHandler = new ProxyReferenceInvocationHandler();
         SideEffectInvocationHandlerResult result = new SideEffectInvocationHandlerResult();
-        List<InvocationHandler> sideEffects = new ArrayList<InvocationHandler>( sideEffectModels.size() );
-        for( SideEffectModel sideEffectModel : sideEffectModels )
+        List<InvocationHandler> sideEffects = new ArrayList<InvocationHandler>( models.size() );
+        for( SideEffectModel sideEffectModel : models )
         {
             InvocationHandler sideEffect = sideEffectModel.newInstance( moduleInstance, result, proxyHandler, method );
             sideEffects.add( sideEffect );
         }
-        return new SideEffectsInstance( sideEffects, result, proxyHandler, invoker );
+        return new SideEffectsInstance( sideEffects, result, proxyHandler, invoker, this, moduleInstance );
+    }
+
+    boolean isAsynchronous()
+    {
+        return asynchronous != null;
+    }
+
+    void invokeAsynchronously( final Object proxy,
+                               final Method method,
+                               final Object[] params,
+                               final Object result,
+                               final Throwable originalThrowable,
+                               final ModuleInstance moduleInstance
+    )
+    {
+        asynchronous.execute( new Runnable()
+        {
+            public void run()
+            {
+                SideEffectsInstance sideEffects = idleAsynchronous.poll();
+                if( sideEffects == null )
+                {
+                    sideEffects = newInstance( asynchronousModels, method, moduleInstance, null );
+                }
+                else
+                {
+                    idleAsynchronousCount.decrementAndGet();
+                }
+
+                Throwable failure = sideEffects.invokeSideEffects( proxy, method, params, result, originalThrowable );
+
+                if( idleAsynchronousCount.incrementAndGet() <= MAX_IDLE_ASYNCHRONOUS )
+                {
+                    idleAsynchronous.offer( sideEffects );
+                }
+                else
+                {
+                    idleAsynchronousCount.decrementAndGet();
+                }
+
+                // Let the executor count the failure, it has already been logged
+                if( failure instanceof RuntimeException )
+                {
+                    throw (RuntimeException) failure;
+                }
+                else if( failure instanceof Error )
+                {
+                    throw (Error) failure;
+                }
+                else if( failure != null )
+                {
+                    throw new UndeclaredThrowableException( failure );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Stop the executors of the asynchronous side-effects of all composites in the module, after running
+     * the side-effects that are already queued.
+     *
+     * @param module the module that is passivated
+     */
+    public static void shutdownAsynchronous( ModuleModel module )
+    {
+        final Set<AsynchronousSideEffects> executors = Collections.newSetFromMap( new IdentityHashMap<AsynchronousSideEffects, Boolean>() );
+        module.accept( new HierarchicalVisitor<Object, Object, RuntimeException>()
+        {
+            @Override
+            public boolean visitEnter( Object visited )
+                throws RuntimeException
+            {
+                if( visited instanceof SideEffectsModel )
+                {
+                    SideEffectsModel sideEffectsModel = (SideEffectsModel) visited;
+                    if( sideEffectsModel.asynchronous != null )
+                    {
+                        executors.add( sideEffectsModel.asynchronous );
+                    }
+                    return false;
+                }
+                return true;
+            }
+        } );
+
+        for( AsynchronousSideEffects executor : executors )
+        {
+            executor.shutdown();
+        }
     }
 
     @Override
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Method instance pool that is split into stripes, one per thread slot, so that threads calling the
+ * same method do not all contend for a single list head. Each stripe holds at most maxSize idle
+ * instances; instances returned to a full stripe are discarded.
+ * <p/>
+ * Instances that stay idle for a whole trim interval are trimmed. Each stripe tracks the lowest number
+ * of idle instances since its interval started, and that many instances were not needed during the interval.
+ * The interval of a stripe starts when its first instance is returned, and again after each trim.
+ * Trimming is done by the threads that return instances. Every {@link #TRIM_CHECK_RETURNS} returns to a stripe
+ * they check if its interval has passed, so the clock is not read on each call and no background thread is needed.
+ * A stripe that is used less often keeps its idle instances longer, until enough returns or until {@link #trim()} is called.
+ */
+public final class StripedCompositeMethodInstancePool
+    implements InstancePool<CompositeMethodInstance>
+{
+    /**
+     * Number of returns to a stripe between checks of its trim interval. Must be a power of two.
+     */
+    static final int TRIM_CHECK_RETURNS = 64;
+
+    private final AtomicReferenceArray<Stripe> stripes;
+    private final int stripeMask;
+    private final int maxSize;
+    private final long trimInterval;
+
+    public StripedCompositeMethodInstancePool( int stripeCount, int maxSize, long trimInterval )
+    {
+        int size = 1;
+        while( size < stripeCount )
+        {
+            size <<= 1;
+        }
+
+        this.stripes = new AtomicReferenceArray<Stripe>( size );
+        this.stripeMask = size - 1;
+        this.maxSize = maxSize;
+        this.trimInterval = trimInterval;
+    }
+
+    public CompositeMethodInstance getInstance()
+    {
+        Stripe stripe = stripe();
+        synchronized( stripe )
+        {
+            CompositeMethodInstance instance = stripe.first;
+            if( instance == null )
+            {
+                stripe.misses++;
+                return null;
+            }
+
+            stripe.first = instance.getNext();
+            instance.setNext( null );
+            stripe.size--;
+            if( stripe.size < stripe.lowWatermark )
+            {
+                stripe.lowWatermark = stripe.size;
+            }
+            stripe.hits++;
+            return instance;
+        }
+    }
+
+    public void returnInstance( CompositeMethodInstance instance )
+    {
+        Stripe stripe = stripe();
+        synchronized( stripe )
+        {
+            if( stripe.size < maxSize )
+            {
+                instance.setNext( stripe.first );
+                stripe.first = instance;
+                stripe.size++;
+            }
+            else
+            {
+                stripe.discarded++;
+            }
+
+            stripe.returns++;
+            if( stripe.lastTrim == 0 )
+            {
+                // First instance of this stripe, start its interval
+                stripe.lowWatermark = stripe.size;
+                stripe.lastTrim = System.currentTimeMillis();
+            }
+            else if( ( stripe.returns & ( TRIM_CHECK_RETURNS - 1 ) ) == 0 )
+            {
+                long now = System.currentTimeMillis();
+                if( now - stripe.lastTrim >= trimInterval )
+                {
+                    stripe.trim( now );
+                }
+            }
+        }
+    }
+
+    /**
+     * Trim all stripes now, removing the instances that have been idle since the last trim.
+     */
+    public void trim()
+    {
+        long now = System.currentTimeMillis();
+        for( int i = 0; i < stripes.length(); i++ )
+        {
+            Stripe stripe = stripes.get( i );
+            if( stripe != null )
+            {
+                synchronized( stripe )
+                {
+                    if( stripe.lastTrim != 0 )
+                    {
+                        stripe.trim( now );
+                    }
+                }
+            }
+        }
+    }
+
+    public int maxSize()
+    {
+        return maxSize;
+    }
+
+    public int stripes()
+    {
+        return stripes.length();
+    }
+
+    // Statistics
+    public long hits()
+    {
+        long count = 0;
+        for( int i = 0; i < stripes.length(); i++ )
+        {
+            Stripe stripe = stripes.get( i );
+            if( stripe != null )
+            {
+                synchronized( stripe )
+                {
+                    count += stripe.hits;
+                }
+            }
+        }
+        return count;
+    }
+
+    public long misses()
+    {
+        long count = 0;
+        for( int i = 0; i < stripes.length(); i++ )
+        {
+            Stripe stripe = stripes.get( i );
+            if( stripe != null )
+            {
+                synchronized( stripe )
+                {
+                    count += stripe.misses;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Every miss makes the caller create a new instance, so this is the same as the number of misses.
+     *
+     * @return number of instances created for this pool
+     */
+    public long created()
+    {
+        return misses();
+    }
+
+    public long trimmed()
+    {
+        long count = 0;
+        for( int i = 0; i < stripes.length(); i++ )
+        {
+            Stripe stripe = stripes.get( i );
+            if( stripe != null )
+            {
+                synchronized( stripe )
+                {
+                    count += stripe.trimmed;
+                }
+            }
+        }
+        return count;
+    }
+
+    public long discarded()
+    {
+        long count = 0;
+        for( int i = 0; i < stripes.length(); i++ )
+        {
+            Stripe stripe = stripes.get( i );
+            if( stripe != null )
+            {
+                synchronized( stripe )
+                {
+                    count += stripe.discarded;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int size()
+    {
+        int count = 0;
+        for( int i = 0; i < stripes.length(); i++ )
+        {
+            Stripe stripe = stripes.get( i );
+            if( stripe != null )
+            {
+                synchronized( stripe )
+                {
+                    count += stripe.size;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "size=" + size() + ", hits=" + hits() + ", misses=" + misses() + ", trimmed=" + trimmed() + ", discarded=" + discarded();
+    }
+
+    private Stripe stripe()
+    {
+        int idx = (int) Thread.currentThread().getId() & stripeMask;
+        Stripe stripe = stripes.get( idx );
+        if( stripe == null )
+        {
+            stripes.compareAndSet( idx, null, new Stripe() );
+            stripe = stripes.get( idx );
+        }
+        return stripe;
+    }
+
+    private static final class Stripe
+    {
+        private CompositeMethodInstance first;
+        private int size;
+        private int lowWatermark;
+        private long lastTrim; // 0 until the first instance is returned
+        private int returns;
+
+        private long hits;
+        private long misses;
+        private long trimmed;
+        private long discarded;
+
+        private void trim( long now )
+        {
+            for( int i = 0; i < lowWatermark && first != null; i++ )
+            {
+                CompositeMethodInstance instance = first;
+                first = instance.getNext();
+                instance.setNext( null );
+                size--;
+                trimmed++;
+            }
+            lowWatermark = size;
+            lastTrim = now;
+        }
+    }
+}
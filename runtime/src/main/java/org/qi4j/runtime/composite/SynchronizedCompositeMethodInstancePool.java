@@ -23,6 +23,19 @@ public final class SynchronizedCompositeMethodInstancePool
     implements InstancePool<CompositeMethodInstance>
 {
     private CompositeMethodInstance first = null;
+    private final boolean counted;
+    private long hits;
+    private long misses;
+
+    public SynchronizedCompositeMethodInstancePool()
+    {
+        this( false );
+    }
+
+    public SynchronizedCompositeMethodInstancePool( boolean counted )
+    {
+        this.counted = counted;
+    }
 
     public synchronized CompositeMethodInstance getInstance()
     {
@@ -30,6 +43,14 @@ public final class SynchronizedCompositeMethodInstancePool
         if( instance != null )
         {
             first = instance.getNext();
+            if( counted )
+            {
+                hits++;
+            }
+        }
+        else if( counted )
+        {
+            misses++;
         }
         return instance;
     }
@@ -39,4 +60,14 @@ public final class SynchronizedCompositeMethodInstancePool
         instance.setNext( first );
         first = instance;
     }
+
+    public synchronized long hits()
+    {
+        return hits;
+    }
+
+    public synchronized long misses()
+    {
+        return misses;
+    }
 }
@@ -112,7 +112,8 @@ public class TransientClassLoader
         AnnotationVisitor av0;
 
         // Class definition start
-        cw.visit( jdkVersion, ACC_PUBLIC + ACC_SUPER, classSlash, null, baseClassSlash, null );
+        cw.visit( jdkVersion, ACC_PUBLIC + ACC_SUPER, classSlash, null, baseClassSlash,
+                  new String[]{ "org/qi4j/api/composite/CompositeInstanceProxy" } );
 
         // Composite reference
         {
@@ -120,6 +121,18 @@ public class TransientClassLoader
             fv.visitEnd();
         }
 
+        // CompositeInstanceProxy
+        {
+            mv = cw.visitMethod( ACC_PUBLIC, "_compositeInstance", "()Lorg/qi4j/api/composite/CompositeInstance;", null, null );
+            mv.visitCode();
+            mv.visitVarInsn( ALOAD, 0 );
+            mv.visitFieldInsn( GETFIELD, classSlash, "_instance", "Lorg/qi4j/api/composite/CompositeInvoker;" );
+            mv.visitTypeInsn( CHECKCAST, "org/qi4j/api/composite/CompositeInstance" );
+            mv.visitInsn( ARETURN );
+            mv.visitMaxs( 1, 1 );
+            mv.visitEnd();
+        }
+
         // Static Method references
         {
             int idx = 1;
@@ -25,7 +25,6 @@ import org.qi4j.runtime.structure.ModuleInstance;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.util.Arrays;
 
 /**
@@ -36,7 +35,7 @@ public class TransientInstance
 {
     public static TransientInstance getCompositeInstance( Composite composite )
     {
-        return (TransientInstance) Proxy.getInvocationHandler( composite );
+        return (TransientInstance) CompositeProxy.getInvocationHandler( composite );
     }
 
     private final Composite proxy;
@@ -127,7 +126,7 @@ public class TransientInstance
         {
             return false;
         }
-        if( !Proxy.isProxyClass( o.getClass() ) )
+        if( !CompositeProxy.isProxyClass( o.getClass() ) )
         {
             return false;
         }
@@ -22,9 +22,30 @@ import java.lang.reflect.Method;
 public final class TypedModifierInvocationHandler
     extends FragmentInvocationHandler
 {
+    private int stubIndex = -1;
+
+    @Override
+    public void setMethod( Method method )
+    {
+        super.setMethod( method );
+        stubIndex = FragmentClassLoader.stubIndex( method );
+    }
+
     public Object invoke( Object proxy, Method method, Object[] args )
         throws Throwable
     {
+        if( stubIndex != -1 && fragment != null )
+        {
+            try
+            {
+                return ( (FragmentStub) fragment )._invokeStub( stubIndex, args );
+            }
+            catch( Throwable e )
+            {
+                throw cleanStackTrace( e, proxy, method );
+            }
+        }
+
         try
         {
 /*
@@ -23,6 +23,19 @@ public final class UnsynchronizedCompositeMethodInstancePool
     implements InstancePool<CompositeMethodInstance>
 {
     private CompositeMethodInstance first = null;
+    private final boolean counted;
+    private long hits;
+    private long misses;
+
+    public UnsynchronizedCompositeMethodInstancePool()
+    {
+        this( false );
+    }
+
+    public UnsynchronizedCompositeMethodInstancePool( boolean counted )
+    {
+        this.counted = counted;
+    }
 
     public CompositeMethodInstance getInstance()
     {
@@ -30,6 +43,14 @@ public final class UnsynchronizedCompositeMethodInstancePool
         if( instance != null )
         {
             first = instance.getNext();
+            if( counted )
+            {
+                hits++;
+            }
+        }
+        else if( counted )
+        {
+            misses++;
         }
         return instance;
     }
@@ -39,4 +60,14 @@ public final class UnsynchronizedCompositeMethodInstancePool
         instance.setNext( first );
         first = instance;
     }
+
+    public long hits()
+    {
+        return hits;
+    }
+
+    public long misses()
+    {
+        return misses;
+    }
 }
\ No newline at end of file
@@ -27,6 +27,7 @@ import org.qi4j.api.unitofwork.NoSuchEntityException;
 import org.qi4j.api.unitofwork.UnitOfWork;
 import org.qi4j.api.unitofwork.UnitOfWorkException;
 import org.qi4j.runtime.composite.CompositeMethodInstance;
+import org.qi4j.runtime.composite.CompositeProxy;
 import org.qi4j.runtime.composite.MixinsInstance;
 import org.qi4j.runtime.structure.ModuleInstance;
 import org.qi4j.runtime.structure.ModuleUnitOfWork;
@@ -34,7 +35,6 @@ import org.qi4j.spi.entity.EntityState;
 import org.qi4j.spi.entity.EntityStatus;
 
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -46,7 +46,7 @@ public final class EntityInstance
 {
     public static EntityInstance getEntityInstance( EntityComposite composite )
     {
-        return (EntityInstance) Proxy.getInvocationHandler( composite );
+        return (EntityInstance) CompositeProxy.getInvocationHandler( composite );
     }
 
     private final EntityComposite proxy;
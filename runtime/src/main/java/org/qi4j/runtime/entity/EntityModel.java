@@ -39,6 +39,7 @@ import org.qi4j.spi.entity.EntityState;
 import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
 import org.qi4j.spi.entitystore.EntityStoreException;
 import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.helpers.EntityStateSlots;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
@@ -48,7 +49,7 @@ import java.lang.reflect.Method;
  */
 public final class EntityModel
     extends CompositeModel
-    implements EntityDescriptor
+    implements EntityDescriptor, EntityStateSlots.Owner
 {
     private static final Method IDENTITY_METHOD;
 
@@ -65,6 +66,7 @@ public final class EntityModel
     }
 
     private final boolean queryable;
+    private final EntityStateSlots stateSlots;
 
     public EntityModel( Class<?> type,
                         Iterable<Class<?>> types,
@@ -79,6 +81,9 @@ public final class EntityModel
 
         final Queryable queryable = Iterables.first( Iterables.<Queryable, Annotation>cast(Iterables.filter( Annotations.isType( Queryable.class ), Iterables.flattenIterables( Iterables.map( Annotations.ANNOTATIONS_OF, types ) ) )));
         this.queryable = queryable == null || queryable.value();
+
+        stateSlots = new EntityStateSlots( this );
+        stateModel.assignSlots( stateSlots );
     }
 
     public boolean queryable()
@@ -86,6 +91,11 @@ public final class EntityModel
         return queryable;
     }
 
+    public EntityStateSlots stateSlots()
+    {
+        return stateSlots;
+    }
+
     @Override
     public EntityStateModel state()
     {
@@ -17,6 +17,7 @@ package org.qi4j.runtime.entity;
 import org.qi4j.runtime.property.PropertyInfo;
 import org.qi4j.runtime.property.PropertyInstance;
 import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entitystore.helpers.SlotEntityState;
 
 /**
  * {@code EntityPropertyInstance} represents a property whose value must be backed by an EntityState.
@@ -25,6 +26,7 @@ public class EntityPropertyInstance<T>
     extends PropertyInstance<T>
 {
     private EntityState entityState;
+    private final int slot;
 
     /**
      * Construct an instance of {@code PropertyInstance} with the specified arguments.
@@ -34,8 +36,21 @@ public class EntityPropertyInstance<T>
      */
     public EntityPropertyInstance( PropertyInfo aPropertyInfo, EntityState entityState)
     {
-        super( aPropertyInfo, (T) entityState.getProperty(aPropertyInfo.qualifiedName()));
+        this( aPropertyInfo, entityState, -1 );
+    }
+
+    /**
+     * Construct an instance of {@code PropertyInstance} whose value is in the given slot of the entity state.
+     *
+     * @param aPropertyInfo The property info. This argument must not be {@code null}.
+     * @param entityState
+     * @param slot The slot of the property if the entity state is a {@link SlotEntityState}, or -1 to use the name of the property
+     */
+    public EntityPropertyInstance( PropertyInfo aPropertyInfo, EntityState entityState, int slot )
+    {
+        super( aPropertyInfo, (T) ( slot == -1 ? entityState.getProperty( aPropertyInfo.qualifiedName() ) : ( (SlotEntityState) entityState ).propertyAt( slot ) ) );
         this.entityState = entityState;
+        this.slot = slot;
     }
 
     /**
@@ -46,6 +61,13 @@ public class EntityPropertyInstance<T>
     public void set( T aNewValue )
     {
         super.set( aNewValue );
-        entityState.setProperty( model.qualifiedName(), aNewValue );
+        if( slot == -1 )
+        {
+            entityState.setProperty( model.qualifiedName(), aNewValue );
+        }
+        else
+        {
+            ( (SlotEntityState) entityState ).setPropertyAt( slot, aNewValue );
+        }
     }
 }
\ No newline at end of file
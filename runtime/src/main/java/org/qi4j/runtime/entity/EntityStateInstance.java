@@ -21,6 +21,8 @@ import org.qi4j.runtime.composite.ConstraintsCheck;
 import org.qi4j.runtime.property.PropertyModel;
 import org.qi4j.runtime.unitofwork.BuilderEntityState;
 import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entitystore.helpers.EntityStateSlots;
+import org.qi4j.spi.entitystore.helpers.SlotEntityState;
 
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Type;
@@ -68,7 +70,7 @@ public final class EntityStateInstance
             if (entityPropertyModel == null)
                 throw new IllegalArgumentException("No such property:"+accessor);
 
-            property = new EntityPropertyInstance<T>( entityState instanceof BuilderEntityState ? entityPropertyModel.getBuilderInfo() : entityPropertyModel, entityState);
+            property = new EntityPropertyInstance<T>( entityState instanceof BuilderEntityState ? entityPropertyModel.getBuilderInfo() : entityPropertyModel, entityState, propertySlot( entityPropertyModel ) );
             state.put( accessor, property );
         }
 
@@ -100,18 +102,30 @@ public final class EntityStateInstance
             if (associationModel == null)
                 throw new IllegalArgumentException("No such association:"+accessor);
 
+            final int slot = associationSlot( associationModel );
             association = new AssociationInstance<T>( entityState instanceof BuilderEntityState ? associationModel.getBuilderInfo() : associationModel, entityFunction, new Property<EntityReference>()
             {
                 @Override
                 public EntityReference get()
                 {
-                    return entityState.getAssociation( associationModel.qualifiedName() );
+                    if( slot == -1 )
+                    {
+                        return entityState.getAssociation( associationModel.qualifiedName() );
+                    }
+                    return ( (SlotEntityState) entityState ).associationAt( slot );
                 }
 
                 @Override
                 public void set( EntityReference newValue ) throws IllegalArgumentException, IllegalStateException
                 {
-                    entityState.setAssociation( associationModel.qualifiedName(), newValue );
+                    if( slot == -1 )
+                    {
+                        entityState.setAssociation( associationModel.qualifiedName(), newValue );
+                    }
+                    else
+                    {
+                        ( (SlotEntityState) entityState ).setAssociationAt( slot, newValue );
+                    }
                 }
             });
             state.put( accessor, association );
@@ -145,7 +159,9 @@ public final class EntityStateInstance
             if (associationModel == null)
                 throw new IllegalArgumentException("No such many-association:"+accessor);
 
-            manyAssociation = new ManyAssociationInstance<T>( entityState instanceof BuilderEntityState ? associationModel.getBuilderInfo() : associationModel, entityFunction, entityState.getManyAssociation( associationModel.qualifiedName() ));
+            int slot = manyAssociationSlot( associationModel );
+            manyAssociation = new ManyAssociationInstance<T>( entityState instanceof BuilderEntityState ? associationModel.getBuilderInfo() : associationModel, entityFunction,
+                                                              slot == -1 ? entityState.getManyAssociation( associationModel.qualifiedName() ) : ( (SlotEntityState) entityState ).manyAssociationAt( slot ) );
             state.put( accessor, manyAssociation );
         }
 
@@ -180,6 +196,51 @@ public final class EntityStateInstance
         // TODO Should ManyAssociations be checked too?
     }
 
+    // The slots of the models are used when the entity state has the slots of this entity type,
+    // and otherwise the state is found by name
+
+    private int propertySlot( PropertyModel propertyModel )
+    {
+        int slot = propertyModel.slot();
+        if( slot != -1 && entityState instanceof SlotEntityState )
+        {
+            EntityStateSlots slots = ( (SlotEntityState) entityState ).slots();
+            if( slot < slots.propertyCount() && slots.propertyAt( slot ) == propertyModel )
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int associationSlot( AssociationModel associationModel )
+    {
+        int slot = associationModel.slot();
+        if( slot != -1 && entityState instanceof SlotEntityState )
+        {
+            EntityStateSlots slots = ( (SlotEntityState) entityState ).slots();
+            if( slot < slots.associationCount() && slots.associationAt( slot ) == associationModel )
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int manyAssociationSlot( ManyAssociationModel manyAssociationModel )
+    {
+        int slot = manyAssociationModel.slot();
+        if( slot != -1 && entityState instanceof SlotEntityState )
+        {
+            EntityStateSlots slots = ( (SlotEntityState) entityState ).slots();
+            if( slot < slots.manyAssociationCount() && slots.manyAssociationAt( slot ) == manyAssociationModel )
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
     private Map<AccessibleObject, Object> state()
     {
         if (state == null)
@@ -25,6 +25,8 @@ import org.qi4j.runtime.association.ManyAssociationModel;
 import org.qi4j.runtime.association.ManyAssociationsModel;
 import org.qi4j.runtime.composite.StateModel;
 import org.qi4j.runtime.property.PropertiesModel;
+import org.qi4j.runtime.property.PropertyModel;
+import org.qi4j.spi.entitystore.helpers.EntityStateSlots;
 
 import java.lang.reflect.AccessibleObject;
 
@@ -48,6 +50,26 @@ public final class EntityStateModel
         this.manyAssociationsModel = manyAssociationsModel;
     }
 
+    /**
+     * Give each property, association and many-association the slot it has in the state of the entity.
+     * Called when all state has been added to the model.
+     */
+    public void assignSlots( EntityStateSlots slots )
+    {
+        for( int i = 0; i < slots.propertyCount(); i++ )
+        {
+            ( (PropertyModel) slots.propertyAt( i ) ).setSlot( i );
+        }
+        for( int i = 0; i < slots.associationCount(); i++ )
+        {
+            ( (AssociationModel) slots.associationAt( i ) ).setSlot( i );
+        }
+        for( int i = 0; i < slots.manyAssociationCount(); i++ )
+        {
+            ( (ManyAssociationModel) slots.manyAssociationAt( i ) ).setSlot( i );
+        }
+    }
+
     public AssociationModel getAssociation( AccessibleObject accessor )
         throws IllegalArgumentException
     {
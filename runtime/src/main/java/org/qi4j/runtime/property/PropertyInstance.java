@@ -17,6 +17,7 @@ package org.qi4j.runtime.property;
 import org.qi4j.api.property.Property;
 import org.qi4j.api.type.CollectionType;
 import org.qi4j.api.type.MapType;
+import org.qi4j.api.type.ValueType;
 import org.qi4j.api.type.ValueCompositeType;
 import org.qi4j.api.value.ValueComposite;
 import org.qi4j.runtime.value.ValueInstance;
@@ -148,67 +149,56 @@ public class PropertyInstance<T>
     {
         // Check if state has to be modified
         model = propertyDescriptor.getBuilderInfo();
-        if( propertyDescriptor.valueType() instanceof ValueCompositeType )
+        value = (T) copyToBuild( value, propertyDescriptor.valueType() );
+    }
+
+    /**
+     * Create a property for a ValueBuilder, with a copy of the value of this property that can be changed.
+     * This property is not modified.
+     *
+     * @param propertyDescriptor the model of the property
+     * @return the new property
+     */
+    public PropertyInstance<T> newBuilderInstance( PropertyModel propertyDescriptor )
+    {
+        return new PropertyInstance<T>( propertyDescriptor.getBuilderInfo(), (T) copyToBuild( value, propertyDescriptor.valueType() ) );
+    }
+
+    private static Object copyToBuild( Object value, ValueType valueType )
+    {
+        if( value == null )
         {
-            Object value = get();
-            if( value != null )
-            {
-                ValueInstance.getValueInstance( (ValueComposite) value ).prepareToBuild();
-            }
-        } else if( propertyDescriptor.valueType() instanceof CollectionType)
+            return null;
+        }
+
+        if( valueType instanceof ValueCompositeType )
         {
-            Object value = get();
+            return ValueInstance.getValueInstance( (ValueComposite) value ).newBuilderInstance().proxy();
+        } else if( valueType instanceof CollectionType )
+        {
+            Collection<Object> collection = value instanceof Set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
 
-            if (value != null)
+            // Check if items are Values
+            ValueType collectedType = ( (CollectionType) valueType ).collectedType();
+            for( Object item : (Collection<?>) value )
             {
-                if (value instanceof List)
-                {
-                    value = new ArrayList((Collection) value);
-                } else if (value instanceof Set)
-                {
-                    value = new LinkedHashSet( (Collection) value);
-                }
-
-                // Check if items are Values
-                CollectionType collection = (CollectionType) propertyDescriptor.valueType();
-                if( collection.collectedType() instanceof ValueCompositeType )
-                {
-                    Collection coll = (Collection) value;
-                    for( Object instance : coll )
-                    {
-                        ValueInstance.getValueInstance( (ValueComposite) instance ).prepareToBuild();
-                    }
-                }
-
-                set( (T) value );
+                collection.add( copyToBuild( item, collectedType ) );
             }
-        } else if ( propertyDescriptor.valueType() instanceof MapType )
+            return collection;
+        } else if( valueType instanceof MapType )
         {
-            Object value = get();
+            Map<Object, Object> map = new LinkedHashMap<Object, Object>();
 
-            if (value != null)
+            // Check if keys/values are Values
+            MapType mapType = (MapType) valueType;
+            for( Map.Entry<?, ?> entry : ( (Map<?, ?>) value ).entrySet() )
             {
-                Map map = new LinkedHashMap( (Map) value);
-
-                // Check if keys/values are Values
-                MapType mapType = (MapType) propertyDescriptor.valueType();
-                if( mapType.getKeyType() instanceof ValueCompositeType )
-                {
-                    for( Object instance : map.keySet() )
-                    {
-                        ValueInstance.getValueInstance( (ValueComposite) instance ).prepareToBuild();
-                    }
-                }
-                if( mapType.getValueType() instanceof ValueCompositeType )
-                {
-                    for( Object instance : map.values() )
-                    {
-                        ValueInstance.getValueInstance( (ValueComposite) instance ).prepareToBuild();
-                    }
-                }
-
-                set( (T) value );
+                map.put( copyToBuild( entry.getKey(), mapType.getKeyType() ), copyToBuild( entry.getValue(), mapType.getValueType() ) );
             }
+            return map;
+        } else
+        {
+            return value;
         }
     }
 
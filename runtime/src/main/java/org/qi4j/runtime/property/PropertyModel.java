@@ -70,6 +70,8 @@ public class PropertyModel
 
     private final boolean queryable;
 
+    private int slot = -1; // Index in the state arrays, assigned when the composite is assembled
+
     public PropertyModel( AccessibleObject accessor, boolean immutable, boolean useDefaults, ValueConstraintsInstance constraints,
                           MetaInfo metaInfo, Object initialValue
     )
@@ -115,6 +117,19 @@ public class PropertyModel
         return accessor;
     }
 
+    /**
+     * @return the index of this property in the state arrays of the composite, or -1 if not assigned
+     */
+    public int slot()
+    {
+        return slot;
+    }
+
+    public void setSlot( int slot )
+    {
+        this.slot = slot;
+    }
+
     @Override
     public ValueType valueType()
     {
@@ -20,11 +20,11 @@ import org.qi4j.api.property.StateHolder;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.api.service.Availability;
 import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.runtime.composite.CompositeProxy;
 import org.qi4j.runtime.composite.TransientInstance;
 import org.qi4j.runtime.composite.TransientStateInstance;
 import org.qi4j.runtime.structure.ModuleInstance;
 
-import java.lang.reflect.Proxy;
 
 /**
  * JAVADOC
@@ -35,7 +35,7 @@ public class ServiceInstance
 {
     public static TransientInstance getCompositeInstance( ServiceComposite composite )
     {
-        return (TransientInstance) Proxy.getInvocationHandler( composite );
+        return (TransientInstance) CompositeProxy.getInvocationHandler( composite );
     }
 
     private boolean implementsServiceAvailable;
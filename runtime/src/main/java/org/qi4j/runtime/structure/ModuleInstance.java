@@ -56,7 +56,6 @@ import org.qi4j.runtime.entity.EntityModel;
 import org.qi4j.runtime.injection.InjectionContext;
 import org.qi4j.runtime.object.ObjectModel;
 import org.qi4j.runtime.object.ObjectsModel;
-import org.qi4j.runtime.property.PropertyInfo;
 import org.qi4j.runtime.property.PropertyInstance;
 import org.qi4j.runtime.property.PropertyModel;
 import org.qi4j.runtime.query.QueryBuilderFactoryImpl;
@@ -68,6 +67,7 @@ import org.qi4j.runtime.unitofwork.UnitOfWorkInstance;
 import org.qi4j.runtime.value.*;
 import org.qi4j.spi.entitystore.EntityStore;
 
+import javax.management.ObjectName;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
@@ -100,6 +100,7 @@ public class ModuleInstance
 
     private final ClassLoader classLoader;
     private final ActivationEventListenerSupport eventListenerSupport = new ActivationEventListenerSupport();
+    private List<ObjectName> metricsNames = Collections.emptyList();
 
     private final Function2<EntityReference, Type, Object> entityFunction = new Function2<EntityReference, Type, Object>()
     {
@@ -278,6 +279,7 @@ public class ModuleInstance
     {
         eventListenerSupport.fireEvent( new ActivationEvent( this, ActivationEvent.EventType.ACTIVATING ) );
         services.activate();
+        metricsNames = CompositeMethodMetrics.register( this );
         eventListenerSupport.fireEvent( new ActivationEvent( this, ActivationEvent.EventType.ACTIVATED ) );
     }
 
@@ -285,7 +287,10 @@ public class ModuleInstance
             throws Exception
     {
         eventListenerSupport.fireEvent( new ActivationEvent( this, ActivationEvent.EventType.PASSIVATING ) );
+        SideEffectsModel.shutdownAsynchronous( moduleModel );
         services.passivate();
+        CompositeMethodMetrics.unregister( metricsNames );
+        metricsNames = Collections.emptyList();
         eventListenerSupport.fireEvent( new ActivationEvent( this, ActivationEvent.EventType.PASSIVATED ) );
     }
 
@@ -549,28 +554,11 @@ public class ModuleInstance
             throw new NoSuchValueException( mixinType.getName(), name() );
         }
 
-        Map<AccessibleObject, PropertyInstance<?>> properties = new LinkedHashMap<AccessibleObject, PropertyInstance<?>>();
-        for( PropertyDescriptor propertyDescriptor : model.model().state().properties() )
-        {
-            properties.put( propertyDescriptor.accessor(), new PropertyInstance<Object>( (PropertyInfo) propertyDescriptor, propertyDescriptor.initialValue( model.module() ) ) );
-        }
-
-        Map<AccessibleObject, AssociationInstance<?>> associations = new LinkedHashMap<AccessibleObject, AssociationInstance<?>>();
-        for( AssociationDescriptor associationDescriptor : model.model().state().associations() )
-        {
-            associations.put( associationDescriptor.accessor(), new AssociationInstance<Object>( (AssociationInfo) associationDescriptor, entityFunction, new ReferenceProperty() ) );
-        }
-
-        Map<AccessibleObject, ManyAssociationInstance<?>> manyAssociations = new LinkedHashMap<AccessibleObject, ManyAssociationInstance<?>>();
-        for( AssociationDescriptor associationDescriptor : model.model().state().manyAssociations() )
-        {
-            manyAssociations.put( associationDescriptor.accessor(), new ManyAssociationInstance<Object>( (AssociationInfo) associationDescriptor, entityFunction, new ManyAssociationValueState(new ArrayList<EntityReference>() ) ));
-        }
-
-        ValueStateInstance state = new ValueStateInstance( properties, associations, manyAssociations );
+        ValueStateInstance state = model.model().state().newState( model.module(), false, entityFunction );
 
         model.model().checkConstraints( state );
-        return mixinType.cast( model.model().newValueInstance( model.module(), state ).proxy() );
+        ValueInstance instance = model.model().newValueInstance( model.module(), state );
+        return mixinType.cast( model.model().intern( instance ).proxy() );
     }
 
     public <T> ValueBuilder<T> newValueBuilder( Class<T> mixinType )
@@ -584,25 +572,7 @@ public class ModuleInstance
             throw new NoSuchValueException( mixinType.getName(), name() );
         }
 
-        Map<AccessibleObject, PropertyInstance<?>> properties = new LinkedHashMap<AccessibleObject, PropertyInstance<?>>();
-        for( PropertyDescriptor propertyDescriptor : model.model().state().properties() )
-        {
-            properties.put( propertyDescriptor.accessor(), new PropertyInstance<Object>( ((PropertyModel) propertyDescriptor).getBuilderInfo(), propertyDescriptor.initialValue( model.module() ) ) );
-        }
-
-        Map<AccessibleObject, AssociationInstance<?>> associations = new LinkedHashMap<AccessibleObject, AssociationInstance<?>>();
-        for( AssociationDescriptor associationDescriptor : model.model().state().associations() )
-        {
-            associations.put( associationDescriptor.accessor(), new AssociationInstance<Object>( ((AssociationModel)associationDescriptor).getBuilderInfo(), entityFunction, new ReferenceProperty() ) );
-        }
-
-        Map<AccessibleObject, ManyAssociationInstance<?>> manyAssociations = new LinkedHashMap<AccessibleObject, ManyAssociationInstance<?>>();
-        for( AssociationDescriptor associationDescriptor : model.model().state().manyAssociations() )
-        {
-            manyAssociations.put( associationDescriptor.accessor(), new ManyAssociationInstance<Object>( ((ManyAssociationModel) associationDescriptor).getBuilderInfo(), entityFunction, new ManyAssociationValueState(new ArrayList<EntityReference>() ) ));
-        }
-
-        ValueStateInstance state = new ValueStateInstance( properties, associations, manyAssociations );
+        ValueStateInstance state = model.model().state().newState( model.module(), true, entityFunction );
         ValueInstance instance = model.model().newValueInstance( model.module(), state );
         instance.prepareToBuild();
         return new ValueBuilderInstance<T>( model, instance );
@@ -623,6 +593,12 @@ public class ModuleInstance
             throw new NoSuchValueException( valueType.getName(), name() );
         }
 
+        if( model.model() == valueInstance.descriptor() )
+        {
+            // Share the state of the prototype, and copy it as it is used by the builder
+            return new ValueBuilderInstance<T>( model, valueInstance.newBuilderInstance( model.module() ) );
+        }
+
         // Use JSON serialization-deserialization to make a copy of it
         Object value = null;
         try
@@ -638,10 +614,9 @@ public class ModuleInstance
             throw new IllegalStateException( "Could not JSON-copy Value", e );
         }
 
+        // The copy may be an interned instance that is shared, so build from a copy of its state
         valueInstance = ValueInstance.getValueInstance( (ValueComposite) value );
-        valueInstance.prepareToBuild();
-
-        return new ValueBuilderInstance<T>( model, valueInstance);
+        return new ValueBuilderInstance<T>( model, valueInstance.newBuilderInstance( model.module() ) );
     }
 
     @Override
@@ -661,25 +636,7 @@ public class ModuleInstance
             throw new NoSuchValueException( mixinType.getName(), name() );
         }
 
-        Map<AccessibleObject, PropertyInstance<?>> properties = new LinkedHashMap<AccessibleObject, PropertyInstance<?>>();
-        for( PropertyDescriptor propertyDescriptor : model.model().state().properties() )
-        {
-            properties.put( propertyDescriptor.accessor(), new PropertyInstance<Object>( ((PropertyModel) propertyDescriptor).getBuilderInfo(), propertyFunction.map( propertyDescriptor ) ));
-        }
-
-        Map<AccessibleObject, AssociationInstance<?>> associations = new LinkedHashMap<AccessibleObject, AssociationInstance<?>>();
-        for( AssociationDescriptor associationDescriptor : model.model().state().associations() )
-        {
-            associations.put( associationDescriptor.accessor(), new AssociationInstance<Object>( ((AssociationModel)associationDescriptor).getBuilderInfo(), entityFunction, new ReferenceProperty(associationFunction.map( associationDescriptor )) ) );
-        }
-
-        Map<AccessibleObject, ManyAssociationInstance<?>> manyAssociations = new LinkedHashMap<AccessibleObject, ManyAssociationInstance<?>>();
-        for( AssociationDescriptor associationDescriptor : model.model().state().manyAssociations() )
-        {
-            manyAssociations.put( associationDescriptor.accessor(), new ManyAssociationInstance<Object>( ((ManyAssociationModel) associationDescriptor).getBuilderInfo(), entityFunction, new ManyAssociationValueState(Iterables.toList( manyAssociationFunction.map( associationDescriptor ) )) ));
-        }
-
-        ValueStateInstance state = new ValueStateInstance( properties, associations, manyAssociations );
+        ValueStateInstance state = model.model().state().newState( propertyFunction, associationFunction, manyAssociationFunction, entityFunction );
         ValueInstance instance = model.model().newValueInstance( model.module(), state );
         instance.prepareToBuild();
 
@@ -126,11 +126,7 @@ public final class BuilderEntityState
         for( Map.Entry<QualifiedName, ManyAssociationState> stateNameManyAssociationStateEntry : manyAssociations.entrySet() )
         {
             ManyAssociationState manyAssoc = newEntityState.getManyAssociation( stateNameManyAssociationStateEntry.getKey() );
-            int idx = 0;
-            for( EntityReference entityReference : stateNameManyAssociationStateEntry.getValue() )
-            {
-                manyAssoc.add( idx, entityReference );
-            }
+            manyAssoc.addAll( stateNameManyAssociationStateEntry.getValue() );
         }
     }
 }
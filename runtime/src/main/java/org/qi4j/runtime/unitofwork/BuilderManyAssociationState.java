@@ -15,11 +15,12 @@
 package org.qi4j.runtime.unitofwork;
 
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Iterables;
+import org.qi4j.spi.entity.IndexedReferenceList;
 import org.qi4j.spi.entity.ManyAssociationState;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Default implementation of ManyAssociationState that also
@@ -28,11 +29,11 @@ import java.util.List;
 public final class BuilderManyAssociationState
     implements ManyAssociationState
 {
-    private List<EntityReference> references;
+    private IndexedReferenceList references;
 
     public BuilderManyAssociationState()
     {
-        references = new ArrayList<EntityReference>();
+        references = new IndexedReferenceList();
     }
 
     public int count()
@@ -47,18 +48,32 @@ public final class BuilderManyAssociationState
 
     public boolean add( int i, EntityReference entityReference )
     {
-        if( references.contains( entityReference ) )
+        return references.insert( i, entityReference );
+    }
+
+    public boolean remove( EntityReference entityReference )
+    {
+        return references.remove( entityReference );
+    }
+
+    public boolean addAll( Iterable<EntityReference> entityReferences )
+    {
+        boolean added = false;
+        for( EntityReference entityReference : entityReferences )
         {
-            return false;
+            added |= references.add( entityReference );
         }
+        return added;
+    }
 
-        references.add( i, entityReference );
-        return true;
+    public boolean removeAll( Iterable<EntityReference> entityReferences )
+    {
+        return references.removeAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) );
     }
 
-    public boolean remove( EntityReference entityReference )
+    public boolean retainAll( Iterable<EntityReference> entityReferences )
     {
-        return references.remove( entityReference );
+        return references.retainAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) );
     }
 
     public EntityReference get( int i )
@@ -1,8 +1,11 @@
 package org.qi4j.runtime.value;
 
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Iterables;
+import org.qi4j.spi.entity.IndexedReferenceList;
 import org.qi4j.spi.entity.ManyAssociationState;
 
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -12,11 +15,11 @@ import java.util.List;
 public class ManyAssociationValueState
     implements ManyAssociationState
 {
-    private List<EntityReference> references;
+    private IndexedReferenceList references;
 
     public ManyAssociationValueState( List<EntityReference> references )
     {
-        this.references = references;
+        this.references = IndexedReferenceList.of( references );
     }
 
     public int count()
@@ -31,13 +34,7 @@ public class ManyAssociationValueState
 
     public boolean add( int i, EntityReference entityReference )
     {
-        if( references.contains( entityReference ) )
-        {
-            return false;
-        }
-
-        references.add( i, entityReference );
-        return true;
+        return references.insert( i, entityReference );
     }
 
     public boolean remove( EntityReference entity )
@@ -46,6 +43,26 @@ public class ManyAssociationValueState
         return removed;
     }
 
+    public boolean addAll( Iterable<EntityReference> entityReferences )
+    {
+        boolean added = false;
+        for( EntityReference entityReference : entityReferences )
+        {
+            added |= references.add( entityReference );
+        }
+        return added;
+    }
+
+    public boolean removeAll( Iterable<EntityReference> entityReferences )
+    {
+        return references.removeAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) );
+    }
+
+    public boolean retainAll( Iterable<EntityReference> entityReferences )
+    {
+        return references.retainAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) );
+    }
+
     public EntityReference get( int i )
     {
         return references.get( i );
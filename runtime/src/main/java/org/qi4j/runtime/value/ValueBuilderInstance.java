@@ -80,7 +80,7 @@ public final class ValueBuilderInstance<T>
 
         try
         {
-            return prototypeInstance.<T>proxy();
+            return model.model().intern( prototypeInstance ).<T>proxy();
         } finally
         {
             // Invalidate builder
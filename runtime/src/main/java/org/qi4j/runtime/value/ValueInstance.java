@@ -28,6 +28,7 @@ import org.qi4j.api.type.ValueCompositeType;
 import org.qi4j.api.value.ValueComposite;
 import org.qi4j.api.value.ValueDescriptor;
 import org.qi4j.runtime.association.*;
+import org.qi4j.runtime.composite.CompositeProxy;
 import org.qi4j.runtime.composite.MixinsInstance;
 import org.qi4j.runtime.composite.TransientInstance;
 import org.qi4j.runtime.property.PropertyInfo;
@@ -49,7 +50,7 @@ public final class ValueInstance
 {
     public static ValueInstance getValueInstance( ValueComposite composite )
     {
-        return (ValueInstance) Proxy.getInvocationHandler( composite );
+        return (ValueInstance) CompositeProxy.getInvocationHandler( composite );
     }
 
     public ValueInstance( ValueModel compositeModel, ModuleInstance moduleInstance, Object[] mixins, ValueStateInstance state )
@@ -64,20 +65,25 @@ public final class ValueInstance
         {
             return true;
         }
-        if( o == null || !Proxy.isProxyClass( o.getClass() ) )
+        Object handler;
+        if( o instanceof CompositeProxy )
         {
-            return false;
+            handler = ( (CompositeProxy) o )._instance;
         }
-
-        try
+        else if( o != null && Proxy.isProxyClass( o.getClass() ) )
         {
-            ValueInstance that = (ValueInstance) Proxy.getInvocationHandler( o );
-            return state.equals( that.state );
+            handler = Proxy.getInvocationHandler( o );
         }
-        catch( ClassCastException e )
+        else
         {
             return false;
         }
+
+        if( handler instanceof ValueInstance )
+        {
+            return state.equals( ( (ValueInstance) handler ).state );
+        }
+        return false;
     }
 
     @Override
@@ -97,21 +103,22 @@ public final class ValueInstance
      */
     public void prepareToBuild( )
     {
-        for( PropertyModel propertyDescriptor : descriptor().state().properties() )
+        ValueStateModel stateModel = descriptor().state();
+        ValueStateInstance state = state();
+        state.prepareToBuild();
+        for( int i = 0; i < stateModel.propertyCount(); i++ )
         {
-            PropertyInstance<Object> propertyInstance = (PropertyInstance<Object>) state.propertyFor( propertyDescriptor.accessor() );
-
-            propertyInstance.prepareToBuild(propertyDescriptor);
+            state.propertyAt( i ).prepareToBuild( stateModel.propertyModelAt( i ) );
         }
 
-        for( AssociationModel associationDescriptor : descriptor().state().associations() )
+        for( int i = 0; i < stateModel.associationCount(); i++ )
         {
-            state().associationFor( associationDescriptor.accessor() ).setAssociationInfo( associationDescriptor.getBuilderInfo() );
+            state.associationAt( i ).setAssociationInfo( stateModel.associationModelAt( i ).getBuilderInfo() );
         }
 
-        for( ManyAssociationModel associationDescriptor : descriptor().state().manyAssociations() )
+        for( int i = 0; i < stateModel.manyAssociationCount(); i++ )
         {
-            state().manyAssociationFor( associationDescriptor.accessor() ).setAssociationInfo( associationDescriptor.getBuilderInfo() );
+            state.manyAssociationAt( i ).setAssociationInfo( stateModel.manyAssociationModelAt( i ).getBuilderInfo() );
         }
     }
 
@@ -121,24 +128,24 @@ public final class ValueInstance
      */
     public void prepareBuilderState(  )
     {
-        for( PropertyModel propertyDescriptor : descriptor().state().properties() )
-        {
-            PropertyInstance<Object> propertyInstance = (PropertyInstance<Object>) state.propertyFor( propertyDescriptor.accessor() );
-
-            propertyInstance.prepareBuilderState(propertyDescriptor);
-        }
-
-        for( AssociationModel associationDescriptor : descriptor().state().associations() )
-        {
-            state().associationFor( associationDescriptor.accessor() ).setAssociationInfo( associationDescriptor );
-        }
+        state().prepareBuilderState();
+    }
 
-        for( ManyAssociationModel associationDescriptor : descriptor().state().manyAssociations() )
-        {
-            state().manyAssociationFor( associationDescriptor.accessor() ).setAssociationInfo( associationDescriptor );
-        }
+    /**
+     * Create an instance for a ValueBuilder that has this value as prototype. The state of this value
+     * is shared by the new instance, and is copied slot by slot as the builder uses it.
+     *
+     * @return the new instance, which is prepared to build
+     */
+    public ValueInstance newBuilderInstance()
+    {
+        return newBuilderInstance( module() );
     }
 
+    public ValueInstance newBuilderInstance( ModuleInstance module )
+    {
+        return descriptor().newValueInstance( module, state().newBuilderState() );
+    }
 
     @Override
     public int hashCode()
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.value;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Table of interned values of one value type. Values are found by the equality of their state, and
+ * are weakly referenced so that values that are no longer used can be collected.
+ * <p/>
+ * The table is split into segments by hash code, each with its own lock, and each segment holds at most
+ * its share of the max size. When a segment is full an entry is evicted, so the table never grows beyond
+ * the max size.
+ */
+public final class ValueInternTable
+{
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int maxSize;
+
+    public ValueInternTable( int maxSize )
+    {
+        int segmentCount = 1;
+        while( segmentCount < MAX_SEGMENTS && segmentCount * 64 < maxSize )
+        {
+            segmentCount <<= 1;
+        }
+
+        this.maxSize = maxSize;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros( segmentCount );
+        this.segments = new Segment[ segmentCount ];
+        int segmentSize = ( maxSize + segmentCount - 1 ) / segmentCount;
+        for( int i = 0; i < segments.length; i++ )
+        {
+            segments[ i ] = new Segment( segmentSize );
+        }
+    }
+
+    /**
+     * Get the interned value that is equal to the given value, or intern the given value if there is none.
+     *
+     * @param value a built value
+     *
+     * @return the interned value
+     */
+    public ValueInstance intern( ValueInstance value )
+    {
+        int hash = spread( value.state().hashCode() );
+        Segment segment = segments.length == 1 ? segments[ 0 ] : segments[ hash >>> segmentShift ];
+        synchronized( segment )
+        {
+            return segment.intern( value, hash );
+        }
+    }
+
+    public int maxSize()
+    {
+        return maxSize;
+    }
+
+    // Statistics
+    public long hits()
+    {
+        long count = 0;
+        for( Segment segment : segments )
+        {
+            synchronized( segment )
+            {
+                count += segment.hits;
+            }
+        }
+        return count;
+    }
+
+    public long misses()
+    {
+        long count = 0;
+        for( Segment segment : segments )
+        {
+            synchronized( segment )
+            {
+                count += segment.misses;
+            }
+        }
+        return count;
+    }
+
+    public long evicted()
+    {
+        long count = 0;
+        for( Segment segment : segments )
+        {
+            synchronized( segment )
+            {
+                count += segment.evicted;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of entries in the table, which may include values that have been collected but not yet removed
+     */
+    public int size()
+    {
+        int count = 0;
+        for( Segment segment : segments )
+        {
+            synchronized( segment )
+            {
+                count += segment.size;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "size=" + size() + ", hits=" + hits() + ", misses=" + misses() + ", evicted=" + evicted();
+    }
+
+    private static int spread( int hash )
+    {
+        // Same as HashMap, so that hash codes that only differ in the high bits still spread over buckets
+        hash ^= ( hash >>> 20 ) ^ ( hash >>> 12 );
+        return hash ^ ( hash >>> 7 ) ^ ( hash >>> 4 );
+    }
+
+    private static final class Segment
+    {
+        private final ReferenceQueue<ValueInstance> queue = new ReferenceQueue<ValueInstance>();
+        private final int maxSize;
+        private Entry[] table = new Entry[ 16 ];
+        private int size;
+        private int evictionCursor;
+
+        private long hits;
+        private long misses;
+        private long evicted;
+
+        private Segment( int maxSize )
+        {
+            this.maxSize = maxSize;
+        }
+
+        private ValueInstance intern( ValueInstance value, int hash )
+        {
+            expungeCollected();
+
+            ValueStateInstance state = value.state();
+            for( Entry entry = table[ hash & ( table.length - 1 ) ]; entry != null; entry = entry.next )
+            {
+                if( entry.hash == hash )
+                {
+                    ValueInstance interned = entry.get();
+                    if( interned != null && interned.state().equals( state ) )
+                    {
+                        hits++;
+                        return interned;
+                    }
+                }
+            }
+
+            misses++;
+            if( size >= maxSize )
+            {
+                evict();
+            }
+            else if( size >= table.length - ( table.length >>> 2 ) )
+            {
+                resize();
+            }
+
+            int index = hash & ( table.length - 1 );
+            table[ index ] = new Entry( value, hash, table[ index ], queue );
+            size++;
+            return value;
+        }
+
+        private void expungeCollected()
+        {
+            Object collected;
+            while( ( collected = queue.poll() ) != null )
+            {
+                remove( (Entry) collected );
+            }
+        }
+
+        private void remove( Entry removed )
+        {
+            int index = removed.hash & ( table.length - 1 );
+            Entry previous = null;
+            for( Entry entry = table[ index ]; entry != null; entry = entry.next )
+            {
+                if( entry == removed )
+                {
+                    if( previous == null )
+                    {
+                        table[ index ] = entry.next;
+                    }
+                    else
+                    {
+                        previous.next = entry.next;
+                    }
+                    size--;
+                    return;
+                }
+                previous = entry;
+            }
+        }
+
+        private void evict()
+        {
+            // Walk the buckets round-robin and remove the first entry found, which is the most recently added to its bucket
+            for( int i = 0; i < table.length; i++ )
+            {
+                int index = evictionCursor;
+                evictionCursor = ( evictionCursor + 1 ) & ( table.length - 1 );
+                Entry entry = table[ index ];
+                if( entry != null )
+                {
+                    table[ index ] = entry.next;
+                    entry.clear();
+                    size--;
+                    evicted++;
+                    return;
+                }
+            }
+        }
+
+        private void resize()
+        {
+            Entry[] newTable = new Entry[ table.length << 1 ];
+            for( Entry entry : table )
+            {
+                while( entry != null )
+                {
+                    Entry next = entry.next;
+                    int index = entry.hash & ( newTable.length - 1 );
+                    entry.next = newTable[ index ];
+                    newTable[ index ] = entry;
+                    entry = next;
+                }
+            }
+            table = newTable;
+            evictionCursor &= newTable.length - 1;
+        }
+    }
+
+    private static final class Entry
+        extends WeakReference<ValueInstance>
+    {
+        private final int hash;
+        private Entry next;
+
+        private Entry( ValueInstance value, int hash, Entry next, ReferenceQueue<ValueInstance> queue )
+        {
+            super( value, queue );
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+}
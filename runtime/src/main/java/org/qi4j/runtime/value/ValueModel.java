@@ -21,6 +21,7 @@ import org.qi4j.api.common.Visibility;
 import org.qi4j.api.constraint.ConstraintViolationException;
 import org.qi4j.api.property.PropertyDescriptor;
 import org.qi4j.api.type.ValueCompositeType;
+import org.qi4j.api.value.InternedValues;
 import org.qi4j.api.value.ValueDescriptor;
 import org.qi4j.runtime.association.*;
 import org.qi4j.runtime.composite.*;
@@ -38,6 +39,7 @@ public final class ValueModel
     implements ValueDescriptor
 {
     private ValueCompositeType valueType;
+    private final ValueInternTable internTable;
 
     public ValueModel( final Class<?> compositeType,
                         final Iterable<Class<?>> types,
@@ -50,7 +52,11 @@ public final class ValueModel
     {
         super( compositeType, types, visibility, metaInfo, mixinsModel, stateModel, compositeMethodsModel );
 
+        stateModel.assignSlots();
         valueType = new ValueCompositeType( this );
+
+        InternedValues internedValues = metaInfo.get( InternedValues.class );
+        internTable = internedValues == null ? null : new ValueInternTable( internedValues.maxSize() );
     }
 
     public ValueCompositeType valueType()
@@ -64,22 +70,44 @@ public final class ValueModel
         return (ValueStateModel) super.state();
     }
 
+    /**
+     * @return the table of interned values, or null if values of this type are not interned
+     */
+    public ValueInternTable internTable()
+    {
+        return internTable;
+    }
+
+    /**
+     * Get the instance to use for a newly built value. If values of this type are interned, then
+     * this is the interned value that is equal to the given one.
+     *
+     * @param instance a built value
+     *
+     * @return the value instance to use
+     */
+    public ValueInstance intern( ValueInstance instance )
+    {
+        return internTable == null ? instance : internTable.intern( instance );
+    }
+
     public void checkConstraints( ValueStateInstance state )
         throws ConstraintViolationException
     {
-        for( PropertyModel propertyModel : stateModel.properties() )
+        ValueStateModel stateModel = state();
+        for( int i = 0; i < stateModel.propertyCount(); i++ )
         {
-            propertyModel.checkConstraints( state.<Object>propertyFor( propertyModel.accessor() ).get() );
+            stateModel.propertyModelAt( i ).checkConstraints( state.<Object>propertyAt( i ).get() );
         }
 
-        for( AssociationModel associationModel : ((ValueStateModel)stateModel).associations() )
+        for( int i = 0; i < stateModel.associationCount(); i++ )
         {
-            associationModel.checkConstraints( state.<Object>associationFor( associationModel.accessor() ).get() );
+            stateModel.associationModelAt( i ).checkConstraints( state.<Object>associationAt( i ).get() );
         }
 
-        for( ManyAssociationModel associationModel : ((ValueStateModel)stateModel).manyAssociations() )
+        for( int i = 0; i < stateModel.manyAssociationCount(); i++ )
         {
-            associationModel.checkAssociationConstraints( state.<Object>manyAssociationFor( associationModel.accessor() ) );
+            stateModel.manyAssociationModelAt( i ).checkAssociationConstraints( state.<Object>manyAssociationAt( i ) );
         }
     }
 
@@ -1,94 +1,241 @@
+/*
+ * Copyright (c) 2008, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
 package org.qi4j.runtime.value;
 
-import org.qi4j.api.association.Association;
-import org.qi4j.api.association.ManyAssociation;
 import org.qi4j.api.association.AssociationStateHolder;
-import org.qi4j.api.property.Property;
+import org.qi4j.functional.Iterables;
 import org.qi4j.runtime.association.AssociationInstance;
 import org.qi4j.runtime.association.ManyAssociationInstance;
 import org.qi4j.runtime.property.PropertyInstance;
 
 import java.lang.reflect.AccessibleObject;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
-* TODO
-*/
+ * State of a value. The state is kept in arrays, indexed by the slots that the ValueStateModel
+ * assigned to each property, association and many-association.
+ */
 public final class ValueStateInstance
     implements AssociationStateHolder
 {
-    protected Map<AccessibleObject, PropertyInstance<?>> properties;
-    protected Map<AccessibleObject, AssociationInstance<?>> associations;
-    protected Map<AccessibleObject, ManyAssociationInstance<?>> manyAssociations;
+    private final ValueStateModel stateModel;
+    private final PropertyInstance<?>[] properties;
+    private final AssociationInstance<?>[] associations;
+    private final ManyAssociationInstance<?>[] manyAssociations;
+
+    // Values can not change once built, so the hash code is only computed once
+    private boolean immutable;
+    private int hashCode;
+
+    // Slots that a builder still shares with its prototype. They are copied when first used
+    private boolean[] sharedProperties;
+    private boolean[] sharedAssociations;
+    private boolean[] sharedManyAssociations;
 
-    public ValueStateInstance( Map<AccessibleObject, PropertyInstance<?>> properties,
-                               Map<AccessibleObject, AssociationInstance<?>> associations,
-                               Map<AccessibleObject, ManyAssociationInstance<?>> manyAssociations
+    public ValueStateInstance( ValueStateModel stateModel,
+                               PropertyInstance<?>[] properties,
+                               AssociationInstance<?>[] associations,
+                               ManyAssociationInstance<?>[] manyAssociations,
+                               boolean immutable
     )
     {
+        this.stateModel = stateModel;
         this.properties = properties;
         this.associations = associations;
         this.manyAssociations = manyAssociations;
+        this.immutable = immutable;
+    }
+
+    /**
+     * Create state for a ValueBuilder that uses this state as prototype. All slots are shared with this
+     * state until they are used, so the cost of a builder depends on the state that is used and not on
+     * the size of the value.
+     *
+     * @return the new builder state
+     */
+    ValueStateInstance newBuilderState()
+    {
+        ValueStateInstance state = new ValueStateInstance( stateModel, properties.clone(), associations.clone(), manyAssociations.clone(), false );
+        state.sharedProperties = shared( properties.length );
+        state.sharedAssociations = shared( associations.length );
+        state.sharedManyAssociations = shared( manyAssociations.length );
+        return state;
+    }
+
+    /**
+     * Called when the state is used by a ValueBuilder, and so can be changed.
+     */
+    void prepareToBuild()
+    {
+        immutable = false;
+        hashCode = 0;
+    }
+
+    /**
+     * Called when the ValueBuilder is done, after which the state can not change.
+     */
+    void prepareBuilderState()
+    {
+        // Shared slots are already immutable
+        for( int i = 0; i < properties.length; i++ )
+        {
+            if( sharedProperties == null || !sharedProperties[ i ] )
+            {
+                properties[ i ].prepareBuilderState( stateModel.propertyModelAt( i ) );
+            }
+        }
+
+        for( int i = 0; i < associations.length; i++ )
+        {
+            if( sharedAssociations == null || !sharedAssociations[ i ] )
+            {
+                associations[ i ].setAssociationInfo( stateModel.associationModelAt( i ) );
+            }
+        }
+
+        for( int i = 0; i < manyAssociations.length; i++ )
+        {
+            if( sharedManyAssociations == null || !sharedManyAssociations[ i ] )
+            {
+                manyAssociations[ i ].setAssociationInfo( stateModel.manyAssociationModelAt( i ) );
+            }
+        }
+
+        sharedProperties = null;
+        sharedAssociations = null;
+        sharedManyAssociations = null;
+        hashCode = 0;
+        immutable = true;
+    }
+
+    public ValueStateModel stateModel()
+    {
+        return stateModel;
     }
 
     public <T> PropertyInstance<T> propertyFor( AccessibleObject accessor )
             throws IllegalArgumentException
     {
-        PropertyInstance<T> property = (PropertyInstance<T>) properties.get( accessor );
-
-        if (property == null)
-            throw new IllegalArgumentException( "No such property:"+accessor );
+        return propertyAt( stateModel.getProperty( accessor ).slot() );
+    }
 
-        return property;
+    public <T> PropertyInstance<T> propertyAt( int slot )
+    {
+        if( sharedProperties != null && sharedProperties[ slot ] )
+        {
+            properties[ slot ] = properties[ slot ].newBuilderInstance( stateModel.propertyModelAt( slot ) );
+            sharedProperties[ slot ] = false;
+        }
+        return (PropertyInstance<T>) properties[ slot ];
     }
 
     @Override
     public Iterable<PropertyInstance<?>> properties()
     {
-        return properties.values();
+        if( sharedProperties != null )
+        {
+            for( int i = 0; i < properties.length; i++ )
+            {
+                propertyAt( i );
+            }
+        }
+        return Arrays.asList( properties );
     }
 
     public <T> AssociationInstance<T> associationFor( AccessibleObject accessor )
     {
-        AssociationInstance<T> association = (AssociationInstance<T>) associations.get( accessor );
-
-        if (association == null)
-            throw new IllegalArgumentException( "No such association:"+accessor );
+        return associationAt( stateModel.getAssociation( accessor ).slot() );
+    }
 
-        return association;
+    public <T> AssociationInstance<T> associationAt( int slot )
+    {
+        if( sharedAssociations != null && sharedAssociations[ slot ] )
+        {
+            AssociationInstance<?> association = associations[ slot ];
+            associations[ slot ] = new AssociationInstance<Object>( stateModel.associationModelAt( slot ).getBuilderInfo(),
+                                                                    association.getEntityFunction(),
+                                                                    new ReferenceProperty( association.getAssociationState().get() ) );
+            sharedAssociations[ slot ] = false;
+        }
+        return (AssociationInstance<T>) associations[ slot ];
     }
 
     @Override
     public Iterable<AssociationInstance<?>> associations()
     {
-        return associations.values();
+        if( sharedAssociations != null )
+        {
+            for( int i = 0; i < associations.length; i++ )
+            {
+                associationAt( i );
+            }
+        }
+        return Arrays.asList( associations );
     }
 
     public <T> ManyAssociationInstance<T> manyAssociationFor( AccessibleObject accessor )
     {
-        ManyAssociationInstance<T> manyAssociation = (ManyAssociationInstance<T>) manyAssociations.get( accessor );
-
-        if (manyAssociation == null)
-            throw new IllegalArgumentException( "No such many-association:"+accessor );
+        return manyAssociationAt( stateModel.getManyAssociation( accessor ).slot() );
+    }
 
-        return manyAssociation;
+    public <T> ManyAssociationInstance<T> manyAssociationAt( int slot )
+    {
+        if( sharedManyAssociations != null && sharedManyAssociations[ slot ] )
+        {
+            ManyAssociationInstance<?> manyAssociation = manyAssociations[ slot ];
+            manyAssociations[ slot ] = new ManyAssociationInstance<Object>( stateModel.manyAssociationModelAt( slot ).getBuilderInfo(),
+                                                                            manyAssociation.getEntityFunction(),
+                                                                            new ManyAssociationValueState( Iterables.toList( manyAssociation.getManyAssociationState() ) ) );
+            sharedManyAssociations[ slot ] = false;
+        }
+        return (ManyAssociationInstance<T>) manyAssociations[ slot ];
     }
 
     @Override
     public Iterable<ManyAssociationInstance<?>> manyAssociations()
     {
-        return manyAssociations.values();
+        if( sharedManyAssociations != null )
+        {
+            for( int i = 0; i < manyAssociations.length; i++ )
+            {
+                manyAssociationAt( i );
+            }
+        }
+        return Arrays.asList( manyAssociations );
     }
 
     @Override
     public boolean equals( Object obj )
     {
+        if (this == obj)
+            return true;
         ValueStateInstance state = (ValueStateInstance) obj;
-        if (!properties.equals( state.properties ))
+        if (stateModel != state.stateModel)
+            return false;
+
+        // If both hash codes are known, then they must match
+        int hash = hashCode;
+        int otherHash = state.hashCode;
+        if (hash != 0 && otherHash != 0 && hash != otherHash)
+            return false;
+
+        if (!Arrays.equals( properties, state.properties ))
             return false;
-        if (!associations.equals( state.associations ))
+        if (!Arrays.equals( associations, state.associations ))
             return false;
-        if (!manyAssociations.equals( state.manyAssociations ))
+        if (!Arrays.equals( manyAssociations, state.manyAssociations ))
             return false;
 
         return true;
@@ -97,9 +244,22 @@ public final class ValueStateInstance
     @Override
     public int hashCode()
     {
-        int result = properties.hashCode();
-        result = 31 * result + associations.hashCode();
-        result = 31 * result + manyAssociations.hashCode();
+        int result = hashCode;
+        if (result == 0)
+        {
+            result = Arrays.hashCode( properties );
+            result = 31 * result + Arrays.hashCode( associations );
+            result = 31 * result + Arrays.hashCode( manyAssociations );
+            if (immutable)
+                hashCode = result;
+        }
         return result;
     }
+
+    private static boolean[] shared( int length )
+    {
+        boolean[] shared = new boolean[ length ];
+        Arrays.fill( shared, true );
+        return shared;
+    }
 }
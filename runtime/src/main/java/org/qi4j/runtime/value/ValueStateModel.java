@@ -17,14 +17,30 @@ package org.qi4j.runtime.value;
 import org.qi4j.api.association.AssociationDescriptor;
 import org.qi4j.api.association.AssociationStateDescriptor;
 import org.qi4j.api.common.QualifiedName;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.property.PropertyDescriptor;
+import org.qi4j.api.structure.Module;
+import org.qi4j.functional.Function;
+import org.qi4j.functional.Function2;
 import org.qi4j.functional.HierarchicalVisitor;
+import org.qi4j.functional.Iterables;
 import org.qi4j.functional.VisitableHierarchy;
+import org.qi4j.runtime.association.AssociationInstance;
 import org.qi4j.runtime.association.AssociationModel;
 import org.qi4j.runtime.association.AssociationsModel;
+import org.qi4j.runtime.association.ManyAssociationInstance;
 import org.qi4j.runtime.association.ManyAssociationModel;
 import org.qi4j.runtime.association.ManyAssociationsModel;
 import org.qi4j.runtime.composite.StateModel;
 import org.qi4j.runtime.property.PropertiesModel;
+import org.qi4j.runtime.property.PropertyInstance;
+import org.qi4j.runtime.property.PropertyModel;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
 
 /**
  * JAVADOC
@@ -36,6 +52,15 @@ public final class ValueStateModel
     private final AssociationsModel associationsModel;
     private final ManyAssociationsModel manyAssociationsModel;
 
+    // Slots of the state, assigned when the assembly of the value is done
+    private PropertyModel[] propertySlots;
+    private AssociationModel[] associationSlots;
+    private ManyAssociationModel[] manyAssociationSlots;
+
+    // Template of initial property values. Values that are mutable are instead created for each new state
+    private volatile Object[] defaultValues;
+    private boolean[] sharedDefaults;
+
     public ValueStateModel( PropertiesModel propertiesModel,
                             AssociationsModel associationsModel,
                             ManyAssociationsModel manyAssociationsModel
@@ -68,6 +93,179 @@ public final class ValueStateModel
         return manyAssociationsModel.getManyAssociationByQualifiedName( name );
     }
 
+    /**
+     * Assign a slot to each property, association and many-association, which the models then hold. Called when
+     * all state has been added to the model.
+     */
+    public void assignSlots()
+    {
+        propertySlots = Iterables.toArray( PropertyModel.class, propertiesModel.properties() );
+        associationSlots = Iterables.toArray( AssociationModel.class, associationsModel.associations() );
+        manyAssociationSlots = Iterables.toArray( ManyAssociationModel.class, manyAssociationsModel.manyAssociations() );
+
+        for( int i = 0; i < propertySlots.length; i++ )
+        {
+            propertySlots[ i ].setSlot( i );
+        }
+        for( int i = 0; i < associationSlots.length; i++ )
+        {
+            associationSlots[ i ].setSlot( i );
+        }
+        for( int i = 0; i < manyAssociationSlots.length; i++ )
+        {
+            manyAssociationSlots[ i ].setSlot( i );
+        }
+    }
+
+    public AssociationModel getAssociation( AccessibleObject accessor )
+        throws IllegalArgumentException
+    {
+        return associationsModel.getAssociation( accessor );
+    }
+
+    public ManyAssociationModel getManyAssociation( AccessibleObject accessor )
+        throws IllegalArgumentException
+    {
+        return manyAssociationsModel.getManyAssociation( accessor );
+    }
+
+    public PropertyModel propertyModelAt( int slot )
+    {
+        return propertySlots[ slot ];
+    }
+
+    public AssociationModel associationModelAt( int slot )
+    {
+        return associationSlots[ slot ];
+    }
+
+    public ManyAssociationModel manyAssociationModelAt( int slot )
+    {
+        return manyAssociationSlots[ slot ];
+    }
+
+    public int propertyCount()
+    {
+        return propertySlots.length;
+    }
+
+    public int associationCount()
+    {
+        return associationSlots.length;
+    }
+
+    public int manyAssociationCount()
+    {
+        return manyAssociationSlots.length;
+    }
+
+    /**
+     * Create state with the initial values of all properties and empty associations.
+     *
+     * @param module         the module of the value
+     * @param builder        true if the state is for a ValueBuilder, i.e. mutable
+     * @param entityFunction function used by associations to get entities
+     *
+     * @return the new state
+     */
+    public ValueStateInstance newState( Module module, boolean builder, Function2<EntityReference, Type, Object> entityFunction )
+    {
+        Object[] defaults = defaultValues( module );
+        boolean[] shared = sharedDefaults;
+
+        PropertyInstance<?>[] properties = new PropertyInstance<?>[ propertySlots.length ];
+        for( int i = 0; i < properties.length; i++ )
+        {
+            PropertyModel propertyModel = propertySlots[ i ];
+            Object value = shared[ i ] ? defaults[ i ] : propertyModel.initialValue( module );
+            properties[ i ] = new PropertyInstance<Object>( builder ? propertyModel.getBuilderInfo() : propertyModel, value );
+        }
+
+        AssociationInstance<?>[] associations = new AssociationInstance<?>[ associationSlots.length ];
+        for( int i = 0; i < associations.length; i++ )
+        {
+            AssociationModel associationModel = associationSlots[ i ];
+            associations[ i ] = new AssociationInstance<Object>( builder ? associationModel.getBuilderInfo() : associationModel, entityFunction, new ReferenceProperty() );
+        }
+
+        ManyAssociationInstance<?>[] manyAssociations = new ManyAssociationInstance<?>[ manyAssociationSlots.length ];
+        for( int i = 0; i < manyAssociations.length; i++ )
+        {
+            ManyAssociationModel manyAssociationModel = manyAssociationSlots[ i ];
+            manyAssociations[ i ] = new ManyAssociationInstance<Object>( builder ? manyAssociationModel.getBuilderInfo() : manyAssociationModel, entityFunction, new ManyAssociationValueState( new ArrayList<EntityReference>() ) );
+        }
+
+        return new ValueStateInstance( this, properties, associations, manyAssociations, !builder );
+    }
+
+    /**
+     * Create builder state with values from the given functions.
+     */
+    public ValueStateInstance newState( Function<PropertyDescriptor, Object> propertyFunction,
+                                        Function<AssociationDescriptor, EntityReference> associationFunction,
+                                        Function<AssociationDescriptor, Iterable<EntityReference>> manyAssociationFunction,
+                                        Function2<EntityReference, Type, Object> entityFunction
+    )
+    {
+        PropertyInstance<?>[] properties = new PropertyInstance<?>[ propertySlots.length ];
+        for( int i = 0; i < properties.length; i++ )
+        {
+            PropertyModel propertyModel = propertySlots[ i ];
+            properties[ i ] = new PropertyInstance<Object>( propertyModel.getBuilderInfo(), propertyFunction.map( propertyModel ) );
+        }
+
+        AssociationInstance<?>[] associations = new AssociationInstance<?>[ associationSlots.length ];
+        for( int i = 0; i < associations.length; i++ )
+        {
+            AssociationModel associationModel = associationSlots[ i ];
+            associations[ i ] = new AssociationInstance<Object>( associationModel.getBuilderInfo(), entityFunction, new ReferenceProperty( associationFunction.map( associationModel ) ) );
+        }
+
+        ManyAssociationInstance<?>[] manyAssociations = new ManyAssociationInstance<?>[ manyAssociationSlots.length ];
+        for( int i = 0; i < manyAssociations.length; i++ )
+        {
+            ManyAssociationModel manyAssociationModel = manyAssociationSlots[ i ];
+            manyAssociations[ i ] = new ManyAssociationInstance<Object>( manyAssociationModel.getBuilderInfo(), entityFunction, new ManyAssociationValueState( Iterables.toList( manyAssociationFunction.map( manyAssociationModel ) ) ) );
+        }
+
+        return new ValueStateInstance( this, properties, associations, manyAssociations, false );
+    }
+
+    private Object[] defaultValues( Module module )
+    {
+        Object[] defaults = defaultValues;
+        if( defaults == null )
+        {
+            defaults = new Object[ propertySlots.length ];
+            boolean[] shared = new boolean[ propertySlots.length ];
+            for( int i = 0; i < defaults.length; i++ )
+            {
+                defaults[ i ] = propertySlots[ i ].initialValue( module );
+                shared[ i ] = isImmutable( defaults[ i ] );
+            }
+            sharedDefaults = shared;
+            defaultValues = defaults;
+        }
+        return defaults;
+    }
+
+    private static boolean isImmutable( Object value )
+    {
+        return value == null ||
+               value instanceof String ||
+               value instanceof Integer ||
+               value instanceof Long ||
+               value instanceof Short ||
+               value instanceof Byte ||
+               value instanceof Double ||
+               value instanceof Float ||
+               value instanceof BigInteger ||
+               value instanceof BigDecimal ||
+               value instanceof Boolean ||
+               value instanceof Character ||
+               value instanceof Enum;
+    }
+
     public Iterable<AssociationModel> associations()
     {
         return associationsModel.associations();
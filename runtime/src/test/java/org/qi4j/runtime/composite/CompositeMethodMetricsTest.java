@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.qi4j.api.composite.TransientComposite;
+import org.qi4j.api.concern.ConcernOf;
+import org.qi4j.api.concern.Concerns;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.test.AbstractQi4jTest;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that the invocation metrics of composite methods are published as MXBeans when
+ * {@link CompositeMethodModel#METRICS} is enabled.
+ */
+public class CompositeMethodMetricsTest
+    extends AbstractQi4jTest
+{
+    @BeforeClass
+    public static void enableMetrics()
+    {
+        System.setProperty( CompositeMethodModel.METRICS, "true" );
+    }
+
+    @AfterClass
+    public static void disableMetrics()
+    {
+        System.clearProperty( CompositeMethodModel.METRICS );
+    }
+
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.transients( Echo.class );
+    }
+
+    @Test
+    public void givenMetricsEnabledWhenInvokingCompositeThenMXBeanCountsInvocations()
+        throws Exception
+    {
+        Echo echo = module.newTransient( Echo.class );
+        assertEquals( "Hello", echo.echo( "Hello" ) );
+        assertEquals( "World", echo.echo( "World" ) );
+        try
+        {
+            echo.echo( "" );
+            fail( "Should have thrown IllegalArgumentException" );
+        }
+        catch( IllegalArgumentException e )
+        {
+            // Expected
+        }
+
+        CompositeMethodMetricsMXBean metrics = metricsOf( "echo" );
+        assertEquals( 3, metrics.getInvocations() );
+        assertEquals( 1, metrics.getErrors() );
+        assertTrue( "Chain time should include the concern", metrics.getChainTime() > 0 );
+        assertTrue( metrics.getMixinTime() > 0 );
+        assertEquals( metrics.getTotalTime(), metrics.getChainTime() + metrics.getMixinTime() );
+        assertEquals( 3, metrics.getPoolHits() + metrics.getPoolMisses() );
+        assertEquals( 1, metrics.getPoolMisses() );
+        assertEquals( 2.0 / 3, metrics.getPoolHitRate(), 0.001 );
+
+        metrics.reset();
+        assertEquals( 0, metrics.getInvocations() );
+        assertEquals( 0, metrics.getErrors() );
+    }
+
+    private CompositeMethodMetricsMXBean metricsOf( String methodName )
+        throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for( ObjectName name : server.queryNames( new ObjectName( "org.qi4j:type=CompositeMethod,*" ), null ) )
+        {
+            if( name.getKeyProperty( "composite" ).equals( ObjectName.quote( Echo.class.getName() ) ) &&
+                ObjectName.unquote( name.getKeyProperty( "method" ) ).contains( "." + methodName + "(" ) )
+            {
+                return JMX.newMXBeanProxy( server, name, CompositeMethodMetricsMXBean.class );
+            }
+        }
+        fail( "No metrics registered for " + methodName );
+        return null;
+    }
+
+    @Mixins( EchoMixin.class )
+    @Concerns( SlowConcern.class )
+    public interface Echo
+        extends TransientComposite
+    {
+        String echo( String message );
+    }
+
+    public static class EchoMixin
+        implements Echo
+    {
+        public String echo( String message )
+        {
+            if( message.length() == 0 )
+            {
+                throw new IllegalArgumentException( "Empty message" );
+            }
+            return message;
+        }
+    }
+
+    public static class SlowConcern
+        extends ConcernOf<Echo>
+        implements Echo
+    {
+        public String echo( String message )
+        {
+            try
+            {
+                Thread.sleep( 1 );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            return next.echo( message );
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.junit.Test;
+import org.qi4j.api.Qi4j;
+import org.qi4j.api.composite.CompositeInstanceProxy;
+import org.qi4j.api.composite.TransientComposite;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the generated composite proxy classes.
+ */
+public class CompositeProxyTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.transients( TestComposite.class, TestClassComposite.class );
+    }
+
+    @Test
+    public void givenTransientCompositeWhenInstantiatedThenUseGeneratedProxy()
+    {
+        TestComposite composite = module.newTransient( TestComposite.class );
+
+        assertTrue( composite instanceof CompositeProxy );
+        assertTrue( CompositeProxyClassLoader.isGenerated( composite.getClass() ) );
+        assertSame( CompositeProxy.getInvocationHandler( composite ), Qi4j.INSTANCE_FUNCTION.map( composite ) );
+        assertSame( Qi4j.INSTANCE_FUNCTION.map( composite ), ( (CompositeInstanceProxy) composite )._compositeInstance() );
+    }
+
+    @Test
+    public void givenTransientCompositeClassWhenInstantiatedThenGetInstanceWithoutReflection()
+    {
+        TestClassComposite composite = module.newTransient( TestClassComposite.class );
+
+        assertTrue( composite instanceof CompositeInstanceProxy );
+        assertEquals( TestClassComposite.class, Qi4j.DESCRIPTOR_FUNCTION.map( composite ).type() );
+        assertEquals( "Hello World", composite.greet( "World" ) );
+    }
+
+    @Test
+    public void givenGeneratedProxyWhenCallingMethodsThenPassPrimitives()
+    {
+        TestComposite composite = module.newTransient( TestComposite.class );
+
+        assertEquals( 5L, composite.add( 2, 3L ) );
+        assertEquals( 1.5D, composite.half( 3.0D ), 0.0D );
+        assertTrue( composite.not( false ) );
+        assertEquals( "Hello World", composite.greet( "World" ) );
+        composite.doNothing();
+    }
+
+    @Test
+    public void givenGeneratedProxyWhenCallingObjectMethodsThenUseInstance()
+    {
+        TestComposite composite = module.newTransient( TestComposite.class );
+
+        assertEquals( composite, composite );
+        assertEquals( CompositeProxy.getInvocationHandler( composite ).hashCode(), composite.hashCode() );
+    }
+
+    @Test( expected = IOException.class )
+    public void givenDeclaredExceptionWhenThrownThenPropagate()
+        throws IOException
+    {
+        module.newTransient( TestComposite.class ).fail( true );
+    }
+
+    @Test( expected = UndeclaredThrowableException.class )
+    public void givenUndeclaredExceptionWhenThrownThenWrap()
+        throws IOException
+    {
+        module.newTransient( TestComposite.class ).fail( false );
+    }
+
+    @Mixins( TestMixin.class )
+    public interface TestComposite
+        extends TransientComposite
+    {
+        long add( int a, long b );
+
+        double half( double value );
+
+        boolean not( boolean value );
+
+        String greet( String name );
+
+        void doNothing();
+
+        void fail( boolean declared )
+            throws IOException;
+    }
+
+    public abstract static class TestClassComposite
+        implements TransientComposite
+    {
+        public String greet( String name )
+        {
+            return "Hello " + name;
+        }
+    }
+
+    public abstract static class TestMixin
+        implements TestComposite
+    {
+        public long add( int a, long b )
+        {
+            return a + b;
+        }
+
+        public double half( double value )
+        {
+            return value / 2;
+        }
+
+        public boolean not( boolean value )
+        {
+            return !value;
+        }
+
+        public String greet( String name )
+        {
+            return "Hello " + name;
+        }
+
+        public void doNothing()
+        {
+        }
+
+        public void fail( boolean declared )
+            throws IOException
+        {
+            if( declared )
+            {
+                throw new IOException( "Declared" );
+            }
+
+            throw TestMixin.<RuntimeException>sneakyThrow( new Exception( "Undeclared" ) );
+        }
+
+        @SuppressWarnings( "unchecked" )
+        private static <T extends Throwable> T sneakyThrow( Throwable throwable )
+            throws T
+        {
+            throw (T) throwable;
+        }
+    }
+}
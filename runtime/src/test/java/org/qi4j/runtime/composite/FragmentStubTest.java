@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.junit.Test;
+import org.qi4j.api.composite.TransientComposite;
+import org.qi4j.api.injection.scope.This;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test direct invocation of generated fragment subclasses.
+ */
+public class FragmentStubTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.transients( TestComposite.class, CalculatorComposite.class );
+    }
+
+    @Test
+    public void givenGeneratedFragmentWhenGettingStubIndexThenFindMethod()
+        throws Exception
+    {
+        Class stubClass = new FragmentClassLoader( getClass().getClassLoader() ).loadFragmentClass( TestMixin.class );
+
+        assertTrue( FragmentStub.class.isAssignableFrom( stubClass ) );
+        Method add = stubClass.getMethod( "_add", Integer.TYPE, Long.TYPE );
+        assertTrue( FragmentClassLoader.stubIndex( add ) >= 0 );
+        assertEquals( -1, FragmentClassLoader.stubIndex( TestMixin.class.getMethod( "add", Integer.TYPE, Long.TYPE ) ) );
+    }
+
+    @Test
+    public void givenMixinWithThisCallsWhenInvokingThenUseStub()
+        throws IOException
+    {
+        TestComposite composite = module.newTransient( TestComposite.class );
+
+        assertEquals( 5L, composite.add( 2, 3L ) );
+        assertEquals( "Hello World", composite.greet( "World" ) );
+        assertEquals( "World", composite.name( "World" ) );
+        composite.doNothing();
+    }
+
+    @Test( expected = IOException.class )
+    public void givenDeclaredExceptionWhenThrownThenPropagate()
+        throws IOException
+    {
+        module.newTransient( TestComposite.class ).fail();
+    }
+
+    @Test
+    public void givenAbstractMethodWhenCalledFromMixinThenInvokeProxyDirectly()
+    {
+        CalculatorComposite calculator = module.newTransient( CalculatorComposite.class );
+
+        assertEquals( 11.0, calculator.total( 2, 3L ), 0.0 );
+        assertFalse( "Calls of composite types should not use invokeComposite", ScaleMixin.invokeComposite );
+    }
+
+    private static boolean calledFrom( String methodName )
+    {
+        for( StackTraceElement element : new Throwable().getStackTrace() )
+        {
+            if( element.getMethodName().equals( methodName ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Mixins( TestMixin.class )
+    public interface TestComposite
+        extends TransientComposite
+    {
+        long add( int a, long b );
+
+        String greet( String name );
+
+        String name( String name );
+
+        void doNothing();
+
+        void fail()
+            throws IOException;
+    }
+
+    public abstract static class TestMixin
+        implements TestComposite
+    {
+        public long add( int a, long b )
+        {
+            return a + b;
+        }
+
+        public String greet( String name )
+        {
+            // Calls the composite through the generated subclass
+            return "Hello " + name( name );
+        }
+
+        public String name( String name )
+        {
+            return name;
+        }
+
+        public void doNothing()
+        {
+        }
+
+        public void fail()
+            throws IOException
+        {
+            throw new IOException( "Declared" );
+        }
+    }
+
+    @Mixins( { CalculatorMixin.class, ScaleMixin.class, OffsetMixin.class } )
+    public interface CalculatorComposite
+        extends Calculator, TransientComposite
+    {
+    }
+
+    public interface Calculator
+    {
+        double total( int a, long b );
+
+        double scale( double value );
+    }
+
+    // Private mixin type, which the composite proxy does not implement
+    public interface Offset
+    {
+        double offset( double value );
+    }
+
+    public abstract static class CalculatorMixin
+        implements Calculator, Offset
+    {
+        // Makes Offset a private mixin type of the composite
+        @This
+        Offset self;
+
+        public double total( int a, long b )
+        {
+            return offset( scale( a + b ) );
+        }
+    }
+
+    public abstract static class ScaleMixin
+        implements Calculator
+    {
+        static boolean invokeComposite;
+
+        public double scale( double value )
+        {
+            invokeComposite = calledFrom( "invokeComposite" );
+            return value * 2;
+        }
+    }
+
+    public static class OffsetMixin
+        implements Offset
+    {
+        public double offset( double value )
+        {
+            return value + 1;
+        }
+    }
+}
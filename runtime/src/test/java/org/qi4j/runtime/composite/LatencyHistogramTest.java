@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the latency histogram used by the method metrics
+ */
+public class LatencyHistogramTest
+{
+    @Test
+    public void givenValuesWhenBucketingThenKeepThreeSignificantBits()
+    {
+        for( long value : new long[]{ 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE } )
+        {
+            long highest = LatencyHistogram.highestValueIn( LatencyHistogram.bucketFor( value ) );
+            assertTrue( value + " <= " + highest, value <= highest );
+            assertTrue( value + " within 12.5% of " + highest, highest - value <= value / 8 );
+        }
+    }
+
+    @Test
+    public void givenRecordedValuesWhenGettingPercentilesThenReturnBucketValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( int i = 1; i <= 100; i++ )
+        {
+            histogram.record( i * 1000 );
+        }
+
+        assertEquals( 100, histogram.count() );
+        assertEquals( 50000, histogram.percentile( 50 ), 50000 / 8 );
+        assertEquals( 99000, histogram.percentile( 99 ), 99000 / 8 );
+        assertEquals( 100000, histogram.percentile( 100 ), 100000 / 8 );
+
+        histogram.reset();
+        assertEquals( 0, histogram.count() );
+        assertEquals( 0, histogram.percentile( 99 ) );
+    }
+}
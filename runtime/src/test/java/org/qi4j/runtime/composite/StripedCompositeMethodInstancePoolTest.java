@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.composite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the striped method instance pool
+ */
+public class StripedCompositeMethodInstancePoolTest
+{
+    @Test
+    public void givenEmptyPoolWhenGettingInstanceThenMiss()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 4, 2, 60000 );
+
+        assertNull( pool.getInstance() );
+        assertEquals( 1, pool.misses() );
+        assertEquals( 1, pool.created() );
+        assertEquals( 0, pool.hits() );
+    }
+
+    @Test
+    public void givenReturnedInstanceWhenGettingInstanceThenHit()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 4, 2, 60000 );
+        CompositeMethodInstance instance = newInstance();
+
+        pool.returnInstance( instance );
+
+        assertSame( instance, pool.getInstance() );
+        assertEquals( 1, pool.hits() );
+        assertEquals( 0, pool.size() );
+    }
+
+    @Test
+    public void givenFullStripeWhenReturningInstanceThenDiscard()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 4, 2, 60000 );
+
+        pool.returnInstance( newInstance() );
+        pool.returnInstance( newInstance() );
+        pool.returnInstance( newInstance() );
+
+        assertEquals( 2, pool.size() );
+        assertEquals( 1, pool.discarded() );
+    }
+
+    @Test
+    public void givenIdleInstancesWhenTrimmingThenRemoveIdleInstances()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 1, 4, 60000 );
+
+        // The interval starts with one idle instance, the first one returned
+        pool.returnInstance( newInstance() );
+        pool.returnInstance( newInstance() );
+        pool.returnInstance( newInstance() );
+
+        pool.trim();
+        assertEquals( 2, pool.size() );
+        assertEquals( 1, pool.trimmed() );
+
+        // Only one instance is used during the next interval
+        pool.returnInstance( pool.getInstance() );
+
+        pool.trim();
+        assertEquals( 1, pool.size() );
+        assertEquals( 2, pool.trimmed() );
+    }
+
+    @Test
+    public void givenIntervalHasPassedWhenReturningInstancesThenTrimOnlyAtCheck()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 1, 4, 0 );
+
+        // The interval starts with one idle instance, the first one returned
+        pool.returnInstance( newInstance() );
+        for( int i = 2; i < StripedCompositeMethodInstancePool.TRIM_CHECK_RETURNS; i++ )
+        {
+            pool.returnInstance( newInstance() );
+        }
+        assertEquals( 0, pool.trimmed() );
+        assertEquals( 4, pool.size() );
+
+        // The instance that was idle during the whole interval is trimmed at the check
+        pool.returnInstance( newInstance() );
+        assertEquals( 1, pool.trimmed() );
+        assertEquals( 3, pool.size() );
+    }
+
+    @Test
+    public void givenIntervalHasPassedWhenGettingInstanceThenDoNotTrim()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 1, 4, 0 );
+        CompositeMethodInstance instance = newInstance();
+
+        pool.returnInstance( instance );
+
+        assertSame( instance, pool.getInstance() );
+        assertEquals( 0, pool.trimmed() );
+    }
+
+    @Test
+    public void givenNewPoolWhenTrimmingThenKeepNothingAndTrimNothing()
+    {
+        StripedCompositeMethodInstancePool pool = new StripedCompositeMethodInstancePool( 4, 4, 60000 );
+
+        pool.trim();
+        assertNull( pool.getInstance() );
+        assertEquals( 0, pool.trimmed() );
+    }
+
+    private CompositeMethodInstance newInstance()
+    {
+        return new CompositeMethodInstance( null, null, null, 0 );
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.runtime.entity.BinaryMapEntityStoreTest.BinaryMemoryEntityStoreService;
+import org.qi4j.spi.entitystore.helpers.BinaryEntityStateFormat;
+import org.qi4j.spi.entitystore.helpers.BinaryMapEntityStore;
+import org.qi4j.spi.entitystore.helpers.JSONEntityStateCodecService;
+import org.qi4j.spi.entitystore.helpers.Migration;
+import org.qi4j.spi.entitystore.helpers.StateStore;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that the BinaryMapEntityStoreMixin applies the Migration service to entities that are stored as JSON
+ */
+public class BinaryMapEntityStoreMigrationTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( BinaryMemoryEntityStoreService.class, JSONEntityStateCodecService.class, UuidIdentityGeneratorService.class );
+        module.services( MigrationService.class );
+        module.entities( Account.class );
+    }
+
+    @Test
+    public void givenEntityStoredAsJSONWithOlderVersionWhenLoadingThenMigrate()
+        throws Exception
+    {
+        final String json = "{\"identity\":\"account\",\"application_version\":\"0\"," +
+                            "\"type\":\"" + Account.class.getName() + "\",\"version\":\"0\",\"modified\":0," +
+                            "\"properties\":{\"identity\":\"account\",\"title\":\"Savings\"}," +
+                            "\"associations\":{},\"manyassociations\":{}}";
+        store().applyChanges( new BinaryMapEntityStore.MapChanges()
+        {
+            public void visitMap( BinaryMapEntityStore.MapChanger changer )
+                throws IOException
+            {
+                OutputStream out = changer.newEntity( new EntityReference( "account" ), null );
+                out.write( json.getBytes( "UTF-8" ) );
+                out.close();
+            }
+        } );
+
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( "Savings", uow.get( Account.class, "account" ).name().get() );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        assertEquals( BinaryEntityStateFormat.ENTITY_RECORD, stored( "account" )[ 0 ] );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( "Savings", uow.get( Account.class, "account" ).name().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    private BinaryMapEntityStore store()
+    {
+        return module.findService( BinaryMemoryEntityStoreService.class ).get();
+    }
+
+    private byte[] stored( String identity )
+        throws IOException
+    {
+        InputStream in = store().get( new EntityReference( identity ) );
+        byte[] data = new byte[ in.available() ];
+        in.read( data );
+        return data;
+    }
+
+    public interface Account
+        extends EntityComposite
+    {
+        Property<String> name();
+    }
+
+    @Mixins( MigrationService.RenameTitleMixin.class )
+    public interface MigrationService
+        extends Migration, ServiceComposite
+    {
+        class RenameTitleMixin
+            implements Migration
+        {
+            public boolean migrate( JSONObject state, String toVersion, StateStore stateStore )
+                throws JSONException
+            {
+                JSONObject properties = state.getJSONObject( "properties" );
+                properties.put( "name", properties.remove( "title" ) );
+                state.put( "application_version", toVersion );
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.entity.EntityBuilder;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.usecase.UsecaseBuilder;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryBinaryMapEntityStoreMixin;
+import org.qi4j.runtime.entity.SlotEntityStateTest.Address;
+import org.qi4j.runtime.entity.SlotEntityStateTest.Person;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.EntityStore;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.BinaryEntityStateFormat;
+import org.qi4j.spi.entitystore.helpers.BinaryMapEntityStore;
+import org.qi4j.spi.entitystore.helpers.BinaryMapEntityStoreMixin;
+import org.qi4j.spi.entitystore.helpers.JSONEntityStateCodecService;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of entities that are stored with the BinaryMapEntityStoreMixin
+ */
+public class BinaryMapEntityStoreTest
+    extends AbstractQi4jTest
+{
+    // Number of concurrent commits that write their changes before any of them is applied
+    static volatile CountDownLatch concurrentCommits;
+
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( BinaryMemoryEntityStoreService.class, JSONEntityStateCodecService.class, UuidIdentityGeneratorService.class );
+        module.entities( Person.class );
+        module.values( Address.class );
+    }
+
+    @Test
+    public void givenStoredEntityWhenLoadingThenReadAllState()
+        throws Exception
+    {
+        String identity;
+        String friend;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person other = uow.newEntity( Person.class );
+            friend = other.identity().get();
+
+            EntityBuilder<Person> builder = uow.newEntityBuilder( Person.class );
+            builder.instance().name().set( "Rickard \"R\" Öberg €" );
+            builder.instance().age().set( -42 );
+            builder.instance().nicknames().get().add( "rickard" );
+            builder.instance().address().set( module.newValue( Address.class ) );
+            builder.instance().friend().set( other );
+            builder.instance().friends().add( other );
+            identity = builder.newInstance().identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        assertEquals( BinaryEntityStateFormat.ENTITY_RECORD, stored( identity )[ 0 ] );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, identity );
+            assertEquals( "Rickard \"R\" Öberg €", person.name().get() );
+            assertEquals( Integer.valueOf( -42 ), person.age().get() );
+            assertEquals( "rickard", person.nicknames().get().get( 0 ) );
+            assertEquals( module.newValue( Address.class ), person.address().get() );
+            assertNull( person.partner().get() );
+            assertEquals( friend, person.friend().get().identity().get() );
+            assertEquals( 1, person.friends().count() );
+            assertEquals( friend, person.friends().get( 0 ).identity().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenStoredEntityWhenLoadingWithNewFormatThenStatusIsLoaded()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            identity = uow.newEntity( Person.class ).identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        // As after a restart, the stored schema is read before the current schema is created
+        BinaryEntityStateFormat format = new BinaryEntityStateFormat( application.version() );
+        DefaultEntityStoreUnitOfWork unitOfWork =
+            new DefaultEntityStoreUnitOfWork( null, "reload", module, UsecaseBuilder.newUsecase( "reload" ), System.currentTimeMillis() );
+        assertEquals( EntityStatus.LOADED, format.readEntityState( unitOfWork, stored( identity ), store() ).status() );
+        assertEquals( EntityStatus.LOADED, format.readEntityState( unitOfWork, stored( identity ), store() ).status() );
+    }
+
+    @Test
+    public void givenEntityStoredAsJSONWhenUpdatingThenStoreAsBinary()
+        throws Exception
+    {
+        final String json = "{\"identity\":\"json\",\"application_version\":\"0\"," +
+                            "\"type\":\"" + Person.class.getName() + "\",\"version\":\"0\",\"modified\":0," +
+                            "\"properties\":{\"identity\":\"json\",\"name\":\"Rickard\",\"age\":1}," +
+                            "\"associations\":{},\"manyassociations\":{}}";
+        store().applyChanges( new BinaryMapEntityStore.MapChanges()
+        {
+            public void visitMap( BinaryMapEntityStore.MapChanger changer )
+                throws IOException
+            {
+                OutputStream out = changer.newEntity( new EntityReference( "json" ), null );
+                out.write( json.getBytes( "UTF-8" ) );
+                out.close();
+            }
+        } );
+
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, "json" );
+            assertEquals( "Rickard", person.name().get() );
+            person.age().set( 2 );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        assertEquals( BinaryEntityStateFormat.ENTITY_RECORD, stored( "json" )[ 0 ] );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, "json" );
+            assertEquals( "Rickard", person.name().get() );
+            assertEquals( Integer.valueOf( 2 ), person.age().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenSchemaRecordStoredWithWrongIdWhenLoadingThenFail()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            identity = uow.newEntity( Person.class ).identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        // Store the schema again under another id, and an entity record that refers to it
+        final byte[] record = stored( identity );
+        StringBuilder schemaId = new StringBuilder();
+        for( int i = 2; i < 18; i++ )
+        {
+            schemaId.append( String.format( "%02x", record[ i ] & 0xFF ) );
+        }
+        final byte[] schema = stored( BinaryEntityStateFormat.schemaReference( schemaId.toString() ).identity() );
+        record[ 2 ] ^= 1;
+        schemaId.setCharAt( 1, Character.forDigit( record[ 2 ] & 0xF, 16 ) );
+        final EntityReference wrongSchemaReference = BinaryEntityStateFormat.schemaReference( schemaId.toString() );
+        store().applyChanges( new BinaryMapEntityStore.MapChanges()
+        {
+            public void visitMap( BinaryMapEntityStore.MapChanger changer )
+                throws IOException
+            {
+                OutputStream out = changer.newEntity( wrongSchemaReference, null );
+                out.write( schema );
+                out.close();
+                out = changer.newEntity( new EntityReference( "wrongschema" ), null );
+                out.write( record );
+                out.close();
+            }
+        } );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            uow.get( Person.class, "wrongschema" );
+            fail( "Schema with wrong id should not be used" );
+        }
+        catch( EntityStoreException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "has id" ) );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenNewSchemaWhenCommittingConcurrentlyThenCommitBoth()
+        throws Exception
+    {
+        final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+        Runnable newPerson = new Runnable()
+        {
+            public void run()
+            {
+                UnitOfWork uow = module.newUnitOfWork();
+                try
+                {
+                    uow.newEntity( Person.class );
+                    uow.complete();
+                }
+                catch( Throwable e )
+                {
+                    failures.add( e );
+                }
+                finally
+                {
+                    uow.discard();
+                }
+            }
+        };
+
+        // Both commits write the schema before either of them is applied
+        concurrentCommits = new CountDownLatch( 2 );
+        try
+        {
+            Thread first = new Thread( newPerson );
+            Thread second = new Thread( newPerson );
+            first.start();
+            second.start();
+            first.join( 10000 );
+            second.join( 10000 );
+        }
+        finally
+        {
+            concurrentCommits = null;
+        }
+
+        assertEquals( "[]", failures.toString() );
+    }
+
+    private BinaryMapEntityStore store()
+    {
+        return module.findService( BinaryMemoryEntityStoreService.class ).get();
+    }
+
+    private byte[] stored( String identity )
+        throws IOException
+    {
+        InputStream in = store().get( new EntityReference( identity ) );
+        byte[] data = new byte[ in.available() ];
+        in.read( data );
+        return data;
+    }
+
+    @Mixins( { BinaryMapEntityStoreMixin.class, ConcurrentMemoryBinaryMapEntityStoreMixin.class } )
+    public interface BinaryMemoryEntityStoreService
+        extends EntityStore, BinaryMapEntityStore, ServiceComposite
+    {
+    }
+
+    public static class ConcurrentMemoryBinaryMapEntityStoreMixin
+        extends MemoryBinaryMapEntityStoreMixin
+    {
+        @Override
+        public void applyChanges( final BinaryMapEntityStore.MapChanges changes )
+            throws IOException
+        {
+            final CountDownLatch commits = concurrentCommits;
+            super.applyChanges( new BinaryMapEntityStore.MapChanges()
+            {
+                public void visitMap( BinaryMapEntityStore.MapChanger changer )
+                    throws IOException
+                {
+                    changes.visitMap( changer );
+                    if( commits != null )
+                    {
+                        commits.countDown();
+                        try
+                        {
+                            commits.await( 10, TimeUnit.SECONDS );
+                        }
+                        catch( InterruptedException e )
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            } );
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryCompactEntityStoreService;
+import org.qi4j.entitystore.memory.MemoryCompactMapEntityStoreMixin;
+import org.qi4j.io.Inputs;
+import org.qi4j.io.Outputs;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the in-memory store that keeps state as UTF-8 bytes
+ */
+public class CompactEntityStoreTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( MemoryCompactEntityStoreService.class )
+            .setMetaInfo( new MemoryCompactMapEntityStoreMixin.Compression( 200 ) );
+        module.services( UuidIdentityGeneratorService.class );
+        module.entities( SlotEntityStateTest.Person.class );
+        module.values( SlotEntityStateTest.Address.class );
+    }
+
+    @Test
+    public void givenSmallAndLargeEntitiesWhenLoadingThenGetSameState()
+        throws Exception
+    {
+        StringBuilder longName = new StringBuilder();
+        for( int i = 0; i < 100; i++ )
+        {
+            longName.append( "Name åäö " ).append( i );
+        }
+
+        String small;
+        String large;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            SlotEntityStateTest.Person person = uow.newEntity( SlotEntityStateTest.Person.class );
+            person.name().set( "Räksmörgås" );
+            small = person.identity().get();
+
+            person = uow.newEntity( SlotEntityStateTest.Person.class );
+            person.name().set( longName.toString() );
+            large = person.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        // Backup and restore through the store
+        BackupRestore backupRestore = module.findService( BackupRestore.class ).get();
+        List<String> backup = new ArrayList<String>();
+        backupRestore.backup().transferTo( Outputs.collection( backup ) );
+        assertEquals( 2, backup.size() );
+        Inputs.iterable( backup ).transferTo( backupRestore.restore() );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( "Räksmörgås", uow.get( SlotEntityStateTest.Person.class, small ).name().get() );
+            assertEquals( longName.toString(), uow.get( SlotEntityStateTest.Person.class, large ).name().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryEntityStoreService;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of loading entities from several threads at the same time
+ */
+public class ConcurrentEntityLoadTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( MemoryEntityStoreService.class, UuidIdentityGeneratorService.class );
+        module.entities( SlotEntityStateTest.Person.class );
+        module.values( SlotEntityStateTest.Address.class );
+    }
+
+    @Test
+    public void givenEntitiesWhenLoadingConcurrentlyThenLoadAll()
+        throws Exception
+    {
+        final List<String> identities = new ArrayList<String>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            for( int i = 0; i < 100; i++ )
+            {
+                SlotEntityStateTest.Person person = uow.newEntity( SlotEntityStateTest.Person.class );
+                person.name().set( "Person " + i );
+                identities.add( person.identity().get() );
+            }
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try
+        {
+            List<Future<Integer>> loads = new ArrayList<Future<Integer>>();
+            for( int thread = 0; thread < 8; thread++ )
+            {
+                final List<String> order = new ArrayList<String>( identities );
+                Collections.shuffle( order );
+                loads.add( executor.submit( new Callable<Integer>()
+                {
+                    public Integer call()
+                        throws Exception
+                    {
+                        int loaded = 0;
+                        for( int i = 0; i < 10; i++ )
+                        {
+                            UnitOfWork uow = module.newUnitOfWork();
+                            try
+                            {
+                                for( String identity : order )
+                                {
+                                    SlotEntityStateTest.Person person = uow.get( SlotEntityStateTest.Person.class, identity );
+                                    assertEquals( "Person " + identities.indexOf( identity ), person.name().get() );
+                                    loaded++;
+                                }
+                            }
+                            finally
+                            {
+                                uow.discard();
+                            }
+                        }
+                        return loaded;
+                    }
+                } ) );
+            }
+
+            for( Future<Integer> load : loads )
+            {
+                assertEquals( Integer.valueOf( 1000 ), load.get() );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
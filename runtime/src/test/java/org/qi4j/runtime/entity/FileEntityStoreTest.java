@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.unitofwork.NoSuchEntityException;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.file.FileEntityStoreInfo;
+import org.qi4j.entitystore.file.FileEntityStoreService;
+import org.qi4j.io.Inputs;
+import org.qi4j.io.Outputs;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the store that keeps state in a log of files
+ */
+public class FileEntityStoreTest
+    extends AbstractQi4jTest
+{
+    private File directory;
+
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        try
+        {
+            directory = File.createTempFile( "qi4j", "log" );
+        }
+        catch( IOException e )
+        {
+            throw new AssemblyException( e );
+        }
+        directory.delete();
+
+        module.services( FileEntityStoreService.class )
+            .setMetaInfo( new FileEntityStoreInfo( directory, FileEntityStoreInfo.Sync.COMMIT, 0, 4096 ) );
+        module.services( UuidIdentityGeneratorService.class );
+        module.entities( SlotEntityStateTest.Person.class );
+        module.values( SlotEntityStateTest.Address.class );
+    }
+
+    @Override
+    public void tearDown()
+        throws Exception
+    {
+        super.tearDown();
+        File[] files = directory.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void givenManyUpdatesWhenReopeningStoreThenGetLatestState()
+        throws Exception
+    {
+        List<String> identities = new ArrayList<String>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            for( int i = 0; i < 50; i++ )
+            {
+                SlotEntityStateTest.Person person = uow.newEntity( SlotEntityStateTest.Person.class );
+                person.name().set( "Räksmörgås " + i );
+                identities.add( person.identity().get() );
+            }
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        // Fill many segments, most of which become sparse and are compacted
+        for( int round = 0; round < 20; round++ )
+        {
+            uow = module.newUnitOfWork();
+            try
+            {
+                for( String identity : identities )
+                {
+                    uow.get( SlotEntityStateTest.Person.class, identity ).name().set( "Räksmörgås " + identity + " " + round );
+                }
+                uow.complete();
+            }
+            finally
+            {
+                uow.discard();
+            }
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            for( String identity : identities.subList( 0, 10 ) )
+            {
+                uow.remove( uow.get( SlotEntityStateTest.Person.class, identity ) );
+            }
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        application.passivate();
+        application.activate();
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            for( String identity : identities.subList( 0, 10 ) )
+            {
+                try
+                {
+                    uow.get( SlotEntityStateTest.Person.class, identity );
+                    fail( "Removed entity should not be found" );
+                }
+                catch( NoSuchEntityException e )
+                {
+                    // Expected
+                }
+            }
+            for( String identity : identities.subList( 10, 50 ) )
+            {
+                assertEquals( "Räksmörgås " + identity + " 19", uow.get( SlotEntityStateTest.Person.class, identity ).name().get() );
+            }
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        BackupRestore backupRestore = module.findService( BackupRestore.class ).get();
+        List<String> backup = new ArrayList<String>();
+        backupRestore.backup().transferTo( Outputs.collection( backup ) );
+        assertEquals( 40, backup.size() );
+        Inputs.iterable( backup ).transferTo( backupRestore.restore() );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            for( String identity : identities.subList( 10, 50 ) )
+            {
+                assertEquals( "Räksmörgås " + identity + " 19", uow.get( SlotEntityStateTest.Person.class, identity ).name().get() );
+            }
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenCorruptRecordInEarlierSegmentWhenReopeningStoreThenFailAndKeepLaterRecords()
+        throws Exception
+    {
+        List<String> identities = new ArrayList<String>();
+        for( int i = 0; i < 40; i++ )
+        {
+            UnitOfWork uow = module.newUnitOfWork();
+            try
+            {
+                SlotEntityStateTest.Person person = uow.newEntity( SlotEntityStateTest.Person.class );
+                person.name().set( "Räksmörgås " + i );
+                identities.add( person.identity().get() );
+                uow.complete();
+            }
+            finally
+            {
+                uow.discard();
+            }
+        }
+
+        application.passivate();
+
+        File[] files = directory.listFiles();
+        assertTrue( files.length > 2 );
+        Arrays.sort( files );
+        File first = files[ 0 ];
+        byte[] corrupt = read( first );
+        corrupt[ 20 ]++;
+        write( first, corrupt );
+
+        application.activate();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            uow.get( SlotEntityStateTest.Person.class, identities.get( 39 ) );
+            fail( "Store with corrupt segment should not be opened" );
+        }
+        catch( Exception e )
+        {
+            // Expected
+        }
+        finally
+        {
+            uow.discard();
+        }
+        application.passivate();
+
+        // The records after the corrupt one are still there, and can be recovered by repairing it
+        assertTrue( Arrays.equals( corrupt, read( first ) ) );
+        corrupt[ 20 ]--;
+        write( first, corrupt );
+
+        application.activate();
+        uow = module.newUnitOfWork();
+        try
+        {
+            for( int i = 0; i < 40; i++ )
+            {
+                assertEquals( "Räksmörgås " + i, uow.get( SlotEntityStateTest.Person.class, identities.get( i ) ).name().get() );
+            }
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    private static byte[] read( File file )
+        throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try
+        {
+            byte[] bytes = new byte[ (int) in.length() ];
+            in.readFully( bytes );
+            return bytes;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void write( File file, byte[] bytes )
+        throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile( file, "rw" );
+        try
+        {
+            out.write( bytes );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
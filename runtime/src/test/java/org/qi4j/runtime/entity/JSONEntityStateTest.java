@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.common.Optional;
+import org.qi4j.api.common.QualifiedName;
+import org.qi4j.api.common.UseDefaults;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entitystore.helpers.JSONEntityState;
+import org.qi4j.test.AbstractQi4jTest;
+import org.qi4j.test.EntityTestAssembler;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the state of entities that are stored as JSON
+ */
+public class JSONEntityStateTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        new EntityTestAssembler().assemble( module );
+        module.entities( Tagged.class );
+    }
+
+    @Test
+    public void givenLoadedEntityWhenReadingPropertyTwiceThenDecodeOnce()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Tagged tagged = uow.newEntity( Tagged.class );
+            tagged.tags().set( Arrays.asList( "foo", "bar" ) );
+            identity = tagged.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            EntityState state = spi.getEntityState( uow.get( Tagged.class, identity ) );
+            assertTrue( state instanceof JSONEntityState );
+
+            QualifiedName tags = QualifiedName.fromAccessor( Tagged.class.getMethod( "tags" ) );
+            Object value = state.getProperty( tags );
+            assertEquals( Arrays.asList( "foo", "bar" ), value );
+            assertSame( value, state.getProperty( tags ) );
+
+            state.setProperty( tags, Arrays.asList( "xyzzy" ) );
+            assertEquals( Arrays.asList( "xyzzy" ), state.getProperty( tags ) );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenPropertySetManyTimesWhenCompletingThenStoreLastValue()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Tagged tagged = uow.newEntity( Tagged.class );
+            for( int i = 0; i < 100; i++ )
+            {
+                tagged.counter().set( i );
+            }
+            tagged.tags().set( null );
+            identity = tagged.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Tagged tagged = uow.get( Tagged.class, identity );
+            assertEquals( Integer.valueOf( 99 ), tagged.counter().get() );
+            assertNull( tagged.tags().get() );
+            tagged.counter().set( 100 );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( Integer.valueOf( 100 ), uow.get( Tagged.class, identity ).counter().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    public interface Tagged
+        extends EntityComposite
+    {
+        @Optional
+        Property<List<String>> tags();
+
+        @UseDefaults
+        Property<Integer> counter();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.entity.EntityBuilder;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.runtime.entity.SlotEntityStateTest.Address;
+import org.qi4j.runtime.entity.SlotEntityStateTest.MapMemoryEntityStoreService;
+import org.qi4j.runtime.entity.SlotEntityStateTest.Person;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.helpers.LazyJSONEntityStateCodecService;
+import org.qi4j.spi.entitystore.helpers.SlotEntityState;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of entities whose stored state is decoded when it is used
+ */
+public class LazyEntityStateTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( MapMemoryEntityStoreService.class, LazyJSONEntityStateCodecService.class, UuidIdentityGeneratorService.class );
+        module.entities( Person.class );
+        module.values( Address.class );
+    }
+
+    @Test
+    public void givenLoadedEntityWhenReadingPropertyThenDecodeOnlyThatProperty()
+        throws Exception
+    {
+        String identity = newPerson();
+
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, identity );
+            SlotEntityState state = (SlotEntityState) spi.getEntityState( person );
+            int name = state.slots().propertySlot( "name" );
+            int age = state.slots().propertySlot( "age" );
+            assertFalse( state.isPropertyLoaded( name ) );
+            assertFalse( state.isPropertyLoaded( age ) );
+
+            assertEquals( Integer.valueOf( 42 ), person.age().get() );
+            assertTrue( state.isPropertyLoaded( age ) );
+            assertFalse( state.isPropertyLoaded( name ) );
+            assertEquals( EntityStatus.LOADED, state.status() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenPartlyUsedEntityWhenStoringThenKeepUnusedState()
+        throws Exception
+    {
+        String identity = newPerson();
+
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            uow.get( Person.class, identity ).age().set( 43 );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, identity );
+            assertEquals( "Rickard \"R\" Öberg", person.name().get() );
+            assertEquals( Integer.valueOf( 43 ), person.age().get() );
+            assertEquals( "rickard", person.nicknames().get().get( 0 ) );
+            assertEquals( module.newValue( Address.class ), person.address().get() );
+            assertNull( person.partner().get() );
+            assertNotNull( person.friend().get() );
+            assertEquals( 1, person.friends().count() );
+            assertEquals( person.friend().get(), person.friends().get( 0 ) );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenBracketsAndQuotesInStringsWhenLoadingThenFindEachValue()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            EntityBuilder<Person> builder = uow.newEntityBuilder( Person.class );
+            builder.instance().name().set( "{\"name\":[}, '\\\"" );
+            builder.instance().age().set( 7 );
+            builder.instance().nicknames().get().add( "]}\"" );
+            identity = builder.newInstance().identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, identity );
+            assertEquals( Integer.valueOf( 7 ), person.age().get() );
+            assertEquals( "{\"name\":[}, '\\\"", person.name().get() );
+            assertEquals( "]}\"", person.nicknames().get().get( 0 ) );
+            assertNull( person.friend().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    private String newPerson()
+        throws Exception
+    {
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person other = uow.newEntity( Person.class );
+
+            EntityBuilder<Person> builder = uow.newEntityBuilder( Person.class );
+            builder.instance().name().set( "Rickard \"R\" Öberg" );
+            builder.instance().age().set( 42 );
+            builder.instance().nicknames().get().add( "rickard" );
+            builder.instance().address().set( module.newValue( Address.class ) );
+            builder.instance().friend().set( other );
+            builder.instance().friends().add( other );
+            String identity = builder.newInstance().identity().get();
+            uow.complete();
+            return identity;
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+}
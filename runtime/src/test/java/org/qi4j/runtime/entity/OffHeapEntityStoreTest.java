@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.entity.EntityBuilder;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryOffHeapEntityStoreService;
+import org.qi4j.entitystore.memory.MemoryOffHeapMapEntityStoreMixin;
+import org.qi4j.io.Inputs;
+import org.qi4j.io.Outputs;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the in-memory store that keeps state outside of the Java heap
+ */
+public class OffHeapEntityStoreTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( MemoryOffHeapEntityStoreService.class )
+            .setMetaInfo( new MemoryOffHeapMapEntityStoreMixin.Slabs( 4096 ) );
+        module.services( UuidIdentityGeneratorService.class );
+        module.entities( Document.class );
+    }
+
+    @Test
+    public void givenSmallAndLargeEntitiesWhenLoadingThenGetSameState()
+        throws Exception
+    {
+        StringBuilder longName = new StringBuilder();
+        // Larger than a slab
+        for( int i = 0; i < 400; i++ )
+        {
+            longName.append( "Name åäö " ).append( i );
+        }
+
+        String small;
+        String large;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            small = newDocument( uow, "Räksmörgås" );
+            large = newDocument( uow, longName.toString() );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        // Backup and restore through the store
+        BackupRestore backupRestore = module.findService( BackupRestore.class ).get();
+        List<String> backup = new ArrayList<String>();
+        backupRestore.backup().transferTo( Outputs.collection( backup ) );
+        assertEquals( 2, backup.size() );
+        Inputs.iterable( backup ).transferTo( backupRestore.restore() );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( "Räksmörgås", uow.get( Document.class, small ).text().get() );
+            assertEquals( longName.toString(), uow.get( Document.class, large ).text().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    private static String newDocument( UnitOfWork uow, String text )
+    {
+        EntityBuilder<Document> builder = uow.newEntityBuilder( Document.class );
+        builder.instance().text().set( text );
+        return builder.newInstance().identity().get();
+    }
+
+    public interface Document
+        extends EntityComposite
+    {
+        Property<String> text();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entitystore.helpers.JSONEntityStateCodecService;
+import org.qi4j.spi.entitystore.helpers.Migration;
+import org.qi4j.spi.entitystore.helpers.SlotEntityState;
+import org.qi4j.spi.entitystore.helpers.StateStore;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that an EntityStateCodec is not used when there is a Migration service, as codecs do not migrate state
+ */
+public class SlotEntityStateMigrationTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( SlotEntityStateTest.MapMemoryEntityStoreService.class, JSONEntityStateCodecService.class, UuidIdentityGeneratorService.class );
+        module.services( MigrationService.class );
+        module.entities( SlotEntityStateTest.Person.class );
+        module.values( SlotEntityStateTest.Address.class );
+    }
+
+    @Test
+    public void givenMigrationServiceWhenLoadingEntityThenDoNotUseCodec()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            SlotEntityStateTest.Person person = uow.newEntity( SlotEntityStateTest.Person.class );
+            person.age().set( 1 );
+            identity = person.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            SlotEntityStateTest.Person person = uow.get( SlotEntityStateTest.Person.class, identity );
+            EntityState state = spi.getEntityState( person );
+            assertFalse( state instanceof SlotEntityState );
+            assertEquals( Integer.valueOf( 1 ), person.age().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Mixins( MigrationService.NoMigrationMixin.class )
+    public interface MigrationService
+        extends Migration, ServiceComposite
+    {
+        class NoMigrationMixin
+            implements Migration
+        {
+            public boolean migrate( JSONObject state, String toVersion, StateStore stateStore )
+            {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity;
+
+import org.junit.Test;
+import org.qi4j.api.association.Association;
+import org.qi4j.api.association.ManyAssociation;
+import org.qi4j.api.common.Optional;
+import org.qi4j.api.common.UseDefaults;
+import org.qi4j.api.entity.EntityBuilder;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.value.ValueComposite;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryMapEntityStoreMixin;
+import org.qi4j.runtime.association.AssociationModel;
+import org.qi4j.runtime.association.ManyAssociationModel;
+import org.qi4j.runtime.property.PropertyModel;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.EntityStore;
+import org.qi4j.spi.entitystore.helpers.EntityStateSlots;
+import org.qi4j.spi.entitystore.helpers.JSONEntityStateCodecService;
+import org.qi4j.spi.entitystore.helpers.MapEntityStoreMixin;
+import org.qi4j.spi.entitystore.helpers.SlotEntityState;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of entities that are stored with the MapEntityStoreMixin as SlotEntityState
+ */
+public class SlotEntityStateTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( MapMemoryEntityStoreService.class, JSONEntityStateCodecService.class, UuidIdentityGeneratorService.class );
+        module.entities( Person.class );
+        module.values( Address.class );
+    }
+
+    @Test
+    public void givenStoredEntityWhenLoadingThenReadAllState()
+        throws Exception
+    {
+        String identity;
+        String friend;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person other = uow.newEntity( Person.class );
+            friend = other.identity().get();
+
+            EntityBuilder<Person> builder = uow.newEntityBuilder( Person.class );
+            builder.instance().name().set( "Rickard \"R\" Öberg" );
+            builder.instance().age().set( 42 );
+            builder.instance().nicknames().get().add( "rickard" );
+            builder.instance().address().set( module.newValue( Address.class ) );
+            builder.instance().friend().set( other );
+            builder.instance().friends().add( other );
+            identity = builder.newInstance().identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, identity );
+            assertEquals( "Rickard \"R\" Öberg", person.name().get() );
+            assertEquals( Integer.valueOf( 42 ), person.age().get() );
+            assertEquals( "rickard", person.nicknames().get().get( 0 ) );
+            assertEquals( module.newValue( Address.class ), person.address().get() );
+            assertNull( person.partner().get() );
+            assertEquals( friend, person.friend().get().identity().get() );
+            assertEquals( 1, person.friends().count() );
+            assertEquals( friend, person.friends().get( 0 ).identity().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenLoadedEntityWhenChangingStateThenUseSlots()
+        throws Exception
+    {
+        String identity;
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.newEntity( Person.class );
+            person.age().set( 1 );
+            identity = person.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.get( Person.class, identity );
+            EntityState state = spi.getEntityState( person );
+            assertTrue( state instanceof SlotEntityState );
+            assertEquals( EntityStatus.LOADED, state.status() );
+
+            person.age().set( 2 );
+            int slot = ( (SlotEntityState) state ).slots().propertySlot( "age" );
+            assertEquals( Integer.valueOf( 2 ), ( (SlotEntityState) state ).propertyAt( slot ) );
+            assertEquals( EntityStatus.UPDATED, state.status() );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( Integer.valueOf( 2 ), uow.get( Person.class, identity ).age().get() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenEntityTypeWhenGettingSlotsThenStoresAndModelsShareSlots()
+        throws Exception
+    {
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Person person = uow.newEntity( Person.class );
+            SlotEntityState state = (SlotEntityState) spi.getEntityState( person );
+            EntityStateSlots slots = state.slots();
+            assertSame( EntityStateSlots.slotsFor( state.entityDescriptor() ), slots );
+
+            for( int i = 0; i < slots.propertyCount(); i++ )
+            {
+                assertEquals( i, ( (PropertyModel) slots.propertyAt( i ) ).slot() );
+            }
+            for( int i = 0; i < slots.associationCount(); i++ )
+            {
+                assertEquals( i, ( (AssociationModel) slots.associationAt( i ) ).slot() );
+            }
+            for( int i = 0; i < slots.manyAssociationCount(); i++ )
+            {
+                assertEquals( i, ( (ManyAssociationModel) slots.manyAssociationAt( i ) ).slot() );
+            }
+
+            Person friend = uow.newEntity( Person.class );
+            person.friend().set( friend );
+            assertEquals( EntityReference.getEntityReference( friend ), state.associationAt( slots.associationSlot( "friend" ) ) );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Mixins( { MapEntityStoreMixin.class, MemoryMapEntityStoreMixin.class } )
+    public interface MapMemoryEntityStoreService
+        extends EntityStore, ServiceComposite
+    {
+    }
+
+    public interface Person
+        extends EntityComposite
+    {
+        @UseDefaults
+        Property<String> name();
+
+        @UseDefaults
+        Property<Integer> age();
+
+        @UseDefaults
+        Property<List<String>> nicknames();
+
+        @Optional
+        Property<Address> address();
+
+        @Optional
+        Association<Person> partner();
+
+        @Optional
+        Association<Person> friend();
+
+        ManyAssociation<Person> friends();
+    }
+
+    public interface Address
+        extends ValueComposite
+    {
+        @UseDefaults
+        Property<String> street();
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity.associations;
+
+import org.junit.Test;
+import org.qi4j.api.association.ManyAssociation;
+import org.qi4j.api.entity.Chunked;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.api.unitofwork.NoSuchEntityException;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryMapEntityStoreMixin;
+import org.qi4j.io.Inputs;
+import org.qi4j.io.Outputs;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.entitystore.ConcurrentEntityStateModificationException;
+import org.qi4j.spi.entitystore.EntityStore;
+import org.qi4j.spi.entitystore.helpers.MapEntityStoreMixin;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of ManyAssociations that are stored in chunks
+ */
+public class ChunkedManyAssociationTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( ChunkedMemoryEntityStoreService.class, UuidIdentityGeneratorService.class );
+        module.entities( Group.class );
+    }
+
+    @Test
+    public void givenChunkedManyAssociationWhenAddingAndRemovingThenStoreAcrossChunks()
+        throws Exception
+    {
+        String identity;
+        List<Group> members = new ArrayList<Group>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Group group = uow.newEntity( Group.class );
+            for( int i = 0; i < 10; i++ )
+            {
+                Group member = uow.newEntity( Group.class );
+                members.add( member );
+                assertTrue( group.members().add( member ) );
+            }
+            assertFalse( group.members().add( members.get( 4 ) ) );
+            assertEquals( 10, group.members().count() );
+            assertEquals( members, group.members().toList() );
+            identity = group.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            ManyAssociation<Group> groupMembers = uow.get( Group.class, identity ).members();
+            assertEquals( 10, groupMembers.count() );
+            assertEquals( uow.get( members.get( 7 ) ), groupMembers.get( 7 ) );
+
+            // Insert into a full chunk
+            Group inserted = uow.newEntity( Group.class );
+            assertTrue( groupMembers.add( 1, inserted ) );
+            members.add( 1, inserted );
+            assertTrue( groupMembers.remove( uow.get( members.get( 5 ) ) ) );
+            members.remove( 5 );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            ManyAssociation<Group> groupMembers = uow.get( Group.class, identity ).members();
+            assertEquals( members.size(), groupMembers.count() );
+            List<Group> expected = new ArrayList<Group>();
+            for( Group member : members )
+            {
+                expected.add( uow.get( member ) );
+            }
+            assertEquals( expected, groupMembers.toList() );
+
+            assertTrue( groupMembers.retainAll( Arrays.asList( expected.get( 2 ), expected.get( 9 ) ) ) );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            Group group = uow.get( Group.class, identity );
+            assertEquals( Arrays.asList( uow.get( members.get( 2 ) ), uow.get( members.get( 9 ) ) ),
+                          group.members().toList() );
+            uow.remove( group );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            uow.get( Group.class, identity );
+            fail( "Group should have been removed" );
+        }
+        catch( NoSuchEntityException e )
+        {
+            // Ok
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenChunkedManyAssociationWhenAddingAllThenAppendOnlyNewReferences()
+        throws Exception
+    {
+        String identity;
+        List<Group> members = new ArrayList<Group>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Group group = uow.newEntity( Group.class );
+            for( int i = 0; i < 7; i++ )
+            {
+                members.add( uow.newEntity( Group.class ) );
+            }
+            List<Group> added = new ArrayList<Group>( members );
+            added.add( members.get( 2 ) );
+            assertTrue( group.members().addAll( added ) );
+            assertEquals( members, group.members().toList() );
+            identity = group.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            ManyAssociation<Group> groupMembers = uow.get( Group.class, identity ).members();
+            List<Group> expected = new ArrayList<Group>();
+            for( Group member : members )
+            {
+                expected.add( uow.get( member ) );
+            }
+            assertFalse( groupMembers.addAll( Arrays.asList( expected.get( 0 ), expected.get( 6 ) ) ) );
+
+            Group first = uow.newEntity( Group.class );
+            Group second = uow.newEntity( Group.class );
+            assertTrue( groupMembers.addAll( Arrays.asList( expected.get( 3 ), first, second, first ) ) );
+            expected.add( first );
+            expected.add( second );
+            assertEquals( expected, groupMembers.toList() );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( 9, uow.get( Group.class, identity ).members().count() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenChunkedManyAssociationWhenBackingUpAndRestoringThenRestoreChunks()
+        throws Exception
+    {
+        String identity;
+        List<String> members = new ArrayList<String>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Group group = uow.newEntity( Group.class );
+            for( int i = 0; i < 7; i++ )
+            {
+                Group member = uow.newEntity( Group.class );
+                members.add( member.identity().get() );
+                group.members().add( member );
+            }
+            identity = group.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        BackupRestore backupRestore = module.findService( BackupRestore.class ).get();
+        List<String> backup = new ArrayList<String>();
+        backupRestore.backup().transferTo( Outputs.collection( backup ) );
+        // 8 entities, 1 index and 3 chunks with their filters
+        assertEquals( 15, backup.size() );
+        Inputs.iterable( backup ).transferTo( backupRestore.restore() );
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            ManyAssociation<Group> groupMembers = uow.get( Group.class, identity ).members();
+            List<Group> expected = new ArrayList<Group>();
+            for( String member : members )
+            {
+                expected.add( uow.get( Group.class, member ) );
+            }
+            assertEquals( expected, groupMembers.toList() );
+            assertTrue( groupMembers.contains( expected.get( 5 ) ) );
+            assertFalse( groupMembers.add( expected.get( 5 ) ) );
+            assertTrue( groupMembers.remove( expected.get( 5 ) ) );
+            assertFalse( groupMembers.contains( expected.get( 5 ) ) );
+            assertEquals( 6, groupMembers.count() );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenChunkChangedByOtherUnitOfWorkWhenReadingChunkThenFailAsConcurrentModification()
+        throws Exception
+    {
+        String identity;
+        List<String> members = new ArrayList<String>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Group group = uow.newEntity( Group.class );
+            for( int i = 0; i < 7; i++ )
+            {
+                Group member = uow.newEntity( Group.class );
+                members.add( member.identity().get() );
+                group.members().add( member );
+            }
+            identity = group.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        // Read the index, but none of the chunks
+        UnitOfWork reading = module.newUnitOfWork();
+        try
+        {
+            ManyAssociation<Group> groupMembers = reading.get( Group.class, identity ).members();
+            assertEquals( 7, groupMembers.count() );
+
+            // Change the first chunk in between
+            uow = module.newUnitOfWork();
+            try
+            {
+                ManyAssociation<Group> changedMembers = uow.get( Group.class, identity ).members();
+                assertTrue( changedMembers.remove( uow.get( Group.class, members.get( 1 ) ) ) );
+                assertTrue( changedMembers.add( 0, uow.newEntity( Group.class ) ) );
+                uow.complete();
+            }
+            finally
+            {
+                uow.discard();
+            }
+
+            try
+            {
+                groupMembers.get( 0 );
+                fail( "Chunk that is newer than the index should not be read" );
+            }
+            catch( ConcurrentEntityStateModificationException e )
+            {
+                assertEquals( Arrays.asList( EntityReference.parseEntityReference( identity ) ), e.modifiedEntities() );
+            }
+        }
+        finally
+        {
+            reading.discard();
+        }
+    }
+
+    @Mixins( { MapEntityStoreMixin.class, MemoryMapEntityStoreMixin.class } )
+    public interface ChunkedMemoryEntityStoreService
+        extends EntityStore, BackupRestore, ServiceComposite
+    {
+    }
+
+    public interface Group
+        extends EntityComposite
+    {
+        @Chunked( size = 3 )
+        ManyAssociation<Group> members();
+    }
+}
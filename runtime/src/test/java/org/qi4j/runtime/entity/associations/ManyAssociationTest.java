@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.entity.associations;
+
+import org.junit.Test;
+import org.qi4j.api.association.ManyAssociation;
+import org.qi4j.api.entity.EntityComposite;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryEntityStoreService;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of bulk changes of ManyAssociations
+ */
+public class ManyAssociationTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.services( MemoryEntityStoreService.class, UuidIdentityGeneratorService.class );
+        module.entities( Group.class );
+    }
+
+    @Test
+    public void givenManyAssociationWhenChangingInBulkThenKeepOrderWithoutDuplicates()
+        throws Exception
+    {
+        String identity;
+        List<Group> members = new ArrayList<Group>();
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            for( int i = 0; i < 5; i++ )
+            {
+                members.add( uow.newEntity( Group.class ) );
+            }
+
+            Group group = uow.newEntity( Group.class );
+            group.members().add( members.get( 1 ) );
+            assertTrue( group.members().addAll( members ) );
+            assertFalse( group.members().addAll( members.subList( 0, 2 ) ) );
+            assertEquals( Arrays.asList( members.get( 1 ), members.get( 0 ), members.get( 2 ), members.get( 3 ), members.get( 4 ) ),
+                          group.members().toList() );
+            identity = group.identity().get();
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            ManyAssociation<Group> groupMembers = uow.get( Group.class, identity ).members();
+            assertEquals( 5, groupMembers.count() );
+
+            assertTrue( groupMembers.removeAll( Arrays.asList( uow.get( members.get( 0 ) ), uow.get( members.get( 3 ) ) ) ) );
+            assertFalse( groupMembers.contains( uow.get( members.get( 0 ) ) ) );
+            assertTrue( groupMembers.retainAll( Arrays.asList( uow.get( members.get( 1 ) ), uow.get( members.get( 4 ) ) ) ) );
+            assertFalse( groupMembers.retainAll( groupMembers.toList() ) );
+            uow.complete();
+        }
+        finally
+        {
+            uow.discard();
+        }
+
+        uow = module.newUnitOfWork();
+        try
+        {
+            assertEquals( Arrays.asList( uow.get( members.get( 1 ) ), uow.get( members.get( 4 ) ) ),
+                          uow.get( Group.class, identity ).members().toList() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    @Test
+    public void givenLargeManyAssociationWhenAddingThenAddEachOnce()
+        throws Exception
+    {
+        UnitOfWork uow = module.newUnitOfWork();
+        try
+        {
+            Group group = uow.newEntity( Group.class );
+            Group member = uow.newEntity( Group.class );
+            for( int i = 0; i < 20000; i++ )
+            {
+                group.members().add( uow.newEntity( Group.class ) );
+            }
+            assertTrue( group.members().add( member ) );
+            assertFalse( group.members().add( member ) );
+            assertTrue( group.members().contains( member ) );
+            assertEquals( 20001, group.members().count() );
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
+    public interface Group
+        extends EntityComposite
+    {
+        ManyAssociation<Group> members();
+    }
+}
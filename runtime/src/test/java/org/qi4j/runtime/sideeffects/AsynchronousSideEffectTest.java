@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.sideeffects;
+
+import org.junit.Test;
+import org.qi4j.api.composite.TransientComposite;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.sideeffect.AsynchronousSideEffects;
+import org.qi4j.api.sideeffect.SideEffectOf;
+import org.qi4j.api.sideeffect.SideEffects;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of side-effects that are run asynchronously.
+ */
+public class AsynchronousSideEffectTest
+    extends AbstractQi4jTest
+{
+    static final BlockingQueue<String> asynchronousCalls = new LinkedBlockingQueue<String>();
+    static final BlockingQueue<String> synchronousCalls = new LinkedBlockingQueue<String>();
+
+    private final AsynchronousSideEffects asynchronous = new AsynchronousSideEffects( AsynchronousSideEffect.class );
+    private final AsynchronousSideEffects failing = new AsynchronousSideEffects();
+
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.transients( SomeComposite.class ).setMetaInfo( asynchronous );
+        module.transients( FailingComposite.class ).setMetaInfo( failing );
+    }
+
+    @Override
+    public void tearDown()
+        throws Exception
+    {
+        asynchronous.shutdown();
+        failing.shutdown();
+        super.tearDown();
+    }
+
+    @Test
+    public void givenAsynchronousSideEffectWhenInvokingThenRunOnOtherThread()
+        throws InterruptedException
+    {
+        SomeComposite some = module.newTransient( SomeComposite.class );
+
+        assertEquals( "Hello World", some.greet( "World" ) );
+
+        assertEquals( Thread.currentThread().getName(), synchronousCalls.poll() );
+        String thread = asynchronousCalls.poll( 10, TimeUnit.SECONDS );
+        assertNotNull( thread );
+        assertFalse( Thread.currentThread().getName().equals( thread ) );
+        assertEquals( 1, asynchronous.submitted() );
+    }
+
+    @Test
+    public void givenDropPolicyWhenQueueIsFullThenDropSideEffect()
+        throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        AsynchronousSideEffects dropping = new AsynchronousSideEffects( 1, 1, AsynchronousSideEffects.OverflowPolicy.drop );
+        try
+        {
+            Runnable waiting = new Runnable()
+            {
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+
+            dropping.execute( waiting ); // Running
+            assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+            dropping.execute( waiting ); // Queued
+            dropping.execute( waiting ); // Dropped
+            assertEquals( 1, dropping.queueDepth() );
+            assertEquals( 1, dropping.dropped() );
+        }
+        finally
+        {
+            release.countDown();
+            dropping.shutdown();
+        }
+    }
+
+    @Test
+    public void givenBlockPolicyWhenShutDownWhileBlockedThenDropSideEffect()
+        throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AsynchronousSideEffects blocking = new AsynchronousSideEffects( 1, 1, AsynchronousSideEffects.OverflowPolicy.block );
+        try
+        {
+            final Runnable waiting = new Runnable()
+            {
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+
+            blocking.execute( waiting ); // Running
+            assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+            blocking.execute( waiting ); // Queued
+
+            Thread caller = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    blocking.execute( waiting ); // Blocked
+                }
+            } );
+            caller.start();
+            while( caller.getState() != Thread.State.TIMED_WAITING )
+            {
+                Thread.sleep( 1 );
+            }
+
+            assertFalse( blocking.shutdown( 0, TimeUnit.SECONDS ) );
+            caller.join( 10000 );
+            assertFalse( "Blocked caller should return when the executor is shut down", caller.isAlive() );
+            assertEquals( 2, blocking.dropped() );
+            assertEquals( 0, blocking.queueDepth() );
+        }
+        finally
+        {
+            release.countDown();
+            blocking.shutdown();
+        }
+    }
+
+    @Test
+    public void givenBlockPolicyWhenSideEffectSubmitsToOwnExecutorThenRunInline()
+        throws InterruptedException
+    {
+        final CountDownLatch done = new CountDownLatch( 3 );
+        final AsynchronousSideEffects blocking = new AsynchronousSideEffects( 1, 1, AsynchronousSideEffects.OverflowPolicy.block );
+        try
+        {
+            final Runnable nested = new Runnable()
+            {
+                public void run()
+                {
+                    done.countDown();
+                }
+            };
+
+            blocking.execute( new Runnable()
+            {
+                public void run()
+                {
+                    blocking.execute( nested ); // Queued
+                    blocking.execute( nested ); // Queue is full, so run inline on this worker
+                    done.countDown();
+                }
+            } );
+
+            assertTrue( "Side-effect submitting to its own executor should not deadlock", done.await( 10, TimeUnit.SECONDS ) );
+            assertEquals( 1, blocking.inlined() );
+            assertEquals( 0, blocking.dropped() );
+        }
+        finally
+        {
+            blocking.shutdown();
+        }
+    }
+
+    @Test
+    public void givenFailingSideEffectWhenInvokingThenCountAsFailed()
+    {
+        FailingComposite some = module.newTransient( FailingComposite.class );
+
+        assertEquals( "Hello World", some.greet( "World" ) );
+
+        assertTrue( failing.shutdown() );
+        assertEquals( 1, failing.failed() );
+        assertEquals( 0, failing.completed() );
+    }
+
+    @Test
+    public void givenQueuedSideEffectWhenPassivatingThenRunSideEffectFirst()
+        throws Exception
+    {
+        asynchronousCalls.clear();
+        SomeComposite some = module.newTransient( SomeComposite.class );
+        some.greet( "World" );
+
+        application.passivate();
+        try
+        {
+            assertNotNull( asynchronousCalls.poll() );
+            assertEquals( 1, asynchronous.completed() );
+        }
+        finally
+        {
+            application.activate();
+        }
+    }
+
+    @SideEffects( { SynchronousSideEffect.class, AsynchronousSideEffect.class } )
+    @Mixins( SomeMixin.class )
+    public interface SomeComposite
+        extends Some, TransientComposite
+    {
+    }
+
+    @SideEffects( FailingSideEffect.class )
+    @Mixins( SomeMixin.class )
+    public interface FailingComposite
+        extends Some, TransientComposite
+    {
+    }
+
+    public interface Some
+    {
+        String greet( String name );
+    }
+
+    public static abstract class SomeMixin
+        implements Some
+    {
+        public String greet( String name )
+        {
+            return "Hello " + name;
+        }
+    }
+
+    public static abstract class SynchronousSideEffect
+        extends SideEffectOf<Some>
+        implements Some
+    {
+        public String greet( String name )
+        {
+            synchronousCalls.add( Thread.currentThread().getName() );
+            return null;
+        }
+    }
+
+    public static abstract class AsynchronousSideEffect
+        extends SideEffectOf<Some>
+        implements Some
+    {
+        public String greet( String name )
+        {
+            assertEquals( "Hello " + name, result.greet( name ) );
+            asynchronousCalls.add( Thread.currentThread().getName() );
+            return null;
+        }
+    }
+
+    public static abstract class FailingSideEffect
+        extends SideEffectOf<Some>
+        implements Some
+    {
+        public String greet( String name )
+        {
+            throw new IllegalStateException( "Side-effect failed" );
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.value;
+
+import org.junit.Test;
+import org.qi4j.api.common.UseDefaults;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.structure.Module;
+import org.qi4j.api.value.InternedValues;
+import org.qi4j.api.value.ValueBuilder;
+import org.qi4j.api.value.ValueComposite;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of interning of values
+ */
+public class ValueInterningTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.values( Currency.class ).setMetaInfo( new InternedValues( 100 ) );
+        module.values( Amount.class );
+
+        module.layer().module( "Module 2" ).values( Currency.class ).setMetaInfo( new InternedValues( 100 ) );
+    }
+
+    @Test
+    public void givenInternedValueTypeWhenBuildingEqualValuesThenReturnSameInstance()
+    {
+        Currency sek1 = currency( "SEK" );
+        Currency sek2 = currency( "SEK" );
+        Currency usd = currency( "USD" );
+
+        assertSame( sek1, sek2 );
+        assertNotSame( sek1, usd );
+        assertSame( module.newValue( Currency.class ), module.newValue( Currency.class ) );
+
+        ValueInternTable table = ValueInstance.getValueInstance( sek1 ).descriptor().internTable();
+        assertEquals( 2, table.hits() );
+    }
+
+    @Test
+    public void givenValueTypeWithoutInterningWhenBuildingEqualValuesThenReturnNewInstances()
+    {
+        Amount amount1 = module.newValue( Amount.class );
+        Amount amount2 = module.newValue( Amount.class );
+
+        assertNotSame( amount1, amount2 );
+        assertEquals( amount1, amount2 );
+        assertNull( ValueInstance.getValueInstance( amount1 ).descriptor().internTable() );
+    }
+
+    @Test
+    public void givenFullInternTableWhenBuildingValuesThenEvict()
+    {
+        List<Currency> currencies = new ArrayList<Currency>();
+        for( int i = 0; i < 200; i++ )
+        {
+            currencies.add( currency( "C" + i ) );
+        }
+
+        ValueInternTable table = ValueInstance.getValueInstance( currencies.get( 0 ) ).descriptor().internTable();
+        assertTrue( table.size() <= 100 );
+        assertTrue( table.evicted() >= 100 );
+        assertEquals( "C199", currency( "C199" ).code().get() );
+    }
+
+    @Test
+    public void givenPrototypeFromOtherModuleWhenBuildingThenDoNotChangeInternedValue()
+    {
+        Currency sek = currency( "SEK" );
+        Currency otherSek = currency( application.findModule( "Layer 1", "Module 2" ), "SEK" );
+
+        // The prototype is copied through JSON, which gives the interned instance of this module
+        ValueBuilder<Currency> builder = module.newValueBuilderWithPrototype( otherSek );
+        builder.prototype().code().set( "USD" );
+
+        assertEquals( "SEK", sek.code().get() );
+        assertSame( sek, currency( "SEK" ) );
+        assertEquals( "USD", builder.newInstance().code().get() );
+    }
+
+    private Currency currency( String code )
+    {
+        return currency( module, code );
+    }
+
+    private Currency currency( Module module, String code )
+    {
+        ValueBuilder<Currency> builder = module.newValueBuilder( Currency.class );
+        builder.prototype().code().set( code );
+        return builder.newInstance();
+    }
+
+    public interface Currency
+        extends ValueComposite
+    {
+        @UseDefaults
+        Property<String> code();
+    }
+
+    public interface Amount
+        extends ValueComposite
+    {
+        @UseDefaults
+        Property<Integer> amount();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.runtime.value;
+
+import org.junit.Test;
+import org.qi4j.api.common.UseDefaults;
+import org.qi4j.api.property.Property;
+import org.qi4j.api.value.ValueBuilder;
+import org.qi4j.api.value.ValueComposite;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.test.AbstractQi4jTest;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the slot based state of values
+ */
+public class ValueStateSlotsTest
+    extends AbstractQi4jTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        module.values( SomeValue.class );
+    }
+
+    @Test
+    public void givenValueWhenReadingPropertiesThenUseSlots()
+        throws NoSuchMethodException
+    {
+        ValueBuilder<SomeValue> builder = module.newValueBuilder( SomeValue.class );
+        builder.prototype().name().set( "Rickard" );
+        builder.prototype().age().set( 42 );
+        SomeValue value = builder.newInstance();
+
+        assertEquals( "Rickard", value.name().get() );
+        assertEquals( Integer.valueOf( 42 ), value.age().get() );
+
+        ValueStateInstance state = ValueInstance.getValueInstance( value ).state();
+        assertSame( value.name(), state.propertyFor( SomeValue.class.getMethod( "name" ) ) );
+    }
+
+    @Test
+    public void givenDefaultCollectionWhenCreatingBuildersThenDoNotShareDefault()
+    {
+        ValueBuilder<SomeValue> builder1 = module.newValueBuilder( SomeValue.class );
+        builder1.prototype().tags().get().add( "foo" );
+
+        ValueBuilder<SomeValue> builder2 = module.newValueBuilder( SomeValue.class );
+
+        assertEquals( 1, builder1.newInstance().tags().get().size() );
+        assertEquals( 0, builder2.newInstance().tags().get().size() );
+        assertEquals( Integer.valueOf( 0 ), module.newValue( SomeValue.class ).age().get() );
+    }
+
+    @Test
+    public void givenEqualStateWhenComparingValuesThenEqual()
+    {
+        ValueBuilder<SomeValue> builder = module.newValueBuilder( SomeValue.class );
+        builder.prototype().name().set( "Rickard" );
+        SomeValue value1 = builder.newInstance();
+
+        builder = module.newValueBuilder( SomeValue.class );
+        builder.prototype().name().set( "Rickard" );
+        SomeValue value2 = builder.newInstance();
+
+        assertEquals( value1, value2 );
+        assertEquals( value1.hashCode(), value2.hashCode() );
+    }
+
+    @Test
+    public void givenValueWhenBuildingFromPrototypeThenHashCodeIsNotStale()
+    {
+        ValueBuilder<SomeValue> builder = module.newValueBuilder( SomeValue.class );
+        builder.prototype().name().set( "Rickard" );
+        SomeValue value1 = builder.newInstance();
+        int hashCode = value1.hashCode();
+        assertEquals( hashCode, value1.hashCode() );
+
+        builder = module.newValueBuilderWithPrototype( value1 );
+        builder.prototype().name().set( "Niclas" );
+        SomeValue value2 = builder.newInstance();
+
+        assertFalse( value1.equals( value2 ) );
+        assertFalse( hashCode == value2.hashCode() );
+        assertEquals( value2, module.newValueBuilderWithPrototype( value2 ).newInstance() );
+    }
+
+    @Test
+    public void givenPrototypeWhenChangingOneSlotThenShareTheOtherSlots()
+        throws NoSuchMethodException
+    {
+        ValueBuilder<SomeValue> builder = module.newValueBuilder( SomeValue.class );
+        builder.prototype().name().set( "Rickard" );
+        builder.prototype().tags().get().add( "foo" );
+        SomeValue value1 = builder.newInstance();
+
+        builder = module.newValueBuilderWithPrototype( value1 );
+        builder.prototype().tags().get().add( "bar" );
+        SomeValue value2 = builder.newInstance();
+
+        assertEquals( 1, value1.tags().get().size() );
+        assertEquals( 2, value2.tags().get().size() );
+        assertEquals( "Rickard", value2.name().get() );
+
+        ValueStateInstance state1 = ValueInstance.getValueInstance( value1 ).state();
+        ValueStateInstance state2 = ValueInstance.getValueInstance( value2 ).state();
+        assertSame( state1.propertyFor( SomeValue.class.getMethod( "name" ) ), state2.propertyFor( SomeValue.class.getMethod( "name" ) ) );
+        assertNotSame( state1.propertyFor( SomeValue.class.getMethod( "tags" ) ), state2.propertyFor( SomeValue.class.getMethod( "tags" ) ) );
+
+        try
+        {
+            value2.name().set( "Niclas" );
+            fail( "Shared property should be immutable" );
+        }
+        catch( IllegalStateException e )
+        {
+            // Ok
+        }
+    }
+
+    public interface SomeValue
+        extends ValueComposite
+    {
+        @UseDefaults
+        Property<String> name();
+
+        @UseDefaults
+        Property<Integer> age();
+
+        @UseDefaults
+        Property<List<String>> tags();
+    }
+}
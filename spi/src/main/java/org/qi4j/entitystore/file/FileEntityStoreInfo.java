@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.file;
+
+import java.io.File;
+
+/**
+ * Meta-info of a {@link FileEntityStoreService}, which must be set on the service.
+ */
+public final class FileEntityStoreInfo
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * When commits are written to the disk.
+     */
+    public enum Sync
+    {
+        /**
+         * Leave it to the operating system. Commits may be lost if it crashes.
+         */
+        NEVER,
+
+        /**
+         * Before each commit completes. Commits that complete at the same time are written together.
+         */
+        COMMIT,
+
+        /**
+         * Regularly, as set by the sync interval. Commits made since the last write may be lost.
+         */
+        INTERVAL
+    }
+
+    private final File directory;
+    private final Sync sync;
+    private final long syncInterval;
+    private final int segmentSize;
+
+    /**
+     * Write commits to the disk before they complete, in segments of the default size.
+     */
+    public FileEntityStoreInfo( File directory )
+    {
+        this( directory, Sync.COMMIT, 0, DEFAULT_SEGMENT_SIZE );
+    }
+
+    /**
+     * @param directory    where the segment files are
+     * @param sync         when commits are written to the disk
+     * @param syncInterval milliseconds between writes, for {@link Sync#INTERVAL}
+     * @param segmentSize  size in bytes of segment files
+     */
+    public FileEntityStoreInfo( File directory, Sync sync, long syncInterval, int segmentSize )
+    {
+        this.directory = directory;
+        this.sync = sync;
+        this.syncInterval = syncInterval;
+        this.segmentSize = segmentSize;
+    }
+
+    public File directory()
+    {
+        return directory;
+    }
+
+    public Sync sync()
+    {
+        return sync;
+    }
+
+    public long syncInterval()
+    {
+        return syncInterval;
+    }
+
+    public int segmentSize()
+    {
+        return segmentSize;
+    }
+}
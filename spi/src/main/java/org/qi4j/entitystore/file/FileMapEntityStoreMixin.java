@@ -0,0 +1,854 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.file;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.injection.scope.Uses;
+import org.qi4j.api.service.Activatable;
+import org.qi4j.api.service.ServiceDescriptor;
+import org.qi4j.functional.Specification;
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.BytesMapChanger;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of MapEntityStore that appends each commit as a record to a log of {@link LogSegment} files
+ * in the directory set by the {@link FileEntityStoreInfo} of the service.
+ * <p>
+ * An index in memory maps the identity of each entity to its latest state in the log, which is read
+ * from the memory-mapped segment. The index is rebuilt from the log when the service is activated. A record that
+ * was not completely written at the end of the log is then cleared, but a corrupt record in an earlier segment
+ * fails the activation, so that the records after it are not lost.
+ * Segments where less than half of the space is used by current states are compacted in the background,
+ * by appending those states again and deleting the segment.
+ * </p>
+ * <p>
+ * Entities are read concurrently. entityStates() and backup() walk the segments, and see the state as of when
+ * they started.
+ * </p>
+ */
+public class FileMapEntityStoreMixin
+    implements MapEntityStore, BackupRestore, Activatable
+{
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    @Uses
+    private ServiceDescriptor descriptor;
+
+    private FileEntityStoreInfo info;
+    private Logger logger;
+
+    // Latest state of each entity, as segment id in the high and offset in the low 32 bits
+    private final ConcurrentMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentSkipListMap<Integer, LogSegment> segments = new ConcurrentSkipListMap<Integer, LogSegment>();
+
+    // Guards appending to the log and the fields below
+    private final Object commitLock = new Object();
+    private LogSegment active;
+    private int lastSegmentId;
+    private int scans;
+    private boolean compactionScheduled;
+
+    private ScheduledExecutorService executor;
+
+    private final Specification<EntityReference> committed = new Specification<EntityReference>()
+    {
+        public boolean satisfiedBy( EntityReference reference )
+        {
+            return index.containsKey( reference.identity() );
+        }
+    };
+
+    public void activate()
+        throws Exception
+    {
+        info = descriptor.metaInfo( FileEntityStoreInfo.class );
+        if( info == null )
+        {
+            throw new IllegalStateException( "Service " + descriptor.identity() + " has no FileEntityStoreInfo meta-info" );
+        }
+        logger = LoggerFactory.getLogger( descriptor.identity() );
+
+        File directory = info.directory();
+        if( !directory.exists() && !directory.mkdirs() )
+        {
+            throw new IOException( "Could not create directory " + directory );
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, descriptor.identity() + "-log" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+
+        synchronized( commitLock )
+        {
+            recover( directory );
+            scheduleCompaction();
+        }
+
+        if( info.sync() == FileEntityStoreInfo.Sync.INTERVAL )
+        {
+            executor.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    LogSegment segment;
+                    synchronized( commitLock )
+                    {
+                        segment = active;
+                    }
+                    if( segment != null )
+                    {
+                        sync( segment );
+                    }
+                }
+            }, info.syncInterval(), info.syncInterval(), TimeUnit.MILLISECONDS );
+        }
+    }
+
+    public void passivate()
+        throws Exception
+    {
+        executor.shutdown();
+        executor.awaitTermination( 1, TimeUnit.MINUTES );
+
+        synchronized( commitLock )
+        {
+            if( active != null )
+            {
+                active.sync();
+            }
+            active = null;
+            for( LogSegment segment : segments.values() )
+            {
+                segment.close();
+            }
+            index.clear();
+            segments.clear();
+        }
+    }
+
+    public Reader get( EntityReference entityReference )
+        throws EntityStoreException
+    {
+        while( true )
+        {
+            Long location = index.get( entityReference.identity() );
+            if( location == null )
+            {
+                throw new EntityNotFoundException( entityReference );
+            }
+
+            LogSegment segment = segments.get( segment( location ) );
+            if( segment != null && segment.acquire() )
+            {
+                try
+                {
+                    return reader( segment.state( offset( location ) ) );
+                }
+                finally
+                {
+                    segment.release();
+                }
+            }
+
+            // The segment was compacted, so the state has moved
+        }
+    }
+
+    public void applyChanges( MapEntityStore.MapChanges changes )
+        throws IOException
+    {
+        EntityChanges<byte[]> entityChanges = new EntityChanges<byte[]>();
+        changes.visitMap( new BytesMapChanger( entityChanges ) );
+
+        LogSegment segment;
+        synchronized( commitLock )
+        {
+            // Validate all changes before applying any of them
+            Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+            for( Map.Entry<EntityReference, byte[]> state : entityChanges.validate( committed ).entrySet() )
+            {
+                states.put( state.getKey().identity(), state.getValue() );
+            }
+
+            append( states );
+            segment = active;
+        }
+
+        // Outside of the lock, so that commits that complete at the same time are synced together
+        if( info.sync() == FileEntityStoreInfo.Sync.COMMIT )
+        {
+            sync( segment );
+        }
+    }
+
+    public Input<Reader, IOException> entityStates()
+    {
+        return new Input<Reader, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super Reader, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<Reader, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super Reader, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        Scan scan = new Scan();
+                        try
+                        {
+                            for( int i = 0; i < scan.segments.size(); i++ )
+                            {
+                                LogSegment segment = scan.segments.get( i );
+                                for( Integer offset : scan.states( i ) )
+                                {
+                                    receiver.receive( reader( segment.state( offset ) ) );
+                                }
+                            }
+                        }
+                        finally
+                        {
+                            scan.done();
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    public Input<String, IOException> backup()
+    {
+        return new Input<String, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super String, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<String, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super String, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        Scan scan = new Scan();
+                        try
+                        {
+                            for( int i = 0; i < scan.segments.size(); i++ )
+                            {
+                                LogSegment segment = scan.segments.get( i );
+                                for( Integer offset : scan.states( i ) )
+                                {
+                                    receiver.receive( UTF_8.decode( segment.state( offset ) ).toString() );
+                                }
+                            }
+                        }
+                        finally
+                        {
+                            scan.done();
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    public Output<String, IOException> restore()
+    {
+        return new Output<String, IOException>()
+        {
+            @Override
+            public <SenderThrowableType extends Throwable> void receiveFrom( Sender<? extends String, SenderThrowableType> sender )
+                throws IOException, SenderThrowableType
+            {
+                synchronized( commitLock )
+                {
+                    clear();
+                    try
+                    {
+                        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+                        sender.sendTo( new Receiver<String, IOException>()
+                        {
+                            public void receive( String item )
+                                throws IOException
+                            {
+                                try
+                                {
+                                    JSONTokener tokener = new JSONTokener( item );
+                                    JSONObject entity = (JSONObject) tokener.nextValue();
+                                    String id = entity.getString( JSONKeys.identity.name() );
+                                    states.put( id, item.getBytes( UTF_8 ) );
+                                    if( states.size() >= 1000 )
+                                    {
+                                        append( states );
+                                        states.clear();
+                                    }
+                                }
+                                catch( JSONException e )
+                                {
+                                    throw new IOException( e );
+                                }
+                            }
+                        } );
+                        append( states );
+                        active.sync();
+                    }
+                    catch( IOException e )
+                    {
+                        clear();
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+
+    // Called while holding the commit lock
+
+    private void recover( File directory )
+        throws IOException
+    {
+        index.clear();
+        segments.clear();
+        active = null;
+        lastSegmentId = 0;
+
+        Map<Integer, File> files = new TreeMap<Integer, File>();
+        File[] directoryFiles = directory.listFiles();
+        if( directoryFiles != null )
+        {
+            for( File file : directoryFiles )
+            {
+                int id = LogSegment.id( file.getName() );
+                if( id != -1 )
+                {
+                    files.put( id, file );
+                }
+            }
+        }
+
+        LogSegment corrupt = null;
+        for( Map.Entry<Integer, File> file : files.entrySet() )
+        {
+            final LogSegment segment = LogSegment.open( file.getValue(), file.getKey() );
+            segments.put( segment.id(), segment );
+            int end = segment.read( segment.capacity(), new LogSegment.EntryVisitor()
+            {
+                public void put( String identity, int offset )
+                {
+                    Long previous = index.put( identity, location( segment.id(), offset ) );
+                    if( previous != null )
+                    {
+                        release( previous );
+                    }
+                    segment.live += segment.stateSize( offset );
+                }
+
+                public void remove( String identity )
+                {
+                    Long previous = index.remove( identity );
+                    if( previous != null )
+                    {
+                        release( previous );
+                    }
+                }
+            } );
+
+            if( corrupt != null && end > 0 )
+            {
+                for( LogSegment opened : segments.values() )
+                {
+                    opened.close();
+                }
+                segments.clear();
+                index.clear();
+                throw new IOException( "Segment " + corrupt.file() + " is corrupt after offset " + corrupt.position()
+                                       + ", but later segments have records. Move it away to open the store" );
+            }
+            if( corrupt == null && !segment.isEnd( end ) )
+            {
+                corrupt = segment;
+            }
+            segment.seal( end );
+            active = segment;
+            lastSegmentId = segment.id();
+        }
+
+        if( active != null )
+        {
+            // Only the records at the end of the log can be incomplete, so only they are cleared
+            for( LogSegment segment : segments.tailMap( corrupt == null ? active.id() : corrupt.id() ).values() )
+            {
+                segment.recover( segment.position() );
+            }
+        }
+        else
+        {
+            active = newSegment( info.segmentSize() );
+        }
+        logger.debug( "Opened " + segments.size() + " segments with " + index.size() + " entities in " + directory );
+    }
+
+    private void append( Map<String, byte[]> states )
+        throws IOException
+    {
+        if( states.isEmpty() )
+        {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        int[] stateOffsets = new int[ states.size() ];
+        int i = 0;
+        for( Map.Entry<String, byte[]> state : states.entrySet() )
+        {
+            byte[] identity = state.getKey().getBytes( UTF_8 );
+            out.writeByte( state.getValue() == null ? LogSegment.REMOVE : LogSegment.PUT );
+            out.writeInt( identity.length );
+            out.write( identity );
+            if( state.getValue() != null )
+            {
+                stateOffsets[ i ] = out.size();
+                out.writeInt( state.getValue().length );
+                out.write( state.getValue() );
+            }
+            i++;
+        }
+        out.close();
+        byte[] payload = bytes.toByteArray();
+
+        if( active.remaining() < LogSegment.RECORD_HEADER_SIZE + payload.length )
+        {
+            LogSegment previous = active;
+            active = newSegment( Math.max( info.segmentSize(), LogSegment.RECORD_HEADER_SIZE + payload.length ) );
+            if( info.sync() != FileEntityStoreInfo.Sync.NEVER )
+            {
+                previous.sync();
+            }
+        }
+        int payloadOffset = active.append( payload );
+
+        i = 0;
+        for( Map.Entry<String, byte[]> state : states.entrySet() )
+        {
+            Long previous;
+            if( state.getValue() == null )
+            {
+                previous = index.remove( state.getKey() );
+            }
+            else
+            {
+                previous = index.put( state.getKey(), location( active.id(), payloadOffset + stateOffsets[ i ] ) );
+                active.live += 4 + state.getValue().length;
+            }
+            if( previous != null )
+            {
+                release( previous );
+            }
+            i++;
+        }
+        scheduleCompaction();
+    }
+
+    private void release( long location )
+    {
+        LogSegment segment = segments.get( segment( location ) );
+        if( segment != null )
+        {
+            segment.live -= segment.stateSize( offset( location ) );
+        }
+    }
+
+    private LogSegment newSegment( int size )
+        throws IOException
+    {
+        // Ids are not reused, as the file of a deleted segment may still be in use by a reader
+        int id = ++lastSegmentId;
+        LogSegment segment = LogSegment.create( info.directory(), id, size );
+        segments.put( id, segment );
+        return segment;
+    }
+
+    private LogSegment sparseSegment()
+    {
+        LogSegment sparsest = null;
+        for( LogSegment segment : segments.values() )
+        {
+            if( segment != active && segment.live < segment.position() / 2 )
+            {
+                if( sparsest == null || segment.live * (long) sparsest.position() < sparsest.live * (long) segment.position() )
+                {
+                    sparsest = segment;
+                }
+            }
+        }
+        return sparsest;
+    }
+
+    private void scheduleCompaction()
+    {
+        if( compactionScheduled || scans > 0 || executor == null || executor.isShutdown() || sparseSegment() == null )
+        {
+            return;
+        }
+
+        compactionScheduled = true;
+        executor.execute( new Runnable()
+        {
+            public void run()
+            {
+                LogSegment segment;
+                List<LogSegment> older = new ArrayList<LogSegment>();
+                synchronized( commitLock )
+                {
+                    compactionScheduled = false;
+                    if( scans > 0 || active == null )
+                    {
+                        return;
+                    }
+                    segment = sparseSegment();
+                    if( segment == null )
+                    {
+                        return;
+                    }
+                    segment.acquire();
+                    for( LogSegment olderSegment : segments.headMap( segment.id() ).values() )
+                    {
+                        olderSegment.acquire();
+                        older.add( olderSegment );
+                    }
+                }
+
+                try
+                {
+                    compact( segment, older );
+                }
+                catch( IOException e )
+                {
+                    logger.warn( "Could not compact " + segment.file(), e );
+                    return;
+                }
+                finally
+                {
+                    segment.release();
+                    for( LogSegment olderSegment : older )
+                    {
+                        olderSegment.release();
+                    }
+                }
+
+                synchronized( commitLock )
+                {
+                    scheduleCompaction();
+                }
+            }
+        } );
+    }
+
+    /**
+     * Move the current states of a segment to the end of the log, and delete it. The segments are read without
+     * holding the commit lock, which is only taken to append the states that have not changed meanwhile.
+     *
+     * @param segment the segment to compact, which is not the active one
+     * @param older   the segments before it
+     */
+    private void compact( final LogSegment segment, List<LogSegment> older )
+        throws IOException
+    {
+        final Set<String> removed = new HashSet<String>();
+        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+        final Map<String, Long> locations = new HashMap<String, Long>();
+        segment.read( segment.position(), new LogSegment.EntryVisitor()
+        {
+            public void put( String identity, int offset )
+            {
+                Long location = index.get( identity );
+                if( location != null && location == location( segment.id(), offset ) )
+                {
+                    ByteBuffer state = segment.state( offset );
+                    byte[] bytes = new byte[ state.remaining() ];
+                    state.get( bytes );
+                    states.put( identity, bytes );
+                    locations.put( identity, location );
+                }
+            }
+
+            public void remove( String identity )
+            {
+                if( !index.containsKey( identity ) )
+                {
+                    removed.add( identity );
+                }
+            }
+        } );
+
+        // Removals must be kept while an older segment has state of the entity, which would be recovered otherwise
+        if( !removed.isEmpty() )
+        {
+            for( LogSegment olderSegment : older )
+            {
+                olderSegment.read( olderSegment.position(), new LogSegment.EntryVisitor()
+                {
+                    public void put( String identity, int offset )
+                    {
+                        if( removed.contains( identity ) )
+                        {
+                            states.put( identity, null );
+                        }
+                    }
+
+                    public void remove( String identity )
+                    {
+                    }
+                } );
+            }
+        }
+
+        LogSegment target;
+        synchronized( commitLock )
+        {
+            if( segments.get( segment.id() ) != segment )
+            {
+                // The store was restored meanwhile
+                return;
+            }
+
+            // Skip the entities that were changed meanwhile
+            Iterator<Map.Entry<String, byte[]>> iterator = states.entrySet().iterator();
+            while( iterator.hasNext() )
+            {
+                String identity = iterator.next().getKey();
+                Long location = index.get( identity );
+                if( location == null ? locations.containsKey( identity ) : !location.equals( locations.get( identity ) ) )
+                {
+                    iterator.remove();
+                }
+            }
+
+            append( states );
+            target = active;
+        }
+
+        // The moved states must be on disk before the segment is deleted
+        if( !sync( target ) )
+        {
+            // The store was restored meanwhile
+            return;
+        }
+
+        synchronized( commitLock )
+        {
+            if( segments.remove( segment.id(), segment ) && !segment.delete() )
+            {
+                logger.warn( "Could not delete compacted segment " + segment.file() );
+            }
+        }
+    }
+
+    /**
+     * Sync a segment outside of the commit lock. The segment is acquired, so that it is not unmapped meanwhile.
+     *
+     * @return false if the segment was closed, and so not synced
+     */
+    private static boolean sync( LogSegment segment )
+    {
+        if( !segment.acquire() )
+        {
+            return false;
+        }
+        try
+        {
+            segment.sync();
+            return true;
+        }
+        finally
+        {
+            segment.release();
+        }
+    }
+
+    private void clear()
+        throws IOException
+    {
+        for( LogSegment segment : segments.values() )
+        {
+            if( !segment.delete() )
+            {
+                throw new IOException( "Could not delete " + segment.file() );
+            }
+        }
+        segments.clear();
+        index.clear();
+        active = newSegment( info.segmentSize() );
+    }
+
+    private static Reader reader( ByteBuffer state )
+    {
+        CharBuffer chars = UTF_8.decode( state );
+        return new CharArrayReader( chars.array(), chars.arrayOffset() + chars.position(), chars.remaining() );
+    }
+
+    private static long location( int segment, int offset )
+    {
+        return ( (long) segment << 32 ) | offset;
+    }
+
+    private static int segment( long location )
+    {
+        return (int) ( location >>> 32 );
+    }
+
+    private static int offset( long location )
+    {
+        return (int) location;
+    }
+
+    /**
+     * The states in the log as of when the scan was started. Segments are not compacted until it is done.
+     * <p/>
+     * Only the segments and where they end are taken under the commit lock. The states are then found by reading
+     * the log up to those ends, the same way as the index is rebuilt on activation.
+     */
+    private class Scan
+    {
+        private final List<LogSegment> segments;
+        private final List<Integer> ends = new ArrayList<Integer>();
+        private final Map<Integer, List<Integer>> offsets = new HashMap<Integer, List<Integer>>();
+
+        private Scan()
+        {
+            synchronized( commitLock )
+            {
+                segments = new ArrayList<LogSegment>( FileMapEntityStoreMixin.this.segments.values() );
+                for( LogSegment segment : segments )
+                {
+                    segment.acquire();
+                    ends.add( segment.position() );
+                }
+                scans++;
+            }
+
+            try
+            {
+                final Map<String, Long> locations = new HashMap<String, Long>();
+                for( int i = 0; i < segments.size(); i++ )
+                {
+                    final LogSegment segment = segments.get( i );
+                    segment.read( ends.get( i ), new LogSegment.EntryVisitor()
+                    {
+                        public void put( String identity, int offset )
+                        {
+                            locations.put( identity, location( segment.id(), offset ) );
+                        }
+
+                        public void remove( String identity )
+                        {
+                            locations.remove( identity );
+                        }
+                    } );
+                }
+
+                for( Long location : locations.values() )
+                {
+                    List<Integer> segmentOffsets = offsets.get( segment( location ) );
+                    if( segmentOffsets == null )
+                    {
+                        segmentOffsets = new ArrayList<Integer>();
+                        offsets.put( segment( location ), segmentOffsets );
+                    }
+                    segmentOffsets.add( offset( location ) );
+                }
+                for( List<Integer> segmentOffsets : offsets.values() )
+                {
+                    Collections.sort( segmentOffsets );
+                }
+            }
+            catch( RuntimeException e )
+            {
+                done();
+                throw e;
+            }
+        }
+
+        /**
+         * @return offsets of the states in the segment that are part of the scan, in the order they are in
+         */
+        private List<Integer> states( int segmentIndex )
+        {
+            List<Integer> segmentOffsets = offsets.get( segments.get( segmentIndex ).id() );
+            return segmentOffsets == null ? Collections.<Integer>emptyList() : segmentOffsets;
+        }
+
+        private void done()
+        {
+            for( LogSegment segment : segments )
+            {
+                segment.release();
+            }
+            synchronized( commitLock )
+            {
+                scans--;
+                scheduleCompaction();
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Segment file of the log of a {@link FileMapEntityStoreMixin}. The file has a fixed size and is memory-mapped,
+ * so records are both written and read through the mapping. Records are appended until the segment is full.
+ * <p>
+ * A record is the length of the payload, its CRC32 and the payload, which is the entries of one commit.
+ * An entry is a type byte, the length of the identity, the UTF-8 identity, and for {@link #PUT} entries
+ * the length of the state and the UTF-8 state. A length of zero marks the end of the records.
+ * </p>
+ * <p>
+ * The mapping is released when the segment is closed and no reader uses it, so that the file can be deleted
+ * while the store is open.
+ * </p>
+ */
+final class LogSegment
+{
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private final int id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    // End of the records, written while holding the commit lock of the store
+    private volatile int position;
+    private volatile int synced;
+
+    // The store and the readers that use the mapping, which is released when there are none
+    private final AtomicInteger users = new AtomicInteger( 1 );
+    private volatile boolean deleted;
+
+    // Bytes of the states in this segment that are current, guarded by the commit lock of the store
+    int live;
+
+    static LogSegment create( File directory, int id, int size )
+        throws IOException
+    {
+        File file = new File( directory, fileName( id ) );
+        RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+        try
+        {
+            randomAccessFile.setLength( size );
+            return new LogSegment( id, file, randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size ) );
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    static LogSegment open( File file, int id )
+        throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+        try
+        {
+            return new LogSegment( id, file, randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length() ) );
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    static String fileName( int id )
+    {
+        return String.format( "%010d.log", id );
+    }
+
+    /**
+     * @return the id of the segment file with the given name, or -1 if it is not one
+     */
+    static int id( String fileName )
+    {
+        if( !fileName.matches( "\\d{10}\\.log" ) )
+        {
+            return -1;
+        }
+        return Integer.parseInt( fileName.substring( 0, 10 ) );
+    }
+
+    private LogSegment( int id, File file, MappedByteBuffer buffer )
+    {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    int id()
+    {
+        return id;
+    }
+
+    File file()
+    {
+        return file;
+    }
+
+    int capacity()
+    {
+        return buffer.capacity();
+    }
+
+    int position()
+    {
+        return position;
+    }
+
+    int remaining()
+    {
+        return buffer.capacity() - position;
+    }
+
+    /**
+     * Append a record, which must fit in the remaining space.
+     *
+     * @return the offset of the payload
+     */
+    int append( byte[] payload )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        ByteBuffer out = buffer.duplicate();
+        out.position( position );
+        out.putInt( payload.length ).putInt( (int) crc.getValue() ).put( payload );
+        int offset = position + RECORD_HEADER_SIZE;
+        position = out.position();
+        return offset;
+    }
+
+    /**
+     * Write what has been appended to the disk. Concurrent calls are grouped, so that one write covers
+     * the records appended by all of them.
+     */
+    void sync()
+    {
+        int end = position;
+        if( synced >= end )
+        {
+            return;
+        }
+        synchronized( this )
+        {
+            if( synced >= end )
+            {
+                return;
+            }
+            int target = position;
+            buffer.force();
+            synced = target;
+        }
+    }
+
+    /**
+     * @return the state at the given offset, as a ByteBuffer of its own
+     */
+    ByteBuffer state( int offset )
+    {
+        ByteBuffer state = buffer.duplicate();
+        state.limit( offset + 4 + state.getInt( offset ) );
+        state.position( offset + 4 );
+        return state;
+    }
+
+    /**
+     * @return the number of bytes used by the state at the given offset
+     */
+    int stateSize( int offset )
+    {
+        return 4 + buffer.getInt( offset );
+    }
+
+    /**
+     * Read the records from the start of the segment, up to the given end or the first record that is
+     * incomplete or corrupt.
+     *
+     * @return the end of the last record that was read
+     */
+    int read( int end, EntryVisitor visitor )
+    {
+        ByteBuffer in = buffer.duplicate();
+        int offset = 0;
+        while( offset + RECORD_HEADER_SIZE <= end )
+        {
+            int length = in.getInt( offset );
+            if( length <= 0 || offset + RECORD_HEADER_SIZE + length > end )
+            {
+                break;
+            }
+
+            byte[] payload = new byte[ length ];
+            in.position( offset + RECORD_HEADER_SIZE );
+            in.get( payload );
+            CRC32 crc = new CRC32();
+            crc.update( payload );
+            if( (int) crc.getValue() != in.getInt( offset + 4 ) )
+            {
+                break;
+            }
+
+            ByteBuffer entries = ByteBuffer.wrap( payload );
+            while( entries.hasRemaining() )
+            {
+                byte type = entries.get();
+                byte[] identity = new byte[ entries.getInt() ];
+                entries.get( identity );
+                if( type == PUT )
+                {
+                    int stateOffset = offset + RECORD_HEADER_SIZE + entries.position();
+                    entries.position( entries.position() + 4 + entries.getInt( entries.position() ) );
+                    visitor.put( new String( identity, UTF_8 ), stateOffset );
+                }
+                else
+                {
+                    visitor.remove( new String( identity, UTF_8 ) );
+                }
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    /**
+     * @return true if there is nothing but zeros after the given end, which there is after the last record
+     *         unless a record is corrupt or was not completely written
+     */
+    boolean isEnd( int end )
+    {
+        ByteBuffer in = buffer.duplicate();
+        in.position( end );
+        return isZero( in );
+    }
+
+    /**
+     * Set the end of the records that were read when the store was opened, in a segment that is not appended to.
+     */
+    void seal( int end )
+    {
+        position = end;
+        synced = end;
+    }
+
+    /**
+     * Continue appending after the records that were read when the store was opened. Anything after them,
+     * such as a record that was not completely written, is cleared.
+     */
+    void recover( int end )
+    {
+        ByteBuffer out = buffer.duplicate();
+        out.position( end );
+        if( !isZero( out ) )
+        {
+            while( out.hasRemaining() )
+            {
+                out.put( (byte) 0 );
+            }
+            buffer.force();
+        }
+        position = end;
+        synced = end;
+    }
+
+    /**
+     * Use the segment for reading, until {@link #release()} is called.
+     *
+     * @return false if the segment is closed
+     */
+    boolean acquire()
+    {
+        while( true )
+        {
+            int count = users.get();
+            if( count == 0 )
+            {
+                return false;
+            }
+            if( users.compareAndSet( count, count + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stop using the segment. The mapping is released by the last user after the segment is closed.
+     *
+     * @return false if the mapping was released and the file could not be deleted
+     */
+    boolean release()
+    {
+        if( users.decrementAndGet() > 0 )
+        {
+            return true;
+        }
+        unmap( buffer );
+        if( deleted && !file.delete() )
+        {
+            file.deleteOnExit();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the mapping once no reader uses the segment.
+     */
+    void close()
+    {
+        release();
+    }
+
+    /**
+     * Release the mapping and delete the file once no reader uses the segment.
+     *
+     * @return false if the file could not be deleted
+     */
+    boolean delete()
+    {
+        deleted = true;
+        return release();
+    }
+
+    private static void unmap( MappedByteBuffer buffer )
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            Method invokeCleaner;
+            try
+            {
+                invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+            }
+            catch( NoSuchMethodException e )
+            {
+                // Before Java 9 the buffer has the cleaner
+                Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+                cleanerMethod.setAccessible( true );
+                Object cleaner = cleanerMethod.invoke( buffer );
+                cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+            theUnsafe.setAccessible( true );
+            invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+        }
+        catch( Exception e )
+        {
+            // Not available, so the mapping is released when the buffer is garbage collected
+        }
+    }
+
+    private static boolean isZero( ByteBuffer buffer )
+    {
+        for( int i = buffer.position(); i < buffer.limit(); i++ )
+        {
+            if( buffer.get( i ) != 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    interface EntryVisitor
+    {
+        void put( String identity, int offset );
+
+        void remove( String identity );
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.BinaryMapEntityStore;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-memory implementation of BinaryMapEntityStore. Each UnitOfWork is applied as one commit, and
+ * entityStates() sees the state as of when it started.
+ */
+public class MemoryBinaryMapEntityStoreMixin
+    implements BinaryMapEntityStore
+{
+    private final VersionedMap<byte[]> store;
+
+    public MemoryBinaryMapEntityStoreMixin()
+    {
+        store = new VersionedMap<byte[]>();
+    }
+
+    public InputStream get( EntityReference entityReference )
+        throws EntityStoreException
+    {
+        byte[] state = store.get( entityReference );
+        if( state == null )
+        {
+            throw new EntityNotFoundException( entityReference );
+        }
+
+        return new ByteArrayInputStream( state );
+    }
+
+    public void applyChanges( BinaryMapEntityStore.MapChanges changes )
+        throws IOException
+    {
+        MemoryMapChanger changer = new MemoryMapChanger();
+        changes.visitMap( changer );
+        store.apply( changer.changes );
+    }
+
+    public Input<InputStream, IOException> entityStates()
+    {
+        return new Input<InputStream, IOException>()
+        {
+           @Override
+           public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super InputStream, ReceiverThrowableType> output) throws IOException, ReceiverThrowableType
+           {
+                output.receiveFrom( new Sender<InputStream, IOException>()
+                {
+                   @Override
+                   public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super InputStream, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
+                   {
+                        VersionedMap<byte[]>.Snapshot snapshot = store.snapshot();
+                        try
+                        {
+                            for( byte[] state : snapshot )
+                            {
+                                receiver.receive( new ByteArrayInputStream( state ) );
+                            }
+                        }
+                        finally
+                        {
+                            snapshot.release();
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    private class MemoryMapChanger
+        implements MapChanger
+    {
+        private final EntityChanges<byte[]> changes = store.newChanges();
+
+        public OutputStream newEntity( final EntityReference ref, EntityDescriptor descriptor )
+        {
+            return new ByteArrayOutputStream( 256 )
+            {
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    super.close();
+                    changes.newEntity( ref, toByteArray() );
+                }
+            };
+        }
+
+        public OutputStream updateEntity( final EntityReference ref, EntityDescriptor descriptor )
+            throws IOException
+        {
+            return new ByteArrayOutputStream( 256 )
+            {
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    super.close();
+                    changes.updateEntity( ref, toByteArray() );
+                }
+            };
+        }
+
+        public void removeEntity( EntityReference ref, EntityDescriptor descriptor )
+            throws EntityNotFoundException
+        {
+            // Ignore if the entity didn't already exist, as that can happen if it is both created and removed
+            // within the same UnitOfWork.
+            changes.removeEntity( ref );
+        }
+    }
+}
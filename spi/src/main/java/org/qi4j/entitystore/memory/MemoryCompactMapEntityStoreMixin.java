@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.injection.scope.Uses;
+import org.qi4j.api.service.ServiceDescriptor;
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.BytesMapChanger;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-memory implementation of MapEntityStore that keeps the state of each entity as UTF-8 bytes,
+ * which are deflated if there are more of them than the threshold of the {@link Compression} of the
+ * service. Like {@link MemoryMapEntityStoreMixin} each UnitOfWork is applied as one commit, and
+ * entityStates() and backup() see the state as of when they started.
+ */
+public class MemoryCompactMapEntityStoreMixin
+    implements MapEntityStore, BackupRestore
+{
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    // First byte of stored state
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+
+    private final VersionedMap<byte[]> store = new VersionedMap<byte[]>();
+    private final int threshold;
+
+    public MemoryCompactMapEntityStoreMixin( @Uses ServiceDescriptor descriptor )
+    {
+        this( descriptor.metaInfo( Compression.class ) );
+    }
+
+    MemoryCompactMapEntityStoreMixin( Compression compression )
+    {
+        threshold = compression == null ? Compression.DEFAULT_THRESHOLD : compression.threshold();
+    }
+
+    public boolean contains( EntityReference entityReference, EntityDescriptor descriptor )
+        throws EntityStoreException
+    {
+        return store.get( entityReference ) != null;
+    }
+
+    public Reader get( EntityReference entityReference )
+        throws EntityStoreException
+    {
+        byte[] state = store.get( entityReference );
+        if( state == null )
+        {
+            throw new EntityNotFoundException( entityReference );
+        }
+
+        try
+        {
+            return reader( state );
+        }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( "Could not inflate state of " + entityReference, e );
+        }
+    }
+
+    public void applyChanges( MapEntityStore.MapChanges changes )
+        throws IOException
+    {
+        EntityChanges<byte[]> entityChanges = store.newChanges();
+        changes.visitMap( new BytesMapChanger( entityChanges )
+        {
+            @Override
+            protected byte[] encode( byte[] utf8 )
+                throws IOException
+            {
+                return MemoryCompactMapEntityStoreMixin.this.encode( utf8 );
+            }
+        } );
+        store.apply( entityChanges );
+    }
+
+    public Input<Reader, IOException> entityStates()
+    {
+        return new Input<Reader, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super Reader, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<Reader, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super Reader, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        VersionedMap<byte[]>.Snapshot snapshot = store.snapshot();
+                        try
+                        {
+                            for( byte[] state : snapshot )
+                            {
+                                receiver.receive( reader( state ) );
+                            }
+                        }
+                        finally
+                        {
+                            snapshot.release();
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    public Input<String, IOException> backup()
+    {
+        return new Input<String, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super String, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<String, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super String, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        VersionedMap<byte[]>.Snapshot snapshot = store.snapshot();
+                        try
+                        {
+                            for( byte[] state : snapshot )
+                            {
+                                receiver.receive( decode( state ) );
+                            }
+                        }
+                        finally
+                        {
+                            snapshot.release();
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    public Output<String, IOException> restore()
+    {
+        return new Output<String, IOException>()
+        {
+            @Override
+            public <SenderThrowableType extends Throwable> void receiveFrom( Sender<? extends String, SenderThrowableType> sender )
+                throws IOException, SenderThrowableType
+            {
+                final Map<EntityReference, byte[]> states = new HashMap<EntityReference, byte[]>();
+                try
+                {
+                    sender.sendTo( new Receiver<String, IOException>()
+                    {
+                        public void receive( String item )
+                            throws IOException
+                        {
+                            try
+                            {
+                                JSONTokener tokener = new JSONTokener( item );
+                                JSONObject entity = (JSONObject) tokener.nextValue();
+                                String id = entity.getString( JSONKeys.identity.name() );
+                                states.put( new EntityReference( id ), encode( item.getBytes( UTF_8 ) ) );
+                            }
+                            catch( JSONException e )
+                            {
+                                throw new IOException( e );
+                            }
+                        }
+                    } );
+                }
+                catch( IOException e )
+                {
+                    store.replaceAll( new HashMap<EntityReference, byte[]>() );
+                    throw e;
+                }
+                store.replaceAll( states );
+            }
+        };
+    }
+
+    /**
+     * @return the number of states that are kept, which is one per entity unless entityStates() or backup() run
+     */
+    int stateCount()
+    {
+        return store.versionCount();
+    }
+
+    private byte[] encode( byte[] utf8 )
+        throws IOException
+    {
+        if( utf8.length <= threshold )
+        {
+            byte[] state = new byte[ utf8.length + 1 ];
+            state[ 0 ] = PLAIN;
+            System.arraycopy( utf8, 0, state, 1, utf8.length );
+            return state;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( utf8.length / 4 + 16 );
+        bytes.write( DEFLATED );
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        DeflaterOutputStream out = new DeflaterOutputStream( bytes, deflater );
+        out.write( utf8 );
+        out.close();
+        deflater.end();
+        return bytes.toByteArray();
+    }
+
+    private static Reader reader( byte[] state )
+        throws IOException
+    {
+        if( state[ 0 ] == DEFLATED )
+        {
+            // Inflate all of it here, as readers of the store do not close what they get
+            return new StringReader( decode( state ) );
+        }
+        return new InputStreamReader( new ByteArrayInputStream( state, 1, state.length - 1 ), UTF_8 );
+    }
+
+    private static String decode( byte[] state )
+        throws IOException
+    {
+        if( state[ 0 ] != DEFLATED )
+        {
+            return new String( state, 1, state.length - 1, UTF_8 );
+        }
+
+        Inflater inflater = new Inflater();
+        try
+        {
+            Reader reader = new InputStreamReader( new InflaterInputStream( new ByteArrayInputStream( state, 1, state.length - 1 ), inflater ), UTF_8 );
+            StringBuilder string = new StringBuilder( state.length * 4 );
+            char[] buffer = new char[ 4096 ];
+            int count;
+            while( ( count = reader.read( buffer ) ) != -1 )
+            {
+                string.append( buffer, 0, count );
+            }
+            return string.toString();
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Meta-info of a service using this mixin, which sets above how many bytes of UTF-8 the state of an entity
+     * is deflated. Without it state larger than {@link #DEFAULT_THRESHOLD} bytes is deflated.
+     */
+    public static final class Compression
+    {
+        public static final int DEFAULT_THRESHOLD = 1024;
+
+        /**
+         * Never deflate the state.
+         */
+        public static final Compression NONE = new Compression( Integer.MAX_VALUE );
+
+        private final int threshold;
+
+        public Compression( int threshold )
+        {
+            this.threshold = threshold;
+        }
+
+        public int threshold()
+        {
+            return threshold;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import org.qi4j.api.mixin.Mixins;
 import org.qi4j.api.service.ServiceComposite;
 import org.qi4j.spi.entitystore.*;
 import org.qi4j.spi.entitystore.helpers.JSONMapEntityStoreMixin;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
 import org.qi4j.spi.entitystore.helpers.StateStore;
 
 /**
@@ -27,6 +28,7 @@ import org.qi4j.spi.entitystore.helpers.StateStore;
  */
 @Concerns( { StateChangeNotificationConcern.class, ConcurrentModificationCheckConcern.class } )
 @Mixins( { JSONMapEntityStoreMixin.class, MemoryMapEntityStoreMixin.class } )
+@MapEntityStore.ThreadSafe
 public interface MemoryEntityStoreService
     extends EntityStore, EntityStateVersions, BackupRestore, StateStore, ServiceComposite
 {
@@ -10,9 +10,9 @@ import org.qi4j.io.Output;
 import org.qi4j.io.Receiver;
 import org.qi4j.io.Sender;
 import org.qi4j.spi.entitystore.BackupRestore;
-import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
 import org.qi4j.spi.entitystore.helpers.MapEntityStore;
 
 import java.io.*;
@@ -20,22 +20,23 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
- * In-memory implementation of MapEntityStore.
+ * In-memory implementation of MapEntityStore. Each UnitOfWork is applied as one commit, and
+ * entityStates() and backup() see the state as of when they started.
  */
 public class MemoryMapEntityStoreMixin
     implements MapEntityStore, BackupRestore
 {
-    private final Map<EntityReference, String> store;
+    private final VersionedMap<String> store;
 
     public MemoryMapEntityStoreMixin()
     {
-        store = new HashMap<EntityReference, String>();
+        store = new VersionedMap<String>();
     }
 
     public boolean contains( EntityReference entityReference, EntityDescriptor descriptor )
         throws EntityStoreException
     {
-        return store.containsKey( entityReference );
+        return store.get( entityReference ) != null;
     }
 
     public Reader get( EntityReference entityReference )
@@ -53,7 +54,9 @@ public class MemoryMapEntityStoreMixin
     public void applyChanges( MapEntityStore.MapChanges changes )
         throws IOException
     {
-        changes.visitMap( new MemoryMapChanger() );
+        MemoryMapChanger changer = new MemoryMapChanger();
+        changes.visitMap( changer );
+        store.apply( changer.changes );
     }
 
     public Input<Reader, IOException> entityStates()
@@ -68,9 +71,17 @@ public class MemoryMapEntityStoreMixin
                    @Override
                    public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super Reader, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
                    {
-                        for( String state : store.values() )
+                        VersionedMap<String>.Snapshot snapshot = store.snapshot();
+                        try
                         {
-                            receiver.receive( new StringReader( state ) );
+                            for( String state : snapshot )
+                            {
+                                receiver.receive( new StringReader( state ) );
+                            }
+                        }
+                        finally
+                        {
+                            snapshot.release();
                         }
                     }
                 } );
@@ -90,9 +101,17 @@ public class MemoryMapEntityStoreMixin
                    @Override
                    public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super String, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
                    {
-                        for( String state : store.values() )
+                        VersionedMap<String>.Snapshot snapshot = store.snapshot();
+                        try
+                        {
+                            for( String state : snapshot )
+                            {
+                                receiver.receive( state );
+                            }
+                        }
+                        finally
                         {
-                            receiver.receive( state );
+                            snapshot.release();
                         }
                     }
                 } );
@@ -107,8 +126,7 @@ public class MemoryMapEntityStoreMixin
            @Override
            public <SenderThrowableType extends Throwable> void receiveFrom(Sender<? extends String, SenderThrowableType> sender) throws IOException, SenderThrowableType
            {
-                store.clear();
-
+                final Map<EntityReference, String> states = new HashMap<EntityReference, String>();
                 try
                 {
                     sender.sendTo( new Receiver<String, IOException>()
@@ -121,7 +139,7 @@ public class MemoryMapEntityStoreMixin
                                 JSONTokener tokener = new JSONTokener( item );
                                 JSONObject entity = (JSONObject) tokener.nextValue();
                                 String id = entity.getString( JSONKeys.identity.name() );
-                                store.put( new EntityReference( id ), item );
+                                states.put( new EntityReference( id ), item );
                             }
                             catch( JSONException e )
                             {
@@ -132,9 +150,10 @@ public class MemoryMapEntityStoreMixin
                 }
                 catch( IOException e )
                 {
-                    store.clear();
+                    store.replaceAll( new HashMap<EntityReference, String>() );
                     throw e;
                 }
+                store.replaceAll( states );
             }
         };
     }
@@ -142,6 +161,8 @@ public class MemoryMapEntityStoreMixin
     private class MemoryMapChanger
         implements MapChanger
     {
+        private final EntityChanges<String> changes = store.newChanges();
+
         public Writer newEntity( final EntityReference ref, EntityDescriptor descriptor )
         {
             return new StringWriter( 1000 )
@@ -151,12 +172,7 @@ public class MemoryMapEntityStoreMixin
                     throws IOException
                 {
                     super.close();
-                    String old = store.put( ref, toString() );
-                    if( old != null )
-                    {
-                        store.put( ref, old );
-                        throw new EntityAlreadyExistsException( ref );
-                    }
+                    changes.newEntity( ref, toString() );
                 }
             };
         }
@@ -171,12 +187,7 @@ public class MemoryMapEntityStoreMixin
                     throws IOException
                 {
                     super.close();
-                    String old = store.put( ref, toString() );
-                    if( old == null )
-                    {
-                        store.remove( ref );
-                        throw new EntityNotFoundException( ref );
-                    }
+                    changes.updateEntity( ref, toString() );
                 }
             };
         }
@@ -184,13 +195,9 @@ public class MemoryMapEntityStoreMixin
         public void removeEntity( EntityReference ref, EntityDescriptor descriptor )
             throws EntityNotFoundException
         {
-            String state = store.remove( ref );
             // Ignore if the entity didn't already exist, as that can happen if it is both created and removed
             // within the same UnitOfWork.
-//            if( state == null )
-//            {
-//                throw new EntityNotFoundException( ref );
-//            }
+            changes.removeEntity( ref );
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.qi4j.api.concern.Concerns;
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.service.ServiceComposite;
+import org.qi4j.spi.entitystore.*;
+import org.qi4j.spi.entitystore.helpers.JSONMapEntityStoreMixin;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+import org.qi4j.spi.entitystore.helpers.StateStore;
+
+/**
+ * In-memory EntityStore service that keeps the state of entities outside of the Java heap.
+ * Set {@link MemoryOffHeapMapEntityStoreMixin.Slabs} as meta-info to change the size of the ByteBuffers used,
+ * or to limit how much state the store holds.
+ */
+@Concerns( { StateChangeNotificationConcern.class, ConcurrentModificationCheckConcern.class } )
+@Mixins( { JSONMapEntityStoreMixin.class, MemoryOffHeapMapEntityStoreMixin.class } )
+@MapEntityStore.ThreadSafe
+public interface MemoryOffHeapEntityStoreService
+    extends EntityStore, EntityStateVersions, BackupRestore, StateStore, ServiceComposite
+{
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.injection.scope.Uses;
+import org.qi4j.api.service.ServiceDescriptor;
+import org.qi4j.functional.Specification;
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entitystore.BackupRestore;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.BytesMapChanger;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory implementation of MapEntityStore that keeps the state of entities as UTF-8 in direct ByteBuffers,
+ * outside of the Java heap, so that large amounts of state do not make garbage collection slower.
+ * Only the index from identity to record is on the heap. See {@link OffHeapArena}.
+ * <p>
+ * Entities are read concurrently. Each UnitOfWork is applied as one commit, during which reads wait.
+ * entityStates() and backup() see each entity as it is when they get to it.
+ * </p>
+ */
+public class MemoryOffHeapMapEntityStoreMixin
+    implements MapEntityStore, BackupRestore
+{
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final OffHeapArena arena;
+    private final long capacity;
+
+    public MemoryOffHeapMapEntityStoreMixin( @Uses ServiceDescriptor descriptor )
+    {
+        this( descriptor.metaInfo( Slabs.class ) );
+    }
+
+    MemoryOffHeapMapEntityStoreMixin( Slabs slabs )
+    {
+        arena = new OffHeapArena( slabs == null ? Slabs.DEFAULT_SIZE : slabs.size() );
+        capacity = slabs == null ? Slabs.UNLIMITED : slabs.capacity();
+    }
+
+    public boolean contains( EntityReference entityReference, EntityDescriptor descriptor )
+        throws EntityStoreException
+    {
+        lock.readLock().lock();
+        try
+        {
+            return arena.get( entityReference.identity() ) != null;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Reader get( EntityReference entityReference )
+        throws EntityStoreException
+    {
+        Reader state = state( entityReference.identity() );
+        if( state == null )
+        {
+            throw new EntityNotFoundException( entityReference );
+        }
+        return state;
+    }
+
+    public void applyChanges( MapEntityStore.MapChanges changes )
+        throws IOException
+    {
+        EntityChanges<byte[]> entityChanges = new EntityChanges<byte[]>();
+        changes.visitMap( new BytesMapChanger( entityChanges ) );
+
+        lock.writeLock().lock();
+        try
+        {
+            Map<EntityReference, byte[]> states = entityChanges.validate( new Specification<EntityReference>()
+            {
+                public boolean satisfiedBy( EntityReference reference )
+                {
+                    return arena.get( reference.identity() ) != null;
+                }
+            } );
+
+            // Check that the records fit before changing any of them
+            long live = arena.live();
+            for( Map.Entry<EntityReference, byte[]> state : states.entrySet() )
+            {
+                String identity = state.getKey().identity();
+                live -= arena.recordSize( identity );
+                if( state.getValue() != null )
+                {
+                    live += OffHeapArena.recordSize( identity, state.getValue() );
+                }
+            }
+            if( live > capacity )
+            {
+                throw new EntityStoreException( "State of " + live + " bytes would exceed the capacity of "
+                                                + capacity + " bytes of the store" );
+            }
+
+            for( Map.Entry<EntityReference, byte[]> state : states.entrySet() )
+            {
+                if( state.getValue() == null )
+                {
+                    arena.remove( state.getKey().identity() );
+                }
+                else
+                {
+                    arena.put( state.getKey().identity(), state.getValue() );
+                }
+            }
+            arena.compact();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Input<Reader, IOException> entityStates()
+    {
+        return new Input<Reader, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super Reader, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<Reader, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super Reader, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        for( String identity : identities() )
+                        {
+                            Reader state = state( identity );
+                            if( state != null )
+                            {
+                                receiver.receive( state );
+                            }
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    public Input<String, IOException> backup()
+    {
+        return new Input<String, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super String, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<String, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super String, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        for( String identity : identities() )
+                        {
+                            CharBuffer state = decode( identity );
+                            if( state != null )
+                            {
+                                receiver.receive( state.toString() );
+                            }
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    public Output<String, IOException> restore()
+    {
+        return new Output<String, IOException>()
+        {
+            @Override
+            public <SenderThrowableType extends Throwable> void receiveFrom( Sender<? extends String, SenderThrowableType> sender )
+                throws IOException, SenderThrowableType
+            {
+                lock.writeLock().lock();
+                try
+                {
+                    arena.clear();
+                    try
+                    {
+                        sender.sendTo( new Receiver<String, IOException>()
+                        {
+                            public void receive( String item )
+                                throws IOException
+                            {
+                                try
+                                {
+                                    JSONTokener tokener = new JSONTokener( item );
+                                    JSONObject entity = (JSONObject) tokener.nextValue();
+                                    String id = entity.getString( JSONKeys.identity.name() );
+                                    arena.put( id, item.getBytes( UTF_8 ) );
+                                    if( arena.live() > capacity )
+                                    {
+                                        throw new IOException( "State exceeds the capacity of " + capacity
+                                                               + " bytes of the store" );
+                                    }
+                                }
+                                catch( JSONException e )
+                                {
+                                    throw new IOException( e );
+                                }
+                            }
+                        } );
+                    }
+                    catch( IOException e )
+                    {
+                        arena.clear();
+                        throw e;
+                    }
+                }
+                finally
+                {
+                    lock.writeLock().unlock();
+                }
+            }
+        };
+    }
+
+    private List<String> identities()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return arena.identities();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Reader state( String identity )
+    {
+        CharBuffer state = decode( identity );
+        return state == null ? null : new CharArrayReader( state.array(), state.arrayOffset() + state.position(), state.remaining() );
+    }
+
+    private CharBuffer decode( String identity )
+    {
+        lock.readLock().lock();
+        try
+        {
+            ByteBuffer state = arena.get( identity );
+            return state == null ? null : UTF_8.decode( state );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory used for state
+     */
+    long allocated()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return arena.allocated();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Meta-info of a service using this mixin, which sets the size in bytes of the direct ByteBuffers that
+     * state is kept in, and how many bytes of state the store may hold. Without it they are {@link #DEFAULT_SIZE}
+     * bytes and the state is unlimited. A commit that would exceed the capacity fails without changing anything.
+     */
+    public static final class Slabs
+    {
+        public static final int DEFAULT_SIZE = 16 * 1024 * 1024;
+        public static final long UNLIMITED = Long.MAX_VALUE;
+
+        private final int size;
+        private final long capacity;
+
+        public Slabs( int size )
+        {
+            this( size, UNLIMITED );
+        }
+
+        public Slabs( int size, long capacity )
+        {
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public long capacity()
+        {
+            return capacity;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Entity records in slabs of direct ByteBuffers, outside of the Java heap. Records are appended to the
+ * current slab. A slab where less than half of the space is used by current records is compacted, by
+ * moving those records to the current slab and dropping the slab. Not thread-safe.
+ * <p>
+ * A record is the length of the state, the length of the identity, the UTF-8 identity and the state.
+ * The address of a record is the number of its slab in the high and the offset in the slab in the low 32 bits.
+ * </p>
+ */
+final class OffHeapArena
+{
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    private static final int HEADER_SIZE = 8;
+
+    private final int slabSize;
+    private final OffHeapIndex index = new OffHeapIndex();
+    private final List<Slab> slabs = new ArrayList<Slab>();
+    private final Set<Slab> sparseSlabs = new LinkedHashSet<Slab>();
+    private Slab current;
+
+    // Bytes of current records, and of slabs
+    private long live;
+    private long allocated;
+
+    OffHeapArena( int slabSize )
+    {
+        this.slabSize = slabSize;
+    }
+
+    int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * @return the number of bytes used by current records
+     */
+    long live()
+    {
+        return live;
+    }
+
+    /**
+     * @return the number of bytes of the slabs, which is at least {@link #live()}
+     */
+    long allocated()
+    {
+        return allocated;
+    }
+
+    /**
+     * @return the number of bytes used by the record of the entity, or 0 if there is none
+     */
+    int recordSize( String identity )
+    {
+        long address = index.get( identity );
+        return address == OffHeapIndex.NONE ? 0 : recordSize( slabs.get( slab( address ) ).buffer, offset( address ) );
+    }
+
+    /**
+     * @return the number of bytes that a record of the given state uses
+     */
+    static int recordSize( String identity, byte[] state )
+    {
+        return HEADER_SIZE + identity.getBytes( UTF_8 ).length + state.length;
+    }
+
+    /**
+     * @return the state of the entity, as a ByteBuffer of its own positioned at the state, or null if there is none
+     */
+    ByteBuffer get( String identity )
+    {
+        long address = index.get( identity );
+        if( address == OffHeapIndex.NONE )
+        {
+            return null;
+        }
+
+        Slab slab = slabs.get( slab( address ) );
+        int offset = offset( address );
+        ByteBuffer state = slab.buffer.duplicate();
+        int start = offset + HEADER_SIZE + state.getInt( offset + 4 );
+        state.limit( start + state.getInt( offset ) );
+        state.position( start );
+        return state;
+    }
+
+    void put( String identity, byte[] state )
+    {
+        byte[] id = identity.getBytes( UTF_8 );
+        long address = allocate( HEADER_SIZE + id.length + state.length );
+        ByteBuffer buffer = slabs.get( slab( address ) ).buffer.duplicate();
+        buffer.position( offset( address ) );
+        buffer.putInt( state.length ).putInt( id.length ).put( id ).put( state );
+
+        long previous = index.put( identity, address );
+        if( previous != OffHeapIndex.NONE )
+        {
+            free( previous );
+        }
+    }
+
+    boolean remove( String identity )
+    {
+        long address = index.remove( identity );
+        if( address == OffHeapIndex.NONE )
+        {
+            return false;
+        }
+        free( address );
+        return true;
+    }
+
+    List<String> identities()
+    {
+        return index.identities();
+    }
+
+    void clear()
+    {
+        index.clear();
+        slabs.clear();
+        sparseSlabs.clear();
+        current = null;
+        live = 0;
+        allocated = 0;
+    }
+
+    /**
+     * Move the records of sparse slabs to the current slab, and drop those slabs.
+     */
+    void compact()
+    {
+        while( !sparseSlabs.isEmpty() )
+        {
+            Slab slab = sparseSlabs.iterator().next();
+            sparseSlabs.remove( slab );
+            if( slab == current || slabs.get( slab.number ) != slab )
+            {
+                continue;
+            }
+
+            ByteBuffer buffer = slab.buffer.duplicate();
+            int offset = 0;
+            while( offset < slab.position && slab.live > 0 )
+            {
+                int size = recordSize( buffer, offset );
+                byte[] id = new byte[ buffer.getInt( offset + 4 ) ];
+                buffer.position( offset + HEADER_SIZE );
+                buffer.get( id );
+                String identity = new String( id, UTF_8 );
+                if( index.get( identity ) == address( slab.number, offset ) )
+                {
+                    long newAddress = allocate( size );
+                    ByteBuffer record = buffer.duplicate();
+                    record.limit( offset + size ).position( offset );
+                    ByteBuffer target = slabs.get( slab( newAddress ) ).buffer.duplicate();
+                    target.position( offset( newAddress ) );
+                    target.put( record );
+                    index.put( identity, newAddress );
+                    slab.live -= size;
+                    live -= size;
+                }
+                offset += size;
+            }
+            drop( slab );
+        }
+    }
+
+    private long allocate( int size )
+    {
+        if( current != null && current.buffer.capacity() - current.position >= size )
+        {
+            return allocate( current, size );
+        }
+
+        Slab slab = newSlab( Math.max( size, slabSize ) );
+        if( size <= slabSize )
+        {
+            // Records that do not fit a slab get one of their own, which is never current
+            Slab previous = current;
+            current = slab;
+            if( previous != null )
+            {
+                checkSparse( previous );
+            }
+        }
+        return allocate( slab, size );
+    }
+
+    private long allocate( Slab slab, int size )
+    {
+        long address = address( slab.number, slab.position );
+        slab.position += size;
+        slab.live += size;
+        live += size;
+        return address;
+    }
+
+    private void free( long address )
+    {
+        Slab slab = slabs.get( slab( address ) );
+        int size = recordSize( slab.buffer, offset( address ) );
+        slab.live -= size;
+        live -= size;
+        if( slab.live == 0 && slab != current )
+        {
+            drop( slab );
+            sparseSlabs.remove( slab );
+        }
+        else
+        {
+            checkSparse( slab );
+        }
+    }
+
+    private void checkSparse( Slab slab )
+    {
+        if( slab != current && slab.live < slab.buffer.capacity() / 2 )
+        {
+            sparseSlabs.add( slab );
+        }
+    }
+
+    private Slab newSlab( int capacity )
+    {
+        int number = slabs.indexOf( null );
+        if( number == -1 )
+        {
+            number = slabs.size();
+            slabs.add( null );
+        }
+        Slab slab = new Slab( number, ByteBuffer.allocateDirect( capacity ) );
+        slabs.set( number, slab );
+        allocated += capacity;
+        return slab;
+    }
+
+    private void drop( Slab slab )
+    {
+        slabs.set( slab.number, null );
+        allocated -= slab.buffer.capacity();
+    }
+
+    private static int recordSize( ByteBuffer buffer, int offset )
+    {
+        return HEADER_SIZE + buffer.getInt( offset ) + buffer.getInt( offset + 4 );
+    }
+
+    private static long address( int slab, int offset )
+    {
+        return ( (long) slab << 32 ) | offset;
+    }
+
+    private static int slab( long address )
+    {
+        return (int) ( address >>> 32 );
+    }
+
+    private static int offset( long address )
+    {
+        return (int) address;
+    }
+
+    private static final class Slab
+    {
+        private final int number;
+        private final ByteBuffer buffer;
+        private int position;
+        private int live;
+
+        private Slab( int number, ByteBuffer buffer )
+        {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash index from entity identity to the address of its record in an {@link OffHeapArena}.
+ * Keys and addresses are kept in two arrays, so there is no entry object per entity. Not thread-safe.
+ */
+final class OffHeapIndex
+{
+    static final long NONE = -1;
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private String[] keys;
+    private long[] addresses;
+    private int size;
+
+    OffHeapIndex()
+    {
+        keys = new String[ 1024 ];
+        addresses = new long[ 1024 ];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the address of the identity, or NONE
+     */
+    long get( String identity )
+    {
+        int mask = keys.length - 1;
+        for( int i = slot( identity, mask ); keys[ i ] != null; i = ( i + 1 ) & mask )
+        {
+            if( keys[ i ].equals( identity ) )
+            {
+                return addresses[ i ];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the previous address of the identity, or NONE
+     */
+    long put( String identity, long address )
+    {
+        if( size + 1 > keys.length * LOAD_FACTOR )
+        {
+            resize( keys.length * 2 );
+        }
+
+        int mask = keys.length - 1;
+        int i = slot( identity, mask );
+        for( ; keys[ i ] != null; i = ( i + 1 ) & mask )
+        {
+            if( keys[ i ].equals( identity ) )
+            {
+                long previous = addresses[ i ];
+                addresses[ i ] = address;
+                return previous;
+            }
+        }
+        keys[ i ] = identity;
+        addresses[ i ] = address;
+        size++;
+        return NONE;
+    }
+
+    /**
+     * @return the address the identity had, or NONE
+     */
+    long remove( String identity )
+    {
+        int mask = keys.length - 1;
+        int i = slot( identity, mask );
+        for( ; keys[ i ] != null; i = ( i + 1 ) & mask )
+        {
+            if( keys[ i ].equals( identity ) )
+            {
+                long address = addresses[ i ];
+                keys[ i ] = null;
+                size--;
+
+                // Move later keys of the probe sequence back, so that no lookup stops at the hole
+                int hole = i;
+                for( int j = ( i + 1 ) & mask; keys[ j ] != null; j = ( j + 1 ) & mask )
+                {
+                    int home = slot( keys[ j ], mask );
+                    if( ( ( j - home ) & mask ) >= ( ( j - hole ) & mask ) )
+                    {
+                        keys[ hole ] = keys[ j ];
+                        addresses[ hole ] = addresses[ j ];
+                        keys[ j ] = null;
+                        hole = j;
+                    }
+                }
+                return address;
+            }
+        }
+        return NONE;
+    }
+
+    List<String> identities()
+    {
+        List<String> identities = new ArrayList<String>( size );
+        for( String key : keys )
+        {
+            if( key != null )
+            {
+                identities.add( key );
+            }
+        }
+        return identities;
+    }
+
+    void clear()
+    {
+        keys = new String[ 1024 ];
+        addresses = new long[ 1024 ];
+        size = 0;
+    }
+
+    private void resize( int capacity )
+    {
+        String[] oldKeys = keys;
+        long[] oldAddresses = addresses;
+        keys = new String[ capacity ];
+        addresses = new long[ capacity ];
+        int mask = capacity - 1;
+        for( int i = 0; i < oldKeys.length; i++ )
+        {
+            if( oldKeys[ i ] != null )
+            {
+                int j = slot( oldKeys[ i ], mask );
+                while( keys[ j ] != null )
+                {
+                    j = ( j + 1 ) & mask;
+                }
+                keys[ j ] = oldKeys[ i ];
+                addresses[ j ] = oldAddresses[ i ];
+            }
+        }
+    }
+
+    private static int slot( String identity, int mask )
+    {
+        int hash = identity.hashCode();
+        return ( hash ^ ( hash >>> 16 ) ) & mask;
+    }
+}
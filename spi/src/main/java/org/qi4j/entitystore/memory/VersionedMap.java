@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Specification;
+import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Map of entity state for the in-memory stores, where each commit of changes creates a new version.
+ * <p>
+ * Changes are applied atomically, one commit at a time. Reads never wait for a commit, and only see
+ * the state of commits that are complete. A {@link Snapshot} sees the state as of when it was taken,
+ * while later commits are applied, and keeps the versions it needs until it is released. Without open
+ * snapshots only the latest version of each entity is kept.
+ * </p>
+ */
+final class VersionedMap<T>
+{
+    private final ConcurrentMap<EntityReference, Version<T>> versions = new ConcurrentHashMap<EntityReference, Version<T>>();
+
+    // Guards commits and the snapshot bookkeeping below
+    private final Object commitLock = new Object();
+    private volatile long committed;
+
+    // Number of open snapshots per version
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+    // Removed entities that are kept for open snapshots
+    private final Map<EntityReference, Version<T>> removed = new LinkedHashMap<EntityReference, Version<T>>();
+
+    // Latest versions of entities that keep previous versions for open snapshots
+    private final Map<EntityReference, Version<T>> retained = new HashMap<EntityReference, Version<T>>();
+
+    /**
+     * @return the committed state of the entity, or null if there is none
+     */
+    T get( EntityReference reference )
+    {
+        Version<T> head = versions.get( reference );
+        if( head == null )
+        {
+            return null;
+        }
+
+        // Read previous first, as it is only cut off once the commit of the head is visible
+        Version<T> previous = head.previous;
+        Version<T> current = head.version <= committed ? head : previous;
+        return current == null ? null : current.state;
+    }
+
+    EntityChanges<T> newChanges()
+    {
+        return new EntityChanges<T>();
+    }
+
+    /**
+     * Apply all changes as one commit, or none of them if any is invalid.
+     *
+     * @throws EntityAlreadyExistsException if a new entity already exists
+     * @throws EntityNotFoundException      if an updated entity does not exist
+     */
+    void apply( EntityChanges<T> changes )
+    {
+        synchronized( commitLock )
+        {
+            commit( changes.validate( new Specification<EntityReference>()
+            {
+                public boolean satisfiedBy( EntityReference reference )
+                {
+                    return get( reference ) != null;
+                }
+            } ) );
+        }
+    }
+
+    /**
+     * Replace all state, as one commit.
+     */
+    void replaceAll( Map<EntityReference, T> states )
+    {
+        synchronized( commitLock )
+        {
+            Map<EntityReference, T> changes = new LinkedHashMap<EntityReference, T>();
+            for( EntityReference reference : versions.keySet() )
+            {
+                changes.put( reference, null );
+            }
+            changes.putAll( states );
+            commit( changes );
+        }
+    }
+
+    /**
+     * Take a snapshot of the committed state. It must be released when done.
+     */
+    Snapshot snapshot()
+    {
+        synchronized( commitLock )
+        {
+            long version = committed;
+            Integer count = snapshots.get( version );
+            snapshots.put( version, count == null ? 1 : count + 1 );
+            return new Snapshot( version );
+        }
+    }
+
+    private void commit( Map<EntityReference, T> states )
+    {
+        long version = committed + 1;
+
+        List<Version<T>> newVersions = new ArrayList<Version<T>>();
+        List<Version<T>> removedVersions = new ArrayList<Version<T>>();
+        for( Map.Entry<EntityReference, T> state : states.entrySet() )
+        {
+            Version<T> previous = versions.get( state.getKey() );
+            if( previous == null && state.getValue() == null )
+            {
+                continue;
+            }
+
+            // Keep using the reference that is already in the map, so that there is one per entity
+            EntityReference reference = previous == null ? state.getKey() : previous.reference;
+            Version<T> newVersion = new Version<T>( reference, version, state.getValue(), previous );
+            versions.put( reference, newVersion );
+            newVersions.add( newVersion );
+            if( newVersion.state == null )
+            {
+                removedVersions.add( newVersion );
+            }
+            else
+            {
+                removed.remove( reference );
+            }
+        }
+
+        // Make the commit visible. After this, readers that are not in a snapshot do not need the previous versions
+        committed = version;
+
+        for( Version<T> newVersion : newVersions )
+        {
+            if( prune( newVersion ) )
+            {
+                retained.put( newVersion.reference, newVersion );
+            }
+            else
+            {
+                retained.remove( newVersion.reference );
+            }
+        }
+
+        for( Version<T> removedVersion : removedVersions )
+        {
+            removed.put( removedVersion.reference, removedVersion );
+        }
+        removeUnused();
+    }
+
+    /**
+     * Drop the previous versions of the entity that no open snapshot reads.
+     *
+     * @return true if any previous version is still kept
+     */
+    private boolean prune( Version<T> latest )
+    {
+        Version<T> newer = latest;
+        Version<T> version = latest.previous;
+        while( version != null )
+        {
+            // A version is read by the snapshots from it up to the newer version
+            Long snapshot = snapshots.ceilingKey( version.version );
+            if( snapshot != null && snapshot < newer.version )
+            {
+                newer = version;
+            }
+            else
+            {
+                newer.previous = version.previous;
+            }
+            version = version.previous;
+        }
+        return latest.previous != null;
+    }
+
+    private void pruneRetained()
+    {
+        Iterator<Version<T>> latestVersions = retained.values().iterator();
+        while( latestVersions.hasNext() )
+        {
+            if( !prune( latestVersions.next() ) )
+            {
+                latestVersions.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of versions that are kept, which is one per entity without open snapshots
+     */
+    int versionCount()
+    {
+        synchronized( commitLock )
+        {
+            int count = 0;
+            for( Version<T> version : versions.values() )
+            {
+                while( version != null )
+                {
+                    count++;
+                    version = version.previous;
+                }
+            }
+            return count;
+        }
+    }
+
+    private void removeUnused()
+    {
+        if( snapshots.isEmpty() )
+        {
+            for( Version<T> removedVersion : removed.values() )
+            {
+                versions.remove( removedVersion.reference, removedVersion );
+            }
+            removed.clear();
+        }
+    }
+
+    private static <T> T stateAt( Version<T> version, long snapshot )
+    {
+        while( version != null && version.version > snapshot )
+        {
+            version = version.previous;
+        }
+        return version == null ? null : version.state;
+    }
+
+    /**
+     * The committed state at one point in time.
+     */
+    final class Snapshot
+        implements Iterable<T>
+    {
+        private final long version;
+        private boolean released;
+
+        private Snapshot( long version )
+        {
+            this.version = version;
+        }
+
+        T get( EntityReference reference )
+        {
+            return stateAt( versions.get( reference ), version );
+        }
+
+        public Iterator<T> iterator()
+        {
+            final Iterator<Version<T>> heads = versions.values().iterator();
+            return new Iterator<T>()
+            {
+                private T next;
+
+                public boolean hasNext()
+                {
+                    while( next == null && heads.hasNext() )
+                    {
+                        next = stateAt( heads.next(), version );
+                    }
+                    return next != null;
+                }
+
+                public T next()
+                {
+                    if( !hasNext() )
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    T state = next;
+                    next = null;
+                    return state;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        void release()
+        {
+            synchronized( commitLock )
+            {
+                if( released )
+                {
+                    return;
+                }
+                released = true;
+                int count = snapshots.get( version );
+                if( count == 1 )
+                {
+                    snapshots.remove( version );
+                }
+                else
+                {
+                    snapshots.put( version, count - 1 );
+                }
+                pruneRetained();
+                removeUnused();
+            }
+        }
+    }
+
+    private static final class Version<T>
+    {
+        private final EntityReference reference;
+        private final long version;
+        private final T state;
+        private volatile Version<T> previous;
+
+        private Version( EntityReference reference, long version, T state, Version<T> previous )
+        {
+            this.reference = reference;
+            this.version = version;
+            this.state = state;
+            this.previous = previous;
+        }
+    }
+}
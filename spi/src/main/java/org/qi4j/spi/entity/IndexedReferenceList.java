@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entity;
+
+import org.qi4j.api.entity.EntityReference;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Ordered list of references without duplicates, for the state of ManyAssociations. A hash index of the
+ * references is kept next to the list, so that contains and adding a reference does not scan the list,
+ * and bulk removal is done in one pass over the list.
+ */
+public final class IndexedReferenceList
+    extends AbstractList<EntityReference>
+    implements RandomAccess
+{
+    private final ArrayList<EntityReference> references;
+    private final Set<EntityReference> index;
+
+    /**
+     * @return the list itself if it is an IndexedReferenceList, or else an IndexedReferenceList with its references
+     */
+    public static IndexedReferenceList of( List<EntityReference> references )
+    {
+        if( references instanceof IndexedReferenceList )
+        {
+            return (IndexedReferenceList) references;
+        }
+        return new IndexedReferenceList( references );
+    }
+
+    public IndexedReferenceList()
+    {
+        references = new ArrayList<EntityReference>();
+        index = new HashSet<EntityReference>();
+    }
+
+    public IndexedReferenceList( Collection<EntityReference> references )
+    {
+        this.references = new ArrayList<EntityReference>( references.size() );
+        index = new HashSet<EntityReference>( references.size() * 2 );
+        addAll( references );
+    }
+
+    @Override
+    public EntityReference get( int i )
+    {
+        return references.get( i );
+    }
+
+    @Override
+    public int size()
+    {
+        return references.size();
+    }
+
+    @Override
+    public boolean contains( Object reference )
+    {
+        return index.contains( reference );
+    }
+
+    @Override
+    public int indexOf( Object reference )
+    {
+        return index.contains( reference ) ? references.indexOf( reference ) : -1;
+    }
+
+    @Override
+    public int lastIndexOf( Object reference )
+    {
+        return indexOf( reference );
+    }
+
+    /**
+     * Add the reference at the given index, unless it is already in the list.
+     *
+     * @return true if the reference was added
+     */
+    public boolean insert( int i, EntityReference reference )
+    {
+        if( !index.add( reference ) )
+        {
+            return false;
+        }
+        references.add( i, reference );
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Add the reference last, unless it is already in the list.
+     */
+    @Override
+    public boolean add( EntityReference reference )
+    {
+        return insert( references.size(), reference );
+    }
+
+    @Override
+    public void add( int i, EntityReference reference )
+    {
+        if( !insert( i, reference ) )
+        {
+            throw new IllegalArgumentException( "Reference is already in the list:" + reference );
+        }
+    }
+
+    @Override
+    public EntityReference set( int i, EntityReference reference )
+    {
+        EntityReference old = references.get( i );
+        if( !old.equals( reference ) )
+        {
+            if( index.contains( reference ) )
+            {
+                throw new IllegalArgumentException( "Reference is already in the list:" + reference );
+            }
+            index.remove( old );
+            index.add( reference );
+            references.set( i, reference );
+        }
+        return old;
+    }
+
+    @Override
+    public EntityReference remove( int i )
+    {
+        EntityReference reference = references.remove( i );
+        index.remove( reference );
+        modCount++;
+        return reference;
+    }
+
+    @Override
+    public boolean remove( Object reference )
+    {
+        if( !index.remove( reference ) )
+        {
+            return false;
+        }
+        references.remove( reference );
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean removeAll( Collection<?> removed )
+    {
+        return reindex( references.removeAll( lookup( removed ) ) );
+    }
+
+    @Override
+    public boolean retainAll( Collection<?> retained )
+    {
+        return reindex( references.retainAll( lookup( retained ) ) );
+    }
+
+    @Override
+    public void clear()
+    {
+        references.clear();
+        index.clear();
+        modCount++;
+    }
+
+    private Collection<?> lookup( Collection<?> collection )
+    {
+        return collection instanceof Set || collection instanceof IndexedReferenceList
+               ? collection
+               : new HashSet<Object>( collection );
+    }
+
+    private boolean reindex( boolean changed )
+    {
+        if( changed )
+        {
+            index.clear();
+            index.addAll( references );
+            modCount++;
+        }
+        return changed;
+    }
+}
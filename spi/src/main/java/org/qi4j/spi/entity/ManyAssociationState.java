@@ -31,5 +31,26 @@ public interface ManyAssociationState
 
     boolean remove( EntityReference entityReference );
 
+    /**
+     * Add the references that are not in the state yet, last, as one change.
+     *
+     * @return true if any reference was added
+     */
+    boolean addAll( Iterable<EntityReference> entityReferences );
+
+    /**
+     * Remove the given references, as one change.
+     *
+     * @return true if any reference was removed
+     */
+    boolean removeAll( Iterable<EntityReference> entityReferences );
+
+    /**
+     * Remove the references that are not among the given ones, as one change.
+     *
+     * @return true if any reference was removed
+     */
+    boolean retainAll( Iterable<EntityReference> entityReferences );
+
     EntityReference get( int index );
 }
@@ -16,6 +16,7 @@ package org.qi4j.spi.entitystore;
 
 import org.qi4j.api.entity.EntityDescriptor;
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.json.JSONDeserializer;
 import org.qi4j.api.structure.Module;
 import org.qi4j.api.usecase.Usecase;
 import org.qi4j.spi.entity.EntityState;
@@ -31,6 +32,7 @@ public final class DefaultEntityStoreUnitOfWork
     private EntityStoreSPI entityStoreSPI;
     private String identity;
     private Module module;
+    private JSONDeserializer deserializer;
     private LinkedList<EntityState> states = new LinkedList<EntityState>();
     private Usecase usecase;
     private long currentTime;
@@ -44,6 +46,7 @@ public final class DefaultEntityStoreUnitOfWork
         this.entityStoreSPI = entityStoreSPI;
         this.identity = identity;
         this.module = module;
+        this.deserializer = new JSONDeserializer( module );
         this.usecase = usecase;
         this.currentTime = currentTime;
     }
@@ -58,6 +61,14 @@ public final class DefaultEntityStoreUnitOfWork
         return module;
     }
 
+    /**
+     * @return deserializer of stored values into the module of this UnitOfWork
+     */
+    public JSONDeserializer deserializer()
+    {
+        return deserializer;
+    }
+
     public long currentTime()
     {
         return currentTime;
@@ -0,0 +1,812 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.json.JSONException;
+import org.json.JSONPullParser;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.json.JSONDeserializer;
+import org.qi4j.api.json.JSONWriterSerializer;
+import org.qi4j.api.property.PropertyDescriptor;
+import org.qi4j.api.structure.Module;
+import org.qi4j.api.unitofwork.EntityTypeNotFoundException;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact binary format of {@link SlotEntityState}, for stores that implement {@link BinaryMapEntityStore}.
+ * <p/>
+ * The names of the state of an entity type are stored once, in a schema record. Entity records refer to
+ * their schema by id and store the state in slot order without names. Numbers are stored as varints, and
+ * a string that occurs more than once in a record is stored once and then referred to by index.
+ * Property values that are not strings, booleans or numbers are stored as JSON text.
+ * <p/>
+ * Entity record: ENTITY_RECORD, FORMAT_VERSION, schema id (16 bytes), identity, application version,
+ * version, modified, property values, associations, many-associations.
+ * <p/>
+ * Schema record: SCHEMA_RECORD, FORMAT_VERSION, type, and the names of the properties, associations and
+ * many-associations of the type. Schema records are stored with the identity given by {@link #schemaReference(String)}.
+ * The id of a schema is the first 16 bytes of the SHA-256 digest of its record, and is checked when the record is read.
+ * <p/>
+ * Stored state with a schema that is not the current one of its type, or of an older application version, is
+ * loaded and marked as updated, so that it is written with the current schema. The {@link Migration} service
+ * is not applied to this format, only to entities that are still stored as JSON.
+ */
+public final class BinaryEntityStateFormat
+{
+    public static final int ENTITY_RECORD = 1;
+    public static final int SCHEMA_RECORD = 2;
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int SCHEMA_ID_LENGTH = 16;
+
+    private static final String SCHEMA_PREFIX = "qi4j.schema:";
+
+    // Property value tags
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int LONG = 3;
+    private static final int TRUE = 4;
+    private static final int FALSE = 5;
+    private static final int DOUBLE = 6;
+    private static final int FLOAT = 7;
+    private static final int JSON = 8;
+
+    private final String applicationVersion;
+
+    private final Map<EntityDescriptor, Schema> currentSchemas = new ConcurrentHashMap<EntityDescriptor, Schema>();
+    private final ConcurrentMap<String, Schema> storedSchemas = new ConcurrentHashMap<String, Schema>();
+
+    public BinaryEntityStateFormat( String applicationVersion )
+    {
+        this.applicationVersion = applicationVersion;
+    }
+
+    /**
+     * @return true if stored data that starts with the given byte is in the JSON format of the MapEntityStoreMixin
+     */
+    public static boolean isJSON( int firstByte )
+    {
+        return firstByte == '{' || Character.isWhitespace( firstByte );
+    }
+
+    /**
+     * @return the identity with which the schema with the given id is stored
+     */
+    public static EntityReference schemaReference( String schemaId )
+    {
+        return new EntityReference( SCHEMA_PREFIX + schemaId );
+    }
+
+    /**
+     * @return true if the given identity is that of a stored schema
+     */
+    public static boolean isSchemaReference( EntityReference reference )
+    {
+        return reference.identity().startsWith( SCHEMA_PREFIX );
+    }
+
+    public EntityStateSlots slotsFor( EntityDescriptor entityDescriptor )
+    {
+        return schemaFor( entityDescriptor ).slots;
+    }
+
+    /**
+     * @return the id of the current schema of the given entity type
+     */
+    public String schemaId( EntityDescriptor entityDescriptor )
+    {
+        return schemaFor( entityDescriptor ).id;
+    }
+
+    /**
+     * @return true if the given stored record is the current schema of the given entity type
+     */
+    public boolean isSchema( EntityDescriptor entityDescriptor, byte[] record )
+    {
+        return Arrays.equals( schemaFor( entityDescriptor ).record, record );
+    }
+
+    public void writeSchema( EntityDescriptor entityDescriptor, OutputStream out )
+        throws IOException
+    {
+        out.write( schemaFor( entityDescriptor ).record );
+    }
+
+    public void writeEntityState( SlotEntityState state, String version, long lastModified, OutputStream out )
+        throws IOException
+    {
+        Schema schema = schemaFor( state.entityDescriptor() );
+        EntityStateSlots slots = schema.slots;
+
+        Encoder encoder = new Encoder();
+        encoder.write( ENTITY_RECORD );
+        encoder.write( FORMAT_VERSION );
+        encoder.writeBytes( schema.idBytes );
+        encoder.writeString( state.identity().identity() );
+        encoder.writeString( applicationVersion );
+        encoder.writeString( version );
+        encoder.writeVarLong( lastModified );
+
+        for( int i = 0; i < slots.propertyCount(); i++ )
+        {
+            encoder.writeValue( state.propertyAt( i ), slots.propertyAt( i ) );
+        }
+        for( int i = 0; i < slots.associationCount(); i++ )
+        {
+            EntityReference reference = state.associationAt( i );
+            encoder.writeString( reference == null ? null : reference.identity() );
+        }
+        for( int i = 0; i < slots.manyAssociationCount(); i++ )
+        {
+            List<EntityReference> references = state.manyAssociationReferencesAt( i );
+            encoder.writeVarLong( references.size() );
+            for( EntityReference reference : references )
+            {
+                encoder.writeString( reference.identity() );
+            }
+        }
+
+        out.write( encoder.bytes, 0, encoder.length );
+    }
+
+    /**
+     * Read an entity record.
+     *
+     * @param unitOfWork the UnitOfWork that loads the entity
+     * @param data       the stored record
+     * @param store      the store from which schemas that have not been read yet are loaded
+     *
+     * @return the state of the entity
+     *
+     * @throws EntityStoreException if the data is not an entity record of this format
+     */
+    public SlotEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                                            byte[] data,
+                                            BinaryMapEntityStore store
+    )
+        throws EntityStoreException
+    {
+        Decoder decoder = new Decoder( data );
+        if( decoder.read() != ENTITY_RECORD )
+        {
+            throw new EntityStoreException( "Not an entity record" );
+        }
+        if( decoder.read() != FORMAT_VERSION )
+        {
+            throw new EntityStoreException( "Unknown format version of entity record" );
+        }
+
+        Schema stored = storedSchema( toHex( decoder.readBytes( SCHEMA_ID_LENGTH ) ), store );
+        String identity = decoder.readString();
+        EntityStatus status = applicationVersion.equals( decoder.readString() ) ? EntityStatus.LOADED : EntityStatus.UPDATED;
+        String version = decoder.readString();
+        long modified = decoder.readVarLong();
+
+        Module module = unitOfWork.module();
+        EntityDescriptor entityDescriptor = module.entityDescriptor( stored.type );
+        if( entityDescriptor == null )
+        {
+            throw new EntityTypeNotFoundException( stored.type );
+        }
+        Schema current = schemaFor( entityDescriptor );
+        EntityStateSlots slots = current.slots;
+        int[] propertySlots;
+        int[] associationSlots;
+        int[] manyAssociationSlots;
+        if( current.id.equals( stored.id ) )
+        {
+            propertySlots = current.propertySlots;
+            associationSlots = current.associationSlots;
+            manyAssociationSlots = current.manyAssociationSlots;
+        }
+        else
+        {
+            propertySlots = new int[ stored.properties.length ];
+            for( int i = 0; i < propertySlots.length; i++ )
+            {
+                propertySlots[ i ] = slots.propertySlot( stored.properties[ i ] );
+            }
+            associationSlots = new int[ stored.associations.length ];
+            for( int i = 0; i < associationSlots.length; i++ )
+            {
+                associationSlots[ i ] = slots.associationSlot( stored.associations[ i ] );
+            }
+            manyAssociationSlots = new int[ stored.manyAssociations.length ];
+            for( int i = 0; i < manyAssociationSlots.length; i++ )
+            {
+                manyAssociationSlots[ i ] = slots.manyAssociationSlot( stored.manyAssociations[ i ] );
+            }
+            status = EntityStatus.UPDATED;
+        }
+
+        Object[] properties = new Object[ slots.propertyCount() ];
+        boolean[] loaded = new boolean[ properties.length ];
+        for( int slot : propertySlots )
+        {
+            Object value = decoder.readValue( slot == -1 ? null : slots.propertyAt( slot ), unitOfWork.deserializer() );
+            if( slot != -1 )
+            {
+                properties[ slot ] = value;
+                loaded[ slot ] = true;
+            }
+        }
+        EntityReference[] associations = new EntityReference[ slots.associationCount() ];
+        for( int slot : associationSlots )
+        {
+            String reference = decoder.readString();
+            if( slot != -1 && reference != null )
+            {
+                associations[ slot ] = EntityReference.parseEntityReference( reference );
+            }
+        }
+        List<EntityReference>[] manyAssociations = new List[ slots.manyAssociationCount() ];
+        for( int slot : manyAssociationSlots )
+        {
+            int count = (int) decoder.readVarLong();
+            List<EntityReference> references = new ArrayList<EntityReference>( count );
+            for( int i = 0; i < count; i++ )
+            {
+                references.add( EntityReference.parseEntityReference( decoder.readString() ) );
+            }
+            if( slot != -1 )
+            {
+                manyAssociations[ slot ] = references;
+            }
+        }
+
+        // Default state that was not found
+        for( int i = 0; i < properties.length; i++ )
+        {
+            if( !loaded[ i ] )
+            {
+                properties[ i ] = slots.propertyAt( i ).initialValue( module );
+            }
+        }
+        for( int i = 0; i < manyAssociations.length; i++ )
+        {
+            if( manyAssociations[ i ] == null )
+            {
+                manyAssociations[ i ] = new ArrayList<EntityReference>();
+            }
+        }
+
+        return new SlotEntityState( unitOfWork,
+                                    version,
+                                    modified,
+                                    EntityReference.parseEntityReference( identity ),
+                                    status,
+                                    entityDescriptor,
+                                    slots,
+                                    properties,
+                                    associations,
+                                    manyAssociations );
+    }
+
+    private Schema schemaFor( EntityDescriptor entityDescriptor )
+    {
+        Schema schema = currentSchemas.get( entityDescriptor );
+        if( schema == null )
+        {
+            schema = new Schema( EntityStateSlots.slotsFor( entityDescriptor ), entityDescriptor.type().getName() );
+            Schema existing = storedSchemas.putIfAbsent( schema.id, schema );
+            if( existing != null )
+            {
+                if( !Arrays.equals( existing.record, schema.record ) )
+                {
+                    throw new EntityStoreException( "Schema of " + schema.type + " has the same id as the schema of " + existing.type );
+                }
+                // Read from the store before it became the current schema of a type
+                storedSchemas.replace( schema.id, existing, schema );
+            }
+            currentSchemas.put( entityDescriptor, schema );
+        }
+        return schema;
+    }
+
+    private Schema storedSchema( String id, BinaryMapEntityStore store )
+    {
+        Schema schema = storedSchemas.get( id );
+        if( schema == null )
+        {
+            try
+            {
+                schema = new Schema( readFully( store.get( schemaReference( id ) ) ) );
+            }
+            catch( IOException e )
+            {
+                throw new EntityStoreException( "Could not read schema " + id, e );
+            }
+            if( !schema.id.equals( id ) )
+            {
+                throw new EntityStoreException( "Schema stored as " + id + " has id " + schema.id );
+            }
+            storedSchemas.putIfAbsent( id, schema );
+        }
+        return schema;
+    }
+
+    private static byte[] digest( byte[] record )
+    {
+        try
+        {
+            return Arrays.copyOf( MessageDigest.getInstance( "SHA-256" ).digest( record ), SCHEMA_ID_LENGTH );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", e );
+        }
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder hex = new StringBuilder( bytes.length * 2 );
+        for( byte b : bytes )
+        {
+            hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return hex.toString();
+    }
+
+    static byte[] readFully( InputStream in )
+        throws IOException
+    {
+        try
+        {
+            byte[] bytes = new byte[ 1024 ];
+            int length = 0;
+            int count;
+            while( ( count = in.read( bytes, length, bytes.length - length ) ) != -1 )
+            {
+                length += count;
+                if( length == bytes.length )
+                {
+                    bytes = Arrays.copyOf( bytes, bytes.length * 2 );
+                }
+            }
+            return length == bytes.length ? bytes : Arrays.copyOf( bytes, length );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Names of the state of an entity type, in slot order.
+     */
+    private static final class Schema
+    {
+        private final String id;
+        private final byte[] idBytes;
+        private final byte[] record;
+        private final String type;
+        private final String[] properties;
+        private final String[] associations;
+        private final String[] manyAssociations;
+
+        // Only set for the current schemas of types
+        private final EntityStateSlots slots;
+        private final int[] propertySlots;
+        private final int[] associationSlots;
+        private final int[] manyAssociationSlots;
+
+        private Schema( EntityStateSlots slots, String type )
+        {
+            this.slots = slots;
+            this.type = type;
+            properties = new String[ slots.propertyCount() ];
+            for( int i = 0; i < properties.length; i++ )
+            {
+                properties[ i ] = slots.propertyAt( i ).qualifiedName().name();
+            }
+            associations = new String[ slots.associationCount() ];
+            for( int i = 0; i < associations.length; i++ )
+            {
+                associations[ i ] = slots.associationAt( i ).qualifiedName().name();
+            }
+            manyAssociations = new String[ slots.manyAssociationCount() ];
+            for( int i = 0; i < manyAssociations.length; i++ )
+            {
+                manyAssociations[ i ] = slots.manyAssociationAt( i ).qualifiedName().name();
+            }
+            propertySlots = identity( properties.length );
+            associationSlots = identity( associations.length );
+            manyAssociationSlots = identity( manyAssociations.length );
+
+            Encoder encoder = new Encoder();
+            encoder.write( SCHEMA_RECORD );
+            encoder.write( FORMAT_VERSION );
+            encoder.writeString( type );
+            writeNames( encoder, properties );
+            writeNames( encoder, associations );
+            writeNames( encoder, manyAssociations );
+            record = Arrays.copyOf( encoder.bytes, encoder.length );
+            idBytes = digest( record );
+            id = toHex( idBytes );
+        }
+
+        private Schema( byte[] record )
+        {
+            Decoder decoder = new Decoder( record );
+            if( decoder.read() != SCHEMA_RECORD || decoder.read() != FORMAT_VERSION )
+            {
+                throw new EntityStoreException( "Not a schema record" );
+            }
+            this.record = record;
+            idBytes = digest( record );
+            id = toHex( idBytes );
+            type = decoder.readString();
+            properties = readNames( decoder );
+            associations = readNames( decoder );
+            manyAssociations = readNames( decoder );
+            slots = null;
+            propertySlots = associationSlots = manyAssociationSlots = null;
+        }
+
+        private static void writeNames( Encoder encoder, String[] names )
+        {
+            encoder.writeVarLong( names.length );
+            for( String name : names )
+            {
+                encoder.writeString( name );
+            }
+        }
+
+        private static String[] readNames( Decoder decoder )
+        {
+            String[] names = new String[ (int) decoder.readVarLong() ];
+            for( int i = 0; i < names.length; i++ )
+            {
+                names[ i ] = decoder.readString();
+            }
+            return names;
+        }
+
+        private static int[] identity( int count )
+        {
+            int[] slots = new int[ count ];
+            for( int i = 0; i < count; i++ )
+            {
+                slots[ i ] = i;
+            }
+            return slots;
+        }
+    }
+
+    /**
+     * Writes a record into a growing byte array.
+     * <p/>
+     * Strings are written with a varint header, which is 0 for null, the index of an earlier equal string
+     * in the record shifted left one step with the low bit set, or the UTF-8 length plus one shifted left one step.
+     */
+    private static final class Encoder
+    {
+        private byte[] bytes = new byte[ 256 ];
+        private int length;
+        private Map<String, Integer> strings;
+
+        private void write( int b )
+        {
+            if( length == bytes.length )
+            {
+                bytes = Arrays.copyOf( bytes, bytes.length * 2 );
+            }
+            bytes[ length++ ] = (byte) b;
+        }
+
+        private void writeBytes( byte[] value )
+        {
+            for( byte b : value )
+            {
+                write( b );
+            }
+        }
+
+        private void writeInt( int value )
+        {
+            write( value >>> 24 );
+            write( value >>> 16 );
+            write( value >>> 8 );
+            write( value );
+        }
+
+        private void writeVarLong( long value )
+        {
+            while( ( value & ~0x7FL ) != 0 )
+            {
+                write( (int) ( ( value & 0x7F ) | 0x80 ) );
+                value >>>= 7;
+            }
+            write( (int) value );
+        }
+
+        private void writeString( String value )
+        {
+            if( value == null )
+            {
+                writeVarLong( 0 );
+                return;
+            }
+
+            if( strings == null )
+            {
+                strings = new HashMap<String, Integer>();
+            }
+            Integer index = strings.get( value );
+            if( index != null )
+            {
+                writeVarLong( ( (long) index << 1 ) | 1 );
+                return;
+            }
+            strings.put( value, strings.size() );
+
+            int utfLength = 0;
+            for( int i = 0; i < value.length(); i++ )
+            {
+                char c = value.charAt( i );
+                utfLength += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            }
+            writeVarLong( ( utfLength + 1L ) << 1 );
+            for( int i = 0; i < value.length(); i++ )
+            {
+                char c = value.charAt( i );
+                if( c < 0x80 )
+                {
+                    write( c );
+                }
+                else if( c < 0x800 )
+                {
+                    write( 0xC0 | ( c >> 6 ) );
+                    write( 0x80 | ( c & 0x3F ) );
+                }
+                else
+                {
+                    write( 0xE0 | ( c >> 12 ) );
+                    write( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                    write( 0x80 | ( c & 0x3F ) );
+                }
+            }
+        }
+
+        private void writeValue( Object value, PropertyDescriptor descriptor )
+            throws IOException
+        {
+            if( value == null )
+            {
+                write( NULL );
+            }
+            else if( value instanceof String )
+            {
+                write( STRING );
+                writeString( (String) value );
+            }
+            else if( value instanceof Integer )
+            {
+                int number = (Integer) value;
+                write( INT );
+                writeVarLong( ( ( number << 1 ) ^ ( number >> 31 ) ) & 0xFFFFFFFFL );
+            }
+            else if( value instanceof Long )
+            {
+                long number = (Long) value;
+                write( LONG );
+                writeVarLong( ( number << 1 ) ^ ( number >> 63 ) );
+            }
+            else if( value instanceof Boolean )
+            {
+                write( (Boolean) value ? TRUE : FALSE );
+            }
+            else if( value instanceof Double )
+            {
+                long bits = Double.doubleToLongBits( (Double) value );
+                write( DOUBLE );
+                writeInt( (int) ( bits >>> 32 ) );
+                writeInt( (int) bits );
+            }
+            else if( value instanceof Float )
+            {
+                write( FLOAT );
+                writeInt( Float.floatToIntBits( (Float) value ) );
+            }
+            else
+            {
+                try
+                {
+                    StringWriter json = new StringWriter();
+                    JSONWriterSerializer serializer = new JSONWriterSerializer( json );
+                    serializer.getJSON().array();
+                    serializer.serialize( value, descriptor.valueType() );
+                    serializer.getJSON().endArray();
+                    write( JSON );
+                    writeString( json.toString() );
+                }
+                catch( JSONException e )
+                {
+                    throw new EntityStoreException( "Could not store property " + descriptor.qualifiedName(), e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a record that was written by an Encoder.
+     */
+    private static final class Decoder
+    {
+        private final byte[] bytes;
+        private int position;
+        private List<String> strings;
+
+        private Decoder( byte[] bytes )
+        {
+            this.bytes = bytes;
+        }
+
+        private int read()
+        {
+            if( position == bytes.length )
+            {
+                throw new EntityStoreException( "Unexpected end of stored entity state" );
+            }
+            return bytes[ position++ ] & 0xFF;
+        }
+
+        private byte[] readBytes( int count )
+        {
+            if( position + count > bytes.length )
+            {
+                throw new EntityStoreException( "Unexpected end of stored entity state" );
+            }
+            byte[] value = Arrays.copyOfRange( bytes, position, position + count );
+            position += count;
+            return value;
+        }
+
+        private int readInt()
+        {
+            return ( read() << 24 ) | ( read() << 16 ) | ( read() << 8 ) | read();
+        }
+
+        private long readVarLong()
+        {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do
+            {
+                b = read();
+                value |= (long) ( b & 0x7F ) << shift;
+                shift += 7;
+            }
+            while( ( b & 0x80 ) != 0 );
+            return value;
+        }
+
+        private String readString()
+        {
+            long header = readVarLong();
+            if( header == 0 )
+            {
+                return null;
+            }
+            if( ( header & 1 ) == 1 )
+            {
+                return strings.get( (int) ( header >>> 1 ) );
+            }
+
+            int end = position + (int) ( header >>> 1 ) - 1;
+            StringBuilder value = new StringBuilder( end - position );
+            while( position < end )
+            {
+                int b = read();
+                if( b < 0x80 )
+                {
+                    value.append( (char) b );
+                }
+                else if( b < 0xE0 )
+                {
+                    value.append( (char) ( ( ( b & 0x1F ) << 6 ) | ( read() & 0x3F ) ) );
+                }
+                else
+                {
+                    value.append( (char) ( ( ( b & 0x0F ) << 12 ) | ( ( read() & 0x3F ) << 6 ) | ( read() & 0x3F ) ) );
+                }
+            }
+
+            String string = value.toString();
+            if( strings == null )
+            {
+                strings = new ArrayList<String>();
+            }
+            strings.add( string );
+            return string;
+        }
+
+        /**
+         * @param descriptor the property, or null if the value is to be skipped
+         */
+        private Object readValue( PropertyDescriptor descriptor, JSONDeserializer deserializer )
+        {
+            int tag = read();
+            switch( tag )
+            {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case INT:
+                {
+                    int number = (int) readVarLong();
+                    return ( number >>> 1 ) ^ -( number & 1 );
+                }
+                case LONG:
+                {
+                    long number = readVarLong();
+                    return ( number >>> 1 ) ^ -( number & 1 );
+                }
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case DOUBLE:
+                {
+                    long high = readInt() & 0xFFFFFFFFL;
+                    return Double.longBitsToDouble( ( high << 32 ) | ( readInt() & 0xFFFFFFFFL ) );
+                }
+                case FLOAT:
+                    return Float.intBitsToFloat( readInt() );
+                case JSON:
+                {
+                    String json = readString();
+                    if( descriptor == null )
+                    {
+                        return null;
+                    }
+                    try
+                    {
+                        JSONPullParser parser = new JSONPullParser( json );
+                        parser.next();
+                        parser.next();
+                        return deserializer.deserialize( parser, descriptor.valueType() );
+                    }
+                    catch( JSONException e )
+                    {
+                        throw new EntityStoreException( "Could not read property " + descriptor.qualifiedName(), e );
+                    }
+                }
+                default:
+                    throw new EntityStoreException( "Unknown value tag " + tag + " in stored entity state" );
+            }
+        }
+    }
+}
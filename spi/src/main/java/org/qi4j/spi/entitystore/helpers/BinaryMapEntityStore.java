@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.io.Input;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte oriented variant of {@link MapEntityStore}. Implement this and add as mixin together with
+ * {@link BinaryMapEntityStoreMixin} to store entities in the {@link BinaryEntityStateFormat}.
+ * See {@link org.qi4j.entitystore.memory.MemoryBinaryMapEntityStoreMixin} for reference.
+ * <p/>
+ * Stored data may also be in the JSON format of the MapEntityStoreMixin, encoded as UTF-8, which
+ * is read and converted to the binary format when the entity is next written.
+ */
+public interface BinaryMapEntityStore
+{
+    InputStream get( EntityReference entityReference )
+        throws EntityStoreException;
+
+    Input<InputStream, IOException> entityStates();
+
+    void applyChanges( MapChanges changes )
+        throws IOException;
+
+    interface MapChanges
+    {
+        void visitMap( MapChanger changer )
+            throws IOException;
+    }
+
+    interface MapChanger
+    {
+        OutputStream newEntity( EntityReference ref, EntityDescriptor entityDescriptor )
+            throws IOException;
+
+        OutputStream updateEntity( EntityReference ref, EntityDescriptor entityDescriptor )
+            throws IOException;
+
+        void removeEntity( EntityReference ref, EntityDescriptor entityDescriptor )
+            throws EntityNotFoundException;
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.JSONWriter;
+import org.qi4j.api.cache.CacheOptions;
+import org.qi4j.api.common.Optional;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.injection.scope.Service;
+import org.qi4j.api.injection.scope.Structure;
+import org.qi4j.api.injection.scope.This;
+import org.qi4j.api.injection.scope.Uses;
+import org.qi4j.api.service.Activatable;
+import org.qi4j.api.service.ServiceDescriptor;
+import org.qi4j.api.structure.Application;
+import org.qi4j.api.structure.Module;
+import org.qi4j.api.usecase.Usecase;
+import org.qi4j.api.usecase.UsecaseBuilder;
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStore;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.EntityStoreSPI;
+import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.StateCommitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of EntityStore that works with an implementation of BinaryMapEntityStore, and stores
+ * entities in the {@link BinaryEntityStateFormat}. Implement BinaryMapEntityStore and add as mixin to the
+ * service using this mixin. See {@link org.qi4j.entitystore.memory.MemoryBinaryMapEntityStoreMixin} for reference.
+ * <p/>
+ * Entities that are stored in the JSON format of the {@link MapEntityStoreMixin} are read with the
+ * {@link EntityStateCodec} service, which must then be visible to the store. They are written in the binary
+ * format when they are next updated, and all of them are converted when iterating over {@link #entityStates(Module)}.
+ * <p/>
+ * The {@link Migration} service is applied to entities of older application versions that are stored in the JSON
+ * format, before they are converted. Entities in the binary format are loaded with the current state of their type,
+ * without migrations, and a warning is logged on activation if there is a Migration service.
+ */
+public class BinaryMapEntityStoreMixin
+    implements EntityStore, EntityStoreSPI, StateStore, Activatable
+{
+    @This
+    private BinaryMapEntityStore mapEntityStore;
+
+    @This
+    private EntityStoreSPI entityStoreSpi;
+
+    @Structure
+    private Application application;
+
+    @Optional
+    @Service
+    private EntityStateCodec jsonCodec;
+
+    @Optional
+    @Service
+    private Migration migration;
+
+    @Uses
+    private ServiceDescriptor descriptor;
+
+    protected String uuid;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private Logger logger;
+
+    private BinaryEntityStateFormat format;
+
+    private static final List<String> HEADER = Arrays.asList( "identity", MapEntityStore.JSONKeys.application_version.name(), "type", "version", "modified" );
+
+    // Ids of schemas that are known to be in the store
+    private final Map<String, Boolean> storedSchemas = new ConcurrentHashMap<String, Boolean>();
+
+    public void activate()
+        throws Exception
+    {
+        uuid = UUID.randomUUID().toString() + "-";
+
+        logger = LoggerFactory.getLogger( descriptor.identity() );
+
+        format = new BinaryEntityStateFormat( application.version() );
+
+        if( migration != null )
+        {
+            logger.warn( "Migrations are only applied to entities that are stored as JSON, not to entities in the binary format" );
+        }
+    }
+
+    public void passivate()
+        throws Exception
+    {
+    }
+
+    // EntityStore
+
+    public EntityStoreUnitOfWork newUnitOfWork( Usecase usecaseMetaInfo, Module module, long currentTime )
+    {
+        return new DefaultEntityStoreUnitOfWork( entityStoreSpi, newUnitOfWorkId(), module, usecaseMetaInfo, currentTime );
+    }
+
+    // EntityStoreSPI
+
+    public EntityState newEntityState( EntityStoreUnitOfWork unitOfWork,
+                                       EntityReference identity,
+                                       EntityDescriptor entityDescriptor )
+    {
+        return new SlotEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, identity, entityDescriptor, format.slotsFor( entityDescriptor ) );
+    }
+
+    public EntityState getEntityState( EntityStoreUnitOfWork unitofwork, EntityReference identity )
+    {
+        try
+        {
+            byte[] data = BinaryEntityStateFormat.readFully( mapEntityStore.get( identity ) );
+            return readEntityState( (DefaultEntityStoreUnitOfWork) unitofwork, data );
+        }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( e );
+        }
+    }
+
+    public StateCommitter applyChanges( final EntityStoreUnitOfWork unitofwork, final Iterable<EntityState> state
+    )
+        throws EntityStoreException
+    {
+        return new StateCommitter()
+        {
+            public void commit()
+            {
+                final Set<String> newSchemas = new HashSet<String>();
+                try
+                {
+                    applyChanges( new BinaryMapEntityStore.MapChanges()
+                    {
+                        public void visitMap( BinaryMapEntityStore.MapChanger changer )
+                            throws IOException
+                        {
+                            for( EntityState entityState : state )
+                            {
+                                if( entityState.status().equals( EntityStatus.NEW ) )
+                                {
+                                    writeSchema( changer, entityState.entityDescriptor(), newSchemas );
+                                    OutputStream out = changer.newEntity( entityState.identity(),
+                                                                          entityState.entityDescriptor() );
+                                    format.writeEntityState( (SlotEntityState) entityState, unitofwork.identity(), unitofwork.currentTime(), out );
+                                    out.close();
+                                }
+                                else if( entityState.status().equals( EntityStatus.UPDATED ) )
+                                {
+                                    writeSchema( changer, entityState.entityDescriptor(), newSchemas );
+                                    OutputStream out = changer.updateEntity( entityState.identity(),
+                                                                             entityState.entityDescriptor() );
+                                    format.writeEntityState( (SlotEntityState) entityState, unitofwork.identity(), unitofwork.currentTime(), out );
+                                    out.close();
+                                }
+                                else if( entityState.status().equals( EntityStatus.REMOVED ) )
+                                {
+                                    changer.removeEntity( entityState.identity(), entityState.entityDescriptor() );
+                                }
+                            }
+                        }
+                    }, newSchemas );
+                }
+                catch( IOException e )
+                {
+                    throw new EntityStoreException( e );
+                }
+            }
+
+            public void cancel()
+            {
+            }
+        };
+    }
+
+    public Input<EntityState, EntityStoreException> entityStates( final Module module )
+    {
+        return new Input<EntityState, EntityStoreException>()
+        {
+           @Override
+           public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super EntityState, ReceiverThrowableType> output) throws EntityStoreException, ReceiverThrowableType
+           {
+                output.receiveFrom( new Sender<EntityState, EntityStoreException>()
+                {
+                   @Override
+                   public <ReceiverThrowableType extends Throwable> void sendTo(final Receiver<? super EntityState, ReceiverThrowableType> receiver) throws ReceiverThrowableType, EntityStoreException
+                   {
+                        Usecase usecase = UsecaseBuilder
+                            .buildUsecase( "qi4j.entitystore.entitystates" )
+                            .with( CacheOptions.NEVER )
+                            .newUsecase();
+
+                        final DefaultEntityStoreUnitOfWork uow =
+                            new DefaultEntityStoreUnitOfWork( entityStoreSpi, newUnitOfWorkId(), module, usecase, System.currentTimeMillis() );
+
+                        final List<EntityState> migrated = new ArrayList<EntityState>();
+
+                        try
+                        {
+                            mapEntityStore.entityStates().transferTo( new Output<InputStream, ReceiverThrowableType>()
+                            {
+                               @Override
+                               public <SenderThrowableType extends Throwable> void receiveFrom(Sender<? extends InputStream, SenderThrowableType> sender) throws ReceiverThrowableType, SenderThrowableType
+                               {
+                                    sender.sendTo( new Receiver<InputStream, ReceiverThrowableType>()
+                                    {
+                                        public void receive( InputStream item )
+                                            throws ReceiverThrowableType
+                                        {
+                                            byte[] data;
+                                            try
+                                            {
+                                                data = BinaryEntityStateFormat.readFully( item );
+                                            }
+                                            catch( IOException e )
+                                            {
+                                                throw new EntityStoreException( e );
+                                            }
+                                            if( data.length > 0 && data[ 0 ] == BinaryEntityStateFormat.SCHEMA_RECORD )
+                                            {
+                                                return;
+                                            }
+
+                                            final SlotEntityState entity = readEntityState( uow, data );
+                                            if( BinaryEntityStateFormat.isJSON( data[ 0 ] ) )
+                                            {
+                                                // Convert to the binary format
+                                                entity.markUpdated();
+                                            }
+                                            if( entity.status() == EntityStatus.UPDATED )
+                                            {
+                                                migrated.add( entity );
+
+                                                // Synch back 100 at a time
+                                                if( migrated.size() > 100 )
+                                                {
+                                                    synchMigratedEntities( migrated );
+                                                }
+                                            }
+                                            receiver.receive( entity );
+                                        }
+                                    } );
+
+                                    // Synch any remaining migrated entities
+                                    if( !migrated.isEmpty() )
+                                    {
+                                        synchMigratedEntities( migrated );
+                                    }
+                                }
+                            } );
+                        }
+                        catch( IOException e )
+                        {
+                            throw new EntityStoreException( e );
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    private void synchMigratedEntities( final List<EntityState> migratedEntities )
+    {
+        final Set<String> newSchemas = new HashSet<String>();
+        try
+        {
+            applyChanges( new BinaryMapEntityStore.MapChanges()
+            {
+                public void visitMap( BinaryMapEntityStore.MapChanger changer )
+                    throws IOException
+                {
+                    for( EntityState migratedEntity : migratedEntities )
+                    {
+                        writeSchema( changer, migratedEntity.entityDescriptor(), newSchemas );
+                        OutputStream out = changer.updateEntity( migratedEntity.identity(),
+                                                                 migratedEntity.entityDescriptor() );
+                        format.writeEntityState( (SlotEntityState) migratedEntity, migratedEntity.version(), migratedEntity.lastModified(), out );
+                        out.close();
+                    }
+                }
+            }, newSchemas );
+            migratedEntities.clear();
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Could not store migrated entites", e );
+        }
+    }
+
+    protected String newUnitOfWorkId()
+    {
+        return uuid + Integer.toHexString( count.getAndIncrement() );
+    }
+
+    protected SlotEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, byte[] data )
+        throws EntityStoreException
+    {
+        if( data.length == 0 )
+        {
+            throw new EntityStoreException( "Stored entity state is empty" );
+        }
+
+        if( BinaryEntityStateFormat.isJSON( data[ 0 ] ) )
+        {
+            if( jsonCodec == null )
+            {
+                throw new EntityStoreException( "Entity state is stored as JSON, but there is no EntityStateCodec service to read it" );
+            }
+            try
+            {
+                Reader reader = new InputStreamReader( new ByteArrayInputStream( data ), "UTF-8" );
+                if( migration == null )
+                {
+                    return jsonCodec.readEntityState( unitOfWork, reader );
+                }
+
+                // Migrations work on the whole JSON tree
+                JSONObject jsonObject = new JSONObject( new JSONTokener( reader ) );
+                String currentAppVersion = jsonObject.optString( MapEntityStore.JSONKeys.application_version.name(), "0.0" );
+                if( currentAppVersion.equals( application.version() ) )
+                {
+                    return jsonCodec.readEntityState( unitOfWork, headerFirst( jsonObject ) );
+                }
+
+                migration.migrate( jsonObject, application.version(), this );
+                LoggerFactory.getLogger( BinaryMapEntityStoreMixin.class )
+                    .debug( "Migrated " + jsonObject.optString( "identity" ) + " from " + currentAppVersion + " to " + application.version() );
+                SlotEntityState entityState = jsonCodec.readEntityState( unitOfWork, headerFirst( jsonObject ) );
+                entityState.markUpdated();
+                return entityState;
+            }
+            catch( JSONException e )
+            {
+                throw new EntityStoreException( e );
+            }
+            catch( IOException e )
+            {
+                throw new EntityStoreException( e );
+            }
+        }
+
+        return format.readEntityState( unitOfWork, data, mapEntityStore );
+    }
+
+    /**
+     * Write JSON state with the header before the state, which is the order that the EntityStateCodec reads.
+     */
+    private static Reader headerFirst( JSONObject jsonObject )
+        throws JSONException
+    {
+        StringWriter out = new StringWriter();
+        JSONWriter json = new JSONWriter( out ).object();
+        for( String key : HEADER )
+        {
+            if( jsonObject.has( key ) )
+            {
+                json.key( key ).value( jsonObject.get( key ) );
+            }
+        }
+        Iterator<?> keys = jsonObject.keys();
+        while( keys.hasNext() )
+        {
+            String key = (String) keys.next();
+            if( !HEADER.contains( key ) )
+            {
+                json.key( key ).value( jsonObject.get( key ) );
+            }
+        }
+        json.endObject();
+        return new StringReader( out.toString() );
+    }
+
+    /**
+     * Get the JSON state of an entity for migrations. Only entities that are stored as JSON can be read.
+     */
+    public JSONObject getState( String id )
+        throws IOException
+    {
+        byte[] data = BinaryEntityStateFormat.readFully( mapEntityStore.get( EntityReference.parseEntityReference( id ) ) );
+        if( data.length == 0 || !BinaryEntityStateFormat.isJSON( data[ 0 ] ) )
+        {
+            throw new IOException( "Entity " + id + " is stored in the binary format, and can not be read as JSON" );
+        }
+
+        try
+        {
+            return new JSONObject( new JSONTokener( new InputStreamReader( new ByteArrayInputStream( data ), "UTF-8" ) ) );
+        }
+        catch( JSONException e )
+        {
+            throw (IOException) new IOException().initCause( e );
+        }
+    }
+
+    /**
+     * Apply changes that write schemas with {@link #writeSchema}. If another commit stored one of the new
+     * schemas first then the changes are applied once more, which checks the stored schema instead of creating it.
+     */
+    private void applyChanges( BinaryMapEntityStore.MapChanges changes, Set<String> newSchemas )
+        throws IOException
+    {
+        try
+        {
+            mapEntityStore.applyChanges( changes );
+        }
+        catch( EntityAlreadyExistsException e )
+        {
+            if( !BinaryEntityStateFormat.isSchemaReference( e.identity() ) )
+            {
+                throw e;
+            }
+            newSchemas.clear();
+            mapEntityStore.applyChanges( changes );
+        }
+
+        for( String schemaId : newSchemas )
+        {
+            storedSchemas.put( schemaId, Boolean.TRUE );
+        }
+    }
+
+    /**
+     * Store the current schema of the entity type, unless it is already in the store.
+     */
+    private void writeSchema( BinaryMapEntityStore.MapChanger changer,
+                              EntityDescriptor entityDescriptor,
+                              Set<String> newSchemas
+    )
+        throws IOException
+    {
+        String schemaId = format.schemaId( entityDescriptor );
+        if( storedSchemas.containsKey( schemaId ) || newSchemas.contains( schemaId ) )
+        {
+            return;
+        }
+
+        EntityReference schemaReference = BinaryEntityStateFormat.schemaReference( schemaId );
+        try
+        {
+            byte[] stored = BinaryEntityStateFormat.readFully( mapEntityStore.get( schemaReference ) );
+            if( !format.isSchema( entityDescriptor, stored ) )
+            {
+                throw new EntityStoreException( "Schema " + schemaId + " in the store is not the schema of " + entityDescriptor.type().getName() );
+            }
+        }
+        catch( EntityNotFoundException e )
+        {
+            OutputStream out = changer.newEntity( schemaReference, entityDescriptor );
+            format.writeSchema( entityDescriptor, out );
+            out.close();
+        }
+        newSchemas.add( schemaId );
+    }
+}
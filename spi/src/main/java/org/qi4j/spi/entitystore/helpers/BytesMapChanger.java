@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * MapChanger of stores that keep the state of entities as bytes. The state is written as UTF-8,
+ * which can be encoded further by overriding {@link #encode(byte[])}.
+ */
+public class BytesMapChanger
+    implements MapEntityStore.MapChanger
+{
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private final EntityChanges<byte[]> changes;
+
+    public BytesMapChanger( EntityChanges<byte[]> changes )
+    {
+        this.changes = changes;
+    }
+
+    public Writer newEntity( final EntityReference ref, EntityDescriptor descriptor )
+    {
+        return new StateWriter()
+        {
+            @Override
+            protected void written( byte[] state )
+            {
+                changes.newEntity( ref, state );
+            }
+        };
+    }
+
+    public Writer updateEntity( final EntityReference ref, EntityDescriptor descriptor )
+        throws IOException
+    {
+        return new StateWriter()
+        {
+            @Override
+            protected void written( byte[] state )
+            {
+                changes.updateEntity( ref, state );
+            }
+        };
+    }
+
+    public void removeEntity( EntityReference ref, EntityDescriptor descriptor )
+        throws EntityNotFoundException
+    {
+        // Ignore if the entity didn't already exist, as that can happen if it is both created and removed
+        // within the same UnitOfWork.
+        changes.removeEntity( ref );
+    }
+
+    /**
+     * @return the state to keep for the given UTF-8 state
+     */
+    protected byte[] encode( byte[] utf8 )
+        throws IOException
+    {
+        return utf8;
+    }
+
+    private abstract class StateWriter
+        extends OutputStreamWriter
+    {
+        private final ByteArrayOutputStream bytes;
+        private boolean closed;
+
+        private StateWriter()
+        {
+            this( new ByteArrayOutputStream( 1000 ) );
+        }
+
+        private StateWriter( ByteArrayOutputStream bytes )
+        {
+            super( bytes, UTF_8 );
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            super.close();
+            if( !closed )
+            {
+                closed = true;
+                written( encode( bytes.toByteArray() ) );
+            }
+        }
+
+        protected abstract void written( byte[] state );
+    }
+}
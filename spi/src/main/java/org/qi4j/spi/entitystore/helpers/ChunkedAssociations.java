@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.association.AssociationDescriptor;
+import org.qi4j.api.entity.Chunked;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.spi.entity.EntityState;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Chunked} ManyAssociations of the entities in a MapEntityStore. Entity states are wrapped in a
+ * {@link ChunkedEntityState} if their type has any, and the chunk records are written and removed along
+ * with the entity.
+ */
+final class ChunkedAssociations
+{
+    private final Map<EntityDescriptor, List<AssociationDescriptor>> chunkedAssociations = new ConcurrentHashMap<EntityDescriptor, List<AssociationDescriptor>>();
+
+    /**
+     * Check if a stored record is a chunk or index record instead of an entity.
+     */
+    static boolean isChunkRecord( PushbackReader reader )
+        throws IOException
+    {
+        return ChunkedManyAssociationState.isChunkRecord( reader );
+    }
+
+    /**
+     * Get the state that the entity is stored with, without the chunked ManyAssociations.
+     */
+    static EntityState unchunked( EntityState state )
+    {
+        return state instanceof ChunkedEntityState ? ( (ChunkedEntityState) state ).state() : state;
+    }
+
+    static void writeChunks( EntityState state, MapEntityStore.MapChanger changer )
+        throws IOException
+    {
+        if( state instanceof ChunkedEntityState )
+        {
+            ( (ChunkedEntityState) state ).writeChanges( changer );
+        }
+    }
+
+    static void removeChunks( EntityState state, MapEntityStore.MapChanger changer )
+        throws IOException
+    {
+        if( state instanceof ChunkedEntityState )
+        {
+            ( (ChunkedEntityState) state ).removeChunks( changer );
+        }
+    }
+
+    /**
+     * Wrap the state of entities with {@link Chunked} ManyAssociations, which are stored in separate records.
+     */
+    EntityState chunked( EntityState state, MapEntityStore store, boolean isNew )
+    {
+        List<AssociationDescriptor> chunked = chunkedAssociations.get( state.entityDescriptor() );
+        if( chunked == null )
+        {
+            chunked = new ArrayList<AssociationDescriptor>();
+            for( AssociationDescriptor manyAssociationDescriptor : state.entityDescriptor().state().manyAssociations() )
+            {
+                if( manyAssociationDescriptor.metaInfo( Chunked.class ) != null )
+                {
+                    chunked.add( manyAssociationDescriptor );
+                }
+            }
+            chunkedAssociations.put( state.entityDescriptor(), chunked );
+        }
+        return chunked.isEmpty() ? state : new ChunkedEntityState( state, store, chunked, isNew );
+    }
+}
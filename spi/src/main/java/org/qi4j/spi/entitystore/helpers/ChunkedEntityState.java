@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.association.AssociationDescriptor;
+import org.qi4j.api.common.QualifiedName;
+import org.qi4j.api.entity.Chunked;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entity.ManyAssociationState;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * EntityState of an entity with {@link Chunked} ManyAssociations, which keeps those in chunk records in the
+ * MapEntityStore. All other state is in the wrapped EntityState.
+ */
+final class ChunkedEntityState
+    implements EntityState
+{
+    private final EntityState state;
+    private final MapEntityStore store;
+    private final List<AssociationDescriptor> chunkedAssociations;
+    private final boolean isNew;
+    private final Map<QualifiedName, ChunkedManyAssociationState> manyAssociations = new HashMap<QualifiedName, ChunkedManyAssociationState>();
+
+    ChunkedEntityState( EntityState state,
+                        MapEntityStore store,
+                        List<AssociationDescriptor> chunkedAssociations,
+                        boolean isNew
+    )
+    {
+        this.state = state;
+        this.store = store;
+        this.chunkedAssociations = chunkedAssociations;
+        this.isNew = isNew;
+    }
+
+    EntityState state()
+    {
+        return state;
+    }
+
+    void writeChanges( MapEntityStore.MapChanger changer )
+        throws IOException
+    {
+        for( ChunkedManyAssociationState manyAssociation : manyAssociations.values() )
+        {
+            manyAssociation.writeChanges( changer, entityDescriptor() );
+        }
+    }
+
+    void removeChunks( MapEntityStore.MapChanger changer )
+        throws IOException
+    {
+        for( AssociationDescriptor chunkedAssociation : chunkedAssociations )
+        {
+            manyAssociation( chunkedAssociation ).removeChunks( changer, entityDescriptor() );
+        }
+    }
+
+    public EntityReference identity()
+    {
+        return state.identity();
+    }
+
+    public String version()
+    {
+        return state.version();
+    }
+
+    public long lastModified()
+    {
+        return state.lastModified();
+    }
+
+    public void remove()
+    {
+        state.remove();
+    }
+
+    public EntityStatus status()
+    {
+        EntityStatus status = state.status();
+        if( status == EntityStatus.LOADED )
+        {
+            for( ChunkedManyAssociationState manyAssociation : manyAssociations.values() )
+            {
+                if( manyAssociation.isChanged() )
+                {
+                    return EntityStatus.UPDATED;
+                }
+            }
+        }
+        return status;
+    }
+
+    public boolean isAssignableTo( Class<?> type )
+    {
+        return state.isAssignableTo( type );
+    }
+
+    public EntityDescriptor entityDescriptor()
+    {
+        return state.entityDescriptor();
+    }
+
+    public Object getProperty( QualifiedName stateName )
+    {
+        return state.getProperty( stateName );
+    }
+
+    public void setProperty( QualifiedName stateName, Object json )
+    {
+        state.setProperty( stateName, json );
+    }
+
+    public EntityReference getAssociation( QualifiedName stateName )
+    {
+        return state.getAssociation( stateName );
+    }
+
+    public void setAssociation( QualifiedName stateName, EntityReference newEntity )
+    {
+        state.setAssociation( stateName, newEntity );
+    }
+
+    public ManyAssociationState getManyAssociation( QualifiedName stateName )
+    {
+        for( AssociationDescriptor chunkedAssociation : chunkedAssociations )
+        {
+            if( chunkedAssociation.qualifiedName().equals( stateName ) )
+            {
+                return manyAssociation( chunkedAssociation );
+            }
+        }
+        return state.getManyAssociation( stateName );
+    }
+
+    @Override
+    public String toString()
+    {
+        return state.toString();
+    }
+
+    private ChunkedManyAssociationState manyAssociation( AssociationDescriptor descriptor )
+    {
+        ChunkedManyAssociationState manyAssociation = manyAssociations.get( descriptor.qualifiedName() );
+        if( manyAssociation == null )
+        {
+            manyAssociation = new ChunkedManyAssociationState( store,
+                                                               state.identity(),
+                                                               descriptor.qualifiedName().name(),
+                                                               descriptor.metaInfo( Chunked.class ).size(),
+                                                               isNew,
+                                                               state.getManyAssociation( descriptor.qualifiedName() ) );
+            manyAssociations.put( descriptor.qualifiedName(), manyAssociation );
+        }
+        return manyAssociation;
+    }
+}
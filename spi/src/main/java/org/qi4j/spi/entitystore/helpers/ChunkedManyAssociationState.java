@@ -0,0 +1,821 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.json.JSONException;
+import org.json.JSONPullParser;
+import org.json.JSONWriter;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Iterables;
+import org.qi4j.spi.entity.ManyAssociationState;
+import org.qi4j.spi.entitystore.ConcurrentEntityStateModificationException;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * ManyAssociationState of a {@link org.qi4j.api.entity.Chunked} ManyAssociation. The references are kept in
+ * chunk records in the MapEntityStore, which are listed in order by an index record:
+ * <pre>
+ * identity/name            {"chunks":[[id,count],...],"next":id,"version":version,"identity":"identity/name"}
+ * identity/name/id         {"chunk":["reference",...],"version":version,"identity":"identity/name/id"}
+ * identity/name/id/filter  {"chunkfilter":"filter","version":version,"identity":"identity/name/id/filter"}
+ * </pre>
+ * The filter of a chunk is a bitmap of the hashes of its references, with {@link #FILTER_BITS} bits per
+ * reference, so that a reference can be checked, added and removed by only reading the chunks whose filter
+ * matches it. References that are added together are checked against each such chunk at once. All records
+ * include their own identity, so that they are backed up and restored along with the entities. Chunks and
+ * filters are read when they are used, and references are appended to the last chunk. Only changed chunks,
+ * their filters and the index are written, so the size of a change does not grow with the association.
+ * <p/>
+ * The version of the index is increased each time it is written, and chunks and filters have the version of
+ * the index that they were written with. A chunk or filter that is newer than the index that was read, or that
+ * is gone, has been changed by another UnitOfWork, which is reported as a concurrent modification.
+ */
+final class ChunkedManyAssociationState
+    implements ManyAssociationState
+{
+    private static final String RECORD_PREFIX = "{\"chunk";
+
+    // Bits per reference in the chunk filters, which with four hashes gives about 0.25% false positives
+    private static final int FILTER_BITS = 16;
+    private static final int FILTER_HASHES = 4;
+
+    private final MapEntityStore store;
+    private final EntityReference identity;
+    private final String key;
+    private final int chunkSize;
+    private final boolean isNew;
+    private final ManyAssociationState inlineState;
+
+    // Read from the index record when first used
+    private List<Chunk> chunks;
+    private int nextChunkId;
+    private int count;
+    private long version;
+    private boolean indexStored;
+
+    private final List<Integer> removedChunks = new ArrayList<Integer>();
+    private boolean changed;
+
+    /**
+     * @param store       the store of the chunks
+     * @param identity    the entity
+     * @param name        the name of the ManyAssociation
+     * @param chunkSize   maximum number of references in a chunk
+     * @param isNew       true if the entity is new, and so has no chunks yet
+     * @param inlineState the state of the ManyAssociation in the entity, which is moved to chunks if there are
+     *                    none yet. This is the case if the ManyAssociation was not chunked when it was stored.
+     */
+    ChunkedManyAssociationState( MapEntityStore store,
+                                 EntityReference identity,
+                                 String name,
+                                 int chunkSize,
+                                 boolean isNew,
+                                 ManyAssociationState inlineState
+    )
+    {
+        this.store = store;
+        this.identity = identity;
+        this.key = identity.identity() + "/" + name;
+        this.chunkSize = chunkSize;
+        this.isNew = isNew;
+        this.inlineState = inlineState;
+    }
+
+    /**
+     * Check if a stored record is a chunk or index record instead of an entity.
+     */
+    static boolean isChunkRecord( PushbackReader reader )
+        throws IOException
+    {
+        char[] prefix = new char[ RECORD_PREFIX.length() ];
+        int length = 0;
+        int count;
+        while( length < prefix.length && ( count = reader.read( prefix, length, prefix.length - length ) ) != -1 )
+        {
+            length += count;
+        }
+        reader.unread( prefix, 0, length );
+        return length == prefix.length && RECORD_PREFIX.equals( new String( prefix ) );
+    }
+
+    boolean isChanged()
+    {
+        return changed;
+    }
+
+    public int count()
+    {
+        chunks();
+        return count;
+    }
+
+    public boolean contains( EntityReference entityReference )
+    {
+        return chunkOf( entityReference ) != null;
+    }
+
+    public boolean add( int i, EntityReference entityReference )
+    {
+        if( contains( entityReference ) )
+        {
+            return false;
+        }
+        insert( i, entityReference );
+        changed = true;
+        return true;
+    }
+
+    public boolean remove( EntityReference entityReference )
+    {
+        Chunk chunk = chunkOf( entityReference );
+        if( chunk == null )
+        {
+            return false;
+        }
+        remove( chunk, entityReference );
+        return true;
+    }
+
+    public boolean addAll( Iterable<EntityReference> entityReferences )
+    {
+        Set<EntityReference> added = Iterables.addAll( new LinkedHashSet<EntityReference>(), entityReferences );
+
+        // Each chunk whose filter matches any of the references is read once, and the others are not read
+        for( Chunk chunk : chunks() )
+        {
+            if( added.isEmpty() )
+            {
+                break;
+            }
+            List<EntityReference> matching = null;
+            for( EntityReference entityReference : added )
+            {
+                if( mightContain( chunk, entityReference ) )
+                {
+                    if( matching == null )
+                    {
+                        matching = new ArrayList<EntityReference>();
+                    }
+                    matching.add( entityReference );
+                }
+            }
+            if( matching != null )
+            {
+                matching.retainAll( new HashSet<EntityReference>( references( chunk ) ) );
+                added.removeAll( matching );
+            }
+        }
+
+        if( added.isEmpty() )
+        {
+            return false;
+        }
+        append( added );
+        changed = true;
+        return true;
+    }
+
+    public boolean removeAll( Iterable<EntityReference> entityReferences )
+    {
+        boolean removed = false;
+        for( EntityReference entityReference : entityReferences )
+        {
+            removed |= remove( entityReference );
+        }
+        return removed;
+    }
+
+    public boolean retainAll( Iterable<EntityReference> entityReferences )
+    {
+        Set<EntityReference> retained = Iterables.addAll( new HashSet<EntityReference>(), entityReferences );
+        boolean removed = false;
+        for( Chunk chunk : new ArrayList<Chunk>( chunks() ) )
+        {
+            for( EntityReference entityReference : new ArrayList<EntityReference>( references( chunk ) ) )
+            {
+                if( !retained.contains( entityReference ) )
+                {
+                    remove( chunk, entityReference );
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    public EntityReference get( int i )
+    {
+        int offset = i;
+        for( Chunk chunk : chunks() )
+        {
+            if( offset < chunk.count )
+            {
+                return references( chunk ).get( offset );
+            }
+            offset -= chunk.count;
+        }
+        throw new IndexOutOfBoundsException( "Index:" + i );
+    }
+
+    public Iterator<EntityReference> iterator()
+    {
+        final Iterator<Chunk> chunkIterator = new ArrayList<Chunk>( chunks() ).iterator();
+        return new Iterator<EntityReference>()
+        {
+            private Iterator<EntityReference> references = Collections.<EntityReference>emptyList().iterator();
+
+            public boolean hasNext()
+            {
+                while( !references.hasNext() && chunkIterator.hasNext() )
+                {
+                    references = new ArrayList<EntityReference>( references( chunkIterator.next() ) ).iterator();
+                }
+                return references.hasNext();
+            }
+
+            public EntityReference next()
+            {
+                if( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                return references.next();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException( "remove() is not supported on ManyAssociation iterators." );
+            }
+        };
+    }
+
+    /**
+     * Write the changed chunks with their filters, and the index.
+     */
+    void writeChanges( MapEntityStore.MapChanger changer, EntityDescriptor entityDescriptor )
+        throws IOException
+    {
+        if( !changed )
+        {
+            return;
+        }
+
+        for( Integer removedChunk : removedChunks )
+        {
+            changer.removeEntity( chunkReference( removedChunk ), entityDescriptor );
+            changer.removeEntity( filterReference( removedChunk ), entityDescriptor );
+        }
+        removedChunks.clear();
+
+        long newVersion = version + 1;
+        try
+        {
+            for( Chunk chunk : chunks )
+            {
+                if( chunk.changed )
+                {
+                    EntityReference reference = chunkReference( chunk.id );
+                    Writer writer = chunk.stored
+                                    ? changer.updateEntity( reference, entityDescriptor )
+                                    : changer.newEntity( reference, entityDescriptor );
+                    StateWriter out = new StateWriter( writer );
+                    JSONWriter json = new JSONWriter( out ).object().key( "chunk" ).array();
+                    for( EntityReference entityReference : chunk.references )
+                    {
+                        json.value( entityReference.identity() );
+                    }
+                    json.endArray().key( "version" ).value( newVersion );
+                    json.key( MapEntityStore.JSONKeys.identity.name() ).value( reference.identity() ).endObject();
+                    out.close();
+                    writer.close();
+
+                    // Drop the bits of removed references
+                    chunk.filter = filter( chunk.references );
+                    reference = filterReference( chunk.id );
+                    writer = chunk.stored
+                             ? changer.updateEntity( reference, entityDescriptor )
+                             : changer.newEntity( reference, entityDescriptor );
+                    out = new StateWriter( writer );
+                    new JSONWriter( out ).object()
+                        .key( "chunkfilter" ).value( encode( chunk.filter ) )
+                        .key( "version" ).value( newVersion )
+                        .key( MapEntityStore.JSONKeys.identity.name() ).value( reference.identity() )
+                        .endObject();
+                    out.close();
+                    writer.close();
+
+                    chunk.stored = true;
+                    chunk.changed = false;
+                }
+            }
+
+            Writer writer = indexStored
+                            ? changer.updateEntity( new EntityReference( key ), entityDescriptor )
+                            : changer.newEntity( new EntityReference( key ), entityDescriptor );
+            StateWriter out = new StateWriter( writer );
+            JSONWriter json = new JSONWriter( out ).object().key( "chunks" ).array();
+            for( Chunk chunk : chunks )
+            {
+                json.array().value( chunk.id ).value( chunk.count ).endArray();
+            }
+            json.endArray().key( "next" ).value( nextChunkId ).key( "version" ).value( newVersion );
+            json.key( MapEntityStore.JSONKeys.identity.name() ).value( key ).endObject();
+            out.close();
+            writer.close();
+            indexStored = true;
+            version = newVersion;
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( "Could not store ManyAssociation " + key, e );
+        }
+        changed = false;
+    }
+
+    /**
+     * Remove the chunks, their filters and the index. The chunks are listed in the index, so none of them are read.
+     */
+    void removeChunks( MapEntityStore.MapChanger changer, EntityDescriptor entityDescriptor )
+        throws IOException
+    {
+        for( Chunk chunk : chunks() )
+        {
+            if( chunk.stored )
+            {
+                changer.removeEntity( chunkReference( chunk.id ), entityDescriptor );
+                changer.removeEntity( filterReference( chunk.id ), entityDescriptor );
+            }
+        }
+        for( Integer removedChunk : removedChunks )
+        {
+            changer.removeEntity( chunkReference( removedChunk ), entityDescriptor );
+            changer.removeEntity( filterReference( removedChunk ), entityDescriptor );
+        }
+        if( indexStored )
+        {
+            changer.removeEntity( new EntityReference( key ), entityDescriptor );
+        }
+    }
+
+    private void insert( int i, EntityReference entityReference )
+    {
+        List<Chunk> chunks = chunks();
+        if( i < 0 || i > count )
+        {
+            throw new IndexOutOfBoundsException( "Index:" + i );
+        }
+
+        int chunkIndex;
+        int offset = i;
+        if( i == count )
+        {
+            // Append to the last chunk, which is the only one that is read
+            chunkIndex = chunks.size() - 1;
+            if( chunkIndex < 0 || chunks.get( chunkIndex ).count >= chunkSize )
+            {
+                Chunk chunk = new Chunk( nextChunkId++ );
+                chunk.references = new ArrayList<EntityReference>();
+                chunks.add( chunk );
+                chunkIndex++;
+            }
+            offset = chunks.get( chunkIndex ).count;
+        }
+        else
+        {
+            chunkIndex = 0;
+            while( offset >= chunks.get( chunkIndex ).count )
+            {
+                offset -= chunks.get( chunkIndex ).count;
+                chunkIndex++;
+            }
+        }
+
+        Chunk chunk = chunks.get( chunkIndex );
+        List<EntityReference> references = references( chunk );
+        references.add( offset, entityReference );
+        chunk.count++;
+        chunk.changed = true;
+        count++;
+        if( chunk.filter != null )
+        {
+            chunk.filter = addToFilter( chunk.filter, entityReference, chunk.count );
+        }
+
+        if( chunk.count > chunkSize )
+        {
+            // Split the chunk in two
+            Chunk second = new Chunk( nextChunkId++ );
+            List<EntityReference> moved = references.subList( chunk.count / 2, chunk.count );
+            second.references = new ArrayList<EntityReference>( moved );
+            second.count = second.references.size();
+            second.changed = true;
+            moved.clear();
+            chunk.count = references.size();
+            chunk.filter = null;
+            chunks.add( chunkIndex + 1, second );
+        }
+    }
+
+    /**
+     * Append references that are not in the association yet. Only the last chunk is read.
+     */
+    private void append( Iterable<EntityReference> entityReferences )
+    {
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get( chunks.size() - 1 );
+        for( EntityReference entityReference : entityReferences )
+        {
+            if( chunk == null || chunk.count >= chunkSize )
+            {
+                chunk = new Chunk( nextChunkId++ );
+                chunk.references = new ArrayList<EntityReference>();
+                chunks.add( chunk );
+            }
+            references( chunk ).add( entityReference );
+            chunk.count++;
+            chunk.changed = true;
+            count++;
+            if( chunk.filter != null )
+            {
+                chunk.filter = addToFilter( chunk.filter, entityReference, chunk.count );
+            }
+        }
+    }
+
+    private void remove( Chunk chunk, EntityReference entityReference )
+    {
+        references( chunk ).remove( entityReference );
+        chunk.count--;
+        chunk.changed = true;
+        count--;
+        if( chunk.count == 0 )
+        {
+            chunks.remove( chunk );
+            if( chunk.stored )
+            {
+                removedChunks.add( chunk.id );
+            }
+        }
+        changed = true;
+    }
+
+    /**
+     * Find the chunk of a reference. Only chunks whose filter matches the reference are read.
+     */
+    private Chunk chunkOf( EntityReference entityReference )
+    {
+        for( Chunk chunk : chunks() )
+        {
+            if( mightContain( chunk, entityReference ) && references( chunk ).contains( entityReference ) )
+            {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    private List<Chunk> chunks()
+    {
+        if( chunks == null )
+        {
+            chunks = new ArrayList<Chunk>();
+            if( !isNew )
+            {
+                readIndex();
+            }
+            if( !indexStored && inlineState.count() > 0 )
+            {
+                // Move the references that are stored in the entity into chunks
+                List<EntityReference> inline = Iterables.toList( inlineState );
+                addAll( inline );
+                inlineState.removeAll( inline );
+            }
+        }
+        return chunks;
+    }
+
+    private void readIndex()
+    {
+        Reader reader;
+        try
+        {
+            reader = store.get( new EntityReference( key ) );
+        }
+        catch( EntityNotFoundException e )
+        {
+            return;
+        }
+
+        try
+        {
+            JSONPullParser parser = new JSONPullParser( reader );
+            expect( parser, JSONPullParser.Token.START_OBJECT );
+            while( parser.next() != JSONPullParser.Token.END_OBJECT )
+            {
+                if( parser.is( "chunks" ) )
+                {
+                    expect( parser, JSONPullParser.Token.START_ARRAY );
+                    while( parser.next() != JSONPullParser.Token.END_ARRAY )
+                    {
+                        parser.next();
+                        Chunk chunk = new Chunk( (int) parser.longValue() );
+                        parser.next();
+                        chunk.count = (int) parser.longValue();
+                        chunk.stored = true;
+                        count += chunk.count;
+                        expect( parser, JSONPullParser.Token.END_ARRAY );
+                        chunks.add( chunk );
+                    }
+                }
+                else if( parser.is( "next" ) )
+                {
+                    parser.next();
+                    nextChunkId = (int) parser.longValue();
+                }
+                else if( parser.is( "version" ) )
+                {
+                    parser.next();
+                    version = parser.longValue();
+                }
+                else
+                {
+                    parser.next();
+                    parser.skipValue();
+                }
+            }
+            reader.close();
+            indexStored = true;
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( "Could not read ManyAssociation " + key, e );
+        }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( "Could not read ManyAssociation " + key, e );
+        }
+    }
+
+    private List<EntityReference> references( Chunk chunk )
+    {
+        if( chunk.references == null )
+        {
+            try
+            {
+                Reader reader = read( chunkReference( chunk.id ) );
+                JSONPullParser parser = new JSONPullParser( reader );
+                expect( parser, JSONPullParser.Token.START_OBJECT );
+                parser.next();
+                expect( parser, JSONPullParser.Token.START_ARRAY );
+                List<EntityReference> references = new ArrayList<EntityReference>( chunk.count );
+                while( parser.next() != JSONPullParser.Token.END_ARRAY )
+                {
+                    references.add( EntityReference.parseEntityReference( parser.stringValue() ) );
+                }
+                checkVersion( parser );
+                reader.close();
+                if( references.size() != chunk.count )
+                {
+                    throw concurrentModification();
+                }
+                chunk.references = references;
+            }
+            catch( JSONException e )
+            {
+                throw new EntityStoreException( "Could not read ManyAssociation " + key, e );
+            }
+            catch( IOException e )
+            {
+                throw new EntityStoreException( "Could not read ManyAssociation " + key, e );
+            }
+        }
+        return chunk.references;
+    }
+
+    /**
+     * Read the filter of a stored chunk, which is much smaller than the chunk.
+     */
+    private long[] readFilter( Chunk chunk )
+    {
+        try
+        {
+            Reader reader = read( filterReference( chunk.id ) );
+            JSONPullParser parser = new JSONPullParser( reader );
+            expect( parser, JSONPullParser.Token.START_OBJECT );
+            parser.next();
+            expect( parser, JSONPullParser.Token.STRING );
+            long[] filter = decode( parser.stringValue() );
+            checkVersion( parser );
+            reader.close();
+            return filter;
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( "Could not read ManyAssociation " + key, e );
+        }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( "Could not read ManyAssociation " + key, e );
+        }
+    }
+
+    /**
+     * Get a chunk or filter that is listed in the index that was read. If it is gone it has been removed since.
+     */
+    private Reader read( EntityReference reference )
+    {
+        try
+        {
+            return store.get( reference );
+        }
+        catch( EntityNotFoundException e )
+        {
+            throw concurrentModification();
+        }
+    }
+
+    /**
+     * Check the rest of a chunk or filter record for a version that is newer than the index that was read.
+     */
+    private void checkVersion( JSONPullParser parser )
+        throws JSONException
+    {
+        while( parser.next() != JSONPullParser.Token.END_OBJECT )
+        {
+            if( parser.is( "version" ) )
+            {
+                parser.next();
+                if( parser.longValue() > version )
+                {
+                    throw concurrentModification();
+                }
+            }
+            else
+            {
+                parser.next();
+                parser.skipValue();
+            }
+        }
+    }
+
+    private EntityStoreException concurrentModification()
+    {
+        return new ConcurrentEntityStateModificationException( Collections.singletonList( identity ) );
+    }
+
+    private EntityReference chunkReference( int id )
+    {
+        return new EntityReference( key + "/" + id );
+    }
+
+    private EntityReference filterReference( int id )
+    {
+        return new EntityReference( key + "/" + id + "/filter" );
+    }
+
+    private boolean mightContain( Chunk chunk, EntityReference entityReference )
+    {
+        long[] filter = filter( chunk );
+        int bits = filter.length * 64;
+        int hash = entityReference.identity().hashCode();
+        int step = rehash( hash );
+        for( int i = 0; i < FILTER_HASHES; i++ )
+        {
+            int bit = ( ( hash + i * step ) & Integer.MAX_VALUE ) % bits;
+            if( ( filter[ bit >>> 6 ] & ( 1L << bit ) ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long[] filter( Chunk chunk )
+    {
+        if( chunk.filter == null )
+        {
+            chunk.filter = chunk.references == null && chunk.stored
+                           ? readFilter( chunk )
+                           : filter( references( chunk ) );
+        }
+        return chunk.filter;
+    }
+
+    private static long[] filter( List<EntityReference> references )
+    {
+        long[] filter = new long[ Math.max( 1, ( references.size() * FILTER_BITS + 63 ) / 64 ) ];
+        for( EntityReference reference : references )
+        {
+            set( filter, reference );
+        }
+        return filter;
+    }
+
+    /**
+     * Add a reference to a filter, which is rebuilt if it has become too small for the given number of references.
+     */
+    private static long[] addToFilter( long[] filter, EntityReference entityReference, int references )
+    {
+        if( filter.length * 64 < references * FILTER_BITS )
+        {
+            return null;
+        }
+        set( filter, entityReference );
+        return filter;
+    }
+
+    private static void set( long[] filter, EntityReference entityReference )
+    {
+        int bits = filter.length * 64;
+        int hash = entityReference.identity().hashCode();
+        int step = rehash( hash );
+        for( int i = 0; i < FILTER_HASHES; i++ )
+        {
+            int bit = ( ( hash + i * step ) & Integer.MAX_VALUE ) % bits;
+            filter[ bit >>> 6 ] |= 1L << bit;
+        }
+    }
+
+    private static int rehash( int hash )
+    {
+        hash *= 0x9E3779B9;
+        return ( hash ^ ( hash >>> 16 ) ) | 1;
+    }
+
+    private static String encode( long[] filter )
+    {
+        StringBuilder hex = new StringBuilder( filter.length * 16 );
+        for( long word : filter )
+        {
+            String digits = Long.toHexString( word );
+            for( int i = digits.length(); i < 16; i++ )
+            {
+                hex.append( '0' );
+            }
+            hex.append( digits );
+        }
+        return hex.toString();
+    }
+
+    private static long[] decode( String hex )
+    {
+        long[] filter = new long[ hex.length() / 16 ];
+        for( int i = 0; i < filter.length; i++ )
+        {
+            int offset = i * 16;
+            filter[ i ] = Long.parseLong( hex.substring( offset, offset + 8 ), 16 ) << 32
+                          | Long.parseLong( hex.substring( offset + 8, offset + 16 ), 16 );
+        }
+        return filter;
+    }
+
+    private static void expect( JSONPullParser parser, JSONPullParser.Token token )
+        throws JSONException
+    {
+        if( parser.next() != token )
+        {
+            throw parser.syntaxError( "Expected " + token );
+        }
+    }
+
+    private static final class Chunk
+    {
+        private final int id;
+        private int count;
+        private List<EntityReference> references;
+        private long[] filter; // Hashes of the references, or null if not known yet
+        private boolean stored;
+        private boolean changed;
+
+        private Chunk( int id )
+        {
+            this.id = id;
+        }
+    }
+}
@@ -22,10 +22,10 @@ import org.qi4j.api.entity.EntityDescriptor;
 import org.qi4j.api.entity.EntityReference;
 import org.qi4j.spi.entity.EntityState;
 import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entity.IndexedReferenceList;
 import org.qi4j.spi.entity.ManyAssociationState;
 import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -127,13 +127,13 @@ public final class DefaultEntityState
 
     public ManyAssociationState getManyAssociation( QualifiedName stateName )
     {
-        List<EntityReference> manyAssociationState = manyAssociations.get( stateName );
-        if( manyAssociationState == null )
+        List<EntityReference> references = manyAssociations.get( stateName );
+        if( !( references instanceof IndexedReferenceList ) )
         {
-            manyAssociationState = new ArrayList<EntityReference>();
-            manyAssociations.put( stateName, manyAssociationState );
+            references = references == null ? new IndexedReferenceList() : IndexedReferenceList.of( references );
+            manyAssociations.put( stateName, references );
         }
-        return new DefaultManyAssociationState( this, manyAssociationState );
+        return new DefaultManyAssociationState( this, (IndexedReferenceList) references );
     }
 
     public void copyTo( DefaultEntityState entityState )
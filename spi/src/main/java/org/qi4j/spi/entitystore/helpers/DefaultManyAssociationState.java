@@ -15,21 +15,23 @@
 package org.qi4j.spi.entitystore.helpers;
 
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Iterables;
+import org.qi4j.spi.entity.IndexedReferenceList;
 import org.qi4j.spi.entity.ManyAssociationState;
 
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 
 /**
- * Default implementation of ManyAssociationState. Backed by ArrayList.
+ * Default implementation of ManyAssociationState. Backed by IndexedReferenceList.
  */
 public final class DefaultManyAssociationState
     implements ManyAssociationState
 {
     private DefaultEntityState entityState;
-    private List<EntityReference> references;
+    private IndexedReferenceList references;
 
-    public DefaultManyAssociationState( DefaultEntityState entityState, List<EntityReference> references )
+    public DefaultManyAssociationState( DefaultEntityState entityState, IndexedReferenceList references )
     {
         this.entityState = entityState;
         this.references = references;
@@ -47,12 +49,11 @@ public final class DefaultManyAssociationState
 
     public boolean add( int i, EntityReference entityReference )
     {
-        if( references.contains( entityReference ) )
+        if( !references.insert( i, entityReference ) )
         {
             return false;
         }
 
-        references.add( i, entityReference );
         entityState.markUpdated();
         return true;
     }
@@ -64,6 +65,30 @@ public final class DefaultManyAssociationState
         return removed;
     }
 
+    public boolean addAll( Iterable<EntityReference> entityReferences )
+    {
+        boolean added = false;
+        for( EntityReference entityReference : entityReferences )
+        {
+            added |= references.add( entityReference );
+        }
+        if( added )
+        {
+            entityState.markUpdated();
+        }
+        return added;
+    }
+
+    public boolean removeAll( Iterable<EntityReference> entityReferences )
+    {
+        return changed( references.removeAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) ) );
+    }
+
+    public boolean retainAll( Iterable<EntityReference> entityReferences )
+    {
+        return changed( references.retainAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) ) );
+    }
+
     public EntityReference get( int i )
     {
         return references.get( i );
@@ -95,4 +120,13 @@ public final class DefaultManyAssociationState
             }
         };
     }
+
+    private boolean changed( boolean changed )
+    {
+        if( changed )
+        {
+            entityState.markUpdated();
+        }
+        return changed;
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Specification;
+import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes of entity state in a MapEntityStore, which are validated and applied as one commit.
+ */
+public final class EntityChanges<T>
+{
+    private final List<Change<T>> changes = new ArrayList<Change<T>>();
+
+    public void newEntity( EntityReference reference, T state )
+    {
+        changes.add( new Change<T>( ChangeType.NEW, reference, state ) );
+    }
+
+    public void updateEntity( EntityReference reference, T state )
+    {
+        changes.add( new Change<T>( ChangeType.UPDATE, reference, state ) );
+    }
+
+    public void removeEntity( EntityReference reference )
+    {
+        changes.add( new Change<T>( ChangeType.REMOVE, reference, null ) );
+    }
+
+    /**
+     * Validate all changes against the committed state and earlier changes in the same commit.
+     *
+     * @param committed specification of the entities that have committed state
+     *
+     * @return the new state of each changed entity, in the order they were changed, with null for removed ones
+     *
+     * @throws EntityAlreadyExistsException if a new entity already exists
+     * @throws EntityNotFoundException      if an updated entity does not exist
+     */
+    public Map<EntityReference, T> validate( Specification<EntityReference> committed )
+    {
+        Map<EntityReference, T> states = new LinkedHashMap<EntityReference, T>();
+        for( Change<T> change : changes )
+        {
+            boolean exists = states.containsKey( change.reference )
+                             ? states.get( change.reference ) != null
+                             : committed.satisfiedBy( change.reference );
+            if( change.type == ChangeType.NEW && exists )
+            {
+                throw new EntityAlreadyExistsException( change.reference );
+            }
+            if( change.type == ChangeType.UPDATE && !exists )
+            {
+                throw new EntityNotFoundException( change.reference );
+            }
+            states.put( change.reference, change.state );
+        }
+        return states;
+    }
+
+    private enum ChangeType
+    {
+        NEW, UPDATE, REMOVE
+    }
+
+    private static final class Change<T>
+    {
+        private final ChangeType type;
+        private final EntityReference reference;
+        private final T state;
+
+        private Change( ChangeType type, EntityReference reference, T state )
+        {
+            this.type = type;
+            this.reference = reference;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Converts {@link SlotEntityState} to and from the stored form that a MapEntityStore keeps. If a service
+ * with this interface is visible to a store that uses the {@link MapEntityStoreMixin}, then the store
+ * uses SlotEntityState and this codec instead of its own JSON handling. Codecs do not apply migrations,
+ * so if a {@link Migration} service is visible as well then the store does not use the codec.
+ * <p/>
+ * See {@link JSONEntityStateCodecService} for a codec that uses the same JSON format as the MapEntityStoreMixin.
+ */
+public interface EntityStateCodec
+{
+    SlotEntityState newEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                                    EntityReference identity,
+                                    EntityDescriptor entityDescriptor
+    );
+
+    SlotEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, Reader state )
+        throws EntityStoreException;
+
+    void writeEntityState( SlotEntityState state, String version, long lastModified, Writer writer )
+        throws IOException;
+}
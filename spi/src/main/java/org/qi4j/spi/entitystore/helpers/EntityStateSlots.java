@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.association.AssociationDescriptor;
+import org.qi4j.api.common.QualifiedName;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.property.PropertyDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The slots of the state of an entity type. Each property, association and many-association of the type
+ * is given a slot, which is its index in the state arrays of a {@link SlotEntityState}. The QualifiedName
+ * instances of the descriptors are found by identity, and other equal names by equals. Codecs can also
+ * find slots by the plain name of the state.
+ * <p/>
+ * Use {@link #slotsFor(EntityDescriptor)} to get the slots of a type, so that all stores and the runtime
+ * share the same slots.
+ */
+public final class EntityStateSlots
+{
+    /**
+     * Implemented by entity descriptors that create and hold their own slots, and so can give each
+     * of their state models the slot it has in the state arrays.
+     */
+    public interface Owner
+    {
+        EntityStateSlots stateSlots();
+    }
+
+    private static final Map<EntityDescriptor, EntityStateSlots> slots = Collections.synchronizedMap( new WeakHashMap<EntityDescriptor, EntityStateSlots>() );
+
+    /**
+     * @return the slots of the given entity type
+     */
+    public static EntityStateSlots slotsFor( EntityDescriptor entityDescriptor )
+    {
+        if( entityDescriptor instanceof Owner )
+        {
+            return ( (Owner) entityDescriptor ).stateSlots();
+        }
+
+        EntityStateSlots entitySlots = slots.get( entityDescriptor );
+        if( entitySlots == null )
+        {
+            entitySlots = new EntityStateSlots( entityDescriptor );
+            slots.put( entityDescriptor, entitySlots );
+        }
+        return entitySlots;
+    }
+
+    private final Slots<PropertyDescriptor> properties;
+    private final Slots<AssociationDescriptor> associations;
+    private final Slots<AssociationDescriptor> manyAssociations;
+
+    public EntityStateSlots( EntityDescriptor entityDescriptor )
+    {
+        properties = new Slots<PropertyDescriptor>( entityDescriptor.state().properties() );
+        associations = new Slots<AssociationDescriptor>( entityDescriptor.state().associations() );
+        manyAssociations = new Slots<AssociationDescriptor>( entityDescriptor.state().manyAssociations() );
+    }
+
+    public int propertyCount()
+    {
+        return properties.descriptors.size();
+    }
+
+    public PropertyDescriptor propertyAt( int slot )
+    {
+        return properties.descriptors.get( slot );
+    }
+
+    public int propertySlot( QualifiedName name )
+    {
+        return properties.slotFor( name );
+    }
+
+    public int propertySlot( String name )
+    {
+        return properties.slotFor( name );
+    }
+
+    public int associationCount()
+    {
+        return associations.descriptors.size();
+    }
+
+    public AssociationDescriptor associationAt( int slot )
+    {
+        return associations.descriptors.get( slot );
+    }
+
+    public int associationSlot( QualifiedName name )
+    {
+        return associations.slotFor( name );
+    }
+
+    public int associationSlot( String name )
+    {
+        return associations.slotFor( name );
+    }
+
+    public int manyAssociationCount()
+    {
+        return manyAssociations.descriptors.size();
+    }
+
+    public AssociationDescriptor manyAssociationAt( int slot )
+    {
+        return manyAssociations.descriptors.get( slot );
+    }
+
+    public int manyAssociationSlot( QualifiedName name )
+    {
+        return manyAssociations.slotFor( name );
+    }
+
+    public int manyAssociationSlot( String name )
+    {
+        return manyAssociations.slotFor( name );
+    }
+
+    private static class Slots<T>
+    {
+        private final List<T> descriptors = new ArrayList<T>();
+        private final Map<QualifiedName, Integer> identitySlots = new IdentityHashMap<QualifiedName, Integer>();
+        private final Map<QualifiedName, Integer> slots = new HashMap<QualifiedName, Integer>();
+        private final Map<String, Integer> nameSlots = new HashMap<String, Integer>();
+
+        private Slots( Iterable<? extends T> descriptors )
+        {
+            for( T descriptor : descriptors )
+            {
+                QualifiedName name = descriptor instanceof PropertyDescriptor
+                                     ? ( (PropertyDescriptor) descriptor ).qualifiedName()
+                                     : ( (AssociationDescriptor) descriptor ).qualifiedName();
+                int slot = this.descriptors.size();
+                this.descriptors.add( descriptor );
+                identitySlots.put( name, slot );
+                slots.put( name, slot );
+                nameSlots.put( name.name(), slot );
+            }
+        }
+
+        private int slotFor( QualifiedName name )
+        {
+            Integer slot = identitySlots.get( name );
+            if( slot == null )
+            {
+                slot = slots.get( name );
+                if( slot == null )
+                {
+                    return -1;
+                }
+            }
+            return slot;
+        }
+
+        private int slotFor( String name )
+        {
+            Integer slot = nameSlots.get( name );
+            return slot == null ? -1 : slot;
+        }
+    }
+}
@@ -19,19 +19,27 @@ package org.qi4j.spi.entitystore.helpers;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 import org.qi4j.api.common.QualifiedName;
 import org.qi4j.api.entity.EntityDescriptor;
 import org.qi4j.api.entity.EntityReference;
 import org.qi4j.api.json.JSONDeserializer;
 import org.qi4j.api.json.JSONObjectSerializer;
+import org.qi4j.api.json.JSONWriterSerializer;
 import org.qi4j.api.property.PropertyDescriptor;
-import org.qi4j.api.structure.Module;
 import org.qi4j.spi.entity.EntityState;
 import org.qi4j.spi.entity.EntityStatus;
 import org.qi4j.spi.entity.ManyAssociationState;
 import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Standard implementation of EntityState.
  */
@@ -64,6 +72,12 @@ public final class JSONEntityState
     private final EntityDescriptor entityDescriptor;
     protected JSONObject state;
 
+    // Property values that have been decoded from the JSON state, or set but not yet encoded
+    private Map<QualifiedName, Object> decodedProperties;
+    private Set<QualifiedName> dirtyProperties;
+
+    private final Map<QualifiedName, JSONManyAssociationState> manyAssociationStates = new HashMap<QualifiedName, JSONManyAssociationState>();
+
     public JSONEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
                             EntityReference identity,
                             EntityDescriptor entityDescriptor,
@@ -115,6 +129,15 @@ public final class JSONEntityState
 
     public Object getProperty( QualifiedName stateName )
     {
+        if( decodedProperties != null )
+        {
+            Object value = decodedProperties.get( stateName );
+            if( value != null || decodedProperties.containsKey( stateName ) )
+            {
+                return value;
+            }
+        }
+
         try
         {
             Object json = state.getJSONObject( JSON_KEY_PROPERTIES ).opt( stateName.name() );
@@ -124,15 +147,20 @@ public final class JSONEntityState
             }
             else
             {
-                Module module = unitOfWork.module();
                 PropertyDescriptor descriptor = entityDescriptor.state().getPropertyByQualifiedName( stateName );
 
                 if (descriptor == null)
                     return null;
 
-                JSONDeserializer deserializer = new JSONDeserializer( module );
+                JSONDeserializer deserializer = unitOfWork.deserializer();
 
-                return deserializer.deserialize( json, descriptor.valueType() );
+                Object value = deserializer.deserialize( json, descriptor.valueType() );
+                if( decodedProperties == null )
+                {
+                    decodedProperties = new HashMap<QualifiedName, Object>();
+                }
+                decodedProperties.put( stateName, value );
+                return value;
             }
         }
         catch( JSONException e )
@@ -143,25 +171,51 @@ public final class JSONEntityState
 
     public void setProperty( QualifiedName stateName, Object newValue )
     {
+        // The value is encoded once when the state is written, no matter how many times it is set
+        if( decodedProperties == null )
+        {
+            decodedProperties = new HashMap<QualifiedName, Object>();
+        }
+        if( dirtyProperties == null )
+        {
+            dirtyProperties = new HashSet<QualifiedName>();
+        }
+        decodedProperties.put( stateName, newValue );
+        dirtyProperties.add( stateName );
+        markUpdated();
+    }
+
+    private void encodeDirtyProperties()
+    {
+        if( dirtyProperties == null || dirtyProperties.isEmpty() )
+        {
+            return;
+        }
+
         try
         {
-            Object jsonValue;
-            if( newValue == null )
-            {
-                jsonValue = JSONObject.NULL;
-            }
-            else
+            cloneStateIfGlobalStateLoaded();
+            JSONObject properties = state.getJSONObject( JSON_KEY_PROPERTIES );
+            for( QualifiedName stateName : dirtyProperties )
             {
-                PropertyDescriptor persistentPropertyDescriptor = entityDescriptor.state()
-                    .getPropertyByQualifiedName( stateName );
+                Object newValue = decodedProperties.get( stateName );
+                Object jsonValue;
+                if( newValue == null )
+                {
+                    jsonValue = JSONObject.NULL;
+                }
+                else
+                {
+                    PropertyDescriptor persistentPropertyDescriptor = entityDescriptor.state()
+                        .getPropertyByQualifiedName( stateName );
 
-                JSONObjectSerializer serializer = new JSONObjectSerializer();
-                serializer.serialize( newValue, persistentPropertyDescriptor.valueType() );
-                jsonValue = serializer.getRoot();
+                    JSONObjectSerializer serializer = new JSONObjectSerializer();
+                    serializer.serialize( newValue, persistentPropertyDescriptor.valueType() );
+                    jsonValue = serializer.getRoot();
+                }
+                properties.put( stateName.name(), jsonValue );
             }
-            cloneStateIfGlobalStateLoaded();
-            state.getJSONObject( JSON_KEY_PROPERTIES ).put( stateName.name(), jsonValue );
-            markUpdated();
+            dirtyProperties.clear();
         }
         catch( JSONException e )
         {
@@ -219,6 +273,13 @@ public final class JSONEntityState
     {
         try
         {
+            // Reuse the state, so that there is one index of the references
+            JSONManyAssociationState manyAssociationState = manyAssociationStates.get( stateName );
+            if( manyAssociationState != null )
+            {
+                return manyAssociationState;
+            }
+
             JSONObject manyAssociations = state.getJSONObject( JSON_KEY_MANYASSOCIATIONS );
             JSONArray jsonValues = manyAssociations.optJSONArray( stateName.name() );
             if( jsonValues == null )
@@ -226,7 +287,9 @@ public final class JSONEntityState
                 jsonValues = new JSONArray();
                 manyAssociations.put( stateName.name(), jsonValues );
             }
-            return new JSONManyAssociationState( this, jsonValues );
+            manyAssociationState = new JSONManyAssociationState( this, jsonValues );
+            manyAssociationStates.put( stateName, manyAssociationState );
+            return manyAssociationState;
         }
         catch( JSONException e )
         {
@@ -255,11 +318,80 @@ public final class JSONEntityState
         return entityDescriptor;
     }
 
+    /**
+     * @return the JSON state, including the properties that have been set since it was loaded
+     */
     public JSONObject state()
     {
+        encodeDirtyProperties();
         return state;
     }
 
+    /**
+     * Write the JSON state with the given version and modification time. Properties that have been set since
+     * the state was loaded are serialized straight to the writer, without encoding them into the JSON state.
+     */
+    void writeState( Writer writer, String version, long lastModified )
+        throws JSONException
+    {
+        state.put( JSON_KEY_VERSION, version );
+        state.put( JSON_KEY_MODIFIED, lastModified );
+
+        JSONWriter json = new JSONWriter( writer ).object();
+        Iterator<?> keys = state.keys();
+        while( keys.hasNext() )
+        {
+            String key = keys.next().toString();
+            json.key( key );
+            if( key.equals( JSON_KEY_PROPERTIES ) && dirtyProperties != null && !dirtyProperties.isEmpty() )
+            {
+                writeProperties( json );
+            }
+            else
+            {
+                json.value( state.opt( key ) );
+            }
+        }
+        json.endObject();
+    }
+
+    private void writeProperties( JSONWriter json )
+        throws JSONException
+    {
+        Set<String> dirtyNames = new HashSet<String>();
+        for( QualifiedName stateName : dirtyProperties )
+        {
+            dirtyNames.add( stateName.name() );
+        }
+
+        json.object();
+        JSONObject properties = state.getJSONObject( JSON_KEY_PROPERTIES );
+        Iterator<?> keys = properties.keys();
+        while( keys.hasNext() )
+        {
+            String key = keys.next().toString();
+            if( !dirtyNames.contains( key ) )
+            {
+                json.key( key ).value( properties.opt( key ) );
+            }
+        }
+        JSONWriterSerializer serializer = new JSONWriterSerializer( json );
+        for( QualifiedName stateName : dirtyProperties )
+        {
+            json.key( stateName.name() );
+            Object newValue = decodedProperties.get( stateName );
+            if( newValue == null )
+            {
+                json.value( JSONObject.NULL );
+            }
+            else
+            {
+                serializer.serialize( newValue, entityDescriptor.state().getPropertyByQualifiedName( stateName ).valueType() );
+            }
+        }
+        json.endObject();
+    }
+
     @Override
     public String toString()
     {
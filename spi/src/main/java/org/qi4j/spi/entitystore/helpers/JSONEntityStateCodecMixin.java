@@ -0,0 +1,871 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.json.JSONException;
+import org.json.JSONPullParser;
+import org.json.JSONString;
+import org.json.JSONWriter;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.injection.scope.Structure;
+import org.qi4j.api.json.JSONDeserializer;
+import org.qi4j.api.json.JSONWriterSerializer;
+import org.qi4j.api.property.PropertyDescriptor;
+import org.qi4j.api.structure.Application;
+import org.qi4j.api.structure.Module;
+import org.qi4j.api.unitofwork.EntityTypeNotFoundException;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JSON codec for {@link SlotEntityState}. The state is read with a pull parser straight into the slots,
+ * so no JSONObject tree or maps are created. The header must be stored before the state, which is how
+ * it is written.
+ * <p/>
+ * Stored state of an older application version is loaded as is and marked as updated, so that it is
+ * written with the current version. Migrations are not applied.
+ * <p/>
+ * In lazy mode, see {@link #isLazy()}, the stored text is only scanned for where the value of each
+ * property, association and many-association is. Each one is decoded from the text when it is first
+ * used, and state that was never used is written back as the same text.
+ */
+public class JSONEntityStateCodecMixin
+    implements EntityStateCodec
+{
+    @Structure
+    private Application application;
+
+    /**
+     * @return true to decode the state of loaded entities when it is used instead of when it is loaded
+     */
+    protected boolean isLazy()
+    {
+        return false;
+    }
+
+    public SlotEntityState newEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                                           EntityReference identity,
+                                           EntityDescriptor entityDescriptor
+    )
+    {
+        return new SlotEntityState( unitOfWork, identity, entityDescriptor, EntityStateSlots.slotsFor( entityDescriptor ) );
+    }
+
+    public SlotEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, Reader state )
+        throws EntityStoreException
+    {
+        try
+        {
+            if( isLazy() )
+            {
+                return readLazyEntityState( unitOfWork, readFully( state ) );
+            }
+            return readEntityState( unitOfWork, new JSONPullParser( state ) );
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( e );
+        }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( e );
+        }
+    }
+
+    private SlotEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, JSONPullParser parser )
+        throws JSONException
+    {
+        Module module = unitOfWork.module();
+        if( parser.next() != JSONPullParser.Token.START_OBJECT )
+        {
+            throw parser.syntaxError( "Expected entity state object" );
+        }
+
+        EntityStatus status = EntityStatus.LOADED;
+        String identity = null;
+        String version = null;
+        long modified = 0;
+        String type = null;
+
+        EntityDescriptor entityDescriptor = null;
+        EntityStateSlots entitySlots = null;
+        Object[] properties = null;
+        boolean[] loaded = null;
+        EntityReference[] associations = null;
+        boolean[] loadedAssociations = null;
+        List<EntityReference>[] manyAssociations = null;
+
+        while( parser.next() != JSONPullParser.Token.END_OBJECT )
+        {
+            if( parser.is( "identity" ) )
+            {
+                identity = scalar( parser );
+            }
+            else if( parser.is( "version" ) )
+            {
+                version = scalar( parser );
+            }
+            else if( parser.is( "modified" ) )
+            {
+                parser.next();
+                modified = parser.longValue();
+            }
+            else if( parser.is( "application_version" ) )
+            {
+                if( !application.version().equals( scalar( parser ) ) )
+                {
+                    status = EntityStatus.UPDATED;
+                }
+            }
+            else if( parser.is( "type" ) )
+            {
+                type = scalar( parser );
+            }
+            else if( parser.is( "properties" ) || parser.is( "associations" ) || parser.is( "manyassociations" ) )
+            {
+                if( entityDescriptor == null )
+                {
+                    if( type == null )
+                    {
+                        throw parser.syntaxError( "Type of entity must be stored before its state" );
+                    }
+                    entityDescriptor = entityDescriptor( module, type );
+                    entitySlots = EntityStateSlots.slotsFor( entityDescriptor );
+                    properties = new Object[ entitySlots.propertyCount() ];
+                    loaded = new boolean[ properties.length ];
+                    associations = new EntityReference[ entitySlots.associationCount() ];
+                    loadedAssociations = new boolean[ associations.length ];
+                    manyAssociations = new List[ entitySlots.manyAssociationCount() ];
+                }
+
+                if( parser.is( "properties" ) )
+                {
+                    readProperties( parser, entitySlots, properties, loaded, unitOfWork.deserializer() );
+                }
+                else if( parser.is( "associations" ) )
+                {
+                    readAssociations( parser, entitySlots, associations, loadedAssociations );
+                }
+                else
+                {
+                    readManyAssociations( parser, entitySlots, manyAssociations );
+                }
+            }
+            else
+            {
+                parser.next();
+                parser.skipValue();
+            }
+        }
+
+        if( identity == null || version == null || entityDescriptor == null )
+        {
+            throw parser.syntaxError( "Incomplete entity state" );
+        }
+
+        // Default state that was not found
+        for( int i = 0; i < properties.length; i++ )
+        {
+            if( !loaded[ i ] )
+            {
+                properties[ i ] = entitySlots.propertyAt( i ).initialValue( module );
+                status = EntityStatus.UPDATED;
+            }
+        }
+        for( int i = 0; i < manyAssociations.length; i++ )
+        {
+            if( manyAssociations[ i ] == null )
+            {
+                manyAssociations[ i ] = new ArrayList<EntityReference>();
+            }
+        }
+
+        return new SlotEntityState( unitOfWork,
+                                    version,
+                                    modified,
+                                    EntityReference.parseEntityReference( identity ),
+                                    status,
+                                    entityDescriptor,
+                                    entitySlots,
+                                    properties,
+                                    associations,
+                                    manyAssociations );
+    }
+
+    /**
+     * Read the header of the stored state, and only find where the value of each slot is. The values are
+     * skipped over without being tokenized.
+     */
+    private SlotEntityState readLazyEntityState( DefaultEntityStoreUnitOfWork unitOfWork, char[] chars )
+        throws JSONException
+    {
+        Module module = unitOfWork.module();
+        JSONScanner scanner = new JSONScanner( chars );
+        scanner.expect( '{' );
+
+        EntityStatus status = EntityStatus.LOADED;
+        String identity = null;
+        String version = null;
+        long modified = 0;
+        String type = null;
+        EntityDescriptor entityDescriptor = null;
+        LazyJSONState lazyState = null;
+
+        while( scanner.nextKey() )
+        {
+            String key = scanner.key();
+            if( key.equals( "properties" ) || key.equals( "associations" ) || key.equals( "manyassociations" ) )
+            {
+                if( entityDescriptor == null )
+                {
+                    if( type == null )
+                    {
+                        throw scanner.syntaxError( "Type of entity must be stored before its state" );
+                    }
+                    entityDescriptor = entityDescriptor( module, type );
+                    lazyState = new LazyJSONState( unitOfWork.deserializer(), EntityStateSlots.slotsFor( entityDescriptor ), chars );
+                }
+                lazyState.index( scanner, key );
+                continue;
+            }
+
+            int start = scanner.skipValue();
+            if( key.equals( "identity" ) )
+            {
+                identity = scalar( chars, start, scanner.position() );
+            }
+            else if( key.equals( "version" ) )
+            {
+                version = scalar( chars, start, scanner.position() );
+            }
+            else if( key.equals( "modified" ) )
+            {
+                modified = Long.parseLong( scalar( chars, start, scanner.position() ) );
+            }
+            else if( key.equals( "application_version" ) )
+            {
+                if( !application.version().equals( scalar( chars, start, scanner.position() ) ) )
+                {
+                    status = EntityStatus.UPDATED;
+                }
+            }
+            else if( key.equals( "type" ) )
+            {
+                type = scalar( chars, start, scanner.position() );
+            }
+        }
+
+        if( identity == null || version == null || entityDescriptor == null )
+        {
+            throw scanner.syntaxError( "Incomplete entity state" );
+        }
+
+        // Default state that was not found
+        EntityStateSlots entitySlots = lazyState.slots;
+        Object[] properties = new Object[ entitySlots.propertyCount() ];
+        boolean[] loaded = new boolean[ properties.length ];
+        for( int i = 0; i < properties.length; i++ )
+        {
+            if( !lazyState.hasProperty( i ) )
+            {
+                properties[ i ] = entitySlots.propertyAt( i ).initialValue( module );
+                loaded[ i ] = true;
+                status = EntityStatus.UPDATED;
+            }
+        }
+        EntityReference[] associations = new EntityReference[ entitySlots.associationCount() ];
+        boolean[] loadedAssociations = new boolean[ associations.length ];
+        for( int i = 0; i < associations.length; i++ )
+        {
+            loadedAssociations[ i ] = !lazyState.hasAssociation( i );
+        }
+
+        return new SlotEntityState( unitOfWork,
+                                    version,
+                                    modified,
+                                    EntityReference.parseEntityReference( identity ),
+                                    status,
+                                    entityDescriptor,
+                                    entitySlots,
+                                    properties,
+                                    associations,
+                                    new List[ entitySlots.manyAssociationCount() ],
+                                    loaded,
+                                    loadedAssociations,
+                                    lazyState );
+    }
+
+    public void writeEntityState( SlotEntityState state, String version, long lastModified, Writer writer )
+        throws IOException
+    {
+        try
+        {
+            StateWriter out = new StateWriter( writer );
+            JSONWriter json = new JSONWriter( out );
+            json.object().
+                key( "identity" ).value( state.identity().identity() ).
+                key( "application_version" ).value( application.version() ).
+                key( "type" ).value( state.entityDescriptor().type().getName() ).
+                key( "version" ).value( version ).
+                key( "modified" ).value( lastModified ).
+                key( "properties" ).object();
+
+            EntityStateSlots entitySlots = state.slots();
+            JSONWriterSerializer serializer = new JSONWriterSerializer( json );
+            for( int i = 0; i < entitySlots.propertyCount(); i++ )
+            {
+                PropertyDescriptor propertyDescriptor = entitySlots.propertyAt( i );
+                json.key( propertyDescriptor.qualifiedName().name() );
+                if( !state.isPropertyLoaded( i ) && state.lazyState() instanceof LazyJSONState )
+                {
+                    // Not used, so write the stored text as is
+                    json.value( ( (LazyJSONState) state.lazyState() ).storedProperty( i ) );
+                }
+                else
+                {
+                    serializer.serialize( state.propertyAt( i ), propertyDescriptor.valueType() );
+                }
+            }
+
+            json.endObject().key( "associations" ).object();
+            for( int i = 0; i < entitySlots.associationCount(); i++ )
+            {
+                EntityReference reference = state.associationAt( i );
+                json.key( entitySlots.associationAt( i ).qualifiedName().name() ).
+                    value( reference != null ? reference.identity() : null );
+            }
+
+            json.endObject().key( "manyassociations" ).object();
+            for( int i = 0; i < entitySlots.manyAssociationCount(); i++ )
+            {
+                json.key( entitySlots.manyAssociationAt( i ).qualifiedName().name() );
+                if( !state.isManyAssociationLoaded( i ) && state.lazyState() instanceof LazyJSONState
+                    && ( (LazyJSONState) state.lazyState() ).hasManyAssociation( i ) )
+                {
+                    json.value( ( (LazyJSONState) state.lazyState() ).storedManyAssociation( i ) );
+                    continue;
+                }
+
+                json.array();
+                for( EntityReference reference : state.manyAssociationReferencesAt( i ) )
+                {
+                    json.value( reference.identity() );
+                }
+                json.endArray();
+            }
+            json.endObject().endObject();
+            out.close();
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( "Could not store EntityState", e );
+        }
+    }
+
+    private static void readProperties( JSONPullParser parser,
+                                        EntityStateSlots entitySlots,
+                                        Object[] properties,
+                                        boolean[] loaded,
+                                        JSONDeserializer deserializer
+    )
+        throws JSONException
+    {
+        expect( parser, JSONPullParser.Token.START_OBJECT );
+        while( parser.next() != JSONPullParser.Token.END_OBJECT )
+        {
+            int slot = entitySlots.propertySlot( parser.stringValue() );
+            parser.next();
+            if( slot == -1 )
+            {
+                parser.skipValue();
+            }
+            else
+            {
+                properties[ slot ] = deserializer.deserialize( parser, entitySlots.propertyAt( slot ).valueType() );
+                loaded[ slot ] = true;
+            }
+        }
+    }
+
+    private static void readAssociations( JSONPullParser parser,
+                                          EntityStateSlots entitySlots,
+                                          EntityReference[] associations,
+                                          boolean[] loaded
+    )
+        throws JSONException
+    {
+        expect( parser, JSONPullParser.Token.START_OBJECT );
+        while( parser.next() != JSONPullParser.Token.END_OBJECT )
+        {
+            int slot = entitySlots.associationSlot( parser.stringValue() );
+            parser.next();
+            if( slot == -1 )
+            {
+                parser.skipValue();
+                continue;
+            }
+
+            associations[ slot ] = readReference( parser );
+            loaded[ slot ] = true;
+        }
+    }
+
+    private static void readManyAssociations( JSONPullParser parser,
+                                              EntityStateSlots entitySlots,
+                                              List<EntityReference>[] manyAssociations
+    )
+        throws JSONException
+    {
+        expect( parser, JSONPullParser.Token.START_OBJECT );
+        while( parser.next() != JSONPullParser.Token.END_OBJECT )
+        {
+            int slot = entitySlots.manyAssociationSlot( parser.stringValue() );
+            parser.next();
+            if( slot == -1 || parser.token() != JSONPullParser.Token.START_ARRAY )
+            {
+                parser.skipValue();
+                continue;
+            }
+
+            manyAssociations[ slot ] = readReferences( parser );
+        }
+    }
+
+    private static EntityReference readReference( JSONPullParser parser )
+        throws JSONException
+    {
+        if( parser.token() == JSONPullParser.Token.NULL )
+        {
+            return null;
+        }
+        return EntityReference.parseEntityReference( reference( parser ) );
+    }
+
+    private static List<EntityReference> readReferences( JSONPullParser parser )
+        throws JSONException
+    {
+        List<EntityReference> references = new ArrayList<EntityReference>();
+        while( parser.next() != JSONPullParser.Token.END_ARRAY )
+        {
+            references.add( EntityReference.parseEntityReference( reference( parser ) ) );
+        }
+        return references;
+    }
+
+    private static char[] readFully( Reader reader )
+        throws IOException
+    {
+        char[] chars = new char[ 1024 ];
+        int length = 0;
+        int count;
+        while( ( count = reader.read( chars, length, chars.length - length ) ) != -1 )
+        {
+            length += count;
+            if( length == chars.length )
+            {
+                char[] newChars = new char[ chars.length * 2 ];
+                System.arraycopy( chars, 0, newChars, 0, length );
+                chars = newChars;
+            }
+        }
+        if( length == chars.length )
+        {
+            return chars;
+        }
+        char[] result = new char[ length ];
+        System.arraycopy( chars, 0, result, 0, length );
+        return result;
+    }
+
+    private static EntityDescriptor entityDescriptor( Module module, String type )
+    {
+        EntityDescriptor entityDescriptor = module.entityDescriptor( type );
+        if( entityDescriptor == null )
+        {
+            throw new EntityTypeNotFoundException( type );
+        }
+        return entityDescriptor;
+    }
+
+    /**
+     * @return the string or number that is stored between start and end
+     */
+    private static String scalar( char[] chars, int start, int end )
+        throws JSONException
+    {
+        JSONPullParser parser = new JSONPullParser( chars, start, end - start );
+        JSONPullParser.Token token = parser.next();
+        if( token != JSONPullParser.Token.STRING && token != JSONPullParser.Token.NUMBER )
+        {
+            throw parser.syntaxError( "Expected a string but was " + token );
+        }
+        return parser.stringValue();
+    }
+
+    private static String scalar( JSONPullParser parser )
+        throws JSONException
+    {
+        JSONPullParser.Token token = parser.next();
+        if( token != JSONPullParser.Token.STRING && token != JSONPullParser.Token.NUMBER )
+        {
+            throw parser.syntaxError( "Expected a string but was " + token );
+        }
+        return parser.stringValue();
+    }
+
+    private static String reference( JSONPullParser parser )
+        throws JSONException
+    {
+        if( parser.token() != JSONPullParser.Token.STRING )
+        {
+            throw parser.syntaxError( "Expected entity reference but was " + parser.token() );
+        }
+        return parser.stringValue();
+    }
+
+    private static void expect( JSONPullParser parser, JSONPullParser.Token token )
+        throws JSONException
+    {
+        if( parser.next() != token )
+        {
+            throw parser.syntaxError( "Expected " + token + " but was " + parser.token() );
+        }
+    }
+
+    /**
+     * Stored text of an entity, with the position of the value of each slot in it.
+     */
+    private static class LazyJSONState
+        implements SlotEntityState.LazyState
+    {
+        private final JSONDeserializer deserializer;
+        private final EntityStateSlots slots;
+        private final char[] chars;
+
+        // Start and end of the stored value of each slot, or -1 if there is no stored value
+        private final int[] properties;
+        private final int[] associations;
+        private final int[] manyAssociations;
+
+        private LazyJSONState( JSONDeserializer deserializer, EntityStateSlots slots, char[] chars )
+        {
+            this.deserializer = deserializer;
+            this.slots = slots;
+            this.chars = chars;
+            properties = positions( slots.propertyCount() );
+            associations = positions( slots.associationCount() );
+            manyAssociations = positions( slots.manyAssociationCount() );
+        }
+
+        /**
+         * Find where each value in the section with the given key is. The scanner is at the start of the section.
+         */
+        private void index( JSONScanner scanner, String section )
+            throws JSONException
+        {
+            boolean isProperties = section.equals( "properties" );
+            boolean isAssociations = section.equals( "associations" );
+            int[] positions = isProperties ? properties : isAssociations ? associations : manyAssociations;
+
+            scanner.expect( '{' );
+            while( scanner.nextKey() )
+            {
+                String name = scanner.key();
+                int slot = isProperties ? slots.propertySlot( name )
+                                        : isAssociations ? slots.associationSlot( name )
+                                                         : slots.manyAssociationSlot( name );
+                int start = scanner.skipValue();
+                if( slot != -1 )
+                {
+                    positions[ slot * 2 ] = start;
+                    positions[ slot * 2 + 1 ] = scanner.position();
+                }
+            }
+        }
+
+        private boolean hasProperty( int slot )
+        {
+            return properties[ slot * 2 ] != -1;
+        }
+
+        private boolean hasAssociation( int slot )
+        {
+            return associations[ slot * 2 ] != -1;
+        }
+
+        private boolean hasManyAssociation( int slot )
+        {
+            return manyAssociations[ slot * 2 ] != -1;
+        }
+
+        public Object property( int slot )
+        {
+            try
+            {
+                JSONPullParser parser = parser( properties, slot );
+                return deserializer.deserialize( parser, slots.propertyAt( slot ).valueType() );
+            }
+            catch( JSONException e )
+            {
+                throw new EntityStoreException( e );
+            }
+        }
+
+        public EntityReference association( int slot )
+        {
+            try
+            {
+                return readReference( parser( associations, slot ) );
+            }
+            catch( JSONException e )
+            {
+                throw new EntityStoreException( e );
+            }
+        }
+
+        public List<EntityReference> manyAssociation( int slot )
+        {
+            if( !hasManyAssociation( slot ) )
+            {
+                return null;
+            }
+
+            try
+            {
+                JSONPullParser parser = parser( manyAssociations, slot );
+                if( parser.token() != JSONPullParser.Token.START_ARRAY )
+                {
+                    return null;
+                }
+                return readReferences( parser );
+            }
+            catch( JSONException e )
+            {
+                throw new EntityStoreException( e );
+            }
+        }
+
+        private JSONString storedProperty( int slot )
+        {
+            return stored( properties, slot );
+        }
+
+        private JSONString storedManyAssociation( int slot )
+        {
+            return stored( manyAssociations, slot );
+        }
+
+        private JSONPullParser parser( int[] positions, int slot )
+            throws JSONException
+        {
+            int start = positions[ slot * 2 ];
+            JSONPullParser parser = new JSONPullParser( chars, start, positions[ slot * 2 + 1 ] - start );
+            parser.next();
+            return parser;
+        }
+
+        private JSONString stored( int[] positions, int slot )
+        {
+            final int start = positions[ slot * 2 ];
+            final int end = positions[ slot * 2 + 1 ];
+            return new JSONString()
+            {
+                public String toJSONString()
+                {
+                    return new String( chars, start, end - start );
+                }
+            };
+        }
+
+        private static int[] positions( int count )
+        {
+            int[] positions = new int[ count * 2 ];
+            Arrays.fill( positions, -1 );
+            return positions;
+        }
+    }
+
+    /**
+     * Scanner of the keys and values of JSON objects in stored text. Values are skipped by only matching
+     * brackets and quotes, so no tokens are created for them.
+     */
+    private static final class JSONScanner
+    {
+        private final char[] chars;
+        private int position;
+
+        private JSONScanner( char[] chars )
+        {
+            this.chars = chars;
+        }
+
+        private int position()
+        {
+            return position;
+        }
+
+        private void expect( char c )
+            throws JSONException
+        {
+            if( clean() != c )
+            {
+                throw syntaxError( "Expected '" + c + "'" );
+            }
+            position++;
+        }
+
+        /**
+         * Move to the next key of the current object.
+         *
+         * @return false if the end of the object was reached instead
+         */
+        private boolean nextKey()
+            throws JSONException
+        {
+            char c = clean();
+            if( c == '}' )
+            {
+                position++;
+                return false;
+            }
+            if( c == ',' )
+            {
+                position++;
+            }
+            return true;
+        }
+
+        private String key()
+            throws JSONException
+        {
+            char quote = clean();
+            if( quote != '"' && quote != '\'' )
+            {
+                throw syntaxError( "Expected a key" );
+            }
+            int start = position;
+            boolean escaped = skipString();
+            String key = escaped ? scalar( chars, start, position ) : new String( chars, start + 1, position - start - 2 );
+            expect( ':' );
+            return key;
+        }
+
+        /**
+         * Skip the value at the current position.
+         *
+         * @return the position of the first character of the value
+         */
+        private int skipValue()
+            throws JSONException
+        {
+            char c = clean();
+            int start = position;
+            if( c == '"' || c == '\'' )
+            {
+                skipString();
+            }
+            else if( c == '{' || c == '[' )
+            {
+                int depth = 0;
+                do
+                {
+                    c = next();
+                    if( c == '"' || c == '\'' )
+                    {
+                        skipString();
+                        continue;
+                    }
+                    if( c == '{' || c == '[' )
+                    {
+                        depth++;
+                    }
+                    else if( c == '}' || c == ']' )
+                    {
+                        depth--;
+                    }
+                    position++;
+                }
+                while( depth > 0 );
+            }
+            else
+            {
+                while( position < chars.length && ",}] \t\r\n".indexOf( chars[ position ] ) == -1 )
+                {
+                    position++;
+                }
+            }
+            return start;
+        }
+
+        /**
+         * Skip the string at the current position.
+         *
+         * @return true if the string has escaped characters
+         */
+        private boolean skipString()
+            throws JSONException
+        {
+            char quote = next();
+            position++;
+            boolean escaped = false;
+            char c;
+            while( ( c = next() ) != quote )
+            {
+                if( c == '\\' )
+                {
+                    escaped = true;
+                    position++;
+                }
+                position++;
+            }
+            position++;
+            return escaped;
+        }
+
+        private char clean()
+            throws JSONException
+        {
+            while( Character.isWhitespace( next() ) )
+            {
+                position++;
+            }
+            return chars[ position ];
+        }
+
+        private char next()
+            throws JSONException
+        {
+            if( position >= chars.length )
+            {
+                throw syntaxError( "Unexpected end of stored state" );
+            }
+            return chars[ position ];
+        }
+
+        private JSONException syntaxError( String message )
+        {
+            return new JSONException( message + " at character " + position );
+        }
+    }
+}
@@ -20,17 +20,23 @@ import org.qi4j.api.entity.EntityReference;
 import org.qi4j.spi.entity.ManyAssociationState;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
- * JSON implementation of ManyAssociationState. Backed by JSONArray.
+ * JSON implementation of ManyAssociationState. Backed by JSONArray, with a hash index of the
+ * identities in it that is built when first needed.
  */
 public final class JSONManyAssociationState
     implements ManyAssociationState
 {
     private JSONEntityState entityState;
     private JSONArray references;
+    private Set<String> index;
 
     public JSONManyAssociationState( JSONEntityState entityState, JSONArray references )
     {
@@ -45,28 +51,14 @@ public final class JSONManyAssociationState
 
     public boolean contains( EntityReference entityReference )
     {
-        try
-        {
-            for( int i = 0; i < references.length(); i++ )
-            {
-                if( references.get( i ).equals( entityReference.identity() ) )
-                {
-                    return true;
-                }
-            }
-            return false;
-        }
-        catch( JSONException e )
-        {
-            throw new EntityStoreException( e );
-        }
+        return index().contains( entityReference.identity() );
     }
 
     public boolean add( int idx, EntityReference entityReference )
     {
         try
         {
-            if( contains( entityReference ) )
+            if( !index().add( entityReference.identity() ) )
             {
                 return false;
             }
@@ -85,6 +77,10 @@ public final class JSONManyAssociationState
     {
         try
         {
+            if( !index().remove( entityReference.identity() ) )
+            {
+                return false;
+            }
             for( int i = 0; i < references.length(); i++ )
             {
                 if( references.get( i ).equals( entityReference.identity() ) )
@@ -103,6 +99,72 @@ public final class JSONManyAssociationState
         }
     }
 
+    public boolean addAll( Iterable<EntityReference> entityReferences )
+    {
+        List<String> added = new ArrayList<String>();
+        Set<String> index = index();
+        for( EntityReference entityReference : entityReferences )
+        {
+            if( index.add( entityReference.identity() ) )
+            {
+                added.add( entityReference.identity() );
+            }
+        }
+        if( added.isEmpty() )
+        {
+            return false;
+        }
+
+        entityState.cloneStateIfGlobalStateLoaded();
+        for( String identity : added )
+        {
+            references.put( identity );
+        }
+        entityState.markUpdated();
+        return true;
+    }
+
+    public boolean removeAll( Iterable<EntityReference> entityReferences )
+    {
+        Set<String> removed = new HashSet<String>();
+        Set<String> index = index();
+        for( EntityReference entityReference : entityReferences )
+        {
+            if( index.remove( entityReference.identity() ) )
+            {
+                removed.add( entityReference.identity() );
+            }
+        }
+        if( removed.isEmpty() )
+        {
+            return false;
+        }
+
+        entityState.cloneStateIfGlobalStateLoaded();
+        references.removeAll( removed );
+        entityState.markUpdated();
+        return true;
+    }
+
+    public boolean retainAll( Iterable<EntityReference> entityReferences )
+    {
+        Set<String> retained = new HashSet<String>();
+        for( EntityReference entityReference : entityReferences )
+        {
+            retained.add( entityReference.identity() );
+        }
+        Set<String> index = index();
+        if( !index.retainAll( retained ) )
+        {
+            return false;
+        }
+
+        entityState.cloneStateIfGlobalStateLoaded();
+        references.retainAll( index );
+        entityState.markUpdated();
+        return true;
+    }
+
     public EntityReference get( int i )
     {
         try
@@ -146,4 +208,24 @@ public final class JSONManyAssociationState
             }
         };
     }
-}
\ No newline at end of file
+
+    private Set<String> index()
+    {
+        if( index == null )
+        {
+            try
+            {
+                index = new HashSet<String>( references.length() * 2 );
+                for( int i = 0; i < references.length(); i++ )
+                {
+                    index.add( references.getString( i ) );
+                }
+            }
+            catch( JSONException e )
+            {
+                throw new EntityStoreException( e );
+            }
+        }
+        return index;
+    }
+}
@@ -35,6 +35,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of EntityStore that works with an implementation of MapEntityStore. Implement
@@ -47,6 +48,9 @@ public class JSONMapEntityStoreMixin
     @This
     private MapEntityStore mapEntityStore;
 
+    // Used to get state, which may be done concurrently
+    private MapEntityStore store;
+
     @This
     private EntityStoreSPI entityStoreSpi;
 
@@ -66,7 +70,8 @@ public class JSONMapEntityStoreMixin
     private Cache<CacheState> cache;
 
     protected String uuid;
-    private int count;
+    private final AtomicInteger count = new AtomicInteger();
+    private final ChunkedAssociations chunkedAssociations = new ChunkedAssociations();
 
     private Logger logger;
 
@@ -78,6 +83,7 @@ public class JSONMapEntityStoreMixin
             throws Exception
     {
         logger = LoggerFactory.getLogger( descriptor.identity() );
+        store = SynchronizedMapEntityStore.forService( mapEntityStore, descriptor );
 
         uuid = UUID.randomUUID().toString() + "-";
         if( caching != null )
@@ -122,28 +128,34 @@ public class JSONMapEntityStoreMixin
             state.put( JSONEntityState.JSON_KEY_PROPERTIES, new JSONObject() );
             state.put( JSONEntityState.JSON_KEY_ASSOCIATIONS, new JSONObject() );
             state.put( JSONEntityState.JSON_KEY_MANYASSOCIATIONS, new JSONObject() );
-            return new JSONEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, identity, entityDescriptor, state );
+            return chunkedAssociations.chunked( new JSONEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, identity, entityDescriptor, state ), store, true );
         } catch( JSONException e )
         {
             throw new EntityStoreException( e );
         }
     }
 
-    public synchronized EntityState getEntityState( EntityStoreUnitOfWork unitOfWork, EntityReference identity )
+    public EntityState getEntityState( final EntityStoreUnitOfWork unitOfWork, EntityReference identity )
     {
         EntityState state = fetchCachedState( identity, (DefaultEntityStoreUnitOfWork) unitOfWork );
         if( state != null )
         {
-            return state;
+            return chunkedAssociations.chunked( state, store, false );
         }
         // Get state
-        Reader in = mapEntityStore.get( identity );
-        JSONEntityState loadedState = readEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, in );
+        JSONEntityState loadedState = SynchronizedMapEntityStore.read( store, identity, new SynchronizedMapEntityStore.StateReader<JSONEntityState>()
+        {
+            public JSONEntityState read( Reader reader )
+                throws EntityStoreException
+            {
+                return readEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, reader );
+            }
+        } );
         if( doCacheOnRead( (DefaultEntityStoreUnitOfWork) unitOfWork ) )
         {
             cache.put( identity.identity(), new CacheState(loadedState.state()) );
         }
-        return loadedState;
+        return chunkedAssociations.chunked( loadedState, store, false );
     }
 
     public StateCommitter applyChanges( final EntityStoreUnitOfWork unitOfWork, final Iterable<EntityState> state
@@ -170,30 +182,33 @@ public class JSONMapEntityStoreMixin
 
                             for( EntityState entityState : state )
                             {
-                                JSONEntityState state = (JSONEntityState) entityState;
-                                if( state.status().equals( EntityStatus.NEW ) )
+                                JSONEntityState state = (JSONEntityState) ChunkedAssociations.unchunked( entityState );
+                                if( entityState.status().equals( EntityStatus.NEW ) )
                                 {
                                     Writer writer = changer.newEntity( state.identity(),
                                             state.entityDescriptor() );
-                                    writeEntityState( state, writer, unitOfWork.identity(), unitOfWork.currentTime() );
+                                    String text = writeEntityState( state, writer, unitOfWork, options.cacheOnNew() );
                                     writer.close();
-                                    if( options.cacheOnNew() )
+                                    ChunkedAssociations.writeChunks( entityState, changer );
+                                    if( text != null )
                                     {
-                                        cache.put( state.identity().identity(), new CacheState(state.state()) );
+                                        cache.put( state.identity().identity(), new CacheState( text ) );
                                     }
-                                } else if( state.status().equals( EntityStatus.UPDATED ) )
+                                } else if( entityState.status().equals( EntityStatus.UPDATED ) )
                                 {
                                     Writer writer = changer.updateEntity( state.identity(),
                                             state.entityDescriptor() );
-                                    writeEntityState( state, writer, unitOfWork.identity(), unitOfWork.currentTime() );
+                                    String text = writeEntityState( state, writer, unitOfWork, options.cacheOnWrite() );
                                     writer.close();
-                                    if( options.cacheOnWrite() )
+                                    ChunkedAssociations.writeChunks( entityState, changer );
+                                    if( text != null )
                                     {
-                                        cache.put( state.identity().identity(), new CacheState(state.state()) );
+                                        cache.put( state.identity().identity(), new CacheState( text ) );
                                     }
-                                } else if( state.status().equals( EntityStatus.REMOVED ) )
+                                } else if( entityState.status().equals( EntityStatus.REMOVED ) )
                                 {
                                     changer.removeEntity( state.identity(), state.entityDescriptor() );
+                                    ChunkedAssociations.removeChunks( entityState, changer );
                                     cache.remove( state.identity().identity() );
                                 }
                             }
@@ -245,7 +260,19 @@ public class JSONMapEntityStoreMixin
                                         public void receive( Reader item )
                                                 throws ReceiverThrowableType
                                         {
-                                            final EntityState entity = readEntityState( uow, item );
+                                            PushbackReader reader = new PushbackReader( item, 8 );
+                                            try
+                                            {
+                                                if( ChunkedAssociations.isChunkRecord( reader ) )
+                                                {
+                                                    return;
+                                                }
+                                            } catch( IOException e )
+                                            {
+                                                throw new EntityStoreException( e );
+                                            }
+
+                                            final EntityState entity = chunkedAssociations.chunked( readEntityState( uow, reader ), store, false );
                                             if( entity.status() == EntityStatus.UPDATED )
                                             {
                                                 migrated.add( entity );
@@ -288,11 +315,12 @@ public class JSONMapEntityStoreMixin
                 {
                     for( EntityState migratedEntity : migratedEntities )
                     {
-                        JSONEntityState state = (JSONEntityState) migratedEntity;
+                        JSONEntityState state = (JSONEntityState) ChunkedAssociations.unchunked( migratedEntity );
                         Writer writer = changer.updateEntity( state.identity(),
                                 state.entityDescriptor() );
                         writeEntityState( state, writer, state.version(), state.lastModified() );
                         writer.close();
+                        ChunkedAssociations.writeChunks( migratedEntity, changer );
                     }
                 }
             } );
@@ -305,7 +333,27 @@ public class JSONMapEntityStoreMixin
 
     protected String newUnitOfWorkId()
     {
-        return uuid + Integer.toHexString( count++ );
+        return uuid + Integer.toHexString( count.getAndIncrement() );
+    }
+
+    /**
+     * Write the state of a committed entity, and return the written text if it is to be cached, so that the
+     * cache gets the same text instead of encoding the state once more.
+     */
+    private String writeEntityState( JSONEntityState state, Writer writer, EntityStoreUnitOfWork unitOfWork, boolean cached )
+            throws IOException
+    {
+        if( !cached || cache instanceof NullCache )
+        {
+            writeEntityState( state, writer, unitOfWork.identity(), unitOfWork.currentTime() );
+            return null;
+        }
+
+        StringWriter out = new StringWriter();
+        writeEntityState( state, out, unitOfWork.identity(), unitOfWork.currentTime() );
+        String text = out.toString();
+        writer.write( text );
+        return text;
     }
 
     protected void writeEntityState( JSONEntityState state, Writer writer, String identity, long lastModified )
@@ -313,10 +361,10 @@ public class JSONMapEntityStoreMixin
     {
         try
         {
-            JSONObject jsonState = state.state();
-            jsonState.put( "version", identity );
-            jsonState.put( "modified", lastModified );
-            writer.append( jsonState.toString() );
+            // Write straight to the store, without building the whole document or the changed values as JSON first
+            StateWriter out = new StateWriter( writer );
+            state.writeState( out, identity, lastModified );
+            out.close();
         } catch( Exception e )
         {
             throw new EntityStoreException( "Could not store EntityState", e );
@@ -383,7 +431,7 @@ public class JSONMapEntityStoreMixin
     public JSONObject getState( String id )
             throws IOException
     {
-        Reader reader = mapEntityStore.get( EntityReference.parseEntityReference( id ) );
+        Reader reader = store.get( EntityReference.parseEntityReference( id ) );
         JSONObject jsonObject;
         try
         {
@@ -401,9 +449,9 @@ public class JSONMapEntityStoreMixin
         CacheState cacheState = cache.get( identity.identity() );
         if( cacheState != null )
         {
-            JSONObject data = cacheState.json;
             try
             {
+                JSONObject data = cacheState.json();
                 String type = data.getString( "type" );
                 EntityDescriptor entityDescriptor = unitOfWork.module().entityDescriptor( type );
                 return new JSONEntityState( unitOfWork, identity, entityDescriptor, data );
@@ -422,10 +470,15 @@ public class JSONMapEntityStoreMixin
         return cacheOptions == null || cacheOptions.cacheOnRead();
     }
 
+    /**
+     * Cached state, either as loaded from the store or as the text that was written to it,
+     * which is parsed when the state is first used.
+     */
     private static class CacheState
             implements Externalizable
     {
-        public JSONObject json;
+        private volatile JSONObject json;
+        private String text;
 
         public CacheState()
         {
@@ -436,22 +489,34 @@ public class JSONMapEntityStoreMixin
             json = state;
         }
 
+        public CacheState( String text )
+        {
+            this.text = text;
+        }
+
+        public JSONObject json()
+                throws JSONException
+        {
+            JSONObject state = json;
+            if( state == null )
+            {
+                state = new JSONObject( text );
+                json = state;
+            }
+            return state;
+        }
+
         @Override
         public void writeExternal( ObjectOutput out ) throws IOException
         {
-            out.writeUTF( json.toString() );
+            JSONObject state = json;
+            out.writeUTF( state == null ? text : state.toString() );
         }
 
         @Override
         public void readExternal( ObjectInput in ) throws IOException, ClassNotFoundException
         {
-            try
-            {
-                json = new JSONObject( in.readUTF() );
-            } catch( JSONException e )
-            {
-                throw new IOException( e );
-            }
+            text = in.readUTF();
         }
     }
 }
\ No newline at end of file
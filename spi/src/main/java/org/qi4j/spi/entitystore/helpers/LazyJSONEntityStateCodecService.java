@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.mixin.Mixins;
+import org.qi4j.api.service.ServiceComposite;
+
+/**
+ * EntityStateCodec that stores {@link SlotEntityState} in the JSON format of the {@link MapEntityStoreMixin},
+ * and decodes the state of loaded entities when it is used. Use this when entities are often loaded
+ * but only a few of their properties are read.
+ */
+@Mixins( LazyJSONEntityStateCodecService.LazyJSONEntityStateCodecMixin.class )
+public interface LazyJSONEntityStateCodecService
+    extends EntityStateCodec, ServiceComposite
+{
+    class LazyJSONEntityStateCodecMixin
+        extends JSONEntityStateCodecMixin
+    {
+        @Override
+        protected boolean isLazy()
+        {
+            return true;
+        }
+    }
+}
@@ -23,6 +23,11 @@ import org.qi4j.spi.entitystore.EntityStoreException;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 
 /**
  * JAVADOC
@@ -43,6 +48,10 @@ public interface MapEntityStore
         manyassociations    // Map of manyassociations
     }
 
+    /**
+     * Get the state of an entity. Unless the service is annotated with {@link ThreadSafe} this is never
+     * called by more than one thread at a time.
+     */
     Reader get( EntityReference entityReference )
         throws EntityStoreException;
 
@@ -51,6 +60,18 @@ public interface MapEntityStore
     void applyChanges( MapChanges changes )
         throws IOException;
 
+    /**
+     * Declares that the MapEntityStore of the annotated service can handle calls to {@link MapEntityStore#get}
+     * from several threads at the same time, also while changes are applied. Entities are then loaded
+     * concurrently.
+     */
+    @Retention( RetentionPolicy.RUNTIME )
+    @Target( { ElementType.TYPE } )
+    @Documented
+    @interface ThreadSafe
+    {
+    }
+
     interface MapChanges
     {
         void visitMap( MapChanger changer )
@@ -32,9 +32,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PushbackReader;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of EntityStore that works with an implementation of MapEntityStore. Implement
@@ -47,6 +49,9 @@ public class MapEntityStoreMixin
     @This
     private MapEntityStore mapEntityStore;
 
+    // Used to get state, which may be done concurrently
+    private MapEntityStore store;
+
     @This
     private EntityStoreSPI entityStoreSpi;
 
@@ -57,20 +62,34 @@ public class MapEntityStoreMixin
     @Service
     private Migration migration;
 
+    @Optional
+    @Service
+    private EntityStateCodec codec;
+
     @Uses
     private ServiceDescriptor descriptor;
 
     protected String uuid;
-    private int count;
+    private final AtomicInteger count = new AtomicInteger();
 
     private Logger logger;
 
+    private final ChunkedAssociations chunkedAssociations = new ChunkedAssociations();
+
     public void activate()
         throws Exception
     {
         uuid = UUID.randomUUID().toString() + "-";
 
         logger = LoggerFactory.getLogger( descriptor.identity() );
+        store = SynchronizedMapEntityStore.forService( mapEntityStore, descriptor );
+
+        if( codec != null && migration != null )
+        {
+            // Codecs load state as is, which would skip the migrations
+            logger.warn( "Not using EntityStateCodec, as it does not apply migrations from the Migration service" );
+            codec = null;
+        }
     }
 
     public void passivate()
@@ -91,14 +110,30 @@ public class MapEntityStoreMixin
                                        EntityReference identity,
                                        EntityDescriptor entityDescriptor )
     {
-        return new DefaultEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, identity, entityDescriptor );
+        EntityState state;
+        if( codec != null )
+        {
+            state = codec.newEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, identity, entityDescriptor );
+        }
+        else
+        {
+            state = new DefaultEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, identity, entityDescriptor );
+        }
+        return chunkedAssociations.chunked( state, store, true );
     }
 
-    public synchronized EntityState getEntityState( EntityStoreUnitOfWork unitofwork, EntityReference identity )
+    public EntityState getEntityState( EntityStoreUnitOfWork unitofwork, EntityReference identity )
     {
-        DefaultEntityStoreUnitOfWork unitOfWork = (DefaultEntityStoreUnitOfWork) unitofwork;
-        Reader in = mapEntityStore.get( identity );
-        return readEntityState( unitOfWork, in );
+        final DefaultEntityStoreUnitOfWork unitOfWork = (DefaultEntityStoreUnitOfWork) unitofwork;
+        EntityState state = SynchronizedMapEntityStore.read( store, identity, new SynchronizedMapEntityStore.StateReader<EntityState>()
+        {
+            public EntityState read( Reader reader )
+                throws EntityStoreException
+            {
+                return readEntityState( unitOfWork, reader );
+            }
+        } );
+        return chunkedAssociations.chunked( state, store, false );
     }
 
     public StateCommitter applyChanges( final EntityStoreUnitOfWork unitofwork, final Iterable<EntityState> state
@@ -118,24 +153,26 @@ public class MapEntityStoreMixin
                         {
                             for( EntityState entityState : state )
                             {
-                                DefaultEntityState state = (DefaultEntityState) entityState;
-                                if( state.status().equals( EntityStatus.NEW ) )
+                                if( entityState.status().equals( EntityStatus.NEW ) )
                                 {
-                                    Writer writer = changer.newEntity( state.identity(),
-                                                                       state.entityDescriptor() );
-                                    writeEntityState( state, writer, unitofwork.identity(), unitofwork.currentTime() );
+                                    Writer writer = changer.newEntity( entityState.identity(),
+                                                                       entityState.entityDescriptor() );
+                                    writeState( entityState, writer, unitofwork.identity(), unitofwork.currentTime() );
                                     writer.close();
+                                    ChunkedAssociations.writeChunks( entityState, changer );
                                 }
-                                else if( state.status().equals( EntityStatus.UPDATED ) )
+                                else if( entityState.status().equals( EntityStatus.UPDATED ) )
                                 {
-                                    Writer writer = changer.updateEntity( state.identity(),
-                                                                          state.entityDescriptor() );
-                                    writeEntityState( state, writer, unitofwork.identity(), unitofwork.currentTime() );
+                                    Writer writer = changer.updateEntity( entityState.identity(),
+                                                                          entityState.entityDescriptor() );
+                                    writeState( entityState, writer, unitofwork.identity(), unitofwork.currentTime() );
                                     writer.close();
+                                    ChunkedAssociations.writeChunks( entityState, changer );
                                 }
-                                else if( state.status().equals( EntityStatus.REMOVED ) )
+                                else if( entityState.status().equals( EntityStatus.REMOVED ) )
                                 {
-                                    changer.removeEntity( state.identity(), state.entityDescriptor() );
+                                    changer.removeEntity( entityState.identity(), entityState.entityDescriptor() );
+                                    ChunkedAssociations.removeChunks( entityState, changer );
                                 }
                             }
                         }
@@ -187,7 +224,20 @@ public class MapEntityStoreMixin
                                         public void receive( Reader item )
                                             throws ReceiverThrowableType
                                         {
-                                            final EntityState entity = readEntityState( uow, item );
+                                            PushbackReader reader = new PushbackReader( item, 8 );
+                                            try
+                                            {
+                                                if( ChunkedAssociations.isChunkRecord( reader ) )
+                                                {
+                                                    return;
+                                                }
+                                            }
+                                            catch( IOException e )
+                                            {
+                                                throw new EntityStoreException( e );
+                                            }
+
+                                            final EntityState entity = chunkedAssociations.chunked( readEntityState( uow, reader ), store, false );
                                             if( entity.status() == EntityStatus.UPDATED )
                                             {
                                                 migrated.add( entity );
@@ -231,11 +281,11 @@ public class MapEntityStoreMixin
                 {
                     for( EntityState migratedEntity : migratedEntities )
                     {
-                        DefaultEntityState state = (DefaultEntityState) migratedEntity;
-                        Writer writer = changer.updateEntity( state.identity(),
-                                                              state.entityDescriptor() );
-                        writeEntityState( state, writer, state.version(), state.lastModified() );
+                        Writer writer = changer.updateEntity( migratedEntity.identity(),
+                                                              migratedEntity.entityDescriptor() );
+                        writeState( migratedEntity, writer, migratedEntity.version(), migratedEntity.lastModified() );
                         writer.close();
+                        ChunkedAssociations.writeChunks( migratedEntity, changer );
                     }
                 }
             } );
@@ -249,7 +299,21 @@ public class MapEntityStoreMixin
 
     protected String newUnitOfWorkId()
     {
-        return uuid + Integer.toHexString( count++ );
+        return uuid + Integer.toHexString( count.getAndIncrement() );
+    }
+
+    private void writeState( EntityState state, Writer writer, String version, long lastModified )
+        throws IOException
+    {
+        state = ChunkedAssociations.unchunked( state );
+        if( state instanceof SlotEntityState )
+        {
+            codec.writeEntityState( (SlotEntityState) state, version, lastModified, writer );
+        }
+        else
+        {
+            writeEntityState( (DefaultEntityState) state, writer, version, lastModified );
+        }
     }
 
     protected void writeEntityState( DefaultEntityState state, Writer writer, String identity, long lastModified )
@@ -257,7 +321,8 @@ public class MapEntityStoreMixin
     {
         try
         {
-            JSONWriter json = new JSONWriter( writer );
+            StateWriter out = new StateWriter( writer );
+            JSONWriter json = new JSONWriter( out );
             JSONWriter properties = json.object().
                 key( "identity" ).value( state.identity().identity() ).
                 key( "application_version" ).value( application.version() ).
@@ -295,21 +360,240 @@ public class MapEntityStoreMixin
                 assocs.endArray();
             }
             manyAssociations.endObject().endObject();
+            out.close();
         }
         catch( JSONException e )
         {
             throw new EntityStoreException( "Could not store EntityState", e );
         }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( "Could not store EntityState", e );
+        }
     }
 
     protected EntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, Reader entityState )
         throws EntityStoreException
+    {
+        if( codec != null )
+        {
+            return codec.readEntityState( unitOfWork, entityState );
+        }
+
+        try
+        {
+            JSONPullParser parser = new JSONPullParser( entityState );
+            if( parser.next() != JSONPullParser.Token.START_OBJECT )
+            {
+                throw parser.syntaxError( "Expected entity state object" );
+            }
+
+            // Read the header, which is written before the state
+            JSONObject header = new JSONObject();
+            while( parser.next() != JSONPullParser.Token.END_OBJECT )
+            {
+                if( parser.is( "properties" ) || parser.is( "associations" ) || parser.is( "manyassociations" ) )
+                {
+                    break;
+                }
+                String key = parser.stringValue();
+                parser.next();
+                header.put( key, parser.value() );
+            }
+
+            Module module = unitOfWork.module();
+            String type = header.optString( "type", null );
+            EntityDescriptor entityDescriptor = type == null ? null : module.entityDescriptor( type );
+            String currentAppVersion = header.optString( MapEntityStore.JSONKeys.application_version.name(), "0.0" );
+            boolean migrate = !currentAppVersion.equals( application.version() ) && migration != null;
+            if( entityDescriptor == null || migrate || !header.has( "identity" ) || !header.has( "version" ) || !header.has( "modified" ) )
+            {
+                // Migration and error reporting work on the whole JSON tree
+                while( parser.token() != JSONPullParser.Token.END_OBJECT )
+                {
+                    String key = parser.stringValue();
+                    parser.next();
+                    header.put( key, parser.value() );
+                    parser.next();
+                }
+                return readEntityState( unitOfWork, header );
+            }
+
+            return readEntityState( unitOfWork, parser, header, entityDescriptor );
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( e );
+        }
+    }
+
+    private EntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                                         JSONPullParser parser,
+                                         JSONObject header,
+                                         EntityDescriptor entityDescriptor
+    )
+        throws JSONException
+    {
+        Module module = unitOfWork.module();
+        JSONDeserializer deserializer = unitOfWork.deserializer();
+        EntityStatus status = EntityStatus.LOADED;
+
+        String version = header.getString( "version" );
+        long modified = header.getLong( "modified" );
+        String identity = header.getString( "identity" );
+
+        String currentAppVersion = header.optString( MapEntityStore.JSONKeys.application_version.name(), "0.0" );
+        if( !currentAppVersion.equals( application.version() ) )
+        {
+            // No migration - set version to be correct
+            LoggerFactory.getLogger( MapEntityStoreMixin.class )
+                .debug(
+                    "Updated version nr on " + identity + " from " + currentAppVersion + " to " + application.version() );
+
+            status = EntityStatus.UPDATED;
+        }
+
+        EntityStateSlots entitySlots = EntityStateSlots.slotsFor( entityDescriptor );
+        Map<QualifiedName, Object> properties = new HashMap<QualifiedName, Object>();
+        Map<QualifiedName, EntityReference> associations = new HashMap<QualifiedName, EntityReference>();
+        Map<QualifiedName, List<EntityReference>> manyAssociations = new HashMap<QualifiedName, List<EntityReference>>();
+
+        // The parser is at the key of the first section
+        while( parser.token() != JSONPullParser.Token.END_OBJECT )
+        {
+            if( parser.is( "properties" ) )
+            {
+                expect( parser, JSONPullParser.Token.START_OBJECT );
+                while( parser.next() != JSONPullParser.Token.END_OBJECT )
+                {
+                    int slot = entitySlots.propertySlot( parser.stringValue() );
+                    PropertyDescriptor propertyDescriptor = slot == -1 ? null : entitySlots.propertyAt( slot );
+                    parser.next();
+                    if( propertyDescriptor == null )
+                    {
+                        parser.skipValue();
+                    }
+                    else
+                    {
+                        properties.put( propertyDescriptor.qualifiedName(), deserializer.deserialize( parser, propertyDescriptor.valueType() ) );
+                    }
+                }
+            }
+            else if( parser.is( "associations" ) )
+            {
+                expect( parser, JSONPullParser.Token.START_OBJECT );
+                while( parser.next() != JSONPullParser.Token.END_OBJECT )
+                {
+                    int slot = entitySlots.associationSlot( parser.stringValue() );
+                    AssociationDescriptor associationDescriptor = slot == -1 ? null : entitySlots.associationAt( slot );
+                    parser.next();
+                    if( associationDescriptor == null )
+                    {
+                        parser.skipValue();
+                    }
+                    else if( parser.token() == JSONPullParser.Token.NULL )
+                    {
+                        associations.put( associationDescriptor.qualifiedName(), null );
+                    }
+                    else
+                    {
+                        associations.put( associationDescriptor.qualifiedName(), EntityReference.parseEntityReference( referenceIdentity( parser ) ) );
+                    }
+                }
+            }
+            else if( parser.is( "manyassociations" ) )
+            {
+                expect( parser, JSONPullParser.Token.START_OBJECT );
+                while( parser.next() != JSONPullParser.Token.END_OBJECT )
+                {
+                    int slot = entitySlots.manyAssociationSlot( parser.stringValue() );
+                    AssociationDescriptor manyAssociationDescriptor = slot == -1 ? null : entitySlots.manyAssociationAt( slot );
+                    parser.next();
+                    if( manyAssociationDescriptor == null || parser.token() != JSONPullParser.Token.START_ARRAY )
+                    {
+                        parser.skipValue();
+                        continue;
+                    }
+
+                    List<EntityReference> references = new ArrayList<EntityReference>();
+                    while( parser.next() != JSONPullParser.Token.END_ARRAY )
+                    {
+                        references.add( EntityReference.parseEntityReference( referenceIdentity( parser ) ) );
+                    }
+                    manyAssociations.put( manyAssociationDescriptor.qualifiedName(), references );
+                }
+            }
+            else
+            {
+                parser.next();
+                parser.skipValue();
+            }
+            parser.next();
+        }
+
+        // Default state that was not found
+        for( PropertyDescriptor propertyDescriptor : entityDescriptor.state().properties() )
+        {
+            if( !properties.containsKey( propertyDescriptor.qualifiedName() ) )
+            {
+                properties.put( propertyDescriptor.qualifiedName(), propertyDescriptor.initialValue( module ) );
+                status = EntityStatus.UPDATED;
+            }
+        }
+        for( AssociationDescriptor associationDescriptor : entityDescriptor.state().associations() )
+        {
+            if( !associations.containsKey( associationDescriptor.qualifiedName() ) )
+            {
+                associations.put( associationDescriptor.qualifiedName(), null );
+                status = EntityStatus.UPDATED;
+            }
+        }
+        for( AssociationDescriptor manyAssociationDescriptor : entityDescriptor.state().manyAssociations() )
+        {
+            if( !manyAssociations.containsKey( manyAssociationDescriptor.qualifiedName() ) )
+            {
+                manyAssociations.put( manyAssociationDescriptor.qualifiedName(), new ArrayList<EntityReference>() );
+            }
+        }
+
+        return new DefaultEntityState( unitOfWork,
+                                       version,
+                                       modified,
+                                       EntityReference.parseEntityReference( identity ),
+                                       status,
+                                       entityDescriptor,
+                                       properties,
+                                       associations,
+                                       manyAssociations
+        );
+    }
+
+    private static void expect( JSONPullParser parser, JSONPullParser.Token token )
+        throws JSONException
+    {
+        if( parser.next() != token )
+        {
+            throw parser.syntaxError( "Expected " + token + " but was " + parser.token() );
+        }
+    }
+
+    private static String referenceIdentity( JSONPullParser parser )
+        throws JSONException
+    {
+        if( parser.token() != JSONPullParser.Token.STRING )
+        {
+            throw parser.syntaxError( "Expected entity reference but was " + parser.token() );
+        }
+        return parser.stringValue();
+    }
+
+    protected EntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, JSONObject jsonObject )
+        throws EntityStoreException
     {
         try
         {
             Module module = unitOfWork.module();
-            JSONDeserializer deserializer = new JSONDeserializer( module );
-            JSONObject jsonObject = new JSONObject( new JSONTokener( entityState ) );
+            JSONDeserializer deserializer = unitOfWork.deserializer();
             EntityStatus status = EntityStatus.LOADED;
 
             String version = jsonObject.getString( "version" );
@@ -438,7 +722,7 @@ public class MapEntityStoreMixin
     public JSONObject getState( String id )
         throws IOException
     {
-        Reader reader = mapEntityStore.get( EntityReference.parseEntityReference( id ) );
+        Reader reader = store.get( EntityReference.parseEntityReference( id ) );
         JSONObject jsonObject;
         try
         {
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.common.QualifiedName;
+import org.qi4j.api.entity.EntityDescriptor;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entity.IndexedReferenceList;
+import org.qi4j.spi.entity.ManyAssociationState;
+import org.qi4j.spi.entitystore.DefaultEntityStoreUnitOfWork;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of EntityState that keeps the state in arrays, indexed by the {@link EntityStateSlots}
+ * of the entity type. The state is independent of how it is stored, which is up to an {@link EntityStateCodec}.
+ */
+public final class SlotEntityState
+    implements EntityState
+{
+    /**
+     * Decodes the state of a slot the first time it is used, for codecs that load state lazily.
+     */
+    public interface LazyState
+    {
+        Object property( int slot );
+
+        EntityReference association( int slot );
+
+        List<EntityReference> manyAssociation( int slot );
+    }
+
+    // Marks slots that have not been decoded yet
+    private static final Object NOT_LOADED = new Object();
+    private static final EntityReference NOT_LOADED_REFERENCE = new EntityReference( "" );
+
+    private final DefaultEntityStoreUnitOfWork unitOfWork;
+    private EntityStatus status;
+    private final String version;
+    private final long lastModified;
+    private final EntityReference identity;
+    private final EntityDescriptor entityDescriptor;
+    private final EntityStateSlots slots;
+
+    private final Object[] properties;
+    private final EntityReference[] associations;
+    private final List<EntityReference>[] manyAssociations;
+    private LazyState lazyState;
+
+    public SlotEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                            EntityReference identity,
+                            EntityDescriptor entityDescriptor,
+                            EntityStateSlots slots
+    )
+    {
+        this( unitOfWork, "",
+              unitOfWork.currentTime(),
+              identity,
+              EntityStatus.NEW,
+              entityDescriptor,
+              slots,
+              new Object[ slots.propertyCount() ],
+              new EntityReference[ slots.associationCount() ],
+              new List[ slots.manyAssociationCount() ] );
+    }
+
+    public SlotEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                            String version,
+                            long lastModified,
+                            EntityReference identity,
+                            EntityStatus status,
+                            EntityDescriptor entityDescriptor,
+                            EntityStateSlots slots,
+                            Object[] properties,
+                            EntityReference[] associations,
+                            List<EntityReference>[] manyAssociations
+    )
+    {
+        this.unitOfWork = unitOfWork;
+        this.version = version;
+        this.lastModified = lastModified;
+        this.identity = identity;
+        this.status = status;
+        this.entityDescriptor = entityDescriptor;
+        this.slots = slots;
+        this.properties = properties;
+        this.associations = associations;
+        this.manyAssociations = manyAssociations;
+    }
+
+    /**
+     * Create state whose slots are decoded by the given LazyState when they are first used. Slots that
+     * already have a value in the arrays, such as defaults for missing state, are used as is.
+     *
+     * @param loadedProperties   which property slots already have their value in the array
+     * @param loadedAssociations which association slots already have their value in the array
+     * @param lazyState          decoder of the other slots
+     */
+    public SlotEntityState( DefaultEntityStoreUnitOfWork unitOfWork,
+                            String version,
+                            long lastModified,
+                            EntityReference identity,
+                            EntityStatus status,
+                            EntityDescriptor entityDescriptor,
+                            EntityStateSlots slots,
+                            Object[] properties,
+                            EntityReference[] associations,
+                            List<EntityReference>[] manyAssociations,
+                            boolean[] loadedProperties,
+                            boolean[] loadedAssociations,
+                            LazyState lazyState
+    )
+    {
+        this( unitOfWork, version, lastModified, identity, status, entityDescriptor, slots, properties, associations, manyAssociations );
+        this.lazyState = lazyState;
+        for( int i = 0; i < properties.length; i++ )
+        {
+            if( !loadedProperties[ i ] )
+            {
+                properties[ i ] = NOT_LOADED;
+            }
+        }
+        for( int i = 0; i < associations.length; i++ )
+        {
+            if( !loadedAssociations[ i ] )
+            {
+                associations[ i ] = NOT_LOADED_REFERENCE;
+            }
+        }
+    }
+
+    // EntityState implementation
+
+    public String version()
+    {
+        return version;
+    }
+
+    public long lastModified()
+    {
+        return lastModified;
+    }
+
+    public EntityReference identity()
+    {
+        return identity;
+    }
+
+    public Object getProperty( QualifiedName stateName )
+    {
+        int slot = slots.propertySlot( stateName );
+        return slot == -1 ? null : propertyAt( slot );
+    }
+
+    public void setProperty( QualifiedName stateName, Object newValue )
+    {
+        setPropertyAt( slot( slots.propertySlot( stateName ), stateName ), newValue );
+    }
+
+    public EntityReference getAssociation( QualifiedName stateName )
+    {
+        int slot = slots.associationSlot( stateName );
+        return slot == -1 ? null : associationAt( slot );
+    }
+
+    public void setAssociation( QualifiedName stateName, EntityReference newEntity )
+    {
+        setAssociationAt( slot( slots.associationSlot( stateName ), stateName ), newEntity );
+    }
+
+    public ManyAssociationState getManyAssociation( QualifiedName stateName )
+    {
+        return manyAssociationAt( slot( slots.manyAssociationSlot( stateName ), stateName ) );
+    }
+
+    public void remove()
+    {
+        status = EntityStatus.REMOVED;
+    }
+
+    public EntityStatus status()
+    {
+        return status;
+    }
+
+    public boolean isAssignableTo( Class<?> type )
+    {
+        return entityDescriptor.isAssignableTo( type );
+    }
+
+    public EntityDescriptor entityDescriptor()
+    {
+        return entityDescriptor;
+    }
+
+    // Slot access
+
+    public EntityStateSlots slots()
+    {
+        return slots;
+    }
+
+    public Object propertyAt( int slot )
+    {
+        Object value = properties[ slot ];
+        if( value == NOT_LOADED )
+        {
+            value = lazyState.property( slot );
+            properties[ slot ] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the property in the slot has been decoded or set, false if it is still only stored
+     */
+    public boolean isPropertyLoaded( int slot )
+    {
+        return properties[ slot ] != NOT_LOADED;
+    }
+
+    /**
+     * @return true if the many-association in the slot has been decoded or used, false if it is still only stored
+     */
+    public boolean isManyAssociationLoaded( int slot )
+    {
+        return manyAssociations[ slot ] != null || lazyState == null;
+    }
+
+    /**
+     * @return the LazyState that decodes the slots, or null if all state was decoded when loaded
+     */
+    public LazyState lazyState()
+    {
+        return lazyState;
+    }
+
+    public void setPropertyAt( int slot, Object newValue )
+    {
+        properties[ slot ] = newValue;
+        markUpdated();
+    }
+
+    public EntityReference associationAt( int slot )
+    {
+        EntityReference reference = associations[ slot ];
+        if( reference == NOT_LOADED_REFERENCE )
+        {
+            reference = lazyState.association( slot );
+            associations[ slot ] = reference;
+        }
+        return reference;
+    }
+
+    public void setAssociationAt( int slot, EntityReference newEntity )
+    {
+        associations[ slot ] = newEntity;
+        markUpdated();
+    }
+
+    public ManyAssociationState manyAssociationAt( int slot )
+    {
+        List<EntityReference> references = manyAssociationReferencesAt( slot );
+        if( !( references instanceof IndexedReferenceList ) )
+        {
+            references = IndexedReferenceList.of( references );
+            manyAssociations[ slot ] = references;
+        }
+        return new SlotManyAssociationState( this, (IndexedReferenceList) references );
+    }
+
+    /**
+     * @return the references of the many-association in the given slot, for codecs to read
+     */
+    public List<EntityReference> manyAssociationReferencesAt( int slot )
+    {
+        List<EntityReference> references = manyAssociations[ slot ];
+        if( references == null && lazyState != null )
+        {
+            references = lazyState.manyAssociation( slot );
+            manyAssociations[ slot ] = references;
+        }
+        if( references == null )
+        {
+            references = new ArrayList<EntityReference>();
+            manyAssociations[ slot ] = references;
+        }
+        return references;
+    }
+
+    public void markUpdated()
+    {
+        if( status == EntityStatus.LOADED )
+        {
+            status = EntityStatus.UPDATED;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return identity + "(" +
+               properties.length + " properties, " +
+               associations.length + " associations, " +
+               manyAssociations.length + " many-associations)";
+    }
+
+    private int slot( int slot, QualifiedName stateName )
+    {
+        if( slot == -1 )
+        {
+            throw new IllegalArgumentException( "No such state in " + entityDescriptor.type().getName() + ":" + stateName );
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Iterables;
+import org.qi4j.spi.entity.IndexedReferenceList;
+import org.qi4j.spi.entity.ManyAssociationState;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * ManyAssociationState of a {@link SlotEntityState}. Backed by the list in the slot of the many-association.
+ */
+final class SlotManyAssociationState
+    implements ManyAssociationState
+{
+    private final SlotEntityState entityState;
+    private final IndexedReferenceList references;
+
+    SlotManyAssociationState( SlotEntityState entityState, IndexedReferenceList references )
+    {
+        this.entityState = entityState;
+        this.references = references;
+    }
+
+    public int count()
+    {
+        return references.size();
+    }
+
+    public boolean contains( EntityReference entityReference )
+    {
+        return references.contains( entityReference );
+    }
+
+    public boolean add( int i, EntityReference entityReference )
+    {
+        if( !references.insert( i, entityReference ) )
+        {
+            return false;
+        }
+
+        entityState.markUpdated();
+        return true;
+    }
+
+    public boolean remove( EntityReference entityReference )
+    {
+        if( references.remove( entityReference ) )
+        {
+            entityState.markUpdated();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean addAll( Iterable<EntityReference> entityReferences )
+    {
+        boolean added = false;
+        for( EntityReference entityReference : entityReferences )
+        {
+            added |= references.add( entityReference );
+        }
+        return changed( added );
+    }
+
+    public boolean removeAll( Iterable<EntityReference> entityReferences )
+    {
+        return changed( references.removeAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) ) );
+    }
+
+    public boolean retainAll( Iterable<EntityReference> entityReferences )
+    {
+        return changed( references.retainAll( Iterables.addAll( new HashSet<EntityReference>(), entityReferences ) ) );
+    }
+
+    public EntityReference get( int i )
+    {
+        return references.get( i );
+    }
+
+    public Iterator<EntityReference> iterator()
+    {
+        final Iterator<EntityReference> iter = references.iterator();
+
+        return new Iterator<EntityReference>()
+        {
+            public boolean hasNext()
+            {
+                return iter.hasNext();
+            }
+
+            public EntityReference next()
+            {
+                return iter.next();
+            }
+
+            public void remove()
+            {
+                iter.remove();
+                entityState.markUpdated();
+            }
+        };
+    }
+
+    private boolean changed( boolean changed )
+    {
+        if( changed )
+        {
+            entityState.markUpdated();
+        }
+        return changed;
+    }
+}
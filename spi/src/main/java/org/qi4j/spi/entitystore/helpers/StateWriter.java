@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Buffers the text of an entity state that is written to the Writer of a MapChanger. The buffer is
+ * reused by all entity states that are written by a thread, so writing an entity does not allocate
+ * memory in proportion to its size. Strings and substrings are copied straight into the buffer.
+ * <p/>
+ * Call {@link #close()} when done, which writes what is left in the buffer and releases it. The
+ * target Writer is flushed but not closed.
+ */
+final class StateWriter
+    extends Writer
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>()
+    {
+        @Override
+        protected char[] initialValue()
+        {
+            return new char[ BUFFER_SIZE ];
+        }
+    };
+
+    private final Writer target;
+    private char[] buffer;
+    private int count;
+
+    StateWriter( Writer target )
+    {
+        this.target = target;
+        buffer = buffers.get();
+        // Nested use on the same thread gets its own buffer
+        buffers.set( null );
+        if( buffer == null )
+        {
+            buffer = new char[ BUFFER_SIZE ];
+        }
+    }
+
+    @Override
+    public void write( int c )
+        throws IOException
+    {
+        if( count == buffer.length )
+        {
+            flushBuffer();
+        }
+        buffer[ count++ ] = (char) c;
+    }
+
+    @Override
+    public void write( char[] chars, int offset, int length )
+        throws IOException
+    {
+        if( length >= buffer.length )
+        {
+            flushBuffer();
+            target.write( chars, offset, length );
+            return;
+        }
+        if( length > buffer.length - count )
+        {
+            flushBuffer();
+        }
+        System.arraycopy( chars, offset, buffer, count, length );
+        count += length;
+    }
+
+    @Override
+    public void write( String string, int offset, int length )
+        throws IOException
+    {
+        append( string, offset, offset + length );
+    }
+
+    @Override
+    public Writer append( CharSequence csq )
+        throws IOException
+    {
+        return csq == null ? append( "null", 0, 4 ) : append( csq, 0, csq.length() );
+    }
+
+    @Override
+    public Writer append( CharSequence csq, int start, int end )
+        throws IOException
+    {
+        if( csq == null )
+        {
+            return append( "null", start, end );
+        }
+
+        while( start < end )
+        {
+            if( count == buffer.length )
+            {
+                flushBuffer();
+            }
+            int length = Math.min( end - start, buffer.length - count );
+            if( csq instanceof String )
+            {
+                ( (String) csq ).getChars( start, start + length, buffer, count );
+            }
+            else
+            {
+                for( int i = 0; i < length; i++ )
+                {
+                    buffer[ count + i ] = csq.charAt( start + i );
+                }
+            }
+            count += length;
+            start += length;
+        }
+        return this;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        flushBuffer();
+        target.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if( buffer != null )
+        {
+            flush();
+            buffers.set( buffer );
+            buffer = null;
+        }
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if( count > 0 )
+        {
+            target.write( buffer, 0, count );
+            count = 0;
+        }
+    }
+}
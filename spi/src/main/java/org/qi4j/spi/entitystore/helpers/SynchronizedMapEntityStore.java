@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.spi.entitystore.helpers;
+
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.service.ServiceDescriptor;
+import org.qi4j.io.Input;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * MapEntityStore that lets one thread at a time get state from a MapEntityStore that is not
+ * {@link MapEntityStore.ThreadSafe}. Entity states are parsed with {@link #read} while holding the lock,
+ * straight from the Reader of the store. {@link #get} instead copies the whole state into a String while
+ * holding the lock, which costs an extra allocation of the size of the state, so that the caller can
+ * parse it concurrently.
+ */
+final class SynchronizedMapEntityStore
+    implements MapEntityStore
+{
+    /**
+     * @return the given MapEntityStore if the service declares it thread-safe, otherwise a synchronized one
+     */
+    static MapEntityStore forService( MapEntityStore store, ServiceDescriptor descriptor )
+    {
+        if( descriptor.metaInfo( MapEntityStore.ThreadSafe.class ) != null )
+        {
+            return store;
+        }
+        return new SynchronizedMapEntityStore( store );
+    }
+
+    /**
+     * Read the state of an entity with the given StateReader. If the store is synchronized this is done while
+     * holding its lock, so the state is not copied first.
+     */
+    static <T> T read( MapEntityStore store, EntityReference entityReference, StateReader<T> stateReader )
+        throws EntityStoreException
+    {
+        if( store instanceof SynchronizedMapEntityStore )
+        {
+            SynchronizedMapEntityStore synchronizedStore = (SynchronizedMapEntityStore) store;
+            synchronized( synchronizedStore )
+            {
+                return stateReader.read( synchronizedStore.store.get( entityReference ) );
+            }
+        }
+        return stateReader.read( store.get( entityReference ) );
+    }
+
+    /**
+     * Parser of the state of an entity.
+     */
+    interface StateReader<T>
+    {
+        T read( Reader state )
+            throws EntityStoreException;
+    }
+
+    private final MapEntityStore store;
+
+    private SynchronizedMapEntityStore( MapEntityStore store )
+    {
+        this.store = store;
+    }
+
+    public synchronized Reader get( EntityReference entityReference )
+        throws EntityStoreException
+    {
+        Reader reader = store.get( entityReference );
+        try
+        {
+            StringBuilder state = new StringBuilder();
+            char[] buffer = new char[ 4096 ];
+            int count;
+            while( ( count = reader.read( buffer ) ) != -1 )
+            {
+                state.append( buffer, 0, count );
+            }
+            reader.close();
+            return new StringReader( state.toString() );
+        }
+        catch( IOException e )
+        {
+            throw new EntityStoreException( "Could not read " + entityReference, e );
+        }
+    }
+
+    public Input<Reader, IOException> entityStates()
+    {
+        return store.entityStates();
+    }
+
+    public void applyChanges( MapChanges changes )
+        throws IOException
+    {
+        store.applyChanges( changes );
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the states that the in-memory compact store keeps
+ */
+public class MemoryCompactMapEntityStoreMixinTest
+{
+    private static final int ENTITIES = 100;
+
+    private final MemoryCompactMapEntityStoreMixin store =
+        new MemoryCompactMapEntityStoreMixin( new MemoryCompactMapEntityStoreMixin.Compression( 200 ) );
+
+    @Test
+    public void givenUpdatedEntitiesWhenNothingReadsOldStatesThenKeepOneStatePerEntity()
+        throws Exception
+    {
+        for( int round = 0; round < 10; round++ )
+        {
+            write( round );
+        }
+
+        // Before, every updated entity also kept its previous state, which was 200 states here
+        assertEquals( ENTITIES, store.stateCount() );
+        assertEquals( "{\"identity\":\"7\",\"round\":9}", read( store.get( new EntityReference( "7" ) ) ) );
+    }
+
+    @Test
+    public void givenUpdatedEntitiesWhileReadingAllStatesThenKeepOldStatesUntilDone()
+        throws Exception
+    {
+        write( 0 );
+
+        final int[] counts = new int[ 2 ];
+        store.entityStates().transferTo( new Output<Reader, IOException>()
+        {
+            public <SenderThrowableType extends Throwable> void receiveFrom( Sender<? extends Reader, SenderThrowableType> sender )
+                throws IOException, SenderThrowableType
+            {
+                sender.sendTo( new Receiver<Reader, IOException>()
+                {
+                    public void receive( Reader state )
+                        throws IOException
+                    {
+                        if( counts[ 0 ]++ == 0 )
+                        {
+                            write( 1 );
+                            write( 2 );
+                            counts[ 1 ] = store.stateCount();
+                        }
+                        assertTrue( read( state ).endsWith( "\"round\":0}" ) );
+                    }
+                } );
+            }
+        } );
+
+        assertEquals( ENTITIES, counts[ 0 ] );
+        // The states of round 0 for the reader and the latest ones, but not those of round 1
+        assertEquals( 2 * ENTITIES, counts[ 1 ] );
+        assertEquals( ENTITIES, store.stateCount() );
+    }
+
+    private void write( final int round )
+        throws IOException
+    {
+        store.applyChanges( new MapEntityStore.MapChanges()
+        {
+            public void visitMap( MapEntityStore.MapChanger changer )
+                throws IOException
+            {
+                for( int i = 0; i < ENTITIES; i++ )
+                {
+                    EntityReference reference = new EntityReference( "" + i );
+                    Writer writer = round == 0
+                                    ? changer.newEntity( reference, null )
+                                    : changer.updateEntity( reference, null );
+                    writer.write( "{\"identity\":\"" + i + "\",\"round\":" + round + "}" );
+                    writer.close();
+                }
+            }
+        } );
+    }
+
+    private static String read( Reader reader )
+        throws IOException
+    {
+        StringBuilder string = new StringBuilder();
+        int c;
+        while( ( c = reader.read() ) != -1 )
+        {
+            string.append( (char) c );
+        }
+        reader.close();
+        return string.toString();
+    }
+}
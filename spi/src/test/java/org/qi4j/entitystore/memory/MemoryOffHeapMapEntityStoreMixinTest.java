@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.EntityNotFoundException;
+import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of how the in-memory store that keeps state outside of the Java heap uses its memory
+ */
+public class MemoryOffHeapMapEntityStoreMixinTest
+{
+    private static final int SLAB_SIZE = 4096;
+
+    @Test
+    public void givenOverwrittenAndRemovedEntitiesWhenCommittingThenFreeTheirMemory()
+        throws Exception
+    {
+        MemoryOffHeapMapEntityStoreMixin store = new MemoryOffHeapMapEntityStoreMixin( new MemoryOffHeapMapEntityStoreMixin.Slabs( SLAB_SIZE ) );
+        write( store, 0, 100, 0 );
+        long allocated = store.allocated();
+        for( int round = 1; round <= 50; round++ )
+        {
+            write( store, 0, 100, round );
+        }
+
+        // 50 rounds of about 8 KB each, of which only the last is current
+        assertTrue( "Allocated " + store.allocated(), store.allocated() <= 2 * allocated + SLAB_SIZE );
+        assertEquals( state( 42, 50 ), read( store, 42 ) );
+
+        remove( store, 0, 100 );
+        assertEquals( SLAB_SIZE, store.allocated() );
+        assertNull( read( store, 42 ) );
+    }
+
+    @Test
+    public void givenSparseSlabsWhenCommittingThenCompactThemAndKeepState()
+        throws Exception
+    {
+        MemoryOffHeapMapEntityStoreMixin store = new MemoryOffHeapMapEntityStoreMixin( new MemoryOffHeapMapEntityStoreMixin.Slabs( SLAB_SIZE ) );
+        write( store, 0, 400, 0 );
+        long allocated = store.allocated();
+
+        // Leave one of four entities in each slab, which is then less than half full
+        for( int i = 0; i < 400; i++ )
+        {
+            if( i % 4 != 0 )
+            {
+                remove( store, i, i + 1 );
+            }
+        }
+
+        assertTrue( "Allocated " + store.allocated() + " of " + allocated, store.allocated() <= allocated / 2 );
+        for( int i = 0; i < 400; i++ )
+        {
+            assertEquals( i % 4 == 0 ? state( i, 0 ) : null, read( store, i ) );
+        }
+    }
+
+    @Test
+    public void givenCommitExceedingCapacityWhenApplyingThenFailWithoutChanges()
+        throws Exception
+    {
+        int recordSize = OffHeapArena.recordSize( "0", state( 0, 0 ).getBytes( "UTF-8" ) );
+        MemoryOffHeapMapEntityStoreMixin store = new MemoryOffHeapMapEntityStoreMixin( new MemoryOffHeapMapEntityStoreMixin.Slabs( SLAB_SIZE, 16 * recordSize ) );
+        write( store, 0, 10, 0 );
+
+        try
+        {
+            write( store, 5, 20, 1 );
+            fail( "Commit should exceed the capacity" );
+        }
+        catch( EntityStoreException e )
+        {
+            // Expected
+        }
+        assertEquals( state( 5, 0 ), read( store, 5 ) );
+        assertNull( read( store, 10 ) );
+
+        // Removing entities makes room
+        remove( store, 0, 5 );
+        write( store, 5, 20, 1 );
+        assertEquals( state( 19, 1 ), read( store, 19 ) );
+    }
+
+    private static void write( final MemoryOffHeapMapEntityStoreMixin store, final int from, final int to, final int round )
+        throws IOException
+    {
+        store.applyChanges( new MapEntityStore.MapChanges()
+        {
+            public void visitMap( MapEntityStore.MapChanger changer )
+                throws IOException
+            {
+                for( int i = from; i < to; i++ )
+                {
+                    EntityReference reference = new EntityReference( "" + i );
+                    Writer writer = store.contains( reference, null )
+                                    ? changer.updateEntity( reference, null )
+                                    : changer.newEntity( reference, null );
+                    writer.write( state( i, round ) );
+                    writer.close();
+                }
+            }
+        } );
+    }
+
+    private static void remove( MemoryOffHeapMapEntityStoreMixin store, final int from, final int to )
+        throws IOException
+    {
+        store.applyChanges( new MapEntityStore.MapChanges()
+        {
+            public void visitMap( MapEntityStore.MapChanger changer )
+                throws IOException
+            {
+                for( int i = from; i < to; i++ )
+                {
+                    changer.removeEntity( new EntityReference( "" + i ), null );
+                }
+            }
+        } );
+    }
+
+    private static String state( int i, int round )
+    {
+        return "{\"identity\":\"" + i + "\",\"round\":" + round + ",\"text\":\"Räksmörgås med ägg och majonnäs\"}";
+    }
+
+    private static String read( MemoryOffHeapMapEntityStoreMixin store, int i )
+        throws IOException
+    {
+        Reader reader;
+        try
+        {
+            reader = store.get( new EntityReference( "" + i ) );
+        }
+        catch( EntityNotFoundException e )
+        {
+            return null;
+        }
+        StringBuilder string = new StringBuilder();
+        int c;
+        while( ( c = reader.read() ) != -1 )
+        {
+            string.append( (char) c );
+        }
+        reader.close();
+        return string.toString();
+    }
+}
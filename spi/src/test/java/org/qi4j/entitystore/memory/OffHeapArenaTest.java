@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the off-heap records of the in-memory store
+ */
+public class OffHeapArenaTest
+{
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    @Test
+    public void givenRandomChangesWhenCompactingThenKeepCurrentState()
+    {
+        OffHeapArena arena = new OffHeapArena( 4096 );
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random( 42 );
+        for( int i = 0; i < 20000; i++ )
+        {
+            String identity = "entity-" + random.nextInt( 500 );
+            if( random.nextInt( 4 ) == 0 )
+            {
+                assertEquals( expected.remove( identity ) != null, arena.remove( identity ) );
+            }
+            else
+            {
+                // Some states are larger than a slab
+                StringBuilder state = new StringBuilder( "{\"i\":" + i + ",\"s\":\"" );
+                int length = random.nextInt( 50 ) == 0 ? 5000 : random.nextInt( 200 );
+                for( int j = 0; j < length; j++ )
+                {
+                    state.append( 'å' );
+                }
+                state.append( "\"}" );
+                arena.put( identity, state.toString().getBytes( UTF_8 ) );
+                expected.put( identity, state.toString() );
+            }
+
+            if( i % 10 == 0 )
+            {
+                arena.compact();
+            }
+        }
+        arena.compact();
+
+        assertEquals( expected.size(), arena.size() );
+        assertEquals( expected.keySet(), new HashSet<String>( arena.identities() ) );
+        for( Map.Entry<String, String> state : expected.entrySet() )
+        {
+            ByteBuffer buffer = arena.get( state.getKey() );
+            assertEquals( state.getValue(), UTF_8.decode( buffer ).toString() );
+        }
+        assertNull( arena.get( "entity-500" ) );
+    }
+}
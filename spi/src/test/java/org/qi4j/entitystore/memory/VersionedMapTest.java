@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2011, Rickard Öberg. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.qi4j.entitystore.memory;
+
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.functional.Iterables;
+import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
+import org.qi4j.spi.entitystore.helpers.EntityChanges;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the versioned state of the in-memory stores
+ */
+public class VersionedMapTest
+{
+    private static final EntityReference FOO = new EntityReference( "foo" );
+    private static final EntityReference BAR = new EntityReference( "bar" );
+
+    @Test
+    public void givenSnapshotWhenChangingThenSnapshotIsUnchanged()
+    {
+        VersionedMap<String> map = new VersionedMap<String>();
+        EntityChanges<String> changes = map.newChanges();
+        changes.newEntity( FOO, "foo1" );
+        changes.newEntity( BAR, "bar1" );
+        map.apply( changes );
+
+        VersionedMap<String>.Snapshot snapshot = map.snapshot();
+
+        changes = map.newChanges();
+        changes.updateEntity( FOO, "foo2" );
+        changes.removeEntity( BAR );
+        changes.newEntity( new EntityReference( "xyz" ), "xyz1" );
+        map.apply( changes );
+
+        assertEquals( "foo2", map.get( FOO ) );
+        assertNull( map.get( BAR ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "foo1", "bar1" ) ),
+                      Iterables.addAll( new HashSet<String>(), snapshot ) );
+        assertEquals( "bar1", snapshot.get( BAR ) );
+        snapshot.release();
+
+        snapshot = map.snapshot();
+        assertEquals( new HashSet<String>( Arrays.asList( "foo2", "xyz1" ) ),
+                      Iterables.addAll( new HashSet<String>(), snapshot ) );
+        snapshot.release();
+    }
+
+    @Test
+    public void givenInvalidChangeWhenApplyingThenApplyNone()
+    {
+        VersionedMap<String> map = new VersionedMap<String>();
+        EntityChanges<String> changes = map.newChanges();
+        changes.newEntity( FOO, "foo1" );
+        map.apply( changes );
+
+        changes = map.newChanges();
+        changes.newEntity( BAR, "bar1" );
+        changes.newEntity( FOO, "foo2" );
+        try
+        {
+            map.apply( changes );
+            fail( "Should not be able to create existing entity" );
+        }
+        catch( EntityAlreadyExistsException e )
+        {
+            // Ok
+        }
+
+        assertEquals( "foo1", map.get( FOO ) );
+        assertNull( map.get( BAR ) );
+    }
+
+    @Test
+    public void givenSnapshotsOfDifferentVersionsWhenChangingThenEachSeesItsOwnVersion()
+    {
+        VersionedMap<String> map = new VersionedMap<String>();
+        EntityChanges<String> changes = map.newChanges();
+        changes.newEntity( FOO, "foo1" );
+        map.apply( changes );
+        VersionedMap<String>.Snapshot first = map.snapshot();
+
+        changes = map.newChanges();
+        changes.updateEntity( FOO, "foo2" );
+        changes.newEntity( BAR, "bar2" );
+        map.apply( changes );
+        VersionedMap<String>.Snapshot second = map.snapshot();
+        VersionedMap<String>.Snapshot secondAgain = map.snapshot();
+
+        changes = map.newChanges();
+        changes.updateEntity( FOO, "foo3" );
+        changes.removeEntity( BAR );
+        map.apply( changes );
+
+        assertEquals( "foo1", first.get( FOO ) );
+        assertNull( first.get( BAR ) );
+        assertEquals( "foo2", second.get( FOO ) );
+        assertEquals( "bar2", second.get( BAR ) );
+        assertEquals( "foo3", map.get( FOO ) );
+        assertNull( map.get( BAR ) );
+
+        // Releasing the oldest snapshot keeps what the newer ones need
+        first.release();
+        second.release();
+        changes = map.newChanges();
+        changes.updateEntity( FOO, "foo4" );
+        map.apply( changes );
+        assertEquals( "foo2", secondAgain.get( FOO ) );
+        assertEquals( "bar2", secondAgain.get( BAR ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "foo2", "bar2" ) ),
+                      Iterables.addAll( new HashSet<String>(), secondAgain ) );
+        secondAgain.release();
+
+        assertEquals( "foo4", map.get( FOO ) );
+        assertEquals( 1, map.versionCount() );
+    }
+
+    @Test
+    public void givenNoSnapshotWhenUpdatingThenKeepOnlyLatestVersion()
+    {
+        VersionedMap<String> map = new VersionedMap<String>();
+        EntityChanges<String> changes = map.newChanges();
+        changes.newEntity( FOO, "foo0" );
+        changes.newEntity( BAR, "bar0" );
+        map.apply( changes );
+
+        for( int i = 1; i <= 10; i++ )
+        {
+            changes = map.newChanges();
+            changes.updateEntity( FOO, "foo" + i );
+            map.apply( changes );
+            assertEquals( 2, map.versionCount() );
+        }
+        assertEquals( "foo10", map.get( FOO ) );
+    }
+
+    @Test
+    public void givenSnapshotWhenUpdatingThenKeepVersionsUntilReleased()
+    {
+        VersionedMap<String> map = new VersionedMap<String>();
+        EntityChanges<String> changes = map.newChanges();
+        changes.newEntity( FOO, "foo0" );
+        changes.newEntity( BAR, "bar0" );
+        map.apply( changes );
+
+        VersionedMap<String>.Snapshot snapshot = map.snapshot();
+        for( int i = 1; i <= 10; i++ )
+        {
+            changes = map.newChanges();
+            changes.updateEntity( FOO, "foo" + i );
+            map.apply( changes );
+        }
+
+        // The latest version and the one in the snapshot, but none in between
+        assertEquals( 3, map.versionCount() );
+        assertEquals( "foo0", snapshot.get( FOO ) );
+
+        snapshot.release();
+        assertEquals( 2, map.versionCount() );
+        assertEquals( "foo10", map.get( FOO ) );
+    }
+}